@@ -0,0 +1,164 @@
+package com.example.vaedemo;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.example.vaedemo.imageproc.PixelConverter;
+import com.example.vaedemo.imageproc.StrokeRasterizer;
+import com.google.android.gms.tasks.Tasks;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented comparison of the direct stroke rasterization with the full-screen drawing path
+ * it replaces, which will execute on an Android device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StrokeRasterizerParityTest {
+    private static final String TAG = "StrokeRasterizerTest";
+    private static final int VIEW_WIDTH = 1080;
+    private static final int VIEW_HEIGHT = 1200;
+    private static final float STROKE_WIDTH = 35f;
+    private static final int SIZE = 28;
+    private static final int WARM_UP_ROUNDS = 10;
+    private static final int MEASURE_ROUNDS = 100;
+
+    /**
+     * Polylines of a few digits in view coordinates, one array of x, y pairs per stroke
+     */
+    private static final float[][][] DIGITS = {
+            // 1
+            {{540, 150, 540, 1050}},
+            // 7
+            {{250, 200, 850, 200, 450, 1050}},
+            // 4
+            {{650, 150, 250, 750, 850, 750}, {650, 450, 650, 1050}},
+            // 0
+            {circle(540, 600, 300, 400)},
+    };
+
+    @Test
+    public void rasterizer_matchesTheScaledDownCanvas() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        DigitClassifier classifier = new DigitClassifier(context);
+        try {
+            for (float[][] strokes : DIGITS) {
+                float[] expected = scaleDownCanvas(drawCanvas(strokes));
+                float[] actual = rasterize(strokes);
+
+                double difference = 0;
+                double expectedSum = 0;
+                double actualSum = 0;
+                for (int i = 0; i < expected.length; i++) {
+                    difference += Math.abs(expected[i] - actual[i]);
+                    expectedSum += expected[i];
+                    actualSum += actual[i];
+                }
+                Log.i(TAG, String.format("Mean absolute difference %.4f, ink %.1f vs %.1f",
+                        difference / expected.length, expectedSum, actualSum));
+
+                assertTrue(difference / expected.length < 0.06);
+                assertEquals(expectedSum, actualSum, expectedSum * 0.25);
+                assertEquals(Tasks.await(classifier.classifyAsync(expected)),
+                        Tasks.await(classifier.classifyAsync(actual)));
+            }
+        } finally {
+            Tasks.await(classifier.close());
+        }
+    }
+
+    @Test
+    public void rasterizer_reportsLatencyAgainstTheScaledDownCanvas() {
+        float[][] strokes = DIGITS[2];
+        Bitmap canvas = drawCanvas(strokes);
+
+        for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+            scaleDownCanvas(canvas);
+            rasterize(strokes);
+        }
+
+        // The classifier and the encoder each scaled the full-screen bitmap down
+        long startTime = System.nanoTime();
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            scaleDownCanvas(canvas);
+            scaleDownCanvas(canvas);
+        }
+        long scaledTime = System.nanoTime() - startTime;
+
+        // The whole stroke is rasterized here, the app spreads it over the touch events
+        startTime = System.nanoTime();
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            rasterize(strokes);
+        }
+        long rasterizedTime = System.nanoTime() - startTime;
+
+        Log.i(TAG, String.format("Scaled-down canvas x2: %.1fus, rasterized strokes: %.1fus",
+                scaledTime / 1e3 / MEASURE_ROUNDS, rasterizedTime / 1e3 / MEASURE_ROUNDS));
+    }
+
+    private static Bitmap drawCanvas(float[][] strokes) {
+        Bitmap bitmap = Bitmap.createBitmap(VIEW_WIDTH, VIEW_HEIGHT, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.BLACK);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setColor(Color.WHITE);
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setStrokeWidth(STROKE_WIDTH);
+        paint.setStrokeCap(Paint.Cap.ROUND);
+        paint.setStrokeJoin(Paint.Join.ROUND);
+
+        Canvas canvas = new Canvas(bitmap);
+        for (float[] stroke : strokes) {
+            Path path = new Path();
+            path.moveTo(stroke[0], stroke[1]);
+            for (int i = 2; i < stroke.length; i += 2) {
+                path.lineTo(stroke[i], stroke[i + 1]);
+            }
+            canvas.drawPath(path, paint);
+        }
+        return bitmap;
+    }
+
+    private static float[] scaleDownCanvas(Bitmap bitmap) {
+        Bitmap resizedImage = Bitmap.createScaledBitmap(bitmap, SIZE, SIZE, true);
+        int[] pixels = new int[SIZE * SIZE];
+        resizedImage.getPixels(pixels, 0, SIZE, 0, 0, SIZE, SIZE);
+        float[] normalizedPixels = new float[SIZE * SIZE];
+        PixelConverter.normalize(pixels, normalizedPixels);
+        return normalizedPixels;
+    }
+
+    private static float[] rasterize(float[][] strokes) {
+        StrokeRasterizer rasterizer = new StrokeRasterizer(SIZE, SIZE);
+        rasterizer.setViewSize(VIEW_WIDTH, VIEW_HEIGHT);
+        rasterizer.setStrokeWidth(STROKE_WIDTH);
+        for (float[] stroke : strokes) {
+            rasterizer.moveTo(stroke[0], stroke[1]);
+            for (int i = 2; i < stroke.length; i += 2) {
+                rasterizer.lineTo(stroke[i], stroke[i + 1]);
+            }
+        }
+        return rasterizer.getPixels();
+    }
+
+    private static float[] circle(float centerX, float centerY, float radiusX, float radiusY) {
+        int segments = 32;
+        float[] points = new float[2 * (segments + 1)];
+        for (int i = 0; i <= segments; i++) {
+            double angle = 2 * Math.PI * i / segments;
+            points[2 * i] = centerX + radiusX * (float) Math.cos(angle);
+            points[2 * i + 1] = centerY + radiusY * (float) Math.sin(angle);
+        }
+        return points;
+    }
+}
@@ -0,0 +1,672 @@
+package com.example.vaedemo;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Debug;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.google.android.gms.tasks.Tasks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.tensorflow.lite.Interpreter;
+
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented tests of the VAE model, which will execute on an Android device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class VaeModelTest {
+    private static final String TAG = "VaeModelTest";
+    private static final int WARM_UP_ROUNDS = 10;
+    private static final int MEASURE_ROUNDS = 100;
+    private static final int BATCH_SIZE = 10;
+    private static final int STRESS_THREADS = 8;
+    private static final int STRESS_ROUNDS = 50;
+    private static final int ANIMATION_FRAMES = 30;
+    private static final float ANIMATION_FPS = 60f;
+    private static final int ANIMATED_DIMENSION = 22;
+    private static final int POSTERIOR_SAMPLES = 200;
+    private static final int[] SAMPLE_COUNTS = {1, 2, 4, 8, 16, 32};
+    private static final int SAMPLE_ROUNDS = 20;
+    private static final long SEED = 42;
+    private static final int SCRUB_FRAMES = 200;
+    private static final float FIRST_CALL_TOLERANCE = 3f;
+    private static final long FIRST_CALL_SLACK_NANOS = 2000000;
+
+    private VaeModel vaeModel;
+    private Bitmap drawing;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        vaeModel = new VaeModel(context, true);
+        Tasks.await(vaeModel.initialize());
+
+        // A full-screen sized drawing with a vertical stroke, like a "1"
+        drawing = Bitmap.createBitmap(560, 560, Bitmap.Config.ARGB_8888);
+        drawing.eraseColor(Color.BLACK);
+        for (int y = 100; y < 460; y++) {
+            for (int x = 260; x < 300; x++) {
+                drawing.setPixel(x, y, Color.WHITE);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Tasks.await(vaeModel.close());
+    }
+
+    @Test
+    public void directBuffers_steadyStateDoesNotAllocate() {
+        float[] latentCodes = new float[50];
+        Bitmap output = Bitmap.createBitmap(28, 28, Bitmap.Config.ARGB_8888);
+
+        for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+            vaeModel.encodeInto(drawing, 1, latentCodes);
+            vaeModel.decodeInto(latentCodes, 1, output);
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            vaeModel.encodeInto(drawing, 1, latentCodes);
+            vaeModel.decodeInto(latentCodes, 1, output);
+        }
+        Debug.stopAllocCounting();
+
+        assertEquals("Allocations in the steady state encode/decode path",
+                0, Debug.getThreadAllocCount());
+    }
+
+    @Test
+    public void decodeBatch_matchesSingleDecodeAndReportsThroughput() throws Exception {
+        float[][] latentCodes = new float[BATCH_SIZE][];
+        int[] labels = new int[BATCH_SIZE];
+        latentCodes[0] = Tasks.await(vaeModel.encodeAsync(drawing, 1));
+        for (int n = 0; n < BATCH_SIZE; n++) {
+            latentCodes[n] = latentCodes[0];
+            labels[n] = n;
+        }
+
+        Bitmap[] singles = new Bitmap[BATCH_SIZE];
+        Bitmap[] batch = null;
+        for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+            Tasks.await(vaeModel.decodeAsync(latentCodes[0], labels[0]));
+            Tasks.await(vaeModel.decodeBatchAsync(latentCodes, labels));
+        }
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            for (int n = 0; n < BATCH_SIZE; n++) {
+                singles[n] = Tasks.await(vaeModel.decodeAsync(latentCodes[n], labels[n]));
+            }
+        }
+        long singleTime = System.nanoTime() - startTime;
+
+        startTime = System.nanoTime();
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            batch = Tasks.await(vaeModel.decodeBatchAsync(latentCodes, labels));
+        }
+        long batchTime = System.nanoTime() - startTime;
+
+        int images = MEASURE_ROUNDS * BATCH_SIZE;
+        Log.i(TAG, String.format("Single decode: %.1f images/s, batch decode: %.1f images/s",
+                images * 1e9 / singleTime, images * 1e9 / batchTime));
+
+        assertEquals(BATCH_SIZE, batch.length);
+        for (int n = 0; n < BATCH_SIZE; n++) {
+            assertPixelsClose(singles[n], batch[n]);
+        }
+
+        Bitmap atlas = Tasks.await(vaeModel.decodeAtlasAsync(latentCodes, labels, 5));
+        assertEquals(5 * 28, atlas.getWidth());
+        assertEquals(2 * 28, atlas.getHeight());
+    }
+
+    @Test
+    public void asyncApis_areSafeUnderConcurrentCallers() throws Exception {
+        final float[] latentCodes = Tasks.await(vaeModel.encodeAsync(drawing, 1));
+        final Bitmap[] expected = new Bitmap[10];
+        for (int label = 0; label < 10; label++) {
+            expected[label] = Tasks.await(vaeModel.decodeAsync(latentCodes, label));
+        }
+
+        ExecutorService callers = Executors.newFixedThreadPool(STRESS_THREADS);
+        List<Future<Void>> results = new ArrayList<>();
+        for (int t = 0; t < STRESS_THREADS; t++) {
+            final int thread = t;
+            results.add(callers.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < STRESS_ROUNDS; i++) {
+                        int label = (thread + i) % 10;
+                        float[] encoded = Tasks.await(vaeModel.encodeAsync(drawing, label));
+                        assertEquals(latentCodes.length, encoded.length);
+                        for (float code : encoded) {
+                            assertFalse(Float.isNaN(code) || Float.isInfinite(code));
+                        }
+
+                        Bitmap decoded = Tasks.await(vaeModel.decodeAsync(latentCodes, label));
+                        assertPixelsClose(expected[label], decoded);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> result : results) {
+            result.get();
+        }
+        callers.shutdown();
+    }
+
+    @Test
+    public void latentAnimator_deliversFramesInOrderAtTargetRate() throws Exception {
+        float[] latentCodes = Tasks.await(vaeModel.encodeAsync(drawing, 1));
+        float[] from = LatentAnimator.withDimension(latentCodes, ANIMATED_DIMENSION, -5);
+        float[] to = LatentAnimator.withDimension(latentCodes, ANIMATED_DIMENSION, 5);
+
+        final List<Integer> frames = new ArrayList<>();
+        LatentAnimator animator = new LatentAnimator(vaeModel, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        LatentAnimator.Stats stats = Tasks.await(animator.animate(from, to, 7, ANIMATION_FRAMES,
+                ANIMATION_FPS, new LatentAnimator.FrameListener() {
+                    @Override
+                    public void onFrame(int index, Bitmap frame) {
+                        frames.add(index);
+                    }
+                }));
+        Log.i(TAG, "Animation: " + stats);
+
+        assertEquals(ANIMATION_FRAMES, stats.renderedFrames + stats.skippedFrames);
+        assertEquals(stats.renderedFrames, frames.size());
+        assertEquals(ANIMATION_FRAMES - 1, (int) frames.get(frames.size() - 1));
+        for (int i = 1; i < frames.size(); i++) {
+            assertTrue(frames.get(i) > frames.get(i - 1));
+        }
+    }
+
+    @Test
+    public void decodeAsync_lazilyLoadsOnlyTheDecodeStage() throws Exception {
+        float[] latentCodes = Tasks.await(vaeModel.encodeAsync(drawing, 1));
+        Bitmap expected = Tasks.await(vaeModel.decodeAsync(latentCodes, 1));
+
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        VaeModel lazyModel = new VaeModel(context);
+        try {
+            assertFalse(lazyModel.isDecoderReady);
+            Bitmap decoded = Tasks.await(lazyModel.decodeAsync(latentCodes, 1));
+
+            assertTrue(lazyModel.isDecoderReady);
+            assertFalse(lazyModel.isEncoderReady);
+            assertPixelsClose(expected, decoded);
+        } finally {
+            Tasks.await(lazyModel.close());
+        }
+    }
+
+    @Test
+    public void modelRegistry_sharesInterpretersUntilTheLastModelCloses() throws Exception {
+        float[] latentCodes = Tasks.await(vaeModel.encodeAsync(drawing, 1));
+        Bitmap expected = Tasks.await(vaeModel.decodeAsync(latentCodes, 1));
+
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        ModelRegistry modelRegistry = ModelRegistry.getInstance(context);
+        InterpreterPool pool = modelRegistry.acquire("decode.tflite");
+        try {
+            VaeModel sharingModel = new VaeModel(context, true);
+            Tasks.await(sharingModel.initialize());
+            Tasks.await(sharingModel.close());
+
+            // The first model keeps decoding with the interpreters both models shared
+            assertPixelsClose(expected, Tasks.await(vaeModel.decodeAsync(latentCodes, 1)));
+            assertSame(pool, modelRegistry.acquire("decode.tflite"));
+            modelRegistry.release(pool);
+            Log.i(TAG, modelRegistry.toString());
+        } finally {
+            modelRegistry.release(pool);
+        }
+    }
+
+    @Test
+    public void interpreterPool_swapsVersionsUnderABorrower() throws Exception {
+        float[] latentCodes = Tasks.await(vaeModel.encodeAsync(drawing, 1));
+        Bitmap expected = Tasks.await(vaeModel.decodeAsync(latentCodes, 1));
+
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        ModelRegistry modelRegistry = ModelRegistry.getInstance(context);
+        InterpreterPool pool = modelRegistry.acquire("decode.tflite");
+        try {
+            final AssetFileDescriptor fileDescriptor =
+                    context.getAssets().openFd("decode.tflite");
+            final ByteBuffer model = new FileInputStream(fileDescriptor.getFileDescriptor())
+                    .getChannel().map(FileChannel.MapMode.READ_ONLY,
+                            fileDescriptor.getStartOffset(), fileDescriptor.getDeclaredLength());
+            InterpreterPool.Generation generation = pool.build(pool.getVersion() + 1,
+                    new InterpreterPool.Factory() {
+                        @Override
+                        public Interpreter create() {
+                            return new Interpreter(model);
+                        }
+
+                        @Override
+                        public long getModelBytes() {
+                            return model.capacity();
+                        }
+
+                        @Override
+                        public InterpreterConfig getConfig() {
+                            return null;
+                        }
+                    }, 1);
+            assertTrue(pool.isCompatible(generation));
+
+            // The call in flight finishes on the previous version, the next one gets the new one
+            Interpreter previous = pool.borrow();
+            pool.activate(generation);
+            assertEquals(generation.version, pool.getVersion());
+            InterpreterBinding.allocate(previous).run(previous);
+            Interpreter next = pool.borrow();
+            assertNotSame(previous, next);
+            pool.giveBack(next);
+            pool.giveBack(previous);
+
+            assertPixelsClose(expected, Tasks.await(vaeModel.decodeAsync(latentCodes, 1)));
+            Log.i(TAG, pool.toString());
+        } finally {
+            modelRegistry.release(pool);
+        }
+    }
+
+    @Test
+    public void modelRegistry_trimsIdleInterpretersAndRebuildsThem() throws Exception {
+        float[] latentCodes = Tasks.await(vaeModel.encodeAsync(drawing, 1));
+        Bitmap expected = Tasks.await(vaeModel.decodeAsync(latentCodes, 1));
+
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        ModelRegistry modelRegistry = ModelRegistry.getInstance(context);
+        InterpreterPool pool = modelRegistry.acquire("decode.tflite");
+        try {
+            Log.i(TAG, modelRegistry.getFootprint());
+            // Hiding the app keeps one warm interpreter per pool, only COMPLETE closes them all
+            modelRegistry.trimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+            assertEquals(1, pool.getIdleCount());
+            assertTrue(modelRegistry.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE) >= 0);
+            assertEquals(0, pool.getNativeBytes());
+
+            // Rebuilt from the mapped model on the next call
+            assertPixelsClose(expected, Tasks.await(vaeModel.decodeAsync(latentCodes, 1)));
+            Log.i(TAG, modelRegistry.getFootprint());
+            Log.i(TAG, "Reload " +
+                    MetricsRegistry.getDefault().histogram("pool.decode.tflite.reload").snapshot());
+        } finally {
+            modelRegistry.release(pool);
+        }
+    }
+
+    @Test
+    public void javaHelperStages_decodeLikeTheTfLiteGraphs() throws Exception {
+        float[] latentCodes = Tasks.await(vaeModel.encodeAsync(drawing, 1));
+        Bitmap expected = Bitmap.createBitmap(28, 28, Bitmap.Config.ARGB_8888);
+        Bitmap actual = Bitmap.createBitmap(28, 28, Bitmap.Config.ARGB_8888);
+
+        for (int label = 0; label < 10; label++) {
+            vaeModel.setJavaStages(false);
+            vaeModel.decodeInto(latentCodes, label, expected);
+            vaeModel.setJavaStages(true);
+            vaeModel.decodeInto(latentCodes, label, actual);
+            assertPixelsClose(expected, actual);
+        }
+
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        VaeModel arrayModel = new VaeModel(context);
+        try {
+            Bitmap tfLiteDecoded = Tasks.await(arrayModel.decodeAsync(latentCodes, 1));
+            arrayModel.setJavaStages(true);
+            assertPixelsClose(tfLiteDecoded, Tasks.await(arrayModel.decodeAsync(latentCodes, 1)));
+        } finally {
+            Tasks.await(arrayModel.close());
+        }
+    }
+
+    @Test
+    public void javaHelperStages_sampleTheSamePosteriorAsTheTfLiteGraphs() {
+        // The reparameterization draws fresh noise in both versions, so compare the sampled
+        // distributions: per dimension, the means must agree within 5 standard errors
+        float[][] tfLiteSamples = samplePosterior(false);
+        float[][] javaSamples = samplePosterior(true);
+
+        for (int i = 0; i < tfLiteSamples[0].length; i++) {
+            double tfLiteMean = mean(tfLiteSamples, i);
+            double javaMean = mean(javaSamples, i);
+            double standardError = Math.sqrt((variance(tfLiteSamples, i, tfLiteMean) +
+                    variance(javaSamples, i, javaMean)) / POSTERIOR_SAMPLES);
+            assertEquals("Mean of dimension " + i, tfLiteMean, javaMean,
+                    5 * standardError + 1e-4);
+        }
+    }
+
+    @Test
+    public void encodeSamples_drawsReproduciblyAroundThePosteriorMean() throws Exception {
+        VaeModel.PosteriorSamples samples =
+                Tasks.await(vaeModel.encodeSamples(drawing, 1, POSTERIOR_SAMPLES, SEED));
+        assertEquals(POSTERIOR_SAMPLES * samples.dimension, samples.samples.length);
+        assertArrayEquals(samples.samples,
+                Tasks.await(vaeModel.encodeSamples(drawing, 1, POSTERIOR_SAMPLES, SEED)).samples,
+                0f);
+
+        for (int i = 0; i < samples.dimension; i++) {
+            float sum = 0;
+            for (int n = 0; n < POSTERIOR_SAMPLES; n++) {
+                sum += samples.samples[n * samples.dimension + i];
+            }
+            double standardError = Math.sqrt(samples.variance[i] / POSTERIOR_SAMPLES);
+            assertEquals("Mean of dimension " + i, samples.mean[i], sum / POSTERIOR_SAMPLES,
+                    5 * standardError + 1e-4);
+        }
+
+        Bitmap[] bitmaps = Tasks.await(vaeModel.decodeSamplesAsync(samples, 1));
+        assertEquals(POSTERIOR_SAMPLES, bitmaps.length);
+    }
+
+    @Test
+    public void encodeSamples_reportsLatencyVersusSampleCount() throws Exception {
+        for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+            VaeModel.PosteriorSamples samples =
+                    Tasks.await(vaeModel.encodeSamples(drawing, 1, 4, SEED));
+            Tasks.await(vaeModel.decodeSamplesAsync(samples, 1));
+            Tasks.await(vaeModel.decodeAsync(
+                    Tasks.await(vaeModel.encodeAsync(drawing, 1)), 1));
+        }
+
+        for (int count : SAMPLE_COUNTS) {
+            long encodeSamplesTime = 0;
+            long encodeRepeatedTime = 0;
+            long decodeSamplesTime = 0;
+            long decodeRepeatedTime = 0;
+            for (int round = 0; round < SAMPLE_ROUNDS; round++) {
+                long startTime = System.nanoTime();
+                VaeModel.PosteriorSamples samples =
+                        Tasks.await(vaeModel.encodeSamples(drawing, 1, count, SEED + round));
+                encodeSamplesTime += System.nanoTime() - startTime;
+
+                startTime = System.nanoTime();
+                for (int n = 0; n < count; n++) {
+                    Tasks.await(vaeModel.encodeAsync(drawing, 1));
+                }
+                encodeRepeatedTime += System.nanoTime() - startTime;
+
+                startTime = System.nanoTime();
+                Tasks.await(vaeModel.decodeSamplesAsync(samples, 1));
+                decodeSamplesTime += System.nanoTime() - startTime;
+
+                startTime = System.nanoTime();
+                for (int n = 0; n < count; n++) {
+                    Tasks.await(vaeModel.decodeAsync(samples.getSample(n), 1));
+                }
+                decodeRepeatedTime += System.nanoTime() - startTime;
+            }
+
+            Log.i(TAG, String.format("K=%d: encodeSamples %.1fus, %d x encodeAsync %.1fus, " +
+                            "decodeSamplesAsync %.1fus, %d x decodeAsync %.1fus", count,
+                    encodeSamplesTime / 1000f / SAMPLE_ROUNDS, count,
+                    encodeRepeatedTime / 1000f / SAMPLE_ROUNDS,
+                    decodeSamplesTime / 1000f / SAMPLE_ROUNDS, count,
+                    decodeRepeatedTime / 1000f / SAMPLE_ROUNDS));
+        }
+    }
+
+    @Test
+    public void javaHelperStages_reportEndToEndLatency() {
+        float[] latentCodes = new float[50];
+        Bitmap output = Bitmap.createBitmap(28, 28, Bitmap.Config.ARGB_8888);
+
+        for (boolean isJava : new boolean[]{false, true}) {
+            vaeModel.setJavaStages(isJava);
+            for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+                vaeModel.encodeInto(drawing, 1, latentCodes);
+                vaeModel.decodeInto(latentCodes, 1, output);
+            }
+
+            long startTime = System.nanoTime();
+            for (int i = 0; i < MEASURE_ROUNDS; i++) {
+                vaeModel.encodeInto(drawing, 1, latentCodes);
+            }
+            long encodeTime = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            for (int i = 0; i < MEASURE_ROUNDS; i++) {
+                vaeModel.decodeInto(latentCodes, 1, output);
+            }
+            long decodeTime = System.nanoTime() - startTime;
+
+            Log.i(TAG, String.format("%s helper stages: encode %.1fus, decode %.1fus",
+                    isJava ? "Java" : "TF Lite",
+                    encodeTime / 1e3 / MEASURE_ROUNDS, decodeTime / 1e3 / MEASURE_ROUNDS));
+        }
+    }
+
+    @Test
+    public void warmUp_makesTheFirstCallsAsFastAsTheSteadyState() throws Exception {
+        // setUp() initialized the model with the default warm-up, and nothing ran since
+        final float[] latentCodes = new float[50];
+        assertFirstCallIsWarm("Encode", new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return Tasks.await(vaeModel.encodeAsync(drawing, 1));
+            }
+        });
+        assertFirstCallIsWarm("Decode", new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return Tasks.await(vaeModel.decodeAsync(latentCodes, 1));
+            }
+        });
+
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        final DigitClassifier classifier = new DigitClassifier(context);
+        LatencyHistogram inference = MetricsRegistry.getDefault().histogram("classifier.inference");
+        long inferenceCount = inference.snapshot().count;
+        try {
+            Tasks.await(classifier.initialize());
+            // The warm-up runs are not steady-state traffic
+            assertEquals(inferenceCount, inference.snapshot().count);
+            assertFirstCallIsWarm("Classify", new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return Tasks.await(classifier.classifyAsync(drawing));
+                }
+            });
+        } finally {
+            Tasks.await(classifier.close());
+        }
+    }
+
+    /**
+     * Time the first call, then the median of the following ones, and check the first one is
+     * within the tolerance of the steady state
+     */
+    private static void assertFirstCallIsWarm(String name, Callable<Object> call)
+            throws Exception {
+        long startTime = System.nanoTime();
+        call.call();
+        long firstTime = System.nanoTime() - startTime;
+
+        long[] steadyTimes = new long[MEASURE_ROUNDS];
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            startTime = System.nanoTime();
+            call.call();
+            steadyTimes[i] = System.nanoTime() - startTime;
+        }
+        Arrays.sort(steadyTimes);
+        long steadyTime = steadyTimes[MEASURE_ROUNDS / 2];
+
+        Log.i(TAG, String.format("%s: first call %.1fus, steady state %.1fus",
+                name, firstTime / 1e3, steadyTime / 1e3));
+        assertTrue(name + " first call takes " + firstTime / 1000 + "us",
+                firstTime <= steadyTime * FIRST_CALL_TOLERANCE + FIRST_CALL_SLACK_NANOS);
+    }
+
+    @Test
+    public void encodeCache_skipsTheEncoderButSamplesAfresh() {
+        float[] pixels = new float[28 * 28];
+        for (int y = 4; y < 24; y++) {
+            pixels[y * 28 + 14] = 1f;
+        }
+        float[] first = new float[50];
+        float[] second = new float[50];
+        float[] relabeled = new float[50];
+        EncodedLatentCache cache = new EncodedLatentCache(4);
+        vaeModel.setEncodeCache(cache);
+        try {
+            vaeModel.encodeInto(pixels, 1, first);
+            vaeModel.encodeInto(pixels.clone(), 1, second);
+            // The encoder is conditioned on the label: a new label misses, going back hits
+            vaeModel.encodeInto(pixels, 7, relabeled);
+            vaeModel.encodeInto(pixels, 1, relabeled);
+        } finally {
+            vaeModel.setEncodeCache(null);
+        }
+
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertTrue(cache.getSavedNanos() > 0);
+        assertFalse("The hit reused the sampled latent codes", Arrays.equals(first, second));
+        Log.i(TAG, cache.toString());
+    }
+
+    @Test
+    public void encodeCache_isNotFilledByTheWarmUp() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        for (boolean useDirectBuffers : new boolean[]{true, false}) {
+            // Installed before initialize(), like the activity does
+            EncodedLatentCache cache = new EncodedLatentCache(4);
+            VaeModel warmedModel = new VaeModel(context, useDirectBuffers);
+            warmedModel.setEncodeCache(cache);
+            try {
+                Tasks.await(warmedModel.initialize());
+            } finally {
+                Tasks.await(warmedModel.close());
+            }
+
+            assertEquals(0, cache.size());
+            assertEquals(0, cache.getHitCount());
+            assertEquals(0, cache.getMissCount());
+            assertEquals(0, cache.getEvictionCount());
+            assertEquals(0, cache.getSavedNanos());
+        }
+    }
+
+    @Test
+    public void bitmapRing_scrubsWithoutAllocatingBitmaps() throws Exception {
+        float[] latentCodes = Tasks.await(vaeModel.encodeAsync(drawing, 1));
+        BitmapRing ring = new BitmapRing(3);
+
+        Bitmap lastAllocated = scrub(latentCodes, null, "New bitmap per frame");
+        Bitmap lastReused = scrub(latentCodes, ring, "Bitmap ring");
+
+        assertEquals(0, ring.getOverflowCount());
+        assertPixelsClose(lastAllocated, lastReused);
+    }
+
+    /**
+     * Decode a scripted scrub over the width dimension like the SeekBar does, holding each frame
+     * "on screen" until the next one arrives, and log the heap churn and GC pauses
+     */
+    private Bitmap scrub(float[] latentCodes, BitmapRing ring, String mode) throws Exception {
+        Runtime.getRuntime().gc();
+        long allocatedBytes = runtimeStat("art.gc.bytes-allocated");
+        long gcCount = runtimeStat("art.gc.gc-count");
+        long gcTime = runtimeStat("art.gc.gc-time");
+        long blockingGcTime = runtimeStat("art.gc.blocking-gc-time");
+        long nativeBytes = Debug.getNativeHeapAllocatedSize();
+
+        Bitmap displayed = null;
+        for (int i = 0; i < SCRUB_FRAMES; i++) {
+            float value = -3f + 6f * i / (SCRUB_FRAMES - 1);
+            Bitmap bitmap = Tasks.await(vaeModel.decodeAsync(
+                    LatentAnimator.withDimension(latentCodes, ANIMATED_DIMENSION, value), 1, ring));
+            if (ring != null) {
+                ring.release(displayed);
+            }
+            displayed = bitmap;
+        }
+
+        Log.i(TAG, String.format("%s: %d frames, %d KB allocated, %d KB native growth, " +
+                        "%d GCs, GC time %dms (blocking %dms)", mode, SCRUB_FRAMES,
+                (runtimeStat("art.gc.bytes-allocated") - allocatedBytes) / 1024,
+                (Debug.getNativeHeapAllocatedSize() - nativeBytes) / 1024,
+                runtimeStat("art.gc.gc-count") - gcCount,
+                runtimeStat("art.gc.gc-time") - gcTime,
+                runtimeStat("art.gc.blocking-gc-time") - blockingGcTime));
+        return displayed;
+    }
+
+    private static long runtimeStat(String name) {
+        String value = Debug.getRuntimeStat(name);
+        return value != null ? Long.parseLong(value) : 0;
+    }
+
+    private float[][] samplePosterior(boolean isJava) {
+        vaeModel.setJavaStages(isJava);
+        float[][] samples = new float[POSTERIOR_SAMPLES][50];
+        for (int n = 0; n < POSTERIOR_SAMPLES; n++) {
+            vaeModel.encodeInto(drawing, 1, samples[n]);
+        }
+        return samples;
+    }
+
+    private static double mean(float[][] samples, int dimension) {
+        double sum = 0;
+        for (float[] sample : samples) {
+            sum += sample[dimension];
+        }
+        return sum / samples.length;
+    }
+
+    private static double variance(float[][] samples, int dimension, double mean) {
+        double sum = 0;
+        for (float[] sample : samples) {
+            sum += (sample[dimension] - mean) * (sample[dimension] - mean);
+        }
+        return sum / (samples.length - 1);
+    }
+
+    private static void assertPixelsClose(Bitmap expected, Bitmap actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                int diff = Math.abs((expected.getPixel(x, y) & 0xFF) -
+                        (actual.getPixel(x, y) & 0xFF));
+                assertTrue("Pixel (" + x + ", " + y + ") differs by " + diff, diff <= 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.vaedemo;
+
+import com.example.vaedemo.core.ModelManifest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Picks the fastest interpreter configuration per model by benchmarking every candidate, and
+ * persists the choice keyed by the model file hash and the device, so that later launches skip
+ * tuning until either of them changes.
+ */
+class AutoTuner {
+    /**
+     * Measures how long one invocation of the model takes under the given configuration. Throws
+     * if the configuration cannot run the model at all, e.g. a delegate is not supported.
+     */
+    interface Benchmark {
+        long measureNanos(InterpreterConfig config) throws Exception;
+    }
+
+    private final File profileFile;
+    private final String deviceId;
+    private final Properties profile = new Properties();
+    private final Map<InterpreterConfig, Long> lastResults = new LinkedHashMap<>();
+
+    AutoTuner(File profileFile, String deviceId) throws IOException {
+        this.profileFile = profileFile;
+        this.deviceId = deviceId;
+
+        if (profileFile.exists()) {
+            InputStream inputStream = new FileInputStream(profileFile);
+            try {
+                profile.load(inputStream);
+            } finally {
+                inputStream.close();
+            }
+        }
+    }
+
+    /**
+     * SHA-256 of the model content, read without moving the buffer position
+     */
+    static String hash(ByteBuffer model) {
+        return ModelManifest.sha256(model);
+    }
+
+    /**
+     * The persisted configuration for the model on this device, or null if it was never tuned
+     */
+    synchronized InterpreterConfig getTunedConfig(String modelHash) {
+        String value = profile.getProperty(modelHash + "@" + deviceId);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return InterpreterConfig.parse(value);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Return the persisted configuration if it is still one of the candidates, otherwise
+     * benchmark every candidate, persist the fastest one and return it.
+     */
+    synchronized InterpreterConfig tune(String modelHash, List<InterpreterConfig> candidates,
+                                        Benchmark benchmark) throws IOException {
+        lastResults.clear();
+        InterpreterConfig tuned = getTunedConfig(modelHash);
+        if (tuned != null && candidates.contains(tuned)) {
+            return tuned;
+        }
+
+        InterpreterConfig best = null;
+        long bestNanos = Long.MAX_VALUE;
+        for (InterpreterConfig candidate : candidates) {
+            long nanos;
+            try {
+                nanos = benchmark.measureNanos(candidate);
+            } catch (Exception e) {
+                // The configuration is not usable for this model, so leave it out
+                continue;
+            }
+            lastResults.put(candidate, nanos);
+            if (nanos < bestNanos) {
+                best = candidate;
+                bestNanos = nanos;
+            }
+        }
+        if (best == null) {
+            throw new IllegalStateException("No interpreter configuration can run the model");
+        }
+
+        profile.setProperty(modelHash + "@" + deviceId, best.toString());
+        save();
+        return best;
+    }
+
+    /**
+     * The per-candidate timings of the last tune() call, empty if the profile was used
+     */
+    synchronized Map<InterpreterConfig, Long> getLastResults() {
+        return new LinkedHashMap<>(lastResults);
+    }
+
+    private void save() throws IOException {
+        File directory = profileFile.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+
+        OutputStream outputStream = new FileOutputStream(profileFile);
+        try {
+            profile.store(outputStream, "Interpreter configurations by model hash@device");
+        } finally {
+            outputStream.close();
+        }
+    }
+}
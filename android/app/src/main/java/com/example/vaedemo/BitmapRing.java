@@ -0,0 +1,114 @@
+package com.example.vaedemo;
+
+import android.graphics.Bitmap;
+
+import com.example.vaedemo.imageproc.PixelConverter;
+
+/**
+ * A small ring of reusable mutable ARGB_8888 bitmaps to decode into, so that scrubbing does not
+ * allocate a fresh bitmap per frame. Ownership is explicit: acquire() hands a bitmap to the
+ * caller, which keeps it, e.g. on screen, until release(). A bitmap is never handed out twice
+ * while owned, so with 3 bitmaps the displayed one and the one being decoded never collide.
+ * If every bitmap of the ring is owned, a temporary one is allocated instead of blocking.
+ */
+class BitmapRing {
+    private final Bitmap[] bitmaps;
+    private final boolean[] isOwned;
+    private int[] pixels = null;
+    private int width = 0;
+    private int height = 0;
+    private int next = 0;
+    private long overflowCount = 0;
+
+    BitmapRing(int size) {
+        if (size < 2) {
+            throw new IllegalArgumentException("A ring needs at least 2 bitmaps");
+        }
+        bitmaps = new Bitmap[size];
+        isOwned = new boolean[size];
+    }
+
+    /**
+     * Hand out a bitmap of the given size. The caller owns it until release().
+     */
+    synchronized Bitmap acquire(int width, int height) {
+        if (width != this.width || height != this.height) {
+            resize(width, height);
+        }
+
+        for (int i = 0; i < bitmaps.length; i++) {
+            int index = (next + i) % bitmaps.length;
+            if (!isOwned[index]) {
+                isOwned[index] = true;
+                next = (index + 1) % bitmaps.length;
+                return bitmaps[index];
+            }
+        }
+
+        overflowCount++;
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Give the bitmap back for reuse. Temporary bitmaps and null are ignored.
+     */
+    synchronized void release(Bitmap bitmap) {
+        int index = indexOf(bitmap);
+        if (index >= 0) {
+            isOwned[index] = false;
+        }
+    }
+
+    synchronized boolean contains(Bitmap bitmap) {
+        return indexOf(bitmap) >= 0;
+    }
+
+    /**
+     * Acquire a bitmap and fill it with the [height][width] grayscale image
+     */
+    synchronized Bitmap render(byte[][] grayscalePixels) {
+        int height = grayscalePixels.length;
+        int width = grayscalePixels[0].length;
+        Bitmap bitmap = acquire(width, height);
+        PixelConverter.grayscaleToArgb(grayscalePixels, pixels, 0, width);
+        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+        return bitmap;
+    }
+
+    /**
+     * Acquire a bitmap and fill it with the flattened grayscale image
+     */
+    synchronized Bitmap render(byte[] grayscalePixels, int width, int height) {
+        Bitmap bitmap = acquire(width, height);
+        PixelConverter.grayscaleToArgb(grayscalePixels, pixels);
+        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+        return bitmap;
+    }
+
+    /**
+     * Number of temporary bitmaps allocated because the whole ring was owned
+     */
+    synchronized long getOverflowCount() {
+        return overflowCount;
+    }
+
+    private void resize(int width, int height) {
+        for (int i = 0; i < bitmaps.length; i++) {
+            // Owned bitmaps stay valid for their owners, which release() then ignores
+            bitmaps[i] = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            isOwned[i] = false;
+        }
+        pixels = new int[width * height];
+        this.width = width;
+        this.height = height;
+    }
+
+    private int indexOf(Bitmap bitmap) {
+        for (int i = 0; i < bitmaps.length; i++) {
+            if (bitmaps[i] == bitmap && bitmap != null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.vaedemo;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of decoded grayscale images, keyed by the latent codes quantized to the
+ * SeekBar resolution plus the output label. Values are compact row-major grayscale pixels.
+ */
+class DecodedImageCache {
+    private final int maxEntries;
+    private final float quantizationStep;
+    private final LinkedHashMap<Key, byte[]> entries;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    DecodedImageCache(int maxEntries, float quantizationStep) {
+        if (maxEntries <= 0 || quantizationStep <= 0) {
+            throw new IllegalArgumentException(
+                    "The cache size and quantization step must be positive");
+        }
+
+        this.maxEntries = maxEntries;
+        this.quantizationStep = quantizationStep;
+        this.entries = new LinkedHashMap<Key, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+                if (size() > DecodedImageCache.this.maxEntries) {
+                    evictionCount++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * The cached pixels for the latent codes and label, or null on a miss
+     */
+    synchronized byte[] get(float[] latentCodes, int label) {
+        byte[] grayscalePixels = entries.get(new Key(quantize(latentCodes), label));
+        if (grayscalePixels != null) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+        return grayscalePixels;
+    }
+
+    synchronized void put(float[] latentCodes, int label, byte[] grayscalePixels) {
+        entries.put(new Key(quantize(latentCodes), label), grayscalePixels);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    synchronized long getMissCount() {
+        return missCount;
+    }
+
+    synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "DecodedImageCache: size=%d/%d, hits=%d, misses=%d, evictions=%d",
+                entries.size(), maxEntries, hitCount, missCount, evictionCount);
+    }
+
+    private int[] quantize(float[] latentCodes) {
+        int[] quantized = new int[latentCodes.length];
+        for (int i = 0; i < latentCodes.length; i++) {
+            quantized[i] = Math.round(latentCodes[i] / quantizationStep);
+        }
+        return quantized;
+    }
+
+    private static class Key {
+        private final int[] quantizedCodes;
+        private final int label;
+        private final int hashCode;
+
+        Key(int[] quantizedCodes, int label) {
+            this.quantizedCodes = quantizedCodes;
+            this.label = label;
+            this.hashCode = Arrays.hashCode(quantizedCodes) * 31 + label;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return label == that.label && Arrays.equals(quantizedCodes, that.quantizedCodes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
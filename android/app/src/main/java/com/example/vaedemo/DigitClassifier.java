@@ -1,157 +1,300 @@
 package com.example.vaedemo;
 
 import android.content.Context;
-import android.content.res.AssetFileDescriptor;
-import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+
+import com.example.vaedemo.core.ModelVariant;
+import com.example.vaedemo.core.VaeCodec;
+import com.example.vaedemo.imageproc.PixelConverter;
+import com.google.android.gms.tasks.CancellationToken;
+import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.Task;
-import com.google.android.gms.tasks.Tasks;
 
 import org.tensorflow.lite.Interpreter;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
+/**
+ * Thread-safety: the classifier stage runs POOL_SIZE threads, each borrowing its own interpreter
+ * from the shared pool for one call, so classifyAsync() may be called from any thread and
+ * concurrent drawings are classified in parallel.
+ */
 class DigitClassifier {
     private Context context;
 
     private static final String TAG = "Classifier";
     private static final String MODEL_FILE = "classify.tflite";
+    private static final int STAGE_QUEUE_CAPACITY = 16;
+    private static final int POOL_SIZE = 2;
+    private static final int WARM_UP_RUNS = 3;
+
+    /**
+     * The precision of the model, picked at construction, and its asset
+     */
+    private final ModelVariant variant;
+    private final String modelFile;
+
+    private final ModelRegistry modelRegistry;
+    private InterpreterPool interpreterPool = null;
 
-    private Interpreter interpreter = null;
+    /**
+     * The classify chain of vaecore, one per stage thread since a codec is not thread-safe, all
+     * of them running on the shared interpreter pool
+     */
+    private final ThreadLocal<VaeCodec> codecs = new ThreadLocal<>();
 
-    boolean isInitialized = false;
+    volatile boolean isInitialized = false;
+    private volatile WarmUpMode warmUpMode = WarmUpMode.BEFORE_READY;
     private int inputImageWidth = 0;
     private int inputImageHeight = 0;
 
     /**
      * Executor to run inference task in the background
      */
-    private ExecutorService executorService = Executors.newCachedThreadPool();
+    private StageExecutor executor =
+            new StageExecutor("Classifier", POOL_SIZE, STAGE_QUEUE_CAPACITY);
+
+    /**
+     * Latency of every stage, registered in the registry shared with the rest of the app
+     */
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private final LatencyHistogram loadLatency = metrics.histogram("classifier.load");
+    private final LatencyHistogram warmUpLatency = metrics.histogram("classifier.warmup");
+    private final LatencyHistogram preprocessLatency =
+            metrics.histogram("classifier.preprocess");
+    private final LatencyHistogram inferenceLatency = metrics.histogram("classifier.inference");
+    private final LatencyHistogram totalLatency = metrics.histogram("classifier.total");
 
     DigitClassifier(Context context) {
+        this(context, ModelVariant.FLOAT32);
+    }
+
+    DigitClassifier(Context context, ModelVariant variant) {
         this.context = context;
+        this.variant = variant;
+        this.modelFile = variant.getFileName(MODEL_FILE);
+        this.modelRegistry = ModelRegistry.getInstance(context);
+        modelRegistry.setPoolSize(modelFile, POOL_SIZE);
+    }
+
+    ModelVariant getVariant() {
+        return variant;
+    }
+
+    /**
+     * Warm the interpreters up at the next initialize(), before or after its Task completes, or
+     * not at all. Before by default.
+     */
+    void setWarmUpMode(WarmUpMode mode) {
+        warmUpMode = mode;
     }
 
     Task<Void> initialize() {
-        return Tasks.call(executorService, new Callable<Void>() {
+        final WarmUpMode mode = warmUpMode;
+        Task<Void> initialized = executor.call(new Callable<Void>() {
             @Override
             public Void call() throws IOException {
-                initializeInterpreters();
+                ensureInitialized();
+                if (mode == WarmUpMode.BEFORE_READY) {
+                    warmUp();
+                }
                 return null;
             }
         });
+        if (mode == WarmUpMode.AFTER_READY) {
+            executor.call(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    ensureInitialized();
+                    warmUp();
+                    return null;
+                }
+            }).addOnFailureListener(new OnFailureListener() {
+                @Override
+                public void onFailure(@NonNull Exception e) {
+                    Log.w(TAG, "Error warming up the classifier.", e);
+                }
+            });
+        }
+        return initialized;
     }
 
-    private void initializeInterpreters() throws IOException {
-        AssetManager assetManager = context.getAssets();
-        // Load the TF Lite models
-        ByteBuffer model = loadModelFiles(assetManager);
+    /**
+     * Invoke every interpreter of the pool, then the whole classify path on a blank drawing.
+     * The pool records the cold and warm latency of the model. The stage histograms are left to
+     * real traffic, so the warm-up does not skew their steady-state percentiles.
+     */
+    private void warmUp() throws IOException {
+        long startTime = System.nanoTime();
+        interpreterPool.warmUp(WARM_UP_RUNS);
+        float[] pixels = new float[inputImageWidth * inputImageHeight];
+        for (int i = 0; i < WARM_UP_RUNS; i++) {
+            classify(pixels, false);
+        }
+        warmUpLatency.recordSince(startTime);
+    }
+
+    /**
+     * Load the interpreter if it is not ready yet. Only runs on the classifier stage threads, so
+     * the first classify request loads it lazily when initialize() was not called.
+     */
+    private synchronized void ensureInitialized() throws IOException {
+        if (isInitialized) {
+            return;
+        }
 
-        // Initialize TF Lite Interpreter with NNAPI enabled
-        Interpreter.Options options = new Interpreter.Options();
-        options.setUseNNAPI(true);
-        interpreter = new Interpreter(model, options);
+        long startTime = System.nanoTime();
+        initializeInterpreters();
+        loadLatency.recordSince(startTime);
+    }
 
-        // Read input shape from model file
-        int[] inputShape = interpreter.getInputTensor(0).shape();
-        inputImageWidth = inputShape[2];
-        inputImageHeight = inputShape[1];
+    private void initializeInterpreters() throws IOException {
+        // Load the TF Lite model and its first interpreter through the shared registry
+        interpreterPool = modelRegistry.acquire(modelFile);
+        try {
+            interpreterPool.prepare();
+
+            // Read input shape from model file
+            Interpreter interpreter = interpreterPool.borrow();
+            try {
+                int[] inputShape = interpreter.getInputTensor(0).shape();
+                inputImageWidth = inputShape[2];
+                inputImageHeight = inputShape[1];
+            } finally {
+                interpreterPool.giveBack(interpreter);
+            }
+        } catch (IOException | RuntimeException e) {
+            modelRegistry.release(interpreterPool);
+            interpreterPool = null;
+            throw e;
+        }
 
         // Finish interpreters initialization
         isInitialized = true;
     }
 
-    private ByteBuffer loadModelFiles(AssetManager assetManager) throws IOException {
-        AssetFileDescriptor fileDescriptor = assetManager.openFd(MODEL_FILE);
-        FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
-        FileChannel fileChannel = inputStream.getChannel();
-        long startOffset = fileDescriptor.getStartOffset();
-        long declaredLength = fileDescriptor.getDeclaredLength();
-        return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
-    }
-
     private int classify(Bitmap bitmap) {
         if (!isInitialized) {
             throw new IllegalStateException("TF Lite Interpreter is not initialized yet.");
         }
 
-        Long startTime, elapsedTime;
+        long startTime;
 
         // Preprocessing: resize the input
         startTime = System.nanoTime();
         Bitmap resizedImage = Bitmap.createScaledBitmap(
                 bitmap, inputImageWidth, inputImageHeight, true);
-        float[][][] normalizedPixels = convertBitmapToFloatArray(resizedImage);
-        elapsedTime = (System.nanoTime() - startTime) / 1000000;
-        Log.d(TAG, "Preprocessing time =" + elapsedTime + "ms");
+        float[] normalizedPixels = convertBitmapToFloatArray(resizedImage);
+        preprocessLatency.recordSince(startTime);
 
-        startTime = System.nanoTime();
-        float[][] result = new float[1][10];
-        interpreter.run(normalizedPixels, result);
-        elapsedTime = (System.nanoTime() - startTime) / 1000000;
-        Log.d(TAG, "Inference time =" + elapsedTime + "ms");
+        return classifyNormalized(normalizedPixels, true);
+    }
 
-        return getOutputLabel(result);
+    /**
+     * Classify row-major pixels already normalized to [0..1] at the model input size, e.g. the
+     * output of a StrokeRasterizer
+     */
+    private int classify(float[] pixels) {
+        return classify(pixels, true);
+    }
+
+    /**
+     * @param isRecorded whether to record the inference latency, false while warming up
+     */
+    private int classify(float[] pixels, boolean isRecorded) {
+        if (!isInitialized) {
+            throw new IllegalStateException("TF Lite Interpreter is not initialized yet.");
+        }
+        if (pixels.length != inputImageWidth * inputImageHeight) {
+            throw new IllegalArgumentException(
+                    "The pixel array length is not matched with the model input size");
+        }
+
+        return classifyNormalized(pixels, isRecorded);
+    }
+
+    private int classifyNormalized(float[] normalizedPixels, boolean isRecorded) {
+        long startTime = System.nanoTime();
+        int[] label = new int[1];
+        getCodec().classify(normalizedPixels, 1, label);
+        if (isRecorded) {
+            inferenceLatency.recordSince(startTime);
+        }
+
+        return label[0];
+    }
+
+    private VaeCodec getCodec() {
+        VaeCodec codec = codecs.get();
+        if (codec == null) {
+            codec = new VaeCodec(null, null, new InterpreterModelRunner(interpreterPool), 1, null);
+            codecs.set(codec);
+        }
+        return codec;
     }
 
     Task<Integer> classifyAsync(Bitmap bitmap) {
-        return Tasks.call(executorService, new Callable<Integer>() {
+        return executor.call(totalLatency.timed(new Callable<Integer>() {
             @Override
             public Integer call() throws Exception {
+                ensureInitialized();
                 return classify(bitmap);
             }
-        });
+        }));
+    }
+
+    Task<Integer> classifyAsync(float[] pixels) {
+        return executor.call(totalLatency.timed(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                ensureInitialized();
+                return classify(pixels);
+            }
+        }));
+    }
+
+    /**
+     * Same as classifyAsync(), cancelled with the token, e.g. when a speculative request is
+     * superseded by newer input
+     */
+    Task<Integer> classifyAsync(float[] pixels, CancellationToken token) {
+        return executor.call(totalLatency.timed(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                ensureInitialized();
+                return classify(pixels);
+            }
+        }), token);
     }
 
     Task<Void> close() {
-        return Tasks.call(executorService, new Callable<Void>() {
+        Task<Void> closed = executor.call(new Callable<Void>() {
             @Override
             public Void call() {
                 if (isInitialized) {
-                    interpreter.close();
+                    modelRegistry.release(interpreterPool);
                 }
-                Log.d(TAG, "Closed TFLite interpreter");
+                Log.d(TAG, "Released TFLite interpreters");
                 return null;
             }
         });
+        executor.shutdown();
+
+        return closed;
     }
 
-    private float[][][] convertBitmapToFloatArray(Bitmap bitmap) {
-        float[][][] normalizedPixels = new float[1][inputImageWidth][inputImageHeight];
+    private float[] convertBitmapToFloatArray(Bitmap bitmap) {
+        float[] normalizedPixels = new float[inputImageWidth * inputImageHeight];
         int[] pixels = new int[inputImageWidth * inputImageHeight];
-        bitmap.getPixels(pixels, 0, bitmap.getWidth(),
-                0, 0, bitmap.getWidth(), bitmap.getHeight());
-
-        for (int j = 0; j < inputImageHeight; j++) {
-            for (int i = 0; i < inputImageWidth; i++) {
-                int px = pixels[j * inputImageHeight + i];
-                int r = (px >> 16 & 0xFF), g = (px >> 8 & 0xFF), b = (px & 0xFF);
+        bitmap.getPixels(pixels, 0, inputImageWidth, 0, 0, inputImageWidth, inputImageHeight);
 
-                // Convert RGB to grayscale and normalize pixel value to [0..1]
-                normalizedPixels[0][j][i] = (r + g + b) / 3f / 255f;
-            }
-        }
+        // Convert RGB to grayscale and normalize pixel value to [0..1]
+        PixelConverter.normalize(pixels, normalizedPixels);
 
         return normalizedPixels;
     }
-
-    private int getOutputLabel(float[][] output) {
-        int maxIndex = -1;
-        float max = -1;
-        for (int i = 0; i < output[0].length; i++) {
-            if (output[0][i] > max) {
-                max = output[0][i];
-                maxIndex = i;
-            }
-        }
-        return maxIndex;
-    }
 }
@@ -0,0 +1,192 @@
+package com.example.vaedemo;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.example.vaedemo.core.LatentHistoryStore;
+import com.google.android.gms.tasks.Task;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+/**
+ * The encoded drawings of this and earlier sessions, in a memory-mapped LatentHistoryStore on
+ * its own stage thread. Restoring the last drawing at startup reads its latent codes from the
+ * mapping instead of encoding it again, and undo steps back through the drawings.
+ */
+class DrawingHistory {
+    private static final String TAG = "DrawingHistory";
+    private static final String HISTORY_FILE = "latent_history.bin";
+    private static final int STAGE_QUEUE_CAPACITY = 16;
+
+    /**
+     * Latent dimension of the bundled encoder, and the size of the model input kept as a
+     * thumbnail of each drawing
+     */
+    private static final int LATENT_DIMENSION = 50;
+    private static final int THUMBNAIL_SIZE = 28 * 28;
+
+    /**
+     * Drawings kept when the store is compacted at startup
+     */
+    private static final int MAX_ENTRIES = 1000;
+
+    /**
+     * An encoded drawing
+     */
+    static final class Entry {
+        final float[] latentCodes;
+        final int label;
+        final long timestampMillis;
+
+        Entry(float[] latentCodes, int label, long timestampMillis) {
+            this.latentCodes = latentCodes;
+            this.label = label;
+            this.timestampMillis = timestampMillis;
+        }
+    }
+
+    private final Context context;
+    private LatentHistoryStore store = null;
+
+    private final StageExecutor executor = new StageExecutor("History", STAGE_QUEUE_CAPACITY);
+
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private final LatencyHistogram openLatency = metrics.histogram("history.open");
+    private final LatencyHistogram appendLatency = metrics.histogram("history.append");
+
+    DrawingHistory(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Open the store and return the last drawing, or null if there is none
+     */
+    Task<Entry> open() {
+        return executor.call(openLatency.timed(new Callable<Entry>() {
+            @Override
+            public Entry call() throws IOException {
+                ensureOpen();
+                return last();
+            }
+        }));
+    }
+
+    /**
+     * Open the store if it is not open yet, compacting it if it outgrew MAX_ENTRIES. Only runs
+     * on the stage thread.
+     */
+    private void ensureOpen() throws IOException {
+        if (store != null) {
+            return;
+        }
+
+        File file = new File(context.getFilesDir(), HISTORY_FILE);
+        try {
+            store = LatentHistoryStore.open(file, LATENT_DIMENSION, THUMBNAIL_SIZE);
+        } catch (IOException e) {
+            // Written by another version of the models, its latent codes are of no use
+            Log.w(TAG, "Discarding the drawing history.", e);
+            if (!file.delete()) {
+                throw e;
+            }
+            store = LatentHistoryStore.open(file, LATENT_DIMENSION, THUMBNAIL_SIZE);
+        }
+        if (store.size() > MAX_ENTRIES || store.getDeletedCount() > store.size() / 2) {
+            store.compact(MAX_ENTRIES);
+        }
+    }
+
+    /**
+     * Append an encoded drawing
+     *
+     * @param pixels the model input the drawing was encoded from, kept as its thumbnail
+     */
+    Task<Void> append(final float[] latentCodes, final int label, final float[] pixels) {
+        final long timestampMillis = System.currentTimeMillis();
+        return executor.call(appendLatency.timed(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                ensureOpen();
+                byte[] thumbnail = null;
+                if (pixels != null) {
+                    thumbnail = new byte[THUMBNAIL_SIZE];
+                    for (int i = 0; i < THUMBNAIL_SIZE; i++) {
+                        thumbnail[i] = (byte) Math.round(pixels[i] * 255);
+                    }
+                }
+                store.append(latentCodes, label, timestampMillis, thumbnail);
+                return null;
+            }
+        }));
+    }
+
+    /**
+     * Delete the last drawing and return the one before it, or null if there is none
+     */
+    Task<Entry> undo() {
+        return executor.call(new Callable<Entry>() {
+            @Override
+            public Entry call() throws IOException {
+                ensureOpen();
+                int index = lastIndex();
+                if (index >= 0) {
+                    store.delete(index);
+                }
+                return last();
+            }
+        });
+    }
+
+    /**
+     * Force the appended drawings to the disk
+     */
+    Task<Void> sync() {
+        return executor.call(new Callable<Void>() {
+            @Override
+            public Void call() {
+                if (store != null) {
+                    store.sync();
+                }
+                return null;
+            }
+        });
+    }
+
+    private int lastIndex() {
+        int index = store.size() - 1;
+        while (index >= 0 && store.isDeleted(index)) {
+            index--;
+        }
+        return index;
+    }
+
+    private Entry last() {
+        int index = lastIndex();
+        if (index < 0) {
+            return null;
+        }
+        float[] latentCodes = new float[LATENT_DIMENSION];
+        store.getLatentCodes(index, latentCodes);
+        return new Entry(latentCodes, store.getLabel(index), store.getTimestampMillis(index));
+    }
+
+    /**
+     * Sync and close the store after the queued appends, then stop the stage thread
+     */
+    void close() {
+        executor.call(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                if (store != null) {
+                    store.sync();
+                    store.close();
+                    store = null;
+                }
+                return null;
+            }
+        });
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.vaedemo;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.SuccessContinuation;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs a finished drawing through classify -> encode -> decode. Each stage starts the next one
+ * from the thread it completes on instead of through the main thread, so the only main thread
+ * hop is the delivery of the decoded image and the latent codes, and the chain does not wait
+ * while the main thread renders. The stages are pipelined: a drawing leaves the classify and
+ * encode stages as soon as it is encoded, so the next drawing is encoded while this one is
+ * decoded.
+ */
+class DrawingPipeline {
+    /**
+     * Starts the continuations on the thread that completed the previous stage. They only submit
+     * the next stage, so they never hold a stage thread for long.
+     */
+    static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * The stages to chain, typically SpeculativeClassifier.commit(), VaeModel.encodeAsync() and
+     * VaeModel.decodeAsync()
+     */
+    interface Stages {
+        /**
+         * Classify the drawing, and encode it too if it can
+         */
+        Task<SpeculativeClassifier.Result> classify(float[] pixels);
+
+        Task<float[]> encode(float[] pixels, int label);
+
+        /**
+         * Decode the latent codes, or return a Task of null if the decoder cannot run yet
+         */
+        Task<Bitmap> decode(float[] latentCodes, int label);
+    }
+
+    static final class Result {
+        final int label;
+        final float[] latentCodes;
+
+        /**
+         * The decoded image, or null if the decoder was not ready
+         */
+        final Bitmap bitmap;
+
+        Result(int label, float[] latentCodes, Bitmap bitmap) {
+            this.label = label;
+            this.latentCodes = latentCodes;
+            this.bitmap = bitmap;
+        }
+    }
+
+    /**
+     * One drawing in the pipeline
+     */
+    static final class Run {
+        /**
+         * Completes once the drawing is classified and encoded, when the next one may start
+         */
+        final Task<SpeculativeClassifier.Result> encoded;
+
+        /**
+         * Completes once the drawing is decoded too
+         */
+        final Task<Result> decoded;
+
+        Run(Task<SpeculativeClassifier.Result> encoded, Task<Result> decoded) {
+            this.encoded = encoded;
+            this.decoded = decoded;
+        }
+    }
+
+    private final Stages stages;
+
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private final LatencyHistogram encodedLatency = metrics.histogram("pipeline.encoded");
+    private final LatencyHistogram decodedLatency = metrics.histogram("pipeline.decoded");
+
+    DrawingPipeline(Stages stages) {
+        this.stages = stages;
+    }
+
+    /**
+     * Start the drawing down the pipeline. Listeners added to the returned Tasks without an
+     * executor run on the main thread as usual.
+     */
+    Run classifyEncodeDecode(final float[] pixels) {
+        final long startTime = System.nanoTime();
+        Task<SpeculativeClassifier.Result> encoded = stages.classify(pixels).onSuccessTask(
+                DIRECT_EXECUTOR,
+                new SuccessContinuation<SpeculativeClassifier.Result,
+                        SpeculativeClassifier.Result>() {
+                    @NonNull
+                    @Override
+                    public Task<SpeculativeClassifier.Result> then(
+                            final SpeculativeClassifier.Result result) {
+                        if (result.latentCodes != null) {
+                            return Tasks.forResult(result);
+                        }
+                        return stages.encode(pixels, result.label).onSuccessTask(
+                                DIRECT_EXECUTOR,
+                                new SuccessContinuation<float[], SpeculativeClassifier.Result>() {
+                                    @NonNull
+                                    @Override
+                                    public Task<SpeculativeClassifier.Result> then(
+                                            float[] latentCodes) {
+                                        return Tasks.forResult(new SpeculativeClassifier.Result(
+                                                result.label, latentCodes));
+                                    }
+                                });
+                    }
+                });
+        encoded.addOnCompleteListener(DIRECT_EXECUTOR, recorder(encodedLatency, startTime));
+
+        Task<Result> decoded = encoded.onSuccessTask(DIRECT_EXECUTOR,
+                new SuccessContinuation<SpeculativeClassifier.Result, Result>() {
+                    @NonNull
+                    @Override
+                    public Task<Result> then(final SpeculativeClassifier.Result result) {
+                        // The caller may edit the latent codes it gets while this decodes
+                        return stages.decode(result.latentCodes.clone(), result.label)
+                                .onSuccessTask(DIRECT_EXECUTOR,
+                                        new SuccessContinuation<Bitmap, Result>() {
+                                            @NonNull
+                                            @Override
+                                            public Task<Result> then(Bitmap bitmap) {
+                                                return Tasks.forResult(new Result(result.label,
+                                                        result.latentCodes, bitmap));
+                                            }
+                                        });
+                    }
+                });
+        decoded.addOnCompleteListener(DIRECT_EXECUTOR, recorder(decodedLatency, startTime));
+
+        return new Run(encoded, decoded);
+    }
+
+    private static <T> OnCompleteListener<T> recorder(final LatencyHistogram histogram,
+                                                      final long startTime) {
+        return new OnCompleteListener<T>() {
+            @Override
+            public void onComplete(@NonNull Task<T> task) {
+                if (task.isSuccessful()) {
+                    histogram.recordSince(startTime);
+                } else {
+                    histogram.recordFailure();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.vaedemo;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of the encoder output, the packed means and log variances, keyed by the
+ * content of the normalized input pixels plus the input label. The encoder is conditioned on
+ * the label, so the first encode under a new label is a miss. Re-triggering an unchanged
+ * drawing, or going back to a label it was already encoded with (A -> B -> A), is a hit: it
+ * skips the one-hot encode and the encoder and only samples fresh latent codes from the cached
+ * posterior.
+ */
+class EncodedLatentCache {
+    private final int maxEntries;
+    private final LinkedHashMap<Key, Encoding> entries;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+    private long savedNanos = 0;
+
+    EncodedLatentCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("The cache size must be positive");
+        }
+
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<Key, Encoding>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Encoding> eldest) {
+                if (size() > EncodedLatentCache.this.maxEntries) {
+                    evictionCount++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * The cached packed latent codes for the pixels and label, or null on a miss. The caller
+     * must not modify the returned array.
+     */
+    synchronized float[] get(float[] pixels, int label) {
+        Encoding encoding = entries.get(new Key(pixels, label));
+        if (encoding == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        savedNanos += encoding.encodeNanos;
+        return encoding.packedLatentCodes;
+    }
+
+    /**
+     * @param encodeNanos the time the encoding took, which every later hit saves
+     */
+    synchronized void put(float[] pixels, int label, float[] packedLatentCodes,
+                          long encodeNanos) {
+        entries.put(new Key(pixels.clone(), label),
+                new Encoding(packedLatentCodes.clone(), encodeNanos));
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    synchronized long getMissCount() {
+        return missCount;
+    }
+
+    synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Total encoder time the hits did not spend
+     */
+    synchronized long getSavedNanos() {
+        return savedNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = hitCount + missCount;
+        return String.format(Locale.US,
+                "EncodedLatentCache: size=%d/%d, hits=%d, misses=%d, hit rate=%.1f%%, " +
+                        "evictions=%d, saved=%dms",
+                entries.size(), maxEntries, hitCount, missCount,
+                lookups > 0 ? hitCount * 100.0 / lookups : 0.0, evictionCount,
+                savedNanos / 1000000);
+    }
+
+    private static class Encoding {
+        private final float[] packedLatentCodes;
+        private final long encodeNanos;
+
+        Encoding(float[] packedLatentCodes, long encodeNanos) {
+            this.packedLatentCodes = packedLatentCodes;
+            this.encodeNanos = encodeNanos;
+        }
+    }
+
+    /**
+     * The pixels themselves, not only their hash, so a collision never returns another drawing
+     */
+    private static class Key {
+        private final float[] pixels;
+        private final int label;
+        private final int hashCode;
+
+        Key(float[] pixels, int label) {
+            this.pixels = pixels;
+            this.label = label;
+            this.hashCode = Arrays.hashCode(pixels) * 31 + label;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return label == that.label && hashCode == that.hashCode
+                    && Arrays.equals(pixels, that.pixels);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
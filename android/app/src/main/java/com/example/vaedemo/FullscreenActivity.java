@@ -4,6 +4,8 @@ import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
@@ -18,11 +20,19 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 
 import com.divyanshu.draw.widget.DrawView;
+import com.example.vaedemo.core.ModelVariant;
+import com.example.vaedemo.imageproc.StrokeRasterizer;
+import com.google.android.gms.tasks.CancellationToken;
 import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.android.gms.tasks.SuccessContinuation;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 
 import java.lang.reflect.Field;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 /**
  * An example full-screen activity that shows and hides the system UI (i.e.
@@ -35,6 +45,24 @@ public class FullscreenActivity extends AppCompatActivity {
     private static final int IDX_WIDTH = 22;
     private static final int IDX_TILT1 = 44;
     private static final int IDX_TILT2 = 45;
+    private static final int DECODE_CACHE_SIZE = 256;
+    private static final int ENCODE_CACHE_SIZE = 16;
+    private static final int DECODED_BITMAP_COUNT = 3;
+    private static final float STROKE_WIDTH = 35f;
+    private static final int INPUT_SIZE = 28;
+    private static final long SPECULATION_INTERVAL_MS = 100;
+    private static final int SIMILAR_DIGIT_COUNT = 8;
+
+    /**
+     * Precision of the classifier, encoder and decoder, see ml/variant_benchmark.py to compare
+     */
+    private static final ModelVariant MODEL_VARIANT = ModelVariant.FLOAT32;
+
+    /**
+     * Chain classify -> encode -> decode off the main thread in a DrawingPipeline, or hop
+     * through the main thread between the stages, e.g. to compare ui.stroke_to_image
+     */
+    private static final boolean PIPELINED_STAGES = true;
 
     private static final int UI_FLAG = (View.SYSTEM_UI_FLAG_LOW_PROFILE
             | View.SYSTEM_UI_FLAG_FULLSCREEN
@@ -44,30 +72,134 @@ public class FullscreenActivity extends AppCompatActivity {
             | View.SYSTEM_UI_FLAG_HIDE_NAVIGATION);
 
     private float[] latentCodes = null;
+    private float[] similarQuery = null;
+
+    /**
+     * The strokes rasterized straight at the model input size, and the snapshot of it shared by
+     * the classifier and the encoder
+     */
+    private StrokeRasterizer strokeRasterizer = new StrokeRasterizer(INPUT_SIZE, INPUT_SIZE);
+    private float[] strokePixels = null;
 
     private DrawView drawView = null;
     private ImageView decodedImageView = null;
+    private ImageView similarImageView = null;
     private Spinner inputSpinner = null;
     private Spinner outputSpinner = null;
     private SeekBar widthSeekBar = null;
     private SeekBar tilt1SeekBar = null;
     private SeekBar tilt2SeekBar = null;
-    private DigitClassifier digitClassifier = new DigitClassifier(this);
-    private VaeModel vaeModel = new VaeModel(this);
+    private DigitClassifier digitClassifier = new DigitClassifier(this, MODEL_VARIANT);
+    private VaeModel vaeModel = new VaeModel(this, true, MODEL_VARIANT);
+    private SimilarDigitFinder similarDigitFinder = new SimilarDigitFinder(this);
+    private DrawingHistory drawingHistory = new DrawingHistory(this);
+    private DecodedImageCache decodeCache = null;
+
+    /**
+     * Encoder output of the last drawings and labels, so re-encoding a drawing under a label it
+     * was already encoded with only samples it again
+     */
+    private EncodedLatentCache encodeCache = new EncodedLatentCache(ENCODE_CACHE_SIZE);
+
+    /**
+     * Reusable bitmaps the decoder renders into, the one on screen and a drawable per bitmap
+     */
+    private BitmapRing decodedBitmaps = new BitmapRing(DECODED_BITMAP_COUNT);
+    private Bitmap displayedBitmap = null;
+    private Map<Bitmap, BitmapDrawable> decodedDrawables = new HashMap<>();
+
+    private int inputLabel = 0;
+    private int outputLabel = 0;
+
+    /**
+     * Version of the models the image on screen was decoded with, 0 for the bundled ones
+     */
+    private int modelVersion = 0;
+
+    /**
+     * When the finger was lifted off the last drawing, until its image is shown
+     */
+    private long fingerUpTime = 0;
+    private final LatencyHistogram strokeLatency =
+            MetricsRegistry.getDefault().histogram("ui.stroke_to_image");
+
+    /**
+     * Runs the Task listeners of the schedulers and the speculation on the main thread
+     */
+    private Executor mainThreadExecutor = new Executor() {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable command) {
+            handler.post(command);
+        }
+    };
+
+    /**
+     * Classifies and encodes the drawing while it is being drawn, so finger-up can reuse it
+     */
+    private SpeculativeClassifier speculativeClassifier = new SpeculativeClassifier(
+            new SpeculativeClassifier.Stages() {
+                @Override
+                public Task<Integer> classify(float[] pixels, CancellationToken token) {
+                    return digitClassifier.classifyAsync(pixels, token);
+                }
 
-    private AtomicBoolean isIdle = new AtomicBoolean(false);
+                @Override
+                public Task<float[]> encode(float[] pixels, int label, CancellationToken token) {
+                    if (!vaeModel.isEncoderReady) {
+                        return Tasks.forResult(null);
+                    }
+                    return vaeModel.encodeAsync(pixels, label, token);
+                }
+            }, SPECULATION_INTERVAL_MS, true, mainThreadExecutor);
+
+    private DrawingPipeline drawingPipeline = new DrawingPipeline(new DrawingPipeline.Stages() {
+        @Override
+        public Task<SpeculativeClassifier.Result> classify(float[] pixels) {
+            // Reuses the speculation made while drawing if the drawing has not changed since
+            return speculativeClassifier.commit(pixels);
+        }
+
+        @Override
+        public Task<float[]> encode(float[] pixels, int label) {
+            return vaeModel.encodeAsync(pixels, label);
+        }
+
+        @Override
+        public Task<Bitmap> decode(float[] latentCodes, int label) {
+            if (!vaeModel.isDecoderReady) {
+                return Tasks.forResult(null);
+            }
+            return vaeModel.decodeAsync(latentCodes, label, decodedBitmaps);
+        }
+    });
+
+    /**
+     * Schedulers that always process the latest classify/encode/decode request
+     */
+    private LatestRequestScheduler classifyScheduler =
+            new LatestRequestScheduler("Classify", mainThreadExecutor);
+    private LatestRequestScheduler encodeScheduler =
+            new LatestRequestScheduler("Encode", mainThreadExecutor);
+    private LatestRequestScheduler decodeScheduler =
+            new LatestRequestScheduler("Decode", mainThreadExecutor);
+    private LatestRequestScheduler similarScheduler =
+            new LatestRequestScheduler("Similar", mainThreadExecutor);
 
     private AdapterView.OnItemSelectedListener itemSelectedListener =
             new AdapterView.OnItemSelectedListener() {
                 @Override
                 public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
                     if (parent == inputSpinner) {
-                        if (isIdle.compareAndSet(true, false)) {
+                        if (position != inputLabel) {
+                            inputLabel = position;
                             Log.d(TAG, "Trigger encode process from Spinner");
                             encode();
                         }
                     } else if (parent == outputSpinner) {
-                        if (isIdle.compareAndSet(true, false)) {
+                        if (position != outputLabel) {
+                            outputLabel = position;
                             Log.d(TAG, "Trigger decode process from Spinner");
                             decode();
                         }
@@ -93,9 +225,10 @@ public class FullscreenActivity extends AppCompatActivity {
                         idx = IDX_TILT2;
                     }
 
-                    if (idx >= 0) {
+                    if ((idx >= 0) && (latentCodes != null)) {
                         latentCodes[idx] = (seekBar.getProgress() * 10f / seekBar.getMax()) - 5;
-                        if (isIdle.compareAndSet(true, false)) {
+                        // Progress set from an encode result is rendered by that encode
+                        if (fromUser) {
                             Log.d(TAG, "Trigger decode process from SeekBar");
                             decode();
                         }
@@ -139,14 +272,17 @@ public class FullscreenActivity extends AppCompatActivity {
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        final long startTime = System.nanoTime();
         super.onCreate(savedInstanceState);
 
         setContentView(R.layout.activity_fullscreen);
 
         // Setup view instances
         decodedImageView = findViewById(R.id.imageView);
+        similarImageView = findViewById(R.id.similarImageView);
         drawView = findViewById(R.id.draw_view);
-        drawView.setStrokeWidth(35f);
+        drawView.setStrokeWidth(STROKE_WIDTH);
+        strokeRasterizer.setStrokeWidth(STROKE_WIDTH);
         drawView.setColor(Color.WHITE);
         drawView.setBackgroundColor(Color.BLACK);
         inputSpinner = findViewById(R.id.inputSpinner);
@@ -160,6 +296,15 @@ public class FullscreenActivity extends AppCompatActivity {
         tilt2SeekBar = findViewById(R.id.tilt2SeekBar);
         tilt2SeekBar.setProgress(widthSeekBar.getMax() / 2);
 
+        // Cache decoded images at the SeekBar resolution, as users scrub over the same values
+        decodeCache = new DecodedImageCache(DECODE_CACHE_SIZE, 10f / widthSeekBar.getMax());
+        vaeModel.setDecodeCache(decodeCache);
+        vaeModel.setEncodeCache(encodeCache);
+
+        // Run the one-hot, reparameterize and bufferize helpers in Java, saving four
+        // interpreter invocations per encode/decode round trip
+        vaeModel.setJavaStages(true);
+
         // Setup VAE encode/decode trigger so that it encode/decode after every stroke drew
         drawView.setOnTouchListener(new View.OnTouchListener() {
             @Override
@@ -167,15 +312,20 @@ public class FullscreenActivity extends AppCompatActivity {
                 // As we have interrupted DrawView's touch event, we first need to pass touch
                 // events through to the instance for the drawing to show up
                 drawView.onTouchEvent(event);
+                rasterizeStroke(v, event);
+
+                // Get a head start on the classify/encode while the stroke is still being drawn
+                if (event.getAction() == MotionEvent.ACTION_MOVE &&
+                        digitClassifier.isInitialized && speculativeClassifier.isDue()) {
+                    speculativeClassifier.speculate(strokeRasterizer.getPixels());
+                }
 
                 // Then if user finished a touch event, run encode/decode
                 if (event.getAction() == MotionEvent.ACTION_UP) {
-                    if (isIdle.compareAndSet(true, false)) {
-                        Log.d(TAG, "Trigger classify process from DrawView");
-                        classify();
-                    }
-                } else {
-                    isIdle.compareAndSet(false, true);
+                    Log.d(TAG, "Trigger classify process from DrawView");
+                    fingerUpTime = System.nanoTime();
+                    strokePixels = strokeRasterizer.getPixels();
+                    classify();
                 }
 
                 return true;
@@ -186,11 +336,36 @@ public class FullscreenActivity extends AppCompatActivity {
         findViewById(R.id.clearButton).setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                drawView.clearCanvas();
+                clearDrawing();
                 decodedImageView.setImageDrawable(
                         getResources().getDrawable(
                                 R.drawable.ic_launcher_background,
                                 getApplicationContext().getTheme()));
+                decodedBitmaps.release(displayedBitmap);
+                displayedBitmap = null;
+            }
+        });
+
+        // Setup undo button, which steps back to the previous drawing in the history
+        findViewById(R.id.undoButton).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                drawingHistory.undo()
+                        .addOnSuccessListener(new OnSuccessListener<DrawingHistory.Entry>() {
+                            @Override
+                            public void onSuccess(DrawingHistory.Entry entry) {
+                                clearDrawing();
+                                if (entry != null) {
+                                    restoreLatentCodes(entry);
+                                }
+                            }
+                        })
+                        .addOnFailureListener(new OnFailureListener() {
+                            @Override
+                            public void onFailure(@NonNull Exception e) {
+                                Log.e(TAG, "Error undoing drawing.", e);
+                            }
+                        });
             }
         });
 
@@ -204,20 +379,62 @@ public class FullscreenActivity extends AppCompatActivity {
         tilt2SeekBar.setOnSeekBarChangeListener(seekBarChangeListener);
 
         // Setup digit classifier
-        digitClassifier.initialize().addOnFailureListener(new OnFailureListener() {
-            @Override
-            public void onFailure(@NonNull Exception e) {
-                Log.e(TAG, "Error to setting up digit classifier.", e);
-            }
-        });
+        digitClassifier.initialize()
+                .addOnSuccessListener(startupListener("startup.classify_ready", startTime))
+                .addOnFailureListener(new OnFailureListener() {
+                    @Override
+                    public void onFailure(@NonNull Exception e) {
+                        Log.e(TAG, "Error to setting up digit classifier.", e);
+                    }
+                });
 
-        // Setup VAE model
-        vaeModel.initialize().addOnFailureListener(new OnFailureListener() {
+        // Setup VAE model, the encode and decode stages load in parallel
+        OnFailureListener vaeFailureListener = new OnFailureListener() {
             @Override
             public void onFailure(@NonNull Exception e) {
                 Log.e(TAG, "Error to setting up VAE model.", e);
             }
-        });
+        };
+        vaeModel.initializeEncoder()
+                .addOnSuccessListener(startupListener("startup.encode_ready", startTime))
+                .addOnFailureListener(vaeFailureListener);
+        vaeModel.initializeDecoder()
+                .addOnSuccessListener(startupListener("startup.decode_ready", startTime))
+                .addOnSuccessListener(new OnSuccessListener<Void>() {
+                    @Override
+                    public void onSuccess(Void aVoid) {
+                        // Render the drawing restored from the history, if it came first
+                        decode();
+                    }
+                })
+                .addOnFailureListener(vaeFailureListener);
+
+        // Restore the last drawing from the history, from its latent codes without encoding it
+        drawingHistory.open()
+                .addOnSuccessListener(new OnSuccessListener<DrawingHistory.Entry>() {
+                    @Override
+                    public void onSuccess(DrawingHistory.Entry entry) {
+                        if (entry != null && latentCodes == null) {
+                            restoreLatentCodes(entry);
+                        }
+                    }
+                })
+                .addOnFailureListener(new OnFailureListener() {
+                    @Override
+                    public void onFailure(@NonNull Exception e) {
+                        Log.e(TAG, "Error opening drawing history.", e);
+                    }
+                });
+
+        // Setup the index of similar training digits, if the app was built with one
+        similarDigitFinder.initialize()
+                .addOnSuccessListener(startupListener("startup.similar_ready", startTime))
+                .addOnFailureListener(new OnFailureListener() {
+                    @Override
+                    public void onFailure(@NonNull Exception e) {
+                        Log.w(TAG, "No index of similar digits.", e);
+                    }
+                });
 
         // WA for the focus bug caused by Spinner's Dropdown
         avoidSpinnerDropdownFocus(inputSpinner);
@@ -235,24 +452,248 @@ public class FullscreenActivity extends AppCompatActivity {
         super.onWindowFocusChanged(hasFocus);
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+
+        // Swap in the models retrained since the last start, e.g. pushed to files/models
+        ModelRegistry.getInstance(this).updateModels()
+                .addOnSuccessListener(new OnSuccessListener<Integer>() {
+                    @Override
+                    public void onSuccess(Integer version) {
+                        if (version != modelVersion) {
+                            modelVersion = version;
+                            // Render the drawing again with the new decoder
+                            decode();
+                        }
+                    }
+                })
+                .addOnFailureListener(new OnFailureListener() {
+                    @Override
+                    public void onFailure(@NonNull Exception e) {
+                        Log.e(TAG, "Error updating the models.", e);
+                    }
+                });
+    }
+
+    @Override
+    protected void onStop() {
+        drawingHistory.sync();
+        super.onStop();
+    }
+
     @Override
     protected void onDestroy() {
+        Log.i(TAG, classifyScheduler.toString());
+        Log.i(TAG, encodeScheduler.toString());
+        Log.i(TAG, decodeScheduler.toString());
+        Log.i(TAG, similarScheduler.toString());
+        Log.i(TAG, speculativeClassifier.toString());
+        Log.i(TAG, decodeCache.toString());
+        Log.i(TAG, encodeCache.toString());
+        Log.i(TAG, "Decoded bitmap ring overflows: " + decodedBitmaps.getOverflowCount());
+        Log.i(TAG, "Stage latencies:\n" + MetricsRegistry.getDefault().toText());
+        Log.i(TAG, "Stage latencies JSON: " + MetricsRegistry.getDefault().toJson());
+        Log.i(TAG, ModelRegistry.getInstance(this).toString());
+        Log.i(TAG, ModelRegistry.getInstance(this).getFootprint());
         digitClassifier.close();
         vaeModel.close();
+        similarDigitFinder.close();
+        drawingHistory.close();
         super.onDestroy();
     }
 
+    /**
+     * Record the time from onCreate() until a capability can serve its first request
+     */
+    private OnSuccessListener<Void> startupListener(final String name, final long startTime) {
+        return new OnSuccessListener<Void>() {
+            @Override
+            public void onSuccess(Void aVoid) {
+                MetricsRegistry.getDefault().histogram(name).recordSince(startTime);
+                Log.i(TAG, name + " after " + (System.nanoTime() - startTime) / 1000 + "us");
+            }
+        };
+    }
+
+    /**
+     * Put the decoded bitmap on screen and give the previous one back to the ring, which only
+     * renders into it again once it is off screen
+     */
+    private void showDecodedBitmap(Bitmap bitmap) {
+        BitmapDrawable drawable = decodedDrawables.get(bitmap);
+        if (drawable == null) {
+            drawable = new BitmapDrawable(getResources(), bitmap);
+            drawable.setFilterBitmap(false);
+            if (decodedBitmaps.contains(bitmap)) {
+                decodedDrawables.put(bitmap, drawable);
+            }
+        }
+        decodedImageView.setImageDrawable(drawable);
+        decodedImageView.invalidate();
+
+        decodedBitmaps.release(displayedBitmap);
+        displayedBitmap = bitmap;
+
+        if (fingerUpTime != 0) {
+            strokeLatency.recordSince(fingerUpTime);
+            fingerUpTime = 0;
+        }
+    }
+
+    /**
+     * Follow the strokes DrawView draws on the full-screen canvas, straight at the model input
+     * size
+     */
+    private void rasterizeStroke(View view, MotionEvent event) {
+        switch (event.getAction()) {
+            case MotionEvent.ACTION_DOWN:
+                strokeRasterizer.setViewSize(view.getWidth(), view.getHeight());
+                strokeRasterizer.moveTo(event.getX(), event.getY());
+                break;
+            case MotionEvent.ACTION_MOVE:
+                for (int i = 0; i < event.getHistorySize(); i++) {
+                    strokeRasterizer.lineTo(event.getHistoricalX(i), event.getHistoricalY(i));
+                }
+                strokeRasterizer.lineTo(event.getX(), event.getY());
+                break;
+            case MotionEvent.ACTION_UP:
+                strokeRasterizer.lineTo(event.getX(), event.getY());
+                break;
+        }
+    }
+
+    /**
+     * Show a drawing that came out of the DrawingPipeline, unless the canvas was cleared or drawn
+     * on again since
+     */
+    private void showPipelineResult(float[] pixels, DrawingPipeline.Result result) {
+        if (strokePixels != pixels) {
+            decodedBitmaps.release(result.bitmap);
+            return;
+        }
+
+        inputLabel = result.label;
+        outputLabel = result.label;
+        inputSpinner.setSelection(result.label);
+        outputSpinner.setSelection(result.label);
+        showLatentCodes(result.latentCodes);
+        if (result.bitmap != null) {
+            showDecodedBitmap(result.bitmap);
+        } else {
+            decode();
+        }
+    }
+
+    /**
+     * Reflect the encoded drawing on the SeekBars, keep it in the history and look up the
+     * training digits similar to it
+     */
+    private void showLatentCodes(float[] codes) {
+        // The SeekBars edit latentCodes, while the history and the similar digits keep those of
+        // the drawing
+        similarQuery = codes.clone();
+        drawingHistory.append(similarQuery, inputLabel, strokePixels)
+                .addOnFailureListener(new OnFailureListener() {
+                    @Override
+                    public void onFailure(@NonNull Exception e) {
+                        Log.e(TAG, "Error saving drawing to history.", e);
+                    }
+                });
+
+        setLatentCodes(codes);
+        similarScheduler.submit(similarRequest);
+    }
+
+    /**
+     * Show a drawing of the history again, as if it had just been encoded
+     */
+    private void restoreLatentCodes(DrawingHistory.Entry entry) {
+        inputLabel = entry.label;
+        outputLabel = entry.label;
+        inputSpinner.setSelection(entry.label);
+        outputSpinner.setSelection(entry.label);
+        setLatentCodes(entry.latentCodes);
+        decode();
+    }
+
+    private void setLatentCodes(float[] codes) {
+        latentCodes = codes;
+        widthSeekBar.setProgress(
+                (int) ((latentCodes[IDX_WIDTH] + 5) * widthSeekBar.getMax() / 10));
+        tilt1SeekBar.setProgress(
+                (int) ((latentCodes[IDX_TILT1] + 5) * widthSeekBar.getMax() / 10));
+        tilt2SeekBar.setProgress(
+                (int) ((latentCodes[IDX_TILT2] + 5) * widthSeekBar.getMax() / 10));
+    }
+
+    /**
+     * Clear the canvas and everything derived from the drawing on it
+     */
+    private void clearDrawing() {
+        drawView.clearCanvas();
+        strokeRasterizer.clear();
+        strokePixels = null;
+        fingerUpTime = 0;
+        speculativeClassifier.cancel();
+        similarQuery = null;
+        similarImageView.setImageDrawable(null);
+    }
+
     private void classify() {
-        Bitmap bitmap = drawView.getBitmap();
+        classifyScheduler.submit(classifyRequest);
+    }
+
+    private void encode() {
+        encodeScheduler.submit(encodeRequest);
+    }
+
+    private void decode() {
+        decodeScheduler.submit(decodeRequest);
+    }
+
+    private LatestRequestScheduler.Request classifyRequest = new LatestRequestScheduler.Request() {
+        @Override
+        public Task<?> start() {
+            final float[] pixels = strokePixels;
+
+            if ((pixels == null) || (!digitClassifier.isInitialized)) {
+                return null;
+            }
+            if (PIPELINED_STAGES) {
+                DrawingPipeline.Run run = drawingPipeline.classifyEncodeDecode(pixels);
+                run.decoded
+                        .addOnSuccessListener(new OnSuccessListener<DrawingPipeline.Result>() {
+                            @Override
+                            public void onSuccess(DrawingPipeline.Result result) {
+                                showPipelineResult(pixels, result);
+                            }
+                        })
+                        .addOnFailureListener(new OnFailureListener() {
+                            @Override
+                            public void onFailure(@NonNull Exception e) {
+                                Log.e(TAG, "Error processing drawing.", e);
+                            }
+                        });
+                // The next drawing starts as soon as this one is encoded, while it decodes
+                return run.encoded;
+            }
 
-        if ((bitmap != null) && (digitClassifier.isInitialized)) {
-            digitClassifier.classifyAsync(bitmap)
-                    .addOnSuccessListener(new OnSuccessListener<Integer>() {
+            // Reuses the speculation made while drawing if the drawing has not changed since
+            return speculativeClassifier.commit(pixels)
+                    .addOnSuccessListener(new OnSuccessListener<SpeculativeClassifier.Result>() {
                         @Override
-                        public void onSuccess(Integer integer) {
-                            inputSpinner.setSelection(integer);
-                            outputSpinner.setSelection(integer);
-                            encode();
+                        public void onSuccess(SpeculativeClassifier.Result result) {
+                            inputLabel = result.label;
+                            outputLabel = result.label;
+                            inputSpinner.setSelection(result.label);
+                            outputSpinner.setSelection(result.label);
+                            if (result.latentCodes != null) {
+                                showLatentCodes(result.latentCodes);
+                                decode();
+                            } else {
+                                encode();
+                            }
                         }
                     })
                     .addOnFailureListener(new OnFailureListener() {
@@ -262,27 +703,21 @@ public class FullscreenActivity extends AppCompatActivity {
                         }
                     });
         }
-    }
+    };
 
-    private void encode() {
-        Bitmap bitmap = drawView.getBitmap();
+    private LatestRequestScheduler.Request encodeRequest = new LatestRequestScheduler.Request() {
+        @Override
+        public Task<?> start() {
+            float[] pixels = strokePixels;
 
-        if ((bitmap != null) && (vaeModel.isInitialized)) {
-            vaeModel.encodeAsync(bitmap, inputSpinner.getSelectedItemPosition())
+            if ((pixels == null) || (!vaeModel.isEncoderReady)) {
+                return null;
+            }
+            return vaeModel.encodeAsync(pixels, inputLabel)
                     .addOnSuccessListener(new OnSuccessListener<float[]>() {
                         @Override
                         public void onSuccess(float[] floats) {
-                            latentCodes = floats;
-                            widthSeekBar.setProgress(
-                                    (int) ((latentCodes[IDX_WIDTH] + 5) *
-                                            widthSeekBar.getMax() / 10));
-                            tilt1SeekBar.setProgress(
-                                    (int) ((latentCodes[IDX_TILT1] + 5) *
-                                            widthSeekBar.getMax() / 10));
-                            tilt2SeekBar.setProgress(
-                                    (int) ((latentCodes[IDX_TILT2] + 5) *
-                                            widthSeekBar.getMax() / 10));
-
+                            showLatentCodes(floats);
                             decode();
                         }
                     })
@@ -293,26 +728,72 @@ public class FullscreenActivity extends AppCompatActivity {
                         }
                     });
         }
-    }
+    };
 
-    private void decode() {
-        if ((latentCodes != null) && (vaeModel.isInitialized)) {
-            vaeModel.decodeAsync(latentCodes, outputSpinner.getSelectedItemPosition())
+    private LatestRequestScheduler.Request decodeRequest = new LatestRequestScheduler.Request() {
+        @Override
+        public Task<?> start() {
+            if ((latentCodes == null) || (!vaeModel.isDecoderReady)) {
+                return null;
+            }
+            return vaeModel.decodeAsync(latentCodes.clone(), outputLabel, decodedBitmaps)
                     .addOnSuccessListener(new OnSuccessListener<Bitmap>() {
                         @Override
                         public void onSuccess(Bitmap bitmap) {
+                            showDecodedBitmap(bitmap);
+                        }
+                    })
+                    .addOnFailureListener(new OnFailureListener() {
+                        @Override
+                        public void onFailure(@NonNull Exception e) {
+                            Log.e(TAG, "Error decoding drawing.", e);
+                        }
+                    });
+        }
+    };
+
+    private LatestRequestScheduler.Request similarRequest = new LatestRequestScheduler.Request() {
+        @Override
+        public Task<?> start() {
+            float[] query = similarQuery;
+
+            if ((query == null) || (!similarDigitFinder.isInitialized)
+                    || (!vaeModel.isDecoderReady)) {
+                return null;
+            }
+            // Render the neighbours from their latent codes, in one decoder invocation
+            return similarDigitFinder.findAsync(query, inputLabel, SIMILAR_DIGIT_COUNT)
+                    .onSuccessTask(new SuccessContinuation<SimilarDigitFinder.Neighbours,
+                            Bitmap>() {
+                        @NonNull
+                        @Override
+                        public Task<Bitmap> then(SimilarDigitFinder.Neighbours neighbours) {
+                            if (neighbours.ids.length == 0) {
+                                return Tasks.forResult(null);
+                            }
+                            return vaeModel.decodeAtlasAsync(neighbours.latentCodes,
+                                    neighbours.labels, SIMILAR_DIGIT_COUNT);
+                        }
+                    })
+                    .addOnSuccessListener(new OnSuccessListener<Bitmap>() {
+                        @Override
+                        public void onSuccess(Bitmap bitmap) {
+                            if ((similarQuery == null) || (bitmap == null)) {
+                                // Cleared in the meantime, or no digit of the label
+                                similarImageView.setImageDrawable(null);
+                                return;
+                            }
                             BitmapDrawable drawable = new BitmapDrawable(getResources(), bitmap);
                             drawable.setFilterBitmap(false);
-                            decodedImageView.setImageDrawable(drawable);
-                            isIdle.compareAndSet(false, true);
+                            similarImageView.setImageDrawable(drawable);
                         }
                     })
                     .addOnFailureListener(new OnFailureListener() {
                         @Override
                         public void onFailure(@NonNull Exception e) {
-                            Log.e(TAG, "Error decoding drawing.", e);
+                            Log.e(TAG, "Error finding similar digits.", e);
                         }
                     });
         }
-    }
+    };
 }
@@ -0,0 +1,145 @@
+package com.example.vaedemo;
+
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Binds the inputs and outputs of a TF Lite model to direct ByteBuffers once, so that every
+ * following invocation reuses the same buffers, input array and output map. Any interpreter of
+ * the model, e.g. one borrowed from its InterpreterPool, can run on the binding.
+ */
+class InterpreterBinding {
+    private final ByteBuffer[] inputs;
+    private final ByteBuffer[] outputs;
+    private final Object[] inputArray;
+    private final Map<Integer, Object> outputMap;
+
+    InterpreterBinding(ByteBuffer[] inputs, ByteBuffer[] outputs) {
+        this.inputs = inputs;
+        this.outputs = outputs;
+        this.inputArray = inputs.clone();
+        this.outputMap = new OutputMap(outputs);
+    }
+
+    /**
+     * Allocate a native ordered direct buffer that fits the given tensor
+     */
+    static ByteBuffer allocate(Tensor tensor) {
+        return ByteBuffer.allocateDirect(tensor.numBytes()).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Bind every input and output of the interpreter to a new zero-filled buffer, e.g. to invoke
+     * it without real data
+     */
+    static InterpreterBinding allocate(Interpreter interpreter) {
+        ByteBuffer[] inputs = new ByteBuffer[interpreter.getInputTensorCount()];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = allocate(interpreter.getInputTensor(i));
+        }
+        ByteBuffer[] outputs = new ByteBuffer[interpreter.getOutputTensorCount()];
+        for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = allocate(interpreter.getOutputTensor(i));
+        }
+        return new InterpreterBinding(inputs, outputs);
+    }
+
+    ByteBuffer getInput(int index) {
+        return inputs[index];
+    }
+
+    ByteBuffer getOutput(int index) {
+        return outputs[index];
+    }
+
+    void run(Interpreter interpreter) {
+        if (inputs.length != interpreter.getInputTensorCount() ||
+                outputs.length != interpreter.getOutputTensorCount()) {
+            throw new IllegalArgumentException(
+                    "The number of buffers is not matched with the interpreter tensors");
+        }
+
+        for (ByteBuffer input : inputs) {
+            input.rewind();
+        }
+        for (ByteBuffer output : outputs) {
+            output.rewind();
+        }
+        interpreter.runForMultipleInputsOutputs(inputArray, outputMap);
+        for (ByteBuffer output : outputs) {
+            output.rewind();
+        }
+    }
+
+    /**
+     * Read-only map of the output buffers. The interpreter walks the entry set on every run, so
+     * the entries and the iterator are created once and reused instead of allocated per call.
+     */
+    private static class OutputMap extends AbstractMap<Integer, Object> {
+        private final EntrySet entrySet;
+
+        OutputMap(ByteBuffer[] outputs) {
+            Entry<Integer, Object>[] entries = newEntryArray(outputs.length);
+            for (int i = 0; i < outputs.length; i++) {
+                entries[i] = new SimpleImmutableEntry<Integer, Object>(i, outputs[i]);
+            }
+            entrySet = new EntrySet(entries);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Entry<Integer, Object>[] newEntryArray(int size) {
+            return (Entry<Integer, Object>[]) new Entry[size];
+        }
+
+        @Override
+        public Set<Entry<Integer, Object>> entrySet() {
+            return entrySet;
+        }
+    }
+
+    private static class EntrySet extends AbstractSet<Map.Entry<Integer, Object>> {
+        private final Map.Entry<Integer, Object>[] entries;
+        private final EntryIterator iterator = new EntryIterator();
+
+        EntrySet(Map.Entry<Integer, Object>[] entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public Iterator<Map.Entry<Integer, Object>> iterator() {
+            iterator.position = 0;
+            return iterator;
+        }
+
+        @Override
+        public int size() {
+            return entries.length;
+        }
+
+        private class EntryIterator implements Iterator<Map.Entry<Integer, Object>> {
+            private int position = 0;
+
+            @Override
+            public boolean hasNext() {
+                return position < entries.length;
+            }
+
+            @Override
+            public Map.Entry<Integer, Object> next() {
+                if (position >= entries.length) {
+                    throw new NoSuchElementException();
+                }
+                return entries[position++];
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.vaedemo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A candidate configuration to run a TF Lite model with: the accelerator and the number of
+ * CPU threads. Kept free of Android and TF Lite types so it can be tuned and persisted anywhere.
+ */
+class InterpreterConfig {
+    enum Accelerator {
+        /**
+         * Built-in CPU kernels only
+         */
+        CPU,
+        /**
+         * CPU with the XNNPACK delegate
+         */
+        XNNPACK,
+        /**
+         * Android Neural Networks API delegate
+         */
+        NNAPI,
+    }
+
+    final Accelerator accelerator;
+    final int numThreads;
+
+    InterpreterConfig(Accelerator accelerator, int numThreads) {
+        if (numThreads <= 0) {
+            throw new IllegalArgumentException("The number of threads must be positive");
+        }
+        this.accelerator = accelerator;
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * All the configurations worth trying: the CPU and XNNPACK with 1 to maxThreads threads, plus
+     * NNAPI when available
+     */
+    static List<InterpreterConfig> candidates(int maxThreads, boolean isNnApiAvailable) {
+        List<InterpreterConfig> candidates = new ArrayList<>();
+        for (int threads = 1; threads <= maxThreads; threads++) {
+            candidates.add(new InterpreterConfig(Accelerator.CPU, threads));
+        }
+        for (int threads = 1; threads <= maxThreads; threads++) {
+            candidates.add(new InterpreterConfig(Accelerator.XNNPACK, threads));
+        }
+        if (isNnApiAvailable) {
+            candidates.add(new InterpreterConfig(Accelerator.NNAPI, 1));
+        }
+        return candidates;
+    }
+
+    static InterpreterConfig parse(String value) {
+        int separator = value.indexOf(':');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Malformed interpreter configuration: " + value);
+        }
+        return new InterpreterConfig(
+                Accelerator.valueOf(value.substring(0, separator)),
+                Integer.parseInt(value.substring(separator + 1)));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof InterpreterConfig)) {
+            return false;
+        }
+        InterpreterConfig that = (InterpreterConfig) o;
+        return accelerator == that.accelerator && numThreads == that.numThreads;
+    }
+
+    @Override
+    public int hashCode() {
+        return accelerator.hashCode() * 31 + numThreads;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s:%d", accelerator.name(), numThreads);
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.vaedemo;
+
+import android.os.Build;
+import android.util.Log;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds TF Lite Interpreters with the configuration picked by the AutoTuner
+ */
+class InterpreterFactory {
+    private static final String TAG = "InterpreterFactory";
+    private static final int MAX_THREADS = 4;
+    private static final int WARM_UP_RUNS = 2;
+    private static final int MEASURE_RUNS = 10;
+
+    private InterpreterFactory() {
+    }
+
+    static String getDeviceId() {
+        return Build.MANUFACTURER + "/" + Build.MODEL + "/" + Build.FINGERPRINT;
+    }
+
+    static List<InterpreterConfig> getCandidates() {
+        int maxThreads = Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors());
+        return InterpreterConfig.candidates(maxThreads, Build.VERSION.SDK_INT >= 27);
+    }
+
+    static Interpreter.Options createOptions(InterpreterConfig config) {
+        Interpreter.Options options = new Interpreter.Options();
+        options.setNumThreads(config.numThreads);
+        options.setUseXNNPACK(config.accelerator == InterpreterConfig.Accelerator.XNNPACK);
+        options.setUseNNAPI(config.accelerator == InterpreterConfig.Accelerator.NNAPI);
+        return options;
+    }
+
+    /**
+     * The fastest configuration of the model on this device, benchmarking the candidates first
+     * if the model was never tuned here. Models may be tuned in parallel; tuning is serialized
+     * on the tuner so benchmarks do not skew each other.
+     */
+    static InterpreterConfig tune(final ByteBuffer model, String modelHash, String modelName,
+                                  AutoTuner tuner) throws IOException {
+        InterpreterConfig config;
+        Map<InterpreterConfig, Long> results;
+        synchronized (tuner) {
+            config = tuner.tune(modelHash, getCandidates(), new AutoTuner.Benchmark() {
+                @Override
+                public long measureNanos(InterpreterConfig config) {
+                    return measure(model, config);
+                }
+            });
+            results = tuner.getLastResults();
+        }
+
+        if (results.isEmpty()) {
+            Log.d(TAG, modelName + ": using tuned configuration " + config);
+        } else {
+            for (Map.Entry<InterpreterConfig, Long> result : results.entrySet()) {
+                Log.d(TAG, modelName + ": " + result.getKey() + " takes " +
+                        result.getValue() / 1000 + "us");
+            }
+            Log.i(TAG, modelName + ": selected configuration " + config);
+        }
+        return config;
+    }
+
+    static Interpreter create(ByteBuffer model, InterpreterConfig config) {
+        return new Interpreter(model, createOptions(config));
+    }
+
+    /**
+     * Median latency of one invocation with zero-filled inputs
+     */
+    static long measure(ByteBuffer model, InterpreterConfig config) {
+        Interpreter interpreter = new Interpreter(model, createOptions(config));
+        try {
+            InterpreterBinding binding = InterpreterBinding.allocate(interpreter);
+
+            for (int i = 0; i < WARM_UP_RUNS; i++) {
+                binding.run(interpreter);
+            }
+            long[] elapsedTimes = new long[MEASURE_RUNS];
+            for (int i = 0; i < MEASURE_RUNS; i++) {
+                long startTime = System.nanoTime();
+                binding.run(interpreter);
+                elapsedTimes[i] = System.nanoTime() - startTime;
+            }
+            Arrays.sort(elapsedTimes);
+            return elapsedTimes[MEASURE_RUNS / 2];
+        } finally {
+            interpreter.close();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.vaedemo;
+
+import com.example.vaedemo.core.ModelRunner;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * A ModelRunner on the interpreters of an InterpreterPool, so that the app runs the VaeCodec of
+ * vaecore like the batch tool does. Each run borrows one interpreter for the whole batch and
+ * invokes it once per row, since the pooled interpreters keep the batch size of 1 they were
+ * built with. The rows are copied through direct buffers in the tensor type, int8 and uint8
+ * through QuantizedTensor.
+ *
+ * Not thread-safe: every worker thread runs its own on the shared pool.
+ */
+final class InterpreterModelRunner implements ModelRunner {
+    private final InterpreterPool pool;
+    private final int[] inputShape;
+    private final int[] outputShape;
+    private final int inputRowSize;
+    private final int outputRowSize;
+
+    private final QuantizedTensor inputTensor;
+    private final QuantizedTensor outputTensor;
+    private final ByteBuffer inputBuffer;
+    private final ByteBuffer outputBuffer;
+
+    InterpreterModelRunner(InterpreterPool pool) {
+        this.pool = pool;
+        Interpreter interpreter = pool.borrow();
+        try {
+            inputShape = interpreter.getInputTensor(0).shape();
+            outputShape = interpreter.getOutputTensor(0).shape();
+            inputTensor = QuantizedTensor.of(interpreter.getInputTensor(0));
+            outputTensor = QuantizedTensor.of(interpreter.getOutputTensor(0));
+        } finally {
+            pool.giveBack(interpreter);
+        }
+        inputRowSize = rowSize(inputShape);
+        outputRowSize = rowSize(outputShape);
+        inputBuffer = allocate(inputRowSize * (inputTensor.isQuantized() ? 1 : 4));
+        outputBuffer = allocate(outputRowSize * (outputTensor.isQuantized() ? 1 : 4));
+    }
+
+    @Override
+    public int[] getInputShape() {
+        return inputShape.clone();
+    }
+
+    @Override
+    public int[] getOutputShape() {
+        return outputShape.clone();
+    }
+
+    @Override
+    public void run(float[] input, float[] output, int batchSize) {
+        Interpreter interpreter = pool.borrow();
+        try {
+            for (int n = 0; n < batchSize; n++) {
+                FloatBuffer inputRow =
+                        FloatBuffer.wrap(input, n * inputRowSize, inputRowSize).slice();
+                inputBuffer.clear();
+                if (inputTensor.isQuantized()) {
+                    inputTensor.quantize(inputRow, inputBuffer);
+                } else {
+                    inputBuffer.asFloatBuffer().put(inputRow);
+                }
+
+                outputBuffer.clear();
+                interpreter.run(inputBuffer, outputBuffer);
+
+                FloatBuffer outputRow =
+                        FloatBuffer.wrap(output, n * outputRowSize, outputRowSize).slice();
+                if (outputTensor.isQuantized()) {
+                    outputTensor.dequantize(outputBuffer, outputRow);
+                } else {
+                    outputBuffer.clear();
+                    outputRow.put(outputBuffer.asFloatBuffer());
+                }
+            }
+        } finally {
+            pool.giveBack(interpreter);
+        }
+    }
+
+    private static int rowSize(int[] shape) {
+        int size = 1;
+        for (int i = 1; i < shape.length; i++) {
+            size *= shape[i];
+        }
+        return size;
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    }
+}
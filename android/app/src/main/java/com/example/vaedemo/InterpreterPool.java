@@ -0,0 +1,525 @@
+package com.example.vaedemo;
+
+import android.os.Debug;
+
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small pool of interpreters of one model. A TF Lite Interpreter is not thread-safe, so a
+ * consumer borrows one for a single invocation and gives it back; with more than one instance,
+ * several threads run the model in parallel. Interpreters are created on demand up to the pool
+ * size. Borrowing and giving back allocate nothing once the pool is warm.
+ *
+ * The interpreters belong to a generation, one version of the model. A newer version is built
+ * and warmed up next to the active one, then activate() swaps it in: borrow() hands out the new
+ * interpreters from then on, while the borrowed old ones finish their call and are closed when
+ * given back. Neither step blocks or fails a borrower.
+ *
+ * Under memory pressure, trim() closes idle interpreters to free their native tensor arenas and
+ * delegate state. The factory keeps the model mapped and its tuned configuration, so borrow()
+ * rebuilds them on demand without tuning again.
+ */
+class InterpreterPool {
+    static final int MAX_POOL_SIZE = 8;
+
+    interface Factory {
+        Interpreter create() throws IOException;
+
+        /**
+         * Size of the mapped model the interpreters share
+         */
+        long getModelBytes();
+
+        /**
+         * Configuration of the interpreters, or null until the first one is created
+         */
+        InterpreterConfig getConfig();
+    }
+
+    /**
+     * The interpreters of one version of the model. Guarded by the pool.
+     */
+    static final class Generation {
+        final int version;
+        private final Factory factory;
+        private final ArrayBlockingQueue<Interpreter> idle =
+                new ArrayBlockingQueue<>(MAX_POOL_SIZE);
+        private int createdCount = 0;
+        private boolean isRetired = false;
+
+        /**
+         * Interpreters closed by trim() and not rebuilt yet
+         */
+        private int trimmedCount = 0;
+
+        /**
+         * The tensors of the first interpreter, see signatureOf()
+         */
+        private String signature = null;
+
+        Generation(int version, Factory factory) {
+            this.version = version;
+            this.factory = factory;
+        }
+    }
+
+    private final String modelName;
+    private final LatencyHistogram waitLatency;
+    private final LatencyHistogram coldLatency;
+    private final LatencyHistogram warmLatency;
+    private final LatencyHistogram reloadLatency;
+    private final Map<Interpreter, Generation> owners = new IdentityHashMap<>();
+
+    /**
+     * Native heap growth while each interpreter was built, an estimate of its tensor arena and
+     * delegate state
+     */
+    private final Map<Interpreter, Long> nativeBytes = new IdentityHashMap<>();
+    private long trimmedBytes = 0;
+    private final Set<Interpreter> warmInterpreters =
+            Collections.newSetFromMap(new IdentityHashMap<Interpreter, Boolean>());
+    private volatile Generation active;
+    private int poolSize = 0;
+    private int waiterCount = 0;
+    private boolean isClosed = false;
+
+    /**
+     * Reference count of the consumers, maintained by the ModelRegistry
+     */
+    int references = 0;
+
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicInteger peakInUse = new AtomicInteger();
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong waitCount = new AtomicLong();
+
+    /**
+     * @param version     version of the model the factory builds, 0 for the bundled one
+     * @param coldLatency latency of the first invocation of each interpreter by warmUp()
+     * @param warmLatency latency of the following invocations by warmUp()
+     * @param reloadLatency latency of rebuilding an interpreter closed by trim()
+     */
+    InterpreterPool(String modelName, int version, int poolSize, Factory factory,
+                    LatencyHistogram waitLatency, LatencyHistogram coldLatency,
+                    LatencyHistogram warmLatency, LatencyHistogram reloadLatency) {
+        this.modelName = modelName;
+        this.active = new Generation(version, factory);
+        this.waitLatency = waitLatency;
+        this.coldLatency = coldLatency;
+        this.warmLatency = warmLatency;
+        this.reloadLatency = reloadLatency;
+        setPoolSize(poolSize);
+    }
+
+    String getModelName() {
+        return modelName;
+    }
+
+    /**
+     * Version of the model that borrow() hands out
+     */
+    int getVersion() {
+        return active.version;
+    }
+
+    synchronized void setPoolSize(int poolSize) {
+        if (poolSize <= 0 || poolSize > MAX_POOL_SIZE) {
+            throw new IllegalArgumentException(
+                    "The pool size must be between 1 and " + MAX_POOL_SIZE);
+        }
+        this.poolSize = Math.max(this.poolSize, poolSize);
+    }
+
+    /**
+     * Create the first interpreter ahead of the first borrow, e.g. to tune and load the model
+     * while the app starts
+     */
+    void prepare() throws IOException {
+        Generation generation = active;
+        synchronized (this) {
+            checkNotClosed();
+            if (generation.createdCount > 0 || generation.isRetired) {
+                return;
+            }
+            generation.createdCount++;
+        }
+        recycle(create(generation));
+    }
+
+    /**
+     * Create every interpreter of the pool and invoke each one runs times with zero-filled
+     * inputs, so the first real call does not pay for tensor allocation, delegate preparation and
+     * lazy native setup. Interpreters warmed up before are not invoked again.
+     */
+    void warmUp(int runs) throws IOException {
+        int count;
+        synchronized (this) {
+            count = poolSize;
+        }
+
+        Interpreter[] borrowed = new Interpreter[count];
+        try {
+            // Holding them all makes borrow() create the missing ones
+            for (int i = 0; i < count; i++) {
+                borrowed[i] = borrow();
+            }
+            for (Interpreter interpreter : borrowed) {
+                warmUp(interpreter, runs);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            for (Interpreter interpreter : borrowed) {
+                if (interpreter != null) {
+                    giveBack(interpreter);
+                }
+            }
+        }
+    }
+
+    private void warmUp(Interpreter interpreter, int runs) {
+        synchronized (this) {
+            if (!warmInterpreters.add(interpreter)) {
+                return;
+            }
+        }
+        InterpreterBinding binding = InterpreterBinding.allocate(interpreter);
+        for (int run = 0; run < runs; run++) {
+            long startTime = System.nanoTime();
+            binding.run(interpreter);
+            (run == 0 ? coldLatency : warmLatency).recordSince(startTime);
+        }
+    }
+
+    /**
+     * Build every interpreter of another version of the model and warm each one up runs times,
+     * while borrow() keeps handing out the active version. Runs on a background thread, the
+     * result is swapped in with activate() or dropped with discard().
+     */
+    Generation build(int version, Factory factory, int runs) throws IOException {
+        int count;
+        synchronized (this) {
+            checkNotClosed();
+            count = poolSize;
+        }
+
+        Generation generation = new Generation(version, factory);
+        try {
+            for (int i = 0; i < count; i++) {
+                synchronized (this) {
+                    generation.createdCount++;
+                }
+                Interpreter interpreter = create(generation);
+                generation.idle.offer(interpreter);
+                warmUp(interpreter, runs);
+            }
+        } catch (IOException | RuntimeException e) {
+            discard(generation);
+            throw e;
+        }
+        return generation;
+    }
+
+    /**
+     * Whether the consumers can run the generation on the buffers they bound to the active
+     * one, i.e. every tensor has the same shape, type and quantization
+     */
+    synchronized boolean isCompatible(Generation generation) {
+        return active.signature == null || active.signature.equals(generation.signature);
+    }
+
+    /**
+     * Make borrow() hand out the interpreters of the generation, and close the previous ones
+     * once they are given back. Borrowers waiting for a previous one get a new one instead.
+     */
+    synchronized void activate(Generation generation) {
+        if (isClosed) {
+            discard(generation);
+            throw new IllegalStateException(modelName + " interpreter pool is closed");
+        }
+        Generation previous = active;
+        active = generation;
+        discard(previous);
+    }
+
+    /**
+     * Close the idle interpreters of a generation that will not be used anymore, and the
+     * borrowed ones when they are given back
+     */
+    synchronized void discard(Generation generation) {
+        generation.isRetired = true;
+        Interpreter interpreter;
+        while ((interpreter = generation.idle.poll()) != null) {
+            closeInterpreter(interpreter);
+        }
+        if (waiterCount > 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Close the idle interpreters of the active version beyond keep, e.g. 0 to close them all.
+     * The borrowed ones are left alone, and borrow() rebuilds the closed ones when it needs them.
+     * Returns the estimated native bytes released.
+     */
+    synchronized long trim(int keep) {
+        Generation generation = active;
+        long released = 0;
+        Interpreter interpreter;
+        while (generation.idle.size() > keep && (interpreter = generation.idle.poll()) != null) {
+            released += nativeBytes.get(interpreter);
+            closeInterpreter(interpreter);
+            generation.createdCount--;
+            generation.trimmedCount++;
+        }
+        trimmedBytes += released;
+        return released;
+    }
+
+    /**
+     * Number of idle interpreters of the active version
+     */
+    synchronized int getIdleCount() {
+        return active.idle.size();
+    }
+
+    /**
+     * Estimated native bytes of the interpreters alive, of every version
+     */
+    synchronized long getNativeBytes() {
+        long total = 0;
+        for (long bytes : nativeBytes.values()) {
+            total += bytes;
+        }
+        return total;
+    }
+
+    long getModelBytes() {
+        return active.factory.getModelBytes();
+    }
+
+    /**
+     * One line per interpreter alive, with its version, state and estimated native bytes, below
+     * the mapped model size and the configuration
+     */
+    synchronized String getFootprint() {
+        Generation generation = active;
+        StringBuilder text = new StringBuilder(String.format(Locale.US,
+                "%s v%d: mapped=%dKB, config=%s, native=%dKB, trimmed=%dKB", modelName,
+                generation.version, generation.factory.getModelBytes() / 1024,
+                generation.factory.getConfig(), getNativeBytes() / 1024, trimmedBytes / 1024));
+        for (Map.Entry<Interpreter, Generation> entry : owners.entrySet()) {
+            Generation owner = entry.getValue();
+            String state = owner != generation ? "retired" :
+                    owner.idle.contains(entry.getKey()) ? "idle" : "in use";
+            text.append(String.format(Locale.US, "\n    v%d %s: native=%dKB", owner.version,
+                    state, nativeBytes.get(entry.getKey()) / 1024));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Take an idle interpreter, create one if the pool is not full, or wait for one to be given
+     * back. The caller owns the interpreter until giveBack().
+     */
+    Interpreter borrow() {
+        long startTime = System.nanoTime();
+        Interpreter interpreter;
+        do {
+            interpreter = borrowFrom(active);
+        } while (interpreter == null);
+        waitLatency.recordSince(startTime);
+
+        borrowCount.incrementAndGet();
+        int used = inUse.incrementAndGet();
+        int peak = peakInUse.get();
+        while (used > peak && !peakInUse.compareAndSet(peak, used)) {
+            peak = peakInUse.get();
+        }
+        return interpreter;
+    }
+
+    /**
+     * An interpreter of the generation, or null if it was swapped out before one was free
+     */
+    private Interpreter borrowFrom(Generation generation) {
+        Interpreter interpreter = generation.idle.poll();
+        if (interpreter != null) {
+            return interpreter;
+        }
+
+        boolean hasWaited = false;
+        boolean isInterrupted = false;
+        try {
+            synchronized (this) {
+                while (true) {
+                    checkNotClosed();
+                    if (generation.isRetired) {
+                        return null;
+                    }
+                    interpreter = generation.idle.poll();
+                    if (interpreter != null) {
+                        return interpreter;
+                    }
+                    if (generation.createdCount < poolSize) {
+                        // Reserve the slot before building, which takes a while
+                        generation.createdCount++;
+                        break;
+                    }
+
+                    if (!hasWaited) {
+                        waitCount.incrementAndGet();
+                        hasWaited = true;
+                    }
+                    waiterCount++;
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        isInterrupted = true;
+                    } finally {
+                        waiterCount--;
+                    }
+                }
+            }
+        } finally {
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        try {
+            return create(generation);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void giveBack(Interpreter interpreter) {
+        inUse.decrementAndGet();
+        recycle(interpreter);
+    }
+
+    private synchronized void recycle(Interpreter interpreter) {
+        Generation generation = owners.get(interpreter);
+        if (isClosed || generation.isRetired) {
+            closeInterpreter(interpreter);
+            return;
+        }
+        generation.idle.offer(interpreter);
+        if (waiterCount > 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Close the idle interpreters now and the borrowed ones when they are given back
+     */
+    synchronized void close() {
+        isClosed = true;
+        discard(active);
+    }
+
+    /**
+     * Build an interpreter in the slot reserved in the generation
+     */
+    private Interpreter create(Generation generation) throws IOException {
+        long startTime = System.nanoTime();
+        long nativeBefore = Debug.getNativeHeapAllocatedSize();
+        Interpreter interpreter;
+        String signature;
+        try {
+            interpreter = generation.factory.create();
+            signature = signatureOf(interpreter);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                generation.createdCount--;
+                if (waiterCount > 0) {
+                    notifyAll();
+                }
+            }
+            throw e;
+        }
+
+        // Other threads allocate meanwhile too, so this is only an estimate
+        long footprint = Math.max(0, Debug.getNativeHeapAllocatedSize() - nativeBefore);
+        boolean isReload = false;
+        synchronized (this) {
+            owners.put(interpreter, generation);
+            nativeBytes.put(interpreter, footprint);
+            if (generation.signature == null) {
+                generation.signature = signature;
+            }
+            if (generation.trimmedCount > 0) {
+                generation.trimmedCount--;
+                isReload = true;
+            }
+        }
+        if (isReload) {
+            reloadLatency.recordSince(startTime);
+        }
+        return interpreter;
+    }
+
+    private void closeInterpreter(Interpreter interpreter) {
+        owners.remove(interpreter);
+        nativeBytes.remove(interpreter);
+        warmInterpreters.remove(interpreter);
+        interpreter.close();
+    }
+
+    private void checkNotClosed() {
+        if (isClosed) {
+            throw new IllegalStateException(modelName + " interpreter pool is closed");
+        }
+    }
+
+    /**
+     * The shape, type and quantization of every input and output tensor
+     */
+    static String signatureOf(Interpreter interpreter) {
+        StringBuilder signature = new StringBuilder();
+        for (int i = 0; i < interpreter.getInputTensorCount(); i++) {
+            appendTensor(signature.append("in:"), interpreter.getInputTensor(i));
+        }
+        for (int i = 0; i < interpreter.getOutputTensorCount(); i++) {
+            appendTensor(signature.append("out:"), interpreter.getOutputTensor(i));
+        }
+        return signature.toString();
+    }
+
+    private static void appendTensor(StringBuilder signature, Tensor tensor) {
+        Tensor.QuantizationParams params = tensor.quantizationParams();
+        signature.append(tensor.dataType()).append(Arrays.toString(tensor.shape()))
+                .append('@').append(params.getScale()).append(',')
+                .append(params.getZeroPoint()).append(';');
+    }
+
+    @Override
+    public synchronized String toString() {
+        int retiredCount = 0;
+        for (Generation generation : owners.values()) {
+            if (generation != active) {
+                retiredCount++;
+            }
+        }
+        return String.format(Locale.US,
+                "%s v%d: interpreters=%d/%d, retired=%d, inUse=%d, peakInUse=%d, borrows=%d, " +
+                        "waited=%d, native=%dKB, trimmed=%dKB%s",
+                modelName, active.version, active.createdCount, poolSize, retiredCount,
+                inUse.get(), peakInUse.get(), borrowCount.get(), waitCount.get(),
+                getNativeBytes() / 1024, trimmedBytes / 1024, isClosed ? " (closed)" : "");
+    }
+}
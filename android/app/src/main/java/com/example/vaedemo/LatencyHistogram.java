@@ -0,0 +1,186 @@
+package com.example.vaedemo;
+
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram of one stage with microsecond resolution. Latencies below 16us are
+ * counted exactly, larger ones in log-linear buckets of 16 per power of two, so the reported
+ * percentiles are within 6.25% of the true value. Recording allocates nothing.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MAGNITUDE = 40;
+    private static final long MAX_MICROS = (1L << (MAX_MAGNITUDE + 1)) - 1;
+    private static final int BUCKET_COUNT = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Record one successful invocation that took the given time, e.g. System.nanoTime() - start
+     */
+    void record(long elapsedNanos) {
+        long micros = Math.min(Math.max(elapsedNanos / 1000, 0), MAX_MICROS);
+        buckets.incrementAndGet(bucketOf(micros));
+        totalMicros.addAndGet(micros);
+
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    /**
+     * Record the time since startTime and return the current time, to chain consecutive stages
+     */
+    long recordSince(long startTime) {
+        long now = System.nanoTime();
+        record(now - startTime);
+        return now;
+    }
+
+    /**
+     * Wrap the callable to record the time from now until it returns, including the time it
+     * spends queued, or to count a failure if it throws
+     */
+    <T> Callable<T> timed(final Callable<T> callable) {
+        final long startTime = System.nanoTime();
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                try {
+                    T result = callable.call();
+                    recordSince(startTime);
+                    return result;
+                } catch (Exception e) {
+                    recordFailure();
+                    throw e;
+                }
+            }
+        };
+    }
+
+    void recordFailure() {
+        failures.incrementAndGet();
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        failures.set(0);
+        totalMicros.set(0);
+        maxMicros.set(0);
+    }
+
+    /**
+     * A consistent-enough copy of the current state. Concurrent recordings may be partially
+     * included, which only skews the figures by those few samples.
+     */
+    Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        long max = maxMicros.get();
+
+        return new Snapshot(name, total, failures.get(),
+                total > 0 ? totalMicros.get() / total : 0,
+                percentile(counts, total, 0.50, max),
+                percentile(counts, total, 0.90, max),
+                percentile(counts, total, 0.99, max),
+                max);
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (magnitude - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * The largest latency counted in the bucket
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long mantissa = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << (magnitude - SUB_BUCKET_BITS)) - 1;
+    }
+
+    private static long percentile(long[] counts, long total, double quantile, long max) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    static class Snapshot {
+        final String name;
+        final long count;
+        final long failures;
+        final long meanMicros;
+        final long p50Micros;
+        final long p90Micros;
+        final long p99Micros;
+        final long maxMicros;
+
+        Snapshot(String name, long count, long failures, long meanMicros,
+                 long p50Micros, long p90Micros, long p99Micros, long maxMicros) {
+            this.name = name;
+            this.count = count;
+            this.failures = failures;
+            this.meanMicros = meanMicros;
+            this.p50Micros = p50Micros;
+            this.p90Micros = p90Micros;
+            this.p99Micros = p99Micros;
+            this.maxMicros = maxMicros;
+        }
+
+        String toJson() {
+            return String.format(Locale.US,
+                    "{\"name\":\"%s\",\"count\":%d,\"failures\":%d,\"meanUs\":%d," +
+                            "\"p50Us\":%d,\"p90Us\":%d,\"p99Us\":%d,\"maxUs\":%d}",
+                    name, count, failures, meanMicros,
+                    p50Micros, p90Micros, p99Micros, maxMicros);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%s: count=%d, failures=%d, mean=%dus, p50=%dus, p90=%dus, p99=%dus, max=%dus",
+                    name, count, failures, meanMicros,
+                    p50Micros, p90Micros, p99Micros, maxMicros);
+        }
+    }
+}
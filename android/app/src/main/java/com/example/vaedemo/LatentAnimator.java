@@ -0,0 +1,292 @@
+package com.example.vaedemo;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.gms.tasks.CancellationTokenSource;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams the frames of an interpolation between two latent codes at a target frame rate.
+ * Interpolating frame N+1 overlaps decoding frame N, at most PIPELINE_DEPTH frames are in flight
+ * between the decoder and the consumer, and frames that are already overdue when their turn to
+ * be decoded comes are skipped to hold the frame rate.
+ */
+class LatentAnimator {
+    private static final int PIPELINE_DEPTH = 2;
+
+    interface FrameListener {
+        /**
+         * Called on the callback executor for every rendered frame, in order. The next frames are
+         * held back until this returns.
+         */
+        void onFrame(int index, Bitmap frame);
+    }
+
+    static class Stats {
+        int frameCount = 0;
+        int renderedFrames = 0;
+        int skippedFrames = 0;
+        int decodedFrames = 0;
+        int deliveredFrames = 0;
+        long elapsedNanos = 0;
+        long totalDecodeNanos = 0;
+        long maxDecodeNanos = 0;
+        long totalLatenessNanos = 0;
+        long maxLatenessNanos = 0;
+
+        float getAchievedFps() {
+            return elapsedNanos > 0 ? renderedFrames * 1e9f / elapsedNanos : 0;
+        }
+
+        /**
+         * Mean time from submitting a frame to the decoder until it is decoded, before the frame
+         * is held back to its time
+         */
+        float getMeanDecodeMillis() {
+            return decodedFrames > 0 ? totalDecodeNanos / 1e6f / decodedFrames : 0;
+        }
+
+        /**
+         * Mean delay of handing a frame to the consumer past its time at the target frame rate
+         */
+        float getMeanLatenessMillis() {
+            return deliveredFrames > 0 ? totalLatenessNanos / 1e6f / deliveredFrames : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d/%d frames rendered, %d skipped, %.1f fps, decode mean %.2fms " +
+                            "max %.2fms, late mean %.2fms max %.2fms",
+                    renderedFrames, frameCount, skippedFrames, getAchievedFps(),
+                    getMeanDecodeMillis(), maxDecodeNanos / 1e6f,
+                    getMeanLatenessMillis(), maxLatenessNanos / 1e6f);
+        }
+    }
+
+    private final VaeModel vaeModel;
+    private final Executor callbackExecutor;
+    private Animation animation = null;
+
+    LatentAnimator(VaeModel vaeModel, Executor callbackExecutor) {
+        this.vaeModel = vaeModel;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * A copy of the latent codes with one dimension set to the given value, e.g. to sweep
+     * the width dimension from -5 to 5
+     */
+    static float[] withDimension(float[] latentCodes, int dimension, float value) {
+        float[] result = latentCodes.clone();
+        result[dimension] = value;
+        return result;
+    }
+
+    /**
+     * Animate from one latent code to the other in frameCount frames, both ends included. The
+     * returned Task completes with the statistics once the last frame was consumed, or is
+     * canceled by cancel().
+     */
+    synchronized Task<Stats> animate(float[] from, float[] to, int label, int frameCount,
+                                     float targetFps, FrameListener listener) {
+        if (from.length != to.length || frameCount <= 0 || targetFps <= 0) {
+            throw new IllegalArgumentException("Invalid animation parameters");
+        }
+        if (animation != null && !animation.completion.getTask().isComplete()) {
+            throw new IllegalStateException("An animation is already running");
+        }
+
+        animation = new Animation(from.clone(), to.clone(), label, frameCount, targetFps, listener);
+        animation.start();
+        return animation.completion.getTask();
+    }
+
+    synchronized void cancel() {
+        if (animation != null) {
+            animation.cancel();
+        }
+    }
+
+    /**
+     * State of one animation. Apart from cancellation, it is only touched on its coordinator
+     * thread.
+     */
+    private class Animation {
+        private final float[] from;
+        private final float[] to;
+        private final int label;
+        private final int frameCount;
+        private final float targetFps;
+        private final FrameListener listener;
+
+        private final ScheduledExecutorService coordinator =
+                Executors.newSingleThreadScheduledExecutor();
+        private final CancellationTokenSource cancellation = new CancellationTokenSource();
+        private final TaskCompletionSource<Stats> completion =
+                new TaskCompletionSource<>(cancellation.getToken());
+        private final Stats stats = new Stats();
+
+        private long startTime = 0;
+        private int nextFrame = 0;
+        private int inFlight = 0;
+
+        Animation(float[] from, float[] to, int label, int frameCount, float targetFps,
+                  FrameListener listener) {
+            this.from = from;
+            this.to = to;
+            this.label = label;
+            this.frameCount = frameCount;
+            this.targetFps = targetFps;
+            this.listener = listener;
+            stats.frameCount = frameCount;
+        }
+
+        void start() {
+            coordinator.execute(new Runnable() {
+                @Override
+                public void run() {
+                    startTime = System.nanoTime();
+                    pump();
+                }
+            });
+        }
+
+        /**
+         * Stop submitting frames. The coordinator stops once the frames in flight are drained.
+         */
+        void cancel() {
+            cancellation.cancel();
+            try {
+                coordinator.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        pump();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The animation already finished
+            }
+        }
+
+        private boolean isCanceled() {
+            return cancellation.getToken().isCancellationRequested();
+        }
+
+        /**
+         * Submit frames until the pipeline is full, skipping the frames that are already overdue
+         */
+        private void pump() {
+            while (!isCanceled() && inFlight < PIPELINE_DEPTH && nextFrame < frameCount) {
+                int index = nextFrame;
+                int dueFrame = (int) ((System.nanoTime() - startTime) * targetFps / 1e9);
+                if (dueFrame > index) {
+                    int target = Math.min(dueFrame, frameCount - 1);
+                    stats.skippedFrames += target - index;
+                    index = target;
+                }
+                nextFrame = index + 1;
+                inFlight++;
+                submit(index);
+            }
+
+            if (inFlight == 0 && (isCanceled() || nextFrame >= frameCount)) {
+                stats.elapsedNanos = System.nanoTime() - startTime;
+                completion.trySetResult(stats);
+                coordinator.shutdown();
+            }
+        }
+
+        private void submit(final int index) {
+            final long submitTime = System.nanoTime();
+            vaeModel.decodeAsync(interpolate(index), label).addOnCompleteListener(coordinator,
+                    new OnCompleteListener<Bitmap>() {
+                        @Override
+                        public void onComplete(@NonNull Task<Bitmap> task) {
+                            onDecoded(index, submitTime, task);
+                        }
+                    });
+        }
+
+        private float[] interpolate(int index) {
+            float t = frameCount > 1 ? (float) index / (frameCount - 1) : 1f;
+            float[] latentCodes = new float[from.length];
+            for (int i = 0; i < latentCodes.length; i++) {
+                latentCodes[i] = from[i] + (to[i] - from[i]) * t;
+            }
+            return latentCodes;
+        }
+
+        private void onDecoded(final int index, final long submitTime, Task<Bitmap> task) {
+            if (!task.isSuccessful()) {
+                completion.trySetException(task.getException());
+                cancellation.cancel();
+            }
+            if (isCanceled()) {
+                inFlight--;
+                pump();
+                return;
+            }
+
+            // Measured before the frame is held back, so it is the decode latency alone
+            long decodedTime = System.nanoTime();
+            stats.totalDecodeNanos += decodedTime - submitTime;
+            stats.maxDecodeNanos = Math.max(stats.maxDecodeNanos, decodedTime - submitTime);
+            stats.decodedFrames++;
+
+            final Bitmap frame = task.getResult();
+            final long dueTime = startTime + (long) (index * 1e9 / targetFps);
+            Runnable deliver = new Runnable() {
+                @Override
+                public void run() {
+                    deliver(index, dueTime, frame);
+                }
+            };
+
+            // Do not show a frame before its time, to hold the target frame rate
+            long delay = dueTime - decodedTime;
+            if (delay > 0) {
+                coordinator.schedule(deliver, delay, TimeUnit.NANOSECONDS);
+            } else {
+                deliver.run();
+            }
+        }
+
+        private void deliver(final int index, long dueTime, final Bitmap frame) {
+            long lateness = Math.max(0, System.nanoTime() - dueTime);
+            stats.totalLatenessNanos += lateness;
+            stats.maxLatenessNanos = Math.max(stats.maxLatenessNanos, lateness);
+            stats.deliveredFrames++;
+
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCanceled()) {
+                        listener.onFrame(index, frame);
+                    }
+                    coordinator.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            inFlight--;
+                            if (!isCanceled()) {
+                                stats.renderedFrames++;
+                            }
+                            pump();
+                        }
+                    });
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.vaedemo;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps at most one running and one pending request for a pipeline. A request submitted while
+ * another one is running replaces the pending request, so the newest input is always processed
+ * once the running request completes and intermediate inputs are coalesced away.
+ */
+class LatestRequestScheduler {
+    /**
+     * A unit of work in the pipeline. Requests read their input when they are started rather than
+     * when they are submitted, so a coalesced request always sees the latest state.
+     */
+    interface Request {
+        /**
+         * Start the request, returning the Task to wait for, or null if there is nothing to do.
+         */
+        Task<?> start();
+    }
+
+    private final String name;
+    private final Executor callbackExecutor;
+
+    private boolean isRunning = false;
+    private Request pendingRequest = null;
+
+    private long submittedCount = 0;
+    private long executedCount = 0;
+    private long coalescedCount = 0;
+
+    private final OnCompleteListener<Object> completeListener = new OnCompleteListener<Object>() {
+        @Override
+        public void onComplete(@NonNull Task<Object> task) {
+            startPendingRequest();
+        }
+    };
+
+    /**
+     * @param callbackExecutor executor on which pending requests are started once the running
+     *                         one completes, typically the main thread
+     */
+    LatestRequestScheduler(String name, Executor callbackExecutor) {
+        this.name = name;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    void submit(Request request) {
+        synchronized (this) {
+            submittedCount++;
+            if (isRunning) {
+                if (pendingRequest != null) {
+                    coalescedCount++;
+                }
+                pendingRequest = request;
+                return;
+            }
+            isRunning = true;
+        }
+
+        start(request);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void start(Request request) {
+        Task<?> task = null;
+        synchronized (this) {
+            executedCount++;
+        }
+        try {
+            task = request.start();
+        } finally {
+            if (task == null) {
+                startPendingRequest();
+            }
+        }
+
+        if (task != null) {
+            ((Task<Object>) task).addOnCompleteListener(callbackExecutor, completeListener);
+        }
+    }
+
+    private void startPendingRequest() {
+        Request request;
+        synchronized (this) {
+            request = pendingRequest;
+            pendingRequest = null;
+            if (request == null) {
+                isRunning = false;
+                return;
+            }
+        }
+
+        start(request);
+    }
+
+    synchronized long getSubmittedCount() {
+        return submittedCount;
+    }
+
+    synchronized long getExecutedCount() {
+        return executedCount;
+    }
+
+    synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%s: submitted=%d, executed=%d, coalesced=%d",
+                name, submittedCount, executedCount, coalescedCount);
+    }
+}
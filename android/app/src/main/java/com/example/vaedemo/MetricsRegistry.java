@@ -0,0 +1,88 @@
+package com.example.vaedemo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process registry of the per-stage latency histograms. Stages look their histogram up once
+ * and keep it, so recording never touches the registry.
+ */
+class MetricsRegistry {
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms =
+            new ConcurrentHashMap<>();
+
+    /**
+     * The registry shared by the models of this process
+     */
+    static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * The histogram registered under the name, created on first use
+     */
+    LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram(name);
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    void reset() {
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Snapshots of all histograms, sorted by name
+     */
+    List<LatencyHistogram.Snapshot> snapshot() {
+        List<LatencyHistogram.Snapshot> snapshots = new ArrayList<>();
+        for (LatencyHistogram histogram : histograms.values()) {
+            snapshots.add(histogram.snapshot());
+        }
+        Collections.sort(snapshots, new Comparator<LatencyHistogram.Snapshot>() {
+            @Override
+            public int compare(LatencyHistogram.Snapshot a, LatencyHistogram.Snapshot b) {
+                return a.name.compareTo(b.name);
+            }
+        });
+        return snapshots;
+    }
+
+    /**
+     * One line per stage, for logcat
+     */
+    String toText() {
+        StringBuilder text = new StringBuilder();
+        for (LatencyHistogram.Snapshot snapshot : snapshot()) {
+            text.append(snapshot).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * A JSON array of the stage snapshots, for comparing builds and devices offline
+     */
+    String toJson() {
+        StringBuilder json = new StringBuilder("[");
+        for (LatencyHistogram.Snapshot snapshot : snapshot()) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append(snapshot.toJson());
+        }
+        return json.append(']').toString();
+    }
+}
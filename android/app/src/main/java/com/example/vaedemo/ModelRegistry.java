@@ -0,0 +1,554 @@
+package com.example.vaedemo;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.content.res.Configuration;
+import android.util.Log;
+
+import com.example.vaedemo.core.ModelManifest;
+import com.google.android.gms.tasks.Task;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Process-wide registry of the TF Lite models. Every model file is memory-mapped once and shared
+ * by a reference counted pool of interpreters, which consumers acquire when they load and
+ * release when they close. The last release closes the interpreters and drops the mapping of an
+ * asset.
+ *
+ * The models come from the newest versioned bundle under files/models, see ModelManifest, and
+ * from the assets for the files it does not list. The files of a bundle are mapped and checked
+ * against their checksums once, outside the registry lock, and the pools use these mappings.
+ * updateModels() hot-swaps a newer bundle in: the new interpreters are built and warmed up on a
+ * background thread and switched in for all models at once, while requests in flight finish on
+ * the previous version.
+ *
+ * On onTrimMemory() the pools close their spare idle interpreters and keep one each, and only
+ * close them all when the process is about to be killed. The models stay mapped, so the next
+ * request rebuilds an interpreter without reading the file or tuning again.
+ */
+class ModelRegistry {
+    private static final String TAG = "ModelRegistry";
+    private static final String PROFILE_FILE = "interpreters.properties";
+    private static final String BUNDLE_DIRECTORY = "models";
+    private static final int DEFAULT_POOL_SIZE = 1;
+    private static final int WARM_UP_RUNS = 2;
+
+    private static ModelRegistry instance = null;
+
+    private final Context context;
+    private final Map<String, InterpreterPool> pools = new HashMap<>();
+    private final Map<String, Integer> poolSizes = new HashMap<>();
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private final LatencyHistogram swapLatency = metrics.histogram("registry.swap");
+    private AutoTuner tuner = null;
+
+    /**
+     * The bundle the models are loaded from, null for the assets, picked on the first acquire()
+     */
+    private ModelManifest bundle = null;
+
+    /**
+     * The mappings of the bundle files, verified against their checksums
+     */
+    private Map<String, ByteBuffer> bundleModels = null;
+    private boolean isBundleSelected = false;
+
+    /**
+     * Held while the first bundle is selected, so its files are hashed once and not under the
+     * registry lock
+     */
+    private final Object selectLock = new Object();
+
+    /**
+     * The newest bundle that could not be swapped in, see stampOf(), so it is not built again
+     * until its files change, e.g. once a copy still in progress completes
+     */
+    private String rejectedStamp = null;
+
+    /**
+     * Bumped before and after a swap switches the pools, so it is odd while they are switched
+     */
+    private volatile int swapSequence = 0;
+
+    /**
+     * Builds the interpreters of new versions in the background
+     */
+    private final StageExecutor loader = new StageExecutor("ModelLoader", 1);
+
+    /**
+     * Estimated native bytes released by trimMemory() since the app started
+     */
+    private long trimmedBytes = 0;
+
+    private ModelRegistry(Context context) {
+        this.context = context;
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                trimMemory(level);
+            }
+
+            @Override
+            public void onLowMemory() {
+                trimMemory(TRIM_MEMORY_COMPLETE);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration configuration) {
+            }
+        });
+    }
+
+    static synchronized ModelRegistry getInstance(Context context) {
+        if (instance == null) {
+            instance = new ModelRegistry(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Configure how many interpreters of the model may run in parallel. Pools only grow, so the
+     * largest size asked for by any consumer wins.
+     */
+    synchronized void setPoolSize(String modelFile, int poolSize) {
+        Integer current = poolSizes.get(modelFile);
+        poolSizes.put(modelFile, current != null ? Math.max(current, poolSize) : poolSize);
+
+        InterpreterPool pool = pools.get(modelFile);
+        if (pool != null) {
+            pool.setPoolSize(poolSize);
+        }
+    }
+
+    /**
+     * The interpreter pool of the model, mapping the file on first use. Every acquire() must
+     * be paired with a release().
+     */
+    InterpreterPool acquire(String modelFile) throws IOException {
+        selectBundle();
+        while (true) {
+            ModelManifest manifest;
+            Map<String, ByteBuffer> models;
+            Integer poolSize;
+            synchronized (this) {
+                InterpreterPool pool = pools.get(modelFile);
+                if (pool != null) {
+                    pool.references++;
+                    return pool;
+                }
+                manifest = bundle;
+                models = bundleModels;
+                poolSize = poolSizes.get(modelFile);
+            }
+
+            // Mapping and hashing an asset do not hold up the other consumers
+            InterpreterPool created = createPool(modelFile, manifest, models,
+                    poolSize != null ? poolSize : DEFAULT_POOL_SIZE);
+            synchronized (this) {
+                if (pools.get(modelFile) == null && bundle == manifest) {
+                    poolSize = poolSizes.get(modelFile);
+                    if (poolSize != null) {
+                        created.setPoolSize(poolSize);
+                    }
+                    pools.put(modelFile, created);
+                    created.references++;
+                    return created;
+                }
+            }
+            // Another consumer created it first, or a swap switched the bundle meanwhile
+            created.close();
+        }
+    }
+
+    synchronized void release(InterpreterPool pool) {
+        if (pools.get(pool.getModelName()) != pool || pool.references <= 0) {
+            throw new IllegalStateException(pool.getModelName() + " is not acquired");
+        }
+        if (--pool.references == 0) {
+            pools.remove(pool.getModelName());
+            pool.close();
+        }
+    }
+
+    /**
+     * Version of the models in use, 0 for the ones bundled with the app
+     */
+    synchronized int getVersion() {
+        return bundle != null ? bundle.getVersion() : 0;
+    }
+
+    /**
+     * Changes whenever a swap switches the pools to another version, and is odd while it does.
+     * A consumer that borrows from several pools for one request reads it before and after, and
+     * borrows again if a swap got in between, so the request runs on one version throughout.
+     */
+    int getSwapSequence() {
+        return swapSequence;
+    }
+
+    /**
+     * Swap in the newest bundle under files/models if it is newer than the version in use. The
+     * pools keep serving the current version until the new one is built, checked and warmed up,
+     * and a bundle that fails is dropped without touching them, and not tried again until its
+     * files change. Completes with the version in use.
+     */
+    Task<Integer> updateModels() {
+        return loader.call(new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                // Pick the bundle to load from, as the first acquire() would
+                selectBundle();
+
+                ModelManifest latest = ModelManifest.findLatest(getBundleRoot());
+                // Taken before the files are read, so a copy that completes meanwhile is retried
+                String stamp = latest != null ? stampOf(latest) : null;
+                synchronized (ModelRegistry.this) {
+                    if (latest == null || latest.getVersion() <= getVersion()
+                            || stamp.equals(rejectedStamp)) {
+                        return getVersion();
+                    }
+                }
+
+                long startTime = System.nanoTime();
+                try {
+                    swapTo(latest);
+                } catch (IOException | RuntimeException e) {
+                    synchronized (ModelRegistry.this) {
+                        rejectedStamp = stamp;
+                    }
+                    swapLatency.recordFailure();
+                    throw e;
+                }
+                swapLatency.recordSince(startTime);
+                Log.i(TAG, "Swapped in model version " + latest.getVersion());
+                return latest.getVersion();
+            }
+        });
+    }
+
+    private void swapTo(ModelManifest manifest) throws IOException {
+        // Hashed outside the registry lock, and the new interpreters use these mappings
+        Map<String, ByteBuffer> models = mapBundle(manifest);
+
+        Map<InterpreterPool, InterpreterPool.Generation> generations = new HashMap<>();
+        while (true) {
+            List<InterpreterPool> missing = new ArrayList<>();
+            synchronized (this) {
+                for (InterpreterPool pool : pools.values()) {
+                    if (manifest.contains(pool.getModelName())
+                            && !generations.containsKey(pool)) {
+                        missing.add(pool);
+                    }
+                }
+                if (missing.isEmpty()) {
+                    activate(manifest, models, generations);
+                    return;
+                }
+            }
+
+            // Build the new interpreters next to the ones in use, which keep running. A pool
+            // acquired from the previous bundle meanwhile is built on the next pass.
+            try {
+                for (InterpreterPool pool : missing) {
+                    String modelFile = pool.getModelName();
+                    InterpreterPool.Generation generation = pool.build(manifest.getVersion(),
+                            createFactory(models.get(modelFile), modelFile, manifest),
+                            WARM_UP_RUNS);
+                    generations.put(pool, generation);
+                    if (!pool.isCompatible(generation)) {
+                        throw new IOException(modelFile + " of model version " +
+                                manifest.getVersion() +
+                                " changes its tensors, restart to load it");
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                for (Map.Entry<InterpreterPool, InterpreterPool.Generation> entry :
+                        generations.entrySet()) {
+                    entry.getKey().discard(entry.getValue());
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Switch every model at once. Only called with the registry lock held.
+     */
+    private void activate(ModelManifest manifest, Map<String, ByteBuffer> models,
+                          Map<InterpreterPool, InterpreterPool.Generation> generations) {
+        swapSequence++;
+        try {
+            for (Map.Entry<InterpreterPool, InterpreterPool.Generation> entry :
+                    generations.entrySet()) {
+                InterpreterPool pool = entry.getKey();
+                if (pools.get(pool.getModelName()) == pool) {
+                    pool.activate(entry.getValue());
+                } else {
+                    // Released while the new version was built
+                    pool.discard(entry.getValue());
+                }
+            }
+            bundle = manifest;
+            bundleModels = models;
+        } finally {
+            swapSequence++;
+        }
+    }
+
+    /**
+     * Release idle interpreters for an onTrimMemory() level. From running low up to the app
+     * being hidden or in the background, each pool keeps one warm interpreter, so the first
+     * stroke after coming back does not pay for a cold rebuild. Only TRIM_MEMORY_COMPLETE and
+     * onLowMemory() close them all. Returns the estimated native bytes released.
+     */
+    long trimMemory(int level) {
+        int keep;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            keep = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            keep = 1;
+        } else {
+            return 0;
+        }
+
+        long released = 0;
+        synchronized (this) {
+            for (InterpreterPool pool : pools.values()) {
+                released += pool.trim(keep);
+            }
+            trimmedBytes += released;
+        }
+        if (released > 0) {
+            Log.i(TAG, String.format(Locale.US, "Trim level %d released %dKB%n%s", level,
+                    released / 1024, getFootprint()));
+        }
+        return released;
+    }
+
+    /**
+     * The memory of every model: its mapping, configuration and the estimated native bytes of
+     * each interpreter
+     */
+    synchronized String getFootprint() {
+        long mappedBytes = 0;
+        long nativeBytes = 0;
+        StringBuilder models = new StringBuilder();
+        for (InterpreterPool pool : pools.values()) {
+            mappedBytes += pool.getModelBytes();
+            nativeBytes += pool.getNativeBytes();
+            models.append("\n  ").append(pool.getFootprint().replace("\n", "\n  "));
+        }
+        return String.format(Locale.US, "Models: mapped=%dKB, native=%dKB, trimmed=%dKB",
+                mappedBytes / 1024, nativeBytes / 1024, trimmedBytes / 1024) + models;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder text = new StringBuilder("ModelRegistry: version=").append(getVersion());
+        for (InterpreterPool pool : pools.values()) {
+            text.append("\n  ").append(pool).append(", references=").append(pool.references);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Load the models from the newest bundle whose files match their checksums, or from the
+     * assets if there is none. Only the first call picks it, the others wait for it.
+     */
+    private void selectBundle() {
+        synchronized (selectLock) {
+            synchronized (this) {
+                if (isBundleSelected) {
+                    return;
+                }
+            }
+
+            ModelManifest latest = ModelManifest.findLatest(getBundleRoot());
+            String stamp = null;
+            Map<String, ByteBuffer> models = null;
+            if (latest != null) {
+                stamp = stampOf(latest);
+                try {
+                    models = mapBundle(latest);
+                    Log.i(TAG, "Loading model version " + latest.getVersion());
+                } catch (IOException e) {
+                    Log.w(TAG, "Loading the bundled models, model version " +
+                            latest.getVersion() + " is not valid.", e);
+                }
+            }
+
+            synchronized (this) {
+                isBundleSelected = true;
+                if (models != null) {
+                    bundle = latest;
+                    bundleModels = models;
+                } else if (latest != null) {
+                    rejectedStamp = stamp;
+                }
+            }
+        }
+    }
+
+    /**
+     * The version and the size and modification time of every file of the bundle. A bundle
+     * copied in place rather than moved may be found before its files are complete, and its
+     * stamp changes as they are written.
+     */
+    private static String stampOf(ModelManifest manifest) {
+        StringBuilder stamp = new StringBuilder().append(manifest.getVersion());
+        for (String modelFile : manifest.getFiles()) {
+            File file = manifest.getFile(modelFile);
+            stamp.append(',').append(file.length()).append('@').append(file.lastModified());
+        }
+        return stamp.toString();
+    }
+
+    private File getBundleRoot() {
+        return new File(context.getFilesDir(), BUNDLE_DIRECTORY);
+    }
+
+    /**
+     * Map every file of the bundle and check it against the manifest
+     */
+    private static Map<String, ByteBuffer> mapBundle(ModelManifest manifest) throws IOException {
+        Map<String, ByteBuffer> models = new HashMap<>();
+        for (String modelFile : manifest.getFiles()) {
+            ByteBuffer model = loadModelFile(manifest.getFile(modelFile));
+            manifest.verifyChecksum(modelFile, model);
+            models.put(modelFile, model);
+        }
+        return models;
+    }
+
+    /**
+     * @param manifest the bundle to load the model from, or null for the assets
+     * @param models   the verified mappings of the bundle files
+     */
+    private InterpreterPool createPool(String modelFile, ModelManifest manifest,
+                                       Map<String, ByteBuffer> models, int poolSize)
+            throws IOException {
+        // Load the TF Lite model once, every interpreter of the pool shares the mapping
+        InterpreterPool.Factory factory;
+        int version;
+        if (manifest != null && manifest.contains(modelFile)) {
+            factory = createFactory(models.get(modelFile), modelFile, manifest);
+            version = manifest.getVersion();
+        } else {
+            factory = createFactory(loadModelFile(context.getAssets(), modelFile), modelFile,
+                    null);
+            version = 0;
+        }
+
+        return new InterpreterPool(modelFile, version, poolSize, factory,
+                metrics.histogram("pool." + modelFile + ".wait"),
+                metrics.histogram("pool." + modelFile + ".cold"),
+                metrics.histogram("pool." + modelFile + ".warm"),
+                metrics.histogram("pool." + modelFile + ".reload"));
+    }
+
+    /**
+     * @param manifest the bundle of the model, whose input shapes every interpreter is checked
+     *                 against, or null for an asset
+     */
+    private InterpreterPool.Factory createFactory(final ByteBuffer model, final String modelFile,
+                                                  final ModelManifest manifest)
+            throws IOException {
+        // The mapping of a bundled file was verified against its checksum by mapBundle()
+        final String modelHash = manifest != null ?
+                manifest.getChecksum(modelFile) : AutoTuner.hash(model);
+        final AutoTuner tuner = getTuner();
+
+        return new InterpreterPool.Factory() {
+            /**
+             * Tuned once, so the later interpreters do not wait for the tuner while it
+             * benchmarks another model
+             */
+            private InterpreterConfig config = null;
+
+            @Override
+            public Interpreter create() throws IOException {
+                InterpreterConfig tuned;
+                synchronized (this) {
+                    if (config == null) {
+                        // Pick the fastest configuration of the model on this device
+                        config = InterpreterFactory.tune(model, modelHash, modelFile, tuner);
+                    }
+                    tuned = config;
+                }
+
+                Interpreter interpreter = InterpreterFactory.create(model, tuned);
+                if (manifest != null) {
+                    try {
+                        manifest.verifyInputShapes(modelFile, getInputShapes(interpreter));
+                    } catch (IOException e) {
+                        interpreter.close();
+                        throw e;
+                    }
+                }
+                return interpreter;
+            }
+
+            @Override
+            public long getModelBytes() {
+                return model.capacity();
+            }
+
+            @Override
+            public synchronized InterpreterConfig getConfig() {
+                return config;
+            }
+        };
+    }
+
+    private static int[][] getInputShapes(Interpreter interpreter) {
+        int[][] shapes = new int[interpreter.getInputTensorCount()][];
+        for (int i = 0; i < shapes.length; i++) {
+            shapes[i] = interpreter.getInputTensor(i).shape();
+        }
+        return shapes;
+    }
+
+    private synchronized AutoTuner getTuner() throws IOException {
+        if (tuner == null) {
+            tuner = new AutoTuner(new File(context.getFilesDir(), PROFILE_FILE),
+                    InterpreterFactory.getDeviceId());
+        }
+        return tuner;
+    }
+
+    private static ByteBuffer loadModelFile(AssetManager assetManager, String modelFile)
+            throws IOException {
+        AssetFileDescriptor fileDescriptor = assetManager.openFd(modelFile);
+        FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
+        FileChannel fileChannel = inputStream.getChannel();
+        long startOffset = fileDescriptor.getStartOffset();
+        long declaredLength = fileDescriptor.getDeclaredLength();
+        return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+    }
+
+    private static ByteBuffer loadModelFile(File modelFile) throws IOException {
+        FileInputStream inputStream = new FileInputStream(modelFile);
+        try {
+            FileChannel fileChannel = inputStream.getChannel();
+            return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+        } finally {
+            // The mapping stays valid once the file is closed
+            inputStream.close();
+        }
+    }
+}
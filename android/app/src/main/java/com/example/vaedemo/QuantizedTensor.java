@@ -0,0 +1,141 @@
+package com.example.vaedemo;
+
+import com.example.vaedemo.core.Quantization;
+
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * The float view of a TF Lite tensor that may be quantized. The int8 and uint8 tensors of the
+ * quantized model variants convert their floats through the Quantization of vaecore, shared with
+ * the batch tool. Float32 tensors need no conversion, which lets callers feed floats to every
+ * variant alike.
+ */
+final class QuantizedTensor {
+    /**
+     * Null for float32 tensors
+     */
+    private final Quantization quantization;
+
+    QuantizedTensor(DataType dataType, float scale, int zeroPoint) {
+        quantization = dataType == DataType.INT8 || dataType == DataType.UINT8 ?
+                new Quantization(dataType == DataType.INT8, scale, zeroPoint) : null;
+    }
+
+    static QuantizedTensor of(Tensor tensor) {
+        Tensor.QuantizationParams params = tensor.quantizationParams();
+        return new QuantizedTensor(tensor.dataType(), params.getScale(), params.getZeroPoint());
+    }
+
+    boolean isQuantized() {
+        return quantization != null;
+    }
+
+    byte quantize(float value) {
+        return quantization.quantize(value);
+    }
+
+    float dequantize(byte value) {
+        return quantization.dequantize(value);
+    }
+
+    /**
+     * Quantize the whole float buffer into the tensor buffer, by absolute index
+     */
+    void quantize(FloatBuffer source, ByteBuffer target) {
+        quantization.quantize(source, target);
+    }
+
+    /**
+     * Dequantize the tensor buffer into the whole float buffer, by absolute index
+     */
+    void dequantize(ByteBuffer source, FloatBuffer target) {
+        quantization.dequantize(source, target);
+    }
+
+    /**
+     * Quantize a float array of any rank, e.g. float[1][28][28][11], into the buffer from its
+     * position on
+     */
+    void quantize(Object floats, ByteBuffer target) {
+        if (floats instanceof float[]) {
+            for (float value : (float[]) floats) {
+                target.put(quantize(value));
+            }
+        } else {
+            for (Object row : (Object[]) floats) {
+                quantize(row, target);
+            }
+        }
+    }
+
+    /**
+     * Dequantize the buffer from its position on into a float array of any rank
+     */
+    void dequantize(ByteBuffer source, Object floats) {
+        if (floats instanceof float[]) {
+            float[] values = (float[]) floats;
+            for (int i = 0; i < values.length; i++) {
+                values[i] = dequantize(source.get());
+            }
+        } else {
+            for (Object row : (Object[]) floats) {
+                dequantize(source, row);
+            }
+        }
+    }
+
+    /**
+     * Run a single input, single output model on float arrays, quantizing the input and
+     * dequantizing the output where its tensors are quantized. Float models run as they are.
+     */
+    static void run(Interpreter interpreter, Object input, Object output) {
+        QuantizedTensor inputTensor = of(interpreter.getInputTensor(0));
+        QuantizedTensor outputTensor = of(interpreter.getOutputTensor(0));
+        if (!inputTensor.isQuantized() && !outputTensor.isQuantized()) {
+            interpreter.run(input, output);
+            return;
+        }
+
+        Object tensorInput = input;
+        if (inputTensor.isQuantized()) {
+            ByteBuffer buffer = allocate(countElements(input));
+            inputTensor.quantize(input, buffer);
+            buffer.rewind();
+            tensorInput = buffer;
+        }
+        ByteBuffer quantizedOutput = null;
+        if (outputTensor.isQuantized()) {
+            quantizedOutput = allocate(countElements(output));
+        }
+
+        interpreter.run(tensorInput, quantizedOutput != null ? quantizedOutput : output);
+        if (quantizedOutput != null) {
+            quantizedOutput.rewind();
+            outputTensor.dequantize(quantizedOutput, output);
+        }
+    }
+
+    /**
+     * Number of floats in an array of any rank
+     */
+    static int countElements(Object floats) {
+        if (floats instanceof float[]) {
+            return ((float[]) floats).length;
+        }
+        int count = 0;
+        for (Object row : (Object[]) floats) {
+            count += countElements(row);
+        }
+        return count;
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    }
+}
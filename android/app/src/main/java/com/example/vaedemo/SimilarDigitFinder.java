@@ -0,0 +1,114 @@
+package com.example.vaedemo;
+
+import android.content.Context;
+
+import com.example.vaedemo.core.LatentIndex;
+import com.google.android.gms.tasks.Task;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+
+/**
+ * Finds the MNIST training digits nearest to an encoded drawing, in the latent index asset the
+ * batch tool builds from the encoded training set. The index loads and is searched on its own
+ * stage thread, so neither blocks the encode and decode stages.
+ */
+class SimilarDigitFinder {
+    private static final String INDEX_FILE = "mnist_index.bin";
+    private static final int STAGE_QUEUE_CAPACITY = 2;
+
+    /**
+     * IVF lists scanned per label, 4 of the 64 the batch tool builds by default. On the
+     * synthetic clustered codes of LatentIndexBenchmark (60000 x 50, ivf-64-4) this kept a
+     * recall@10 of about 0.98 against the exact search; it was not measured on real MNIST codes.
+     */
+    private static final int PROBE_COUNT = 4;
+
+    /**
+     * The nearest training digits, nearest first
+     */
+    static final class Neighbours {
+        final int[] ids;
+        final float[][] latentCodes;
+        final int[] labels;
+
+        Neighbours(int[] ids, float[][] latentCodes, int[] labels) {
+            this.ids = ids;
+            this.latentCodes = latentCodes;
+            this.labels = labels;
+        }
+    }
+
+    private final Context context;
+    private LatentIndex index = null;
+    volatile boolean isInitialized = false;
+
+    private final StageExecutor executor = new StageExecutor("Similar", STAGE_QUEUE_CAPACITY);
+
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private final LatencyHistogram loadLatency = metrics.histogram("similar.load");
+    private final LatencyHistogram searchLatency = metrics.histogram("similar.search");
+
+    SimilarDigitFinder(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Load the index asset. The returned Task fails if the app was built without it.
+     */
+    Task<Void> initialize() {
+        return executor.call(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                ensureInitialized();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Load the index if it is not loaded yet. Only runs on the stage thread.
+     */
+    private void ensureInitialized() throws IOException {
+        if (isInitialized) {
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        try (InputStream input = context.getAssets().open(INDEX_FILE)) {
+            index = LatentIndex.read(input);
+        }
+        loadLatency.recordSince(startTime);
+        isInitialized = true;
+    }
+
+    /**
+     * Find the count training digits of the label nearest to the latent codes
+     */
+    Task<Neighbours> findAsync(final float[] latentCodes, final int label, final int count) {
+        return executor.call(searchLatency.timed(new Callable<Neighbours>() {
+            @Override
+            public Neighbours call() throws IOException {
+                ensureInitialized();
+
+                int[] ids = new int[count];
+                float[] distances = new float[count];
+                int found = index.search(latentCodes, label, count, PROBE_COUNT, ids, distances);
+
+                Neighbours neighbours = new Neighbours(new int[found],
+                        new float[found][index.getDimension()], new int[found]);
+                for (int i = 0; i < found; i++) {
+                    neighbours.ids[i] = ids[i];
+                    index.getLatentCode(ids[i], neighbours.latentCodes[i]);
+                    neighbours.labels[i] = index.getLabel(ids[i]);
+                }
+                return neighbours;
+            }
+        }));
+    }
+
+    void close() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,241 @@
+package com.example.vaedemo;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.gms.tasks.CancellationToken;
+import com.google.android.gms.tasks.CancellationTokenSource;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.SuccessContinuation;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+/**
+ * Classifies, and optionally encodes, the drawing speculatively while the user is still drawing,
+ * so that the classify -> encode -> decode chain has a head start when the finger is lifted.
+ * Speculation is throttled to one start per interval, and starting a new one cancels the
+ * superseded one through its CancellationToken. commit() reuses the latest speculation if the
+ * input has not changed since, and otherwise cancels it and runs the final input.
+ *
+ * Only used from the main thread, where the Task listeners run as well through the callback
+ * executor. The encode stage is started straight from the classify stage thread, without a hop
+ * through the main thread.
+ */
+class SpeculativeClassifier {
+    /**
+     * The stages to run, typically DigitClassifier.classifyAsync() and VaeModel.encodeAsync()
+     */
+    interface Stages {
+        Task<Integer> classify(float[] pixels, CancellationToken token);
+
+        /**
+         * Encode the pixels, or return a Task of null if the encoder cannot run yet
+         */
+        Task<float[]> encode(float[] pixels, int label, CancellationToken token);
+    }
+
+    static class Result {
+        final int label;
+
+        /**
+         * The latent codes of the drawing, or null if it was not encoded
+         */
+        final float[] latentCodes;
+
+        Result(int label, float[] latentCodes) {
+            this.label = label;
+            this.latentCodes = latentCodes;
+        }
+    }
+
+    private final Stages stages;
+    private final long intervalNanos;
+    private final boolean isEncoding;
+    private final Executor callbackExecutor;
+
+    private float[] speculatedPixels = null;
+    private Task<Result> speculation = null;
+    private CancellationTokenSource cancellation = null;
+    private long speculationStartTime = 0;
+    private long speculationEndTime = 0;
+
+    private long speculatedCount = 0;
+    private long reusedCount = 0;
+    private long discardedCount = 0;
+    private long savedNanos = 0;
+    private long discardedNanos = 0;
+
+    /**
+     * Time saved after finger-up by a reused speculation, compute spent on discarded ones and the
+     * time from finger-up to the committed result
+     */
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private final LatencyHistogram savedLatency = metrics.histogram("speculation.saved");
+    private final LatencyHistogram discardedLatency = metrics.histogram("speculation.discarded");
+    private final LatencyHistogram commitLatency = metrics.histogram("speculation.commit");
+
+    /**
+     * @param callbackExecutor executor of the thread the classifier is used from, on which the
+     *                         completion of the speculations is recorded
+     */
+    SpeculativeClassifier(Stages stages, long intervalMillis, boolean isEncoding,
+                          Executor callbackExecutor) {
+        this.stages = stages;
+        this.intervalNanos = intervalMillis * 1000000;
+        this.isEncoding = isEncoding;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Whether the throttling interval since the last speculation has passed
+     */
+    boolean isDue() {
+        return speculation == null || System.nanoTime() - speculationStartTime >= intervalNanos;
+    }
+
+    /**
+     * Start a speculation on the current input, superseding the running one. An input equal to
+     * the one speculated on already is ignored.
+     */
+    void speculate(float[] pixels) {
+        if (speculation != null && Arrays.equals(pixels, speculatedPixels)) {
+            return;
+        }
+        discard();
+
+        final CancellationTokenSource source = new CancellationTokenSource();
+        final Task<Result> task = run(pixels, source.getToken());
+        speculatedPixels = pixels;
+        speculation = task;
+        cancellation = source;
+        speculationStartTime = System.nanoTime();
+        speculationEndTime = 0;
+        speculatedCount++;
+
+        task.addOnCompleteListener(callbackExecutor, new OnCompleteListener<Result>() {
+            @Override
+            public void onComplete(@NonNull Task<Result> completed) {
+                if (speculation == task) {
+                    speculationEndTime = System.nanoTime();
+                }
+            }
+        });
+    }
+
+    /**
+     * The result for the final input, from the latest speculation if it was made on the same
+     * input, otherwise from a new run
+     */
+    Task<Result> commit(float[] pixels) {
+        final long commitTime = System.nanoTime();
+        Task<Result> task;
+        if (speculation != null && Arrays.equals(pixels, speculatedPixels) &&
+                (!speculation.isComplete() || speculation.isSuccessful())) {
+            // The work done before finger-up no longer adds to the perceived latency
+            long endTime = speculationEndTime != 0 ? speculationEndTime : commitTime;
+            savedLatency.record(endTime - speculationStartTime);
+            savedNanos += endTime - speculationStartTime;
+            reusedCount++;
+
+            task = speculation;
+            speculation = null;
+            cancellation = null;
+            speculatedPixels = null;
+        } else {
+            discard();
+            task = run(pixels, new CancellationTokenSource().getToken());
+        }
+
+        task.addOnCompleteListener(callbackExecutor, new OnCompleteListener<Result>() {
+            @Override
+            public void onComplete(@NonNull Task<Result> completed) {
+                commitLatency.recordSince(commitTime);
+            }
+        });
+        return task;
+    }
+
+    /**
+     * Cancel the running speculation, e.g. when the drawing is cleared
+     */
+    void cancel() {
+        discard();
+    }
+
+    private Task<Result> run(final float[] pixels, final CancellationToken token) {
+        return stages.classify(pixels, token).onSuccessTask(DrawingPipeline.DIRECT_EXECUTOR,
+                new SuccessContinuation<Integer, Result>() {
+                    @NonNull
+                    @Override
+                    public Task<Result> then(final Integer label) {
+                        if (!isEncoding) {
+                            return Tasks.forResult(new Result(label, null));
+                        }
+                        return stages.encode(pixels, label, token).onSuccessTask(
+                                DrawingPipeline.DIRECT_EXECUTOR,
+                                new SuccessContinuation<float[], Result>() {
+                                    @NonNull
+                                    @Override
+                                    public Task<Result> then(float[] latentCodes) {
+                                        return Tasks.forResult(new Result(label, latentCodes));
+                                    }
+                                });
+                    }
+                });
+    }
+
+    private void discard() {
+        if (speculation == null) {
+            return;
+        }
+
+        // The compute thrown away is bounded by the time the speculation had, queueing included
+        long endTime = speculationEndTime != 0 ? speculationEndTime : System.nanoTime();
+        discardedLatency.record(endTime - speculationStartTime);
+        discardedNanos += endTime - speculationStartTime;
+        discardedCount++;
+
+        cancellation.cancel();
+        speculation = null;
+        cancellation = null;
+        speculatedPixels = null;
+    }
+
+    long getSpeculatedCount() {
+        return speculatedCount;
+    }
+
+    long getReusedCount() {
+        return reusedCount;
+    }
+
+    long getDiscardedCount() {
+        return discardedCount;
+    }
+
+    /**
+     * Total latency after finger-up saved by reused speculations
+     */
+    long getSavedNanos() {
+        return savedNanos;
+    }
+
+    /**
+     * Upper bound of the compute spent on discarded speculations
+     */
+    long getDiscardedNanos() {
+        return discardedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "Speculation: speculated=%d, reused=%d, discarded=%d, saved=%dms, " +
+                        "discarded compute<=%dms",
+                speculatedCount, reusedCount, discardedCount,
+                savedNanos / 1000000, discardedNanos / 1000000);
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.vaedemo;
+
+import com.google.android.gms.tasks.CancellationToken;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dedicated worker threads with a bounded queue for one pipeline stage. A TF Lite Interpreter
+ * is not thread-safe, so a stage with one thread confines its interpreters to that thread, while
+ * a stage with several threads borrows a separate interpreter per call from an InterpreterPool.
+ * Independent stages run in parallel.
+ */
+class StageExecutor {
+    private final ThreadPoolExecutor executor;
+
+    StageExecutor(String name, int queueCapacity) {
+        this(name, 1, queueCapacity);
+    }
+
+    StageExecutor(final String name, final int threadCount, int queueCapacity) {
+        this.executor = new ThreadPoolExecutor(threadCount, threadCount, 0L,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new ThreadFactory() {
+                    private final AtomicInteger threadIndex = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, threadCount == 1 ?
+                                name : name + "-" + threadIndex.getAndIncrement());
+                    }
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Run the callable on the stage thread. If the queue is full or the stage is shut down, the
+     * returned Task fails with a RejectedExecutionException instead of blocking the caller.
+     */
+    <T> Task<T> call(Callable<T> callable) {
+        try {
+            return Tasks.call(executor, callable);
+        } catch (RejectedExecutionException e) {
+            return Tasks.forException(e);
+        }
+    }
+
+    /**
+     * Same as call(), but the returned Task is cancelled as soon as the token is, and the
+     * callable is skipped if it has not started by then. A callable already running completes,
+     * as an interpreter invocation cannot be interrupted, and its result is dropped.
+     */
+    <T> Task<T> call(final Callable<T> callable, final CancellationToken token) {
+        final TaskCompletionSource<T> source = new TaskCompletionSource<>(token);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (token.isCancellationRequested()) {
+                        return;
+                    }
+                    try {
+                        source.trySetResult(callable.call());
+                    } catch (Exception e) {
+                        source.trySetException(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            source.trySetException(e);
+        }
+        return source.getTask();
+    }
+
+    /**
+     * Finish the queued tasks, then stop the worker thread
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -1,26 +1,49 @@
 package com.example.vaedemo;
 
 import android.content.Context;
-import android.content.res.AssetFileDescriptor;
-import android.content.res.AssetManager;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+
+import com.example.vaedemo.core.HelperStages;
+import com.example.vaedemo.core.ModelVariant;
+import com.example.vaedemo.imageproc.PixelConverter;
+import com.google.android.gms.tasks.CancellationToken;
+import com.google.android.gms.tasks.OnFailureListener;
+import com.google.android.gms.tasks.OnSuccessListener;
 import com.google.android.gms.tasks.Task;
 import com.google.android.gms.tasks.Tasks;
 
 import org.tensorflow.lite.Interpreter;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * Thread-safety: the encode interpreters (one-hot encode, encoder, reparameterize) are borrowed
+ * from the shared pools of the ModelRegistry by the encode stage for each call, and the decode
+ * interpreters (one-hot encode, decoder, bufferize) by the decode stage. The async methods may be
+ * called from any thread, and encoding a new drawing runs in parallel with decoding the previous
+ * latent codes. When the registry swaps in a new version of the models, each call runs on the
+ * interpreters of one version, and the caches drop the outputs of the previous one.
+ */
 class VaeModel {
     private Context context;
 
@@ -39,204 +62,1451 @@ class VaeModel {
     private static final int IDX_DECONEHOT = 3;
     private static final int IDX_REPARAMETERIZE = 4;
     private static final int IDX_BUFFERIZE = 5;
+    private static final int[] ENCODER_MODELS = {IDX_ENCONEHOT, IDX_ENCODER, IDX_REPARAMETERIZE};
+    private static final int[] DECODER_MODELS = {IDX_DECONEHOT, IDX_DECODER, IDX_BUFFERIZE};
+    private static final int STAGE_QUEUE_CAPACITY = 16;
+    private static final int WARM_UP_RUNS = 3;
+
+    /**
+     * The precision of the encoder and decoder, picked at construction, and the asset of each
+     * model in it
+     */
+    private final ModelVariant variant;
+    private final String[] modelFiles = MODEL_FILES.clone();
 
+    /**
+     * Interpreter pools shared through the registry, and the interpreters borrowed from them for
+     * the call in progress on each stage
+     */
+    private final ModelRegistry modelRegistry;
+    private InterpreterPool[] pools = new InterpreterPool[6];
     private Interpreter[] interpreters = new Interpreter[6];
 
-    boolean isInitialized = false;
+    /**
+     * The swap sequence of the registry the borrowed interpreters are all of one version at
+     */
+    private final int[] borrowedSwapSequences = new int[6];
+
+    /**
+     * The helper graphs around the encoder and decoder, each of which can run either on its TF
+     * Lite interpreter or as its pure Java version in HelperStages
+     */
+    enum HelperStage {
+        ENCODE_ONE_HOT,
+        REPARAMETERIZE,
+        DECODE_ONE_HOT,
+        BUFFERIZE,
+    }
+
+    /**
+     * Latent samples of the posterior of one drawing, in one contiguous block with sample n at
+     * n * dimension, and the mean and variance of the posterior they were drawn from
+     */
+    static final class PosteriorSamples {
+        final int count;
+        final int dimension;
+        final float[] samples;
+        final float[] mean;
+        final float[] variance;
+
+        PosteriorSamples(int count, float[] packedLatentCodes, float[] samples) {
+            this.count = count;
+            this.dimension = packedLatentCodes.length / 2;
+            this.samples = samples;
+            this.mean = Arrays.copyOf(packedLatentCodes, dimension);
+            this.variance = new float[dimension];
+            for (int i = 0; i < dimension; i++) {
+                variance[i] = (float) Math.exp(packedLatentCodes[dimension + i]);
+            }
+        }
+
+        float[] getSample(int n) {
+            return Arrays.copyOfRange(samples, n * dimension, (n + 1) * dimension);
+        }
+
+        float[][] toArray() {
+            float[][] array = new float[count][];
+            for (int n = 0; n < count; n++) {
+                array[n] = getSample(n);
+            }
+            return array;
+        }
+    }
+
+    /**
+     * Which helper stages run in Java, guarded by the lock of their encode/decode stage
+     */
+    private final boolean[] javaStages = new boolean[HelperStage.values().length];
+    private final Random random = new Random();
+
+    /**
+     * Readiness of each capability, so decoding can start before the encoder is loaded
+     */
+    volatile boolean isEncoderReady = false;
+    volatile boolean isDecoderReady = false;
+    private Task<Void> encoderReady = null;
+    private Task<Void> decoderReady = null;
+    private volatile WarmUpMode warmUpMode = WarmUpMode.BEFORE_READY;
+
+    // Shapes of the encode stage
     private int inputImageWidth = 0;
     private int inputImageHeight = 0;
+    private int outputLatentDimension = 0;
+
+    // Shapes of the decode stage
     private int inputLatentDimension = 0;
+    private int outputImageWidth = 0;
+    private int outputImageHeight = 0;
+
+    /**
+     * Whether the interpreters run on direct buffers bound once at initialization
+     */
+    private final boolean useDirectBuffers;
+    private InterpreterBinding[] bindings = new InterpreterBinding[6];
+    private QuantizedTensor[] boundInputs = new QuantizedTensor[6];
+    private QuantizedTensor[] boundOutputs = new QuantizedTensor[6];
+    private FloatBuffer pixelBuffer = null;
+    private FloatBuffer encodedImageBuffer = null;
+    private FloatBuffer packedLatentBuffer = null;
+    private FloatBuffer encodedLatentBuffer = null;
+    private FloatBuffer latentBuffer = null;
+    private FloatBuffer oneHotLatentBuffer = null;
+    private FloatBuffer logitsBuffer = null;
+    private ByteBuffer grayscaleBuffer = null;
+    private int[] inputPixels = null;
+    private int[] outputPixels = null;
+    private Bitmap scaledBitmap = null;
+    private Canvas scaledCanvas = null;
+    private final Rect sourceRect = new Rect();
+    private final Rect scaledRect = new Rect();
+    private final Paint scalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * Locks guarding the interpreters and buffers of each stage for the synchronous callers
+     */
+    private final Object encodeLock = new Object();
+    private final Object decodeLock = new Object();
+
+    /**
+     * Optional cache of decoded images in front of decodeAsync()
+     */
+    private volatile DecodedImageCache decodeCache = null;
+
+    /**
+     * Optional cache of the encoder output in front of the encoding of normalized pixels
+     */
+    private volatile EncodedLatentCache encodeCache = null;
+
+    /**
+     * The swap sequence of the registry when the caches were last cleared, guarded by cacheLock
+     */
+    private int cachedSwapSequence = 0;
+    private final Object cacheLock = new Object();
+
+    /**
+     * Latency of every stage, registered in the registry shared with the rest of the app
+     */
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private final LatencyHistogram encoderLoadLatency = metrics.histogram("vae.encode.load");
+    private final LatencyHistogram decoderLoadLatency = metrics.histogram("vae.decode.load");
+    private final LatencyHistogram encoderWarmUpLatency = metrics.histogram("vae.encode.warmup");
+    private final LatencyHistogram decoderWarmUpLatency = metrics.histogram("vae.decode.warmup");
+    private final LatencyHistogram encodePreprocessLatency =
+            metrics.histogram("vae.encode.preprocess");
+    private final LatencyHistogram encodeOneHotLatency = metrics.histogram("vae.encode.onehot");
+    private final LatencyHistogram encoderLatency = metrics.histogram("vae.encode.encoder");
+    private final LatencyHistogram reparameterizeLatency =
+            metrics.histogram("vae.encode.reparameterize");
+    private final LatencyHistogram encodeTotalLatency = metrics.histogram("vae.encode.total");
+    private final LatencyHistogram decodeOneHotLatency = metrics.histogram("vae.decode.onehot");
+    private final LatencyHistogram decoderLatency = metrics.histogram("vae.decode.decoder");
+    private final LatencyHistogram bufferizeLatency = metrics.histogram("vae.decode.bufferize");
+    private final LatencyHistogram bitmapLatency = metrics.histogram("vae.decode.bitmap");
+    private final LatencyHistogram decodeTotalLatency = metrics.histogram("vae.decode.total");
+    private final LatencyHistogram batchOneHotLatency = metrics.histogram("vae.batch.onehot");
+    private final LatencyHistogram batchDecoderLatency = metrics.histogram("vae.batch.decoder");
+    private final LatencyHistogram batchBufferizeLatency =
+            metrics.histogram("vae.batch.bufferize");
+    private final LatencyHistogram batchTotalLatency = metrics.histogram("vae.batch.total");
+    private final LatencyHistogram samplesReparameterizeLatency =
+            metrics.histogram("vae.samples.reparameterize");
+    private final LatencyHistogram samplesTotalLatency = metrics.histogram("vae.samples.total");
 
     /**
-     * Executor to run inference task in the background
+     * Executors to run the encode/decode stages in the background
      */
-    private ExecutorService executorService = Executors.newCachedThreadPool();
+    private StageExecutor encodeExecutor = new StageExecutor("VaeEncode", STAGE_QUEUE_CAPACITY);
+    private StageExecutor decodeExecutor = new StageExecutor("VaeDecode", STAGE_QUEUE_CAPACITY);
 
     VaeModel(Context context) {
+        this(context, false);
+    }
+
+    VaeModel(Context context, boolean useDirectBuffers) {
+        this(context, useDirectBuffers, ModelVariant.FLOAT32);
+    }
+
+    /**
+     * @param variant precision of the encoder and decoder; the helper graphs stay float32
+     */
+    VaeModel(Context context, boolean useDirectBuffers, ModelVariant variant) {
         this.context = context;
+        this.useDirectBuffers = useDirectBuffers;
+        this.variant = variant;
+        this.modelRegistry = ModelRegistry.getInstance(context);
+        modelFiles[IDX_ENCODER] = variant.getFileName(MODEL_FILES[IDX_ENCODER]);
+        modelFiles[IDX_DECODER] = variant.getFileName(MODEL_FILES[IDX_DECODER]);
     }
 
+    ModelVariant getVariant() {
+        return variant;
+    }
+
+    /**
+     * Run the helper stage as its pure Java version instead of its TF Lite graph, or back. The
+     * interpreters stay loaded, so this can be switched at any time.
+     */
+    void setJavaStage(HelperStage stage, boolean isJava) {
+        boolean isDecodeStage = stage == HelperStage.DECODE_ONE_HOT ||
+                stage == HelperStage.BUFFERIZE;
+        synchronized (isDecodeStage ? decodeLock : encodeLock) {
+            javaStages[stage.ordinal()] = isJava;
+        }
+    }
+
+    void setJavaStages(boolean isJava) {
+        for (HelperStage stage : HelperStage.values()) {
+            setJavaStage(stage, isJava);
+        }
+    }
+
+    private boolean isJavaStage(HelperStage stage) {
+        return javaStages[stage.ordinal()];
+    }
+
+    /**
+     * Warm the interpreters of each stage up when initialize*() loads it, before or after its
+     * Task completes, or not at all. Before by default. A stage loaded lazily by its first
+     * request is not warmed up.
+     */
+    void setWarmUpMode(WarmUpMode mode) {
+        warmUpMode = mode;
+    }
+
+    /**
+     * Start loading the encode and decode stages in parallel. The returned Task completes once
+     * both are ready, but each stage serves requests as soon as its own interpreters are up.
+     */
     Task<Void> initialize() {
-        return Tasks.call(executorService, new Callable<Void>() {
+        return Tasks.whenAll(initializeEncoder(), initializeDecoder());
+    }
+
+    /**
+     * Start loading the encode stage unless it is already loading. Without this, the stage is
+     * loaded lazily by the first encode request.
+     */
+    synchronized Task<Void> initializeEncoder() {
+        if (encoderReady == null) {
+            final WarmUpMode mode = warmUpMode;
+            encoderReady = encodeExecutor.call(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    ensureEncoder();
+                    if (mode == WarmUpMode.BEFORE_READY) {
+                        warmUpEncoder();
+                    }
+                    return null;
+                }
+            });
+            if (mode == WarmUpMode.AFTER_READY) {
+                warmUpAfterReady(encodeExecutor, new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        ensureEncoder();
+                        warmUpEncoder();
+                        return null;
+                    }
+                });
+            }
+        }
+        return encoderReady;
+    }
+
+    /**
+     * Start loading the decode stage unless it is already loading. Without this, the stage is
+     * loaded lazily by the first decode request.
+     */
+    synchronized Task<Void> initializeDecoder() {
+        if (decoderReady == null) {
+            final WarmUpMode mode = warmUpMode;
+            decoderReady = decodeExecutor.call(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    ensureDecoder();
+                    if (mode == WarmUpMode.BEFORE_READY) {
+                        warmUpDecoder();
+                    }
+                    return null;
+                }
+            });
+            if (mode == WarmUpMode.AFTER_READY) {
+                warmUpAfterReady(decodeExecutor, new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        ensureDecoder();
+                        warmUpDecoder();
+                        return null;
+                    }
+                });
+            }
+        }
+        return decoderReady;
+    }
+
+    /**
+     * Warm the stage up after its initialize() Task, logging a failure, which only means the
+     * first request pays for it
+     */
+    private void warmUpAfterReady(StageExecutor executor, Callable<Void> warmUp) {
+        executor.call(warmUp).addOnFailureListener(new OnFailureListener() {
             @Override
-            public Void call() throws IOException {
-                initializeInterpreters();
-                return null;
+            public void onFailure(@NonNull Exception e) {
+                Log.w(TAG, "Error warming up the VAE model.", e);
             }
         });
     }
 
-    private void initializeInterpreters() throws IOException {
-        AssetManager assetManager = context.getAssets();
-        for (int i = 0; i < MODEL_FILES.length; i++) {
-            // Load the TF Lite models
-            ByteBuffer model = loadModelFiles(assetManager, MODEL_FILES[i]);
+    /**
+     * Load the encode interpreters if they are not ready yet. Only runs on the encode stage
+     * thread.
+     */
+    private void ensureEncoder() throws IOException {
+        if (isEncoderReady) {
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        loadInterpreters(ENCODER_MODELS);
+
+        synchronized (encodeLock) {
+            borrowInterpreters(ENCODER_MODELS);
+            try {
+                // Read input shape from model file
+                int[] inputShape = interpreters[IDX_ENCONEHOT].getInputTensor(0).shape();
+                inputImageWidth = inputShape[1];
+                inputImageHeight = inputShape[0];
+                outputLatentDimension =
+                        interpreters[IDX_REPARAMETERIZE].getOutputTensor(0).shape()[0];
+
+                if (useDirectBuffers) {
+                    bindEncoderBuffers();
+                }
+            } finally {
+                giveBackInterpreters(ENCODER_MODELS);
+            }
+        }
+
+        // Finish interpreters initialization
+        encoderLoadLatency.recordSince(startTime);
+        isEncoderReady = true;
+    }
 
-            // Initialize TF Lite Interpreter with NNAPI enabled
-            Interpreter.Options options = new Interpreter.Options();
-            options.setUseNNAPI(true);
-            interpreters[i] = new Interpreter(model, options);
+    /**
+     * Load the decode interpreters if they are not ready yet. Only runs on the decode stage
+     * thread.
+     */
+    private void ensureDecoder() throws IOException {
+        if (isDecoderReady) {
+            return;
         }
 
-        // Read input shape from model file
-        int[] inputShape = interpreters[IDX_ENCONEHOT].getInputTensor(0).shape();
-        inputImageWidth = inputShape[1];
-        inputImageHeight = inputShape[0];
-        inputShape = interpreters[IDX_DECONEHOT].getInputTensor(0).shape();
-        inputLatentDimension = inputShape[0];
+        long startTime = System.nanoTime();
+        loadInterpreters(DECODER_MODELS);
+
+        synchronized (decodeLock) {
+            borrowInterpreters(DECODER_MODELS);
+            try {
+                // Read input and output shapes from model file
+                inputLatentDimension = interpreters[IDX_DECONEHOT].getInputTensor(0).shape()[0];
+                int[] outputShape = interpreters[IDX_BUFFERIZE].getOutputTensor(0).shape();
+                outputImageWidth = outputShape[1];
+                outputImageHeight = outputShape[0];
+
+                if (useDirectBuffers) {
+                    bindDecoderBuffers();
+                }
+            } finally {
+                giveBackInterpreters(DECODER_MODELS);
+            }
+        }
 
         // Finish interpreters initialization
-        isInitialized = true;
+        decoderLoadLatency.recordSince(startTime);
+        isDecoderReady = true;
+    }
+
+    /**
+     * Invoke every interpreter of the encode stage, then the whole encode path on a blank
+     * drawing, which also runs the Java helper stages and the bound buffers. The pools record
+     * the cold and warm latency of each model. The encode cache is bypassed, so every run invokes
+     * the encoder and the blank drawing is not cached. Only runs on the encode stage thread.
+     */
+    private void warmUpEncoder() throws IOException {
+        long startTime = System.nanoTime();
+        for (int index : ENCODER_MODELS) {
+            pools[index].warmUp(WARM_UP_RUNS);
+        }
+        float[] pixels = new float[inputImageWidth * inputImageHeight];
+        synchronized (encodeLock) {
+            borrowInterpreters(ENCODER_MODELS);
+            try {
+                for (int i = 0; i < WARM_UP_RUNS; i++) {
+                    encode(pixels, 0, false);
+                }
+            } finally {
+                giveBackInterpreters(ENCODER_MODELS);
+            }
+        }
+        encoderWarmUpLatency.recordSince(startTime);
+    }
+
+    /**
+     * Same as warmUpEncoder() for the decode stage, on zero latent codes
+     */
+    private void warmUpDecoder() throws IOException {
+        long startTime = System.nanoTime();
+        for (int index : DECODER_MODELS) {
+            pools[index].warmUp(WARM_UP_RUNS);
+        }
+        float[] latentCodes = new float[inputLatentDimension];
+        synchronized (decodeLock) {
+            borrowInterpreters(DECODER_MODELS);
+            try {
+                for (int i = 0; i < WARM_UP_RUNS; i++) {
+                    decode(latentCodes, 0, null);
+                }
+            } finally {
+                giveBackInterpreters(DECODER_MODELS);
+            }
+        }
+        decoderWarmUpLatency.recordSince(startTime);
+    }
+
+    /**
+     * Acquire the interpreter pools of one stage from the shared registry and build their first
+     * interpreters in parallel, one loader thread per model
+     */
+    private void loadInterpreters(int[] modelIndices) throws IOException {
+        try {
+            for (int index : modelIndices) {
+                pools[index] = modelRegistry.acquire(modelFiles[index]);
+            }
+        } catch (IOException | RuntimeException e) {
+            releaseInterpreters(modelIndices);
+            throw e;
+        }
+
+        ExecutorService loader = Executors.newFixedThreadPool(modelIndices.length);
+        List<Future<Void>> results = new ArrayList<>();
+        try {
+            for (final int index : modelIndices) {
+                results.add(loader.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        // Initialize TF Lite Interpreter with the fastest configuration
+                        pools[index].prepare();
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException | InterruptedException e) {
+            releaseInterpreters(modelIndices);
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to load the TF Lite models", e);
+        } finally {
+            loader.shutdown();
+        }
+    }
+
+    /**
+     * Give the pools of one stage back to the registry, which closes the interpreters once no
+     * other consumer uses the models
+     */
+    private void releaseInterpreters(int[] modelIndices) {
+        for (int index : modelIndices) {
+            if (pools[index] != null) {
+                modelRegistry.release(pools[index]);
+                pools[index] = null;
+            }
+        }
+    }
+
+    /**
+     * Borrow an interpreter of each model of the stage into its slot of interpreters[] for one
+     * call, unless an enclosing call on the same thread already did. Returns whether this call
+     * borrowed them and has to give them back. Only called under the stage lock.
+     */
+    private boolean borrowInterpreters(int[] modelIndices) {
+        if (interpreters[modelIndices[0]] != null) {
+            return false;
+        }
+        while (true) {
+            int sequence = modelRegistry.getSwapSequence();
+            for (int index : modelIndices) {
+                interpreters[index] = pools[index].borrow();
+            }
+            // Borrow again if a model swap got in between, so the call runs on one version
+            if ((sequence & 1) == 0 && sequence == modelRegistry.getSwapSequence()) {
+                for (int index : modelIndices) {
+                    borrowedSwapSequences[index] = sequence;
+                }
+                return true;
+            }
+            giveBackInterpreters(modelIndices);
+            Thread.yield();
+        }
+    }
+
+    private void giveBackInterpreters(int[] modelIndices) {
+        for (int index : modelIndices) {
+            if (interpreters[index] != null) {
+                pools[index].giveBack(interpreters[index]);
+                interpreters[index] = null;
+            }
+        }
+    }
+
+    /**
+     * Bind the encode interpreter inputs/outputs to direct buffers. The output buffer of each
+     * step is the input buffer of the next one, so the encode chain runs without copies, except
+     * around the tensors of a quantized encoder.
+     */
+    private void bindEncoderBuffers() {
+        ByteBuffer pixels = InterpreterBinding.allocate(
+                interpreters[IDX_ENCONEHOT].getInputTensor(0));
+        ByteBuffer encodeLabel = InterpreterBinding.allocate(
+                interpreters[IDX_ENCONEHOT].getInputTensor(1));
+        ByteBuffer encodedImage = InterpreterBinding.allocate(
+                interpreters[IDX_ENCONEHOT].getOutputTensor(0));
+        ByteBuffer packedLatentCodes = InterpreterBinding.allocate(
+                interpreters[IDX_REPARAMETERIZE].getInputTensor(0));
+        ByteBuffer encodedLatentCodes = InterpreterBinding.allocate(
+                interpreters[IDX_REPARAMETERIZE].getOutputTensor(0));
+
+        bindings[IDX_ENCONEHOT] = new InterpreterBinding(
+                new ByteBuffer[]{pixels, encodeLabel}, new ByteBuffer[]{encodedImage});
+        bindings[IDX_ENCODER] = bindQuantized(IDX_ENCODER, encodedImage, packedLatentCodes);
+        bindings[IDX_REPARAMETERIZE] = new InterpreterBinding(
+                new ByteBuffer[]{packedLatentCodes}, new ByteBuffer[]{encodedLatentCodes});
+
+        pixelBuffer = pixels.asFloatBuffer();
+        encodedImageBuffer = encodedImage.asFloatBuffer();
+        packedLatentBuffer = packedLatentCodes.asFloatBuffer();
+        encodedLatentBuffer = encodedLatentCodes.asFloatBuffer();
+        inputPixels = new int[inputImageWidth * inputImageHeight];
+        scaledBitmap = Bitmap.createBitmap(
+                inputImageWidth, inputImageHeight, Bitmap.Config.ARGB_8888);
+        scaledCanvas = new Canvas(scaledBitmap);
+        scaledRect.set(0, 0, inputImageWidth, inputImageHeight);
+    }
+
+    /**
+     * Bind the decode interpreter inputs/outputs to direct buffers, chained like the encoder's
+     */
+    private void bindDecoderBuffers() {
+        ByteBuffer latentCodes = InterpreterBinding.allocate(
+                interpreters[IDX_DECONEHOT].getInputTensor(0));
+        ByteBuffer decodeLabel = InterpreterBinding.allocate(
+                interpreters[IDX_DECONEHOT].getInputTensor(1));
+        ByteBuffer oneHotLatentCodes = InterpreterBinding.allocate(
+                interpreters[IDX_DECONEHOT].getOutputTensor(0));
+        ByteBuffer logits = InterpreterBinding.allocate(
+                interpreters[IDX_BUFFERIZE].getInputTensor(0));
+        ByteBuffer grayscalePixels = InterpreterBinding.allocate(
+                interpreters[IDX_BUFFERIZE].getOutputTensor(0));
+
+        bindings[IDX_DECONEHOT] = new InterpreterBinding(
+                new ByteBuffer[]{latentCodes, decodeLabel}, new ByteBuffer[]{oneHotLatentCodes});
+        bindings[IDX_DECODER] = bindQuantized(IDX_DECODER, oneHotLatentCodes, logits);
+        bindings[IDX_BUFFERIZE] = new InterpreterBinding(
+                new ByteBuffer[]{logits}, new ByteBuffer[]{grayscalePixels});
+
+        latentBuffer = latentCodes.asFloatBuffer();
+        oneHotLatentBuffer = oneHotLatentCodes.asFloatBuffer();
+        logitsBuffer = logits.asFloatBuffer();
+        grayscaleBuffer = grayscalePixels;
+        outputPixels = new int[outputImageWidth * outputImageHeight];
     }
 
-    private ByteBuffer loadModelFiles(AssetManager assetManager, String modelFile) throws IOException {
-        AssetFileDescriptor fileDescriptor = assetManager.openFd(modelFile);
-        FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
-        FileChannel fileChannel = inputStream.getChannel();
-        long startOffset = fileDescriptor.getStartOffset();
-        long declaredLength = fileDescriptor.getDeclaredLength();
-        return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+    /**
+     * Bind the encoder or decoder between the float buffers of its chain. The tensors of a
+     * quantized variant get buffers of their own, converted by runBound().
+     */
+    private InterpreterBinding bindQuantized(int index, ByteBuffer input, ByteBuffer output) {
+        boundInputs[index] = QuantizedTensor.of(interpreters[index].getInputTensor(0));
+        boundOutputs[index] = QuantizedTensor.of(interpreters[index].getOutputTensor(0));
+        return new InterpreterBinding(
+                new ByteBuffer[]{boundInputs[index].isQuantized() ?
+                        InterpreterBinding.allocate(interpreters[index].getInputTensor(0)) :
+                        input},
+                new ByteBuffer[]{boundOutputs[index].isQuantized() ?
+                        InterpreterBinding.allocate(interpreters[index].getOutputTensor(0)) :
+                        output});
+    }
+
+    /**
+     * Run the encoder or decoder on its bound buffers, quantizing from the float input buffer
+     * and dequantizing into the float output buffer where its tensors are quantized
+     */
+    private void runBound(int index, FloatBuffer input, FloatBuffer output) {
+        InterpreterBinding binding = bindings[index];
+        if (boundInputs[index].isQuantized()) {
+            boundInputs[index].quantize(input, binding.getInput(0));
+        }
+        binding.run(interpreters[index]);
+        if (boundOutputs[index].isQuantized()) {
+            boundOutputs[index].dequantize(binding.getOutput(0), output);
+        }
     }
 
     private float[] encode(Bitmap bitmap, int label) {
-        if (!isInitialized) {
+        if (!isEncoderReady) {
             throw new IllegalStateException("TF Lite Interpreters are not initialized yet.");
         }
 
-        Long startTime, elapsedTime;
+        if (useDirectBuffers) {
+            float[] latentCodes = new float[outputLatentDimension];
+            encodeInto(bitmap, label, latentCodes);
+            return latentCodes;
+        }
+
+        long startTime;
 
         // Preprocessing: resize the input
         startTime = System.nanoTime();
         Bitmap resizedImage = Bitmap.createScaledBitmap(
                 bitmap, inputImageWidth, inputImageHeight, true);
         float[][] normalizedPixels = convertBitmapToFloatArray(resizedImage);
-        elapsedTime = (System.nanoTime() - startTime) / 1000000;
-        Log.d(TAG, "Preprocessing time =" + elapsedTime + "ms");
+        encodePreprocessLatency.recordSince(startTime);
+
+        return encodeNormalized(normalizedPixels, label);
+    }
+
+    /**
+     * Encode row-major pixels already normalized to [0..1] at the model input size, e.g. the
+     * output of a StrokeRasterizer
+     */
+    private float[] encode(float[] pixels, int label) {
+        return encode(pixels, label, true);
+    }
+
+    /**
+     * @param useCache whether to go through the encode cache, false to always run the encoder
+     */
+    private float[] encode(float[] pixels, int label, boolean useCache) {
+        if (!isEncoderReady) {
+            throw new IllegalStateException("TF Lite Interpreters are not initialized yet.");
+        }
+
+        if (useDirectBuffers) {
+            float[] latentCodes = new float[outputLatentDimension];
+            encodeInto(pixels, label, latentCodes, useCache);
+            return latentCodes;
+        }
+
+        return reparameterize(encodePacked(pixels, label, useCache));
+    }
+
+    /**
+     * The packed means and log variances of normalized pixels, from the encode cache if it
+     * has them
+     */
+    private float[] encodePacked(float[] pixels, int label) {
+        return encodePacked(pixels, label, true);
+    }
+
+    private float[] encodePacked(float[] pixels, int label, boolean useCache) {
+        checkInputPixels(pixels);
+        EncodedLatentCache cache = useCache ? encodeCache : null;
+        invalidateCachesIfSwapped();
+        float[] packedLatentCodes = cache != null ? cache.get(pixels, label) : null;
+        if (packedLatentCodes == null) {
+            long startTime = System.nanoTime();
+            float[][] normalizedPixels = new float[inputImageHeight][inputImageWidth];
+            for (int j = 0; j < inputImageHeight; j++) {
+                System.arraycopy(pixels, j * inputImageWidth,
+                        normalizedPixels[j], 0, inputImageWidth);
+            }
+            encodePreprocessLatency.recordSince(startTime);
+
+            packedLatentCodes = encodePacked(normalizedPixels, label);
+            if (cache != null) {
+                cacheEncoding(cache, borrowedSwapSequences[IDX_ENCODER], pixels, label,
+                        packedLatentCodes, System.nanoTime() - startTime);
+            }
+        }
+        return packedLatentCodes;
+    }
+
+    private float[] encodeNormalized(float[][] normalizedPixels, int label) {
+        return reparameterize(encodePacked(normalizedPixels, label));
+    }
+
+    /**
+     * Run the one-hot encode and the encoder, up to the packed means and log variances
+     */
+    private float[] encodePacked(float[][] normalizedPixels, int label) {
+        long startTime;
 
         startTime = System.nanoTime();
-        Object[] inputs = {normalizedPixels, new int[]{label}};
         float[][][][] encodedInput = new float[1][inputImageHeight][inputImageWidth][1 + 10];
-        Map<Integer, Object> outputs = new HashMap<>();
-        outputs.put(0, encodedInput);
-        interpreters[IDX_ENCONEHOT].runForMultipleInputsOutputs(inputs, outputs);
-        elapsedTime = (System.nanoTime() - startTime) / 1000000;
-        Log.d(TAG, "One hot encoding time =" + elapsedTime + "ms");
+        if (isJavaStage(HelperStage.ENCODE_ONE_HOT)) {
+            HelperStages.oneHotEncodePixels(normalizedPixels, label, encodedInput[0]);
+        } else {
+            Object[] inputs = {normalizedPixels, new int[]{label}};
+            Map<Integer, Object> outputs = new HashMap<>();
+            outputs.put(0, encodedInput);
+            interpreters[IDX_ENCONEHOT].runForMultipleInputsOutputs(inputs, outputs);
+        }
+        encodeOneHotLatency.recordSince(startTime);
 
         startTime = System.nanoTime();
-        float[][] packedLatentCodes = new float[1][inputLatentDimension * 2];
-        interpreters[IDX_ENCODER].run(encodedInput, packedLatentCodes);
-        elapsedTime = (System.nanoTime() - startTime) / 1000000;
-        Log.d(TAG, "Image encoding time =" + elapsedTime + "ms");
+        float[][] packedLatentCodes = new float[1][outputLatentDimension * 2];
+        QuantizedTensor.run(interpreters[IDX_ENCODER], encodedInput, packedLatentCodes);
+        encoderLatency.recordSince(startTime);
 
-        startTime = System.nanoTime();
-        float[] latentCodes = new float[inputLatentDimension];
-        interpreters[IDX_REPARAMETERIZE].run(packedLatentCodes, latentCodes);
-        elapsedTime = (System.nanoTime() - startTime) / 1000000;
-        Log.d(TAG, "Reparameterizing time =" + elapsedTime + "ms");
+        return packedLatentCodes[0];
+    }
+
+    /**
+     * Sample latent codes from the packed means and log variances, with fresh noise every time
+     */
+    private float[] reparameterize(float[] packedLatentCodes) {
+        long startTime = System.nanoTime();
+        float[] latentCodes = new float[outputLatentDimension];
+        if (isJavaStage(HelperStage.REPARAMETERIZE)) {
+            HelperStages.reparameterize(packedLatentCodes, random, latentCodes);
+        } else {
+            interpreters[IDX_REPARAMETERIZE].run(new float[][]{packedLatentCodes}, latentCodes);
+        }
+        reparameterizeLatency.recordSince(startTime);
 
         return latentCodes;
     }
 
     Task<float[]> encodeAsync(Bitmap bitmap, int label) {
-        return Tasks.call(executorService, new Callable<float[]>() {
+        return encodeExecutor.call(encodeTotalLatency.timed(new Callable<float[]>() {
             @Override
             public float[] call() throws Exception {
-                return encode(bitmap, label);
+                ensureEncoder();
+                synchronized (encodeLock) {
+                    boolean borrowed = borrowInterpreters(ENCODER_MODELS);
+                    try {
+                        return encode(bitmap, label);
+                    } finally {
+                        if (borrowed) {
+                            giveBackInterpreters(ENCODER_MODELS);
+                        }
+                    }
+                }
+            }
+        }));
+    }
+
+    Task<float[]> encodeAsync(float[] pixels, int label) {
+        return encodeAsync(pixels, label, null);
+    }
+
+    /**
+     * Same as encodeAsync(), cancelled with the token unless it is null, e.g. when a speculative
+     * request is superseded by newer input
+     */
+    Task<float[]> encodeAsync(float[] pixels, int label, CancellationToken token) {
+        Callable<float[]> callable = encodeTotalLatency.timed(new Callable<float[]>() {
+            @Override
+            public float[] call() throws Exception {
+                ensureEncoder();
+                synchronized (encodeLock) {
+                    boolean borrowed = borrowInterpreters(ENCODER_MODELS);
+                    try {
+                        return encode(pixels, label);
+                    } finally {
+                        if (borrowed) {
+                            giveBackInterpreters(ENCODER_MODELS);
+                        }
+                    }
+                }
             }
         });
+        return token != null ?
+                encodeExecutor.call(callable, token) : encodeExecutor.call(callable);
     }
 
-    private Bitmap decode(float[] latentCodes, int label) {
-        if (!isInitialized) {
+    /**
+     * Run the encoder once on the drawing and draw count latent samples from its posterior in
+     * one pass, with a Random seeded for reproducible samples. Cheaper than count encodeAsync()
+     * calls, which run the whole encode chain each.
+     */
+    Task<PosteriorSamples> encodeSamples(final Bitmap bitmap, final int label, final int count,
+                                         final long seed) {
+        return encodeExecutor.call(samplesTotalLatency.timed(new Callable<PosteriorSamples>() {
+            @Override
+            public PosteriorSamples call() throws Exception {
+                ensureEncoder();
+                checkSampleCount(count);
+                synchronized (encodeLock) {
+                    boolean borrowed = borrowInterpreters(ENCODER_MODELS);
+                    try {
+                        long startTime = System.nanoTime();
+                        Bitmap resizedImage = Bitmap.createScaledBitmap(
+                                bitmap, inputImageWidth, inputImageHeight, true);
+                        float[][] normalizedPixels = convertBitmapToFloatArray(resizedImage);
+                        encodePreprocessLatency.recordSince(startTime);
+
+                        return samplePosterior(encodePacked(normalizedPixels, label), count,
+                                seed);
+                    } finally {
+                        if (borrowed) {
+                            giveBackInterpreters(ENCODER_MODELS);
+                        }
+                    }
+                }
+            }
+        }));
+    }
+
+    /**
+     * Same as encodeSamples() of a bitmap, for row-major pixels already normalized to [0..1] at
+     * the model input size, which also go through the encode cache
+     */
+    Task<PosteriorSamples> encodeSamples(final float[] pixels, final int label, final int count,
+                                         final long seed) {
+        return encodeExecutor.call(samplesTotalLatency.timed(new Callable<PosteriorSamples>() {
+            @Override
+            public PosteriorSamples call() throws Exception {
+                ensureEncoder();
+                checkSampleCount(count);
+                synchronized (encodeLock) {
+                    boolean borrowed = borrowInterpreters(ENCODER_MODELS);
+                    try {
+                        return samplePosterior(encodePacked(pixels, label), count, seed);
+                    } finally {
+                        if (borrowed) {
+                            giveBackInterpreters(ENCODER_MODELS);
+                        }
+                    }
+                }
+            }
+        }));
+    }
+
+    private static void checkSampleCount(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("The sample count must be positive");
+        }
+    }
+
+    /**
+     * Draw the samples in Java whatever the REPARAMETERIZE stage is set to, as the graph samples
+     * one vector per invocation and its random op cannot be seeded
+     */
+    private PosteriorSamples samplePosterior(float[] packedLatentCodes, int count, long seed) {
+        long startTime = System.nanoTime();
+        float[] samples = new float[count * outputLatentDimension];
+        HelperStages.reparameterizeSamples(packedLatentCodes, new Random(seed), count, samples);
+        samplesReparameterizeLatency.recordSince(startTime);
+
+        return new PosteriorSamples(count, packedLatentCodes, samples);
+    }
+
+    /**
+     * Decode every sample in one batched decoder invocation, e.g. to show the spread of the
+     * posterior
+     */
+    Task<Bitmap[]> decodeSamplesAsync(PosteriorSamples samples, int label) {
+        int[] labels = new int[samples.count];
+        Arrays.fill(labels, label);
+        return decodeBatchAsync(samples.toArray(), labels);
+    }
+
+    /**
+     * Encode the bitmap into the given latent code array. Once the interpreters are initialized
+     * with direct buffers, this allocates nothing on the Java heap.
+     */
+    void encodeInto(Bitmap bitmap, int label, float[] latentCodes) {
+        synchronized (encodeLock) {
+            checkDirectEncoder();
+
+            // Preprocessing: resize the input into the reusable bitmap
+            long startTime = System.nanoTime();
+            sourceRect.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+            scaledBitmap.eraseColor(Color.TRANSPARENT);
+            scaledCanvas.drawBitmap(bitmap, sourceRect, scaledRect, scalePaint);
+            scaledBitmap.getPixels(inputPixels, 0, inputImageWidth,
+                    0, 0, inputImageWidth, inputImageHeight);
+            PixelConverter.normalize(inputPixels, pixelBuffer);
+            encodePreprocessLatency.recordSince(startTime);
+
+            encodeBoundPixels(label, latentCodes);
+        }
+    }
+
+    /**
+     * Encode row-major normalized pixels at the model input size into the given latent code
+     * array. Once the interpreters are initialized with direct buffers, this allocates nothing
+     * on the Java heap.
+     */
+    void encodeInto(float[] pixels, int label, float[] latentCodes) {
+        encodeInto(pixels, label, latentCodes, true);
+    }
+
+    private void encodeInto(float[] pixels, int label, float[] latentCodes, boolean useCache) {
+        synchronized (encodeLock) {
+            checkDirectEncoder();
+            checkInputPixels(pixels);
+
+            EncodedLatentCache cache = useCache ? encodeCache : null;
+            if (cache == null) {
+                long startTime = System.nanoTime();
+                copyToPixelBuffer(pixels);
+                encodePreprocessLatency.recordSince(startTime);
+
+                encodeBoundPixels(label, latentCodes);
+                return;
+            }
+
+            invalidateCachesIfSwapped();
+            boolean borrowed = borrowInterpreters(ENCODER_MODELS);
+            try {
+                float[] packedLatentCodes = cache.get(pixels, label);
+                if (packedLatentCodes != null) {
+                    for (int i = 0; i < packedLatentCodes.length; i++) {
+                        packedLatentBuffer.put(i, packedLatentCodes[i]);
+                    }
+                } else {
+                    long startTime = System.nanoTime();
+                    copyToPixelBuffer(pixels);
+                    encodePreprocessLatency.recordSince(startTime);
+
+                    runBoundEncoder(label);
+                    packedLatentCodes = new float[2 * outputLatentDimension];
+                    for (int i = 0; i < packedLatentCodes.length; i++) {
+                        packedLatentCodes[i] = packedLatentBuffer.get(i);
+                    }
+                    cacheEncoding(cache, borrowedSwapSequences[IDX_ENCODER], pixels, label,
+                            packedLatentCodes, System.nanoTime() - startTime);
+                }
+                reparameterizeBound(latentCodes);
+            } finally {
+                if (borrowed) {
+                    giveBackInterpreters(ENCODER_MODELS);
+                }
+            }
+        }
+    }
+
+    private void copyToPixelBuffer(float[] pixels) {
+        for (int i = 0; i < pixels.length; i++) {
+            pixelBuffer.put(i, pixels[i]);
+        }
+    }
+
+    private void checkDirectEncoder() {
+        if (!isEncoderReady || !useDirectBuffers) {
+            throw new IllegalStateException(
+                    "TF Lite Interpreters are not bound to direct buffers.");
+        }
+    }
+
+    private void checkInputPixels(float[] pixels) {
+        if (pixels.length != inputImageWidth * inputImageHeight) {
+            throw new IllegalArgumentException(
+                    "The pixel array length is not matched with the model input size");
+        }
+    }
+
+    /**
+     * Run the encode chain on the pixels in the bound input buffer. Only called under the
+     * encode lock.
+     */
+    private void encodeBoundPixels(int label, float[] latentCodes) {
+        boolean borrowed = borrowInterpreters(ENCODER_MODELS);
+        try {
+            runBoundEncoder(label);
+            reparameterizeBound(latentCodes);
+        } finally {
+            if (borrowed) {
+                giveBackInterpreters(ENCODER_MODELS);
+            }
+        }
+    }
+
+    /**
+     * Run the one-hot encode and the encoder from the bound input buffer into the bound packed
+     * latent buffer. Only called under the encode lock, with the interpreters borrowed.
+     */
+    private void runBoundEncoder(int label) {
+        long startTime = System.nanoTime();
+        bindings[IDX_ENCONEHOT].getInput(1).putInt(0, label);
+        if (isJavaStage(HelperStage.ENCODE_ONE_HOT)) {
+            HelperStages.oneHotEncodePixels(pixelBuffer, label, encodedImageBuffer);
+        } else {
+            bindings[IDX_ENCONEHOT].run(interpreters[IDX_ENCONEHOT]);
+        }
+        startTime = encodeOneHotLatency.recordSince(startTime);
+        runBound(IDX_ENCODER, encodedImageBuffer, packedLatentBuffer);
+        encoderLatency.recordSince(startTime);
+    }
+
+    /**
+     * Sample latent codes from the bound packed latent buffer, with fresh noise every time. Only
+     * called under the encode lock, with the interpreters borrowed.
+     */
+    private void reparameterizeBound(float[] latentCodes) {
+        long startTime = System.nanoTime();
+        if (isJavaStage(HelperStage.REPARAMETERIZE)) {
+            HelperStages.reparameterize(packedLatentBuffer, random, latentCodes);
+        } else {
+            bindings[IDX_REPARAMETERIZE].run(interpreters[IDX_REPARAMETERIZE]);
+            for (int i = 0; i < outputLatentDimension; i++) {
+                latentCodes[i] = encodedLatentBuffer.get(i);
+            }
+        }
+        reparameterizeLatency.recordSince(startTime);
+    }
+
+    /**
+     * Decode into a bitmap of the ring, or into a new bitmap without one
+     */
+    private Bitmap decode(float[] latentCodes, int label, BitmapRing ring) {
+        return decode(latentCodes, label, ring, null);
+    }
+
+    /**
+     * @param grayscalePixels receives the decoded grayscale pixels, e.g. for the decode cache,
+     *                        or null
+     */
+    private Bitmap decode(float[] latentCodes, int label, BitmapRing ring,
+                          byte[] grayscalePixels) {
+        if (!isDecoderReady) {
             throw new IllegalStateException("TF Lite Interpreters are not initialized yet.");
         }
 
-        Long startTime, elapsedTime;
+        if (useDirectBuffers) {
+            Bitmap bitmap = ring != null ?
+                    ring.acquire(outputImageWidth, outputImageHeight) :
+                    Bitmap.createBitmap(
+                            outputImageWidth, outputImageHeight, Bitmap.Config.ARGB_8888);
+            try {
+                decodeInto(latentCodes, label, bitmap, grayscalePixels);
+            } catch (RuntimeException e) {
+                if (ring != null) {
+                    ring.release(bitmap);
+                }
+                throw e;
+            }
+            return bitmap;
+        }
+
+        long startTime;
 
         startTime = System.nanoTime();
-        Object[] inputs = {latentCodes, new int[]{label}};
         float[][] encodedInput = new float[1][inputLatentDimension + 10];
-        Map<Integer, Object> outputs = new HashMap<>();
-        outputs.put(0, encodedInput);
-        interpreters[IDX_DECONEHOT].runForMultipleInputsOutputs(inputs, outputs);
-        elapsedTime = (System.nanoTime() - startTime) / 1000000;
-        Log.d(TAG, "One hot encoding time =" + elapsedTime + "ms");
+        if (isJavaStage(HelperStage.DECODE_ONE_HOT)) {
+            HelperStages.oneHotEncodeLatent(latentCodes, label, encodedInput[0]);
+        } else {
+            Object[] inputs = {latentCodes, new int[]{label}};
+            Map<Integer, Object> outputs = new HashMap<>();
+            outputs.put(0, encodedInput);
+            interpreters[IDX_DECONEHOT].runForMultipleInputsOutputs(inputs, outputs);
+        }
+        decodeOneHotLatency.recordSince(startTime);
+
+        startTime = System.nanoTime();
+        float[][][][] logits = new float[1][outputImageHeight][outputImageWidth][1];
+        QuantizedTensor.run(interpreters[IDX_DECODER], encodedInput, logits);
+        decoderLatency.recordSince(startTime);
 
         startTime = System.nanoTime();
-        float[][][][] logits = new float[1][inputImageHeight][inputImageWidth][1];
-        interpreters[IDX_DECODER].run(encodedInput, logits);
-        elapsedTime = (System.nanoTime() - startTime) / 1000000;
-        Log.d(TAG, "Image decoding time =" + elapsedTime + "ms");
+        byte[][] GrayscalePixels = new byte[outputImageHeight][outputImageWidth];
+        if (isJavaStage(HelperStage.BUFFERIZE)) {
+            HelperStages.bufferize(logits[0], GrayscalePixels);
+        } else {
+            interpreters[IDX_BUFFERIZE].run(logits, GrayscalePixels);
+        }
+        bufferizeLatency.recordSince(startTime);
+
+        if (grayscalePixels != null) {
+            for (int j = 0; j < outputImageHeight; j++) {
+                System.arraycopy(GrayscalePixels[j], 0,
+                        grayscalePixels, j * outputImageWidth, outputImageWidth);
+            }
+        }
 
         startTime = System.nanoTime();
-        byte[][] GrayscalePixels = new byte[inputImageHeight][inputImageWidth];
-        interpreters[IDX_BUFFERIZE].run(logits, GrayscalePixels);
-        elapsedTime = (System.nanoTime() - startTime) / 1000000;
-        Log.d(TAG, "Bufferizing time =" + elapsedTime + "ms");
+        Bitmap bitmap = ring != null ?
+                ring.render(GrayscalePixels) : convertByteArrayToBitmap(GrayscalePixels);
+        bitmapLatency.recordSince(startTime);
 
-        return convertByteArrayToBitmap(GrayscalePixels);
+        return bitmap;
     }
 
     Task<Bitmap> decodeAsync(float[] latentCodes, int label) {
-        return Tasks.call(executorService, new Callable<Bitmap>() {
+        return decodeAsync(latentCodes, label, null);
+    }
+
+    /**
+     * Decode into a bitmap of the ring instead of a new one. The caller owns the returned bitmap
+     * and gives it back with BitmapRing.release() once it is no longer displayed.
+     */
+    Task<Bitmap> decodeAsync(float[] latentCodes, int label, BitmapRing ring) {
+        final DecodedImageCache cache = decodeCache;
+        invalidateCachesIfSwapped();
+        if (cache != null) {
+            long startTime = System.nanoTime();
+            byte[] grayscalePixels = cache.get(latentCodes, label);
+            if (grayscalePixels != null) {
+                Bitmap bitmap = ring != null ?
+                        ring.render(grayscalePixels, outputImageWidth, outputImageHeight) :
+                        convertGrayscaleToBitmap(grayscalePixels);
+                decodeTotalLatency.recordSince(startTime);
+                return Tasks.forResult(bitmap);
+            }
+        }
+
+        return decodeExecutor.call(decodeTotalLatency.timed(new Callable<Bitmap>() {
             @Override
-            public Bitmap call() {
-                return decode(latentCodes, label);
+            public Bitmap call() throws IOException {
+                ensureDecoder();
+                Bitmap bitmap;
+                int sequence;
+                // The decode fills it in passing, so the bitmap is not read back for the cache
+                byte[] grayscalePixels = cache != null ?
+                        new byte[outputImageWidth * outputImageHeight] : null;
+                synchronized (decodeLock) {
+                    boolean borrowed = borrowInterpreters(DECODER_MODELS);
+                    try {
+                        bitmap = decode(latentCodes, label, ring, grayscalePixels);
+                        sequence = borrowedSwapSequences[IDX_DECODER];
+                    } finally {
+                        if (borrowed) {
+                            giveBackInterpreters(DECODER_MODELS);
+                        }
+                    }
+                }
+                if (cache != null) {
+                    synchronized (cacheLock) {
+                        if (sequence == modelRegistry.getSwapSequence()) {
+                            cache.put(latentCodes, label, grayscalePixels);
+                        }
+                    }
+                }
+                return bitmap;
             }
-        });
+        }));
     }
 
-    Task<Void> close() {
-        return Tasks.call(executorService, new Callable<Void>() {
+    /**
+     * Clear the caches if the registry swapped the models since they were filled, as they hold
+     * outputs of the previous version. Returns the swap sequence to pass to the puts.
+     */
+    private int invalidateCachesIfSwapped() {
+        int sequence = modelRegistry.getSwapSequence();
+        synchronized (cacheLock) {
+            if (sequence != cachedSwapSequence) {
+                EncodedLatentCache encodeCache = this.encodeCache;
+                if (encodeCache != null) {
+                    encodeCache.clear();
+                }
+                DecodedImageCache decodeCache = this.decodeCache;
+                if (decodeCache != null) {
+                    decodeCache.clear();
+                }
+                cachedSwapSequence = sequence;
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Cache the encoding unless the models were swapped since the sequence was read, in which
+     * case it may come from the previous version
+     */
+    private void cacheEncoding(EncodedLatentCache cache, int sequence, float[] pixels, int label,
+                               float[] packedLatentCodes, long encodeNanos) {
+        synchronized (cacheLock) {
+            if (sequence == modelRegistry.getSwapSequence()) {
+                cache.put(pixels, label, packedLatentCodes, encodeNanos);
+            }
+        }
+    }
+
+    /**
+     * Put a cache in front of the encoding of normalized pixels, e.g. the output of a
+     * StrokeRasterizer, or remove it with null. The latent codes are still sampled afresh on a
+     * hit. With direct buffers, a cache reintroduces allocation on the encode path: every lookup
+     * allocates its key, and every miss a copy of the encoder output, so encodeInto() is no
+     * longer allocation-free.
+     */
+    void setEncodeCache(EncodedLatentCache cache) {
+        encodeCache = cache;
+    }
+
+    /**
+     * Put a cache in front of decodeAsync(), or remove it with null. With direct buffers, every
+     * lookup allocates its key and every miss a copy of the decoded pixels.
+     */
+    void setDecodeCache(DecodedImageCache cache) {
+        decodeCache = cache;
+    }
+
+    /**
+     * Decode the latent codes into the given mutable ARGB_8888 bitmap. Once the interpreters are
+     * initialized with direct buffers, this allocates nothing on the Java heap.
+     */
+    void decodeInto(float[] latentCodes, int label, Bitmap bitmap) {
+        decodeInto(latentCodes, label, bitmap, null);
+    }
+
+    private void decodeInto(float[] latentCodes, int label, Bitmap bitmap,
+                            byte[] grayscalePixels) {
+        synchronized (decodeLock) {
+            if (!isDecoderReady || !useDirectBuffers) {
+                throw new IllegalStateException(
+                        "TF Lite Interpreters are not bound to direct buffers.");
+            }
+
+            boolean borrowed = borrowInterpreters(DECODER_MODELS);
+            try {
+                long startTime = System.nanoTime();
+                if (isJavaStage(HelperStage.DECODE_ONE_HOT)) {
+                    HelperStages.oneHotEncodeLatent(latentCodes, label, oneHotLatentBuffer);
+                } else {
+                    for (int i = 0; i < inputLatentDimension; i++) {
+                        latentBuffer.put(i, latentCodes[i]);
+                    }
+                    bindings[IDX_DECONEHOT].getInput(1).putInt(0, label);
+                    bindings[IDX_DECONEHOT].run(interpreters[IDX_DECONEHOT]);
+                }
+                startTime = decodeOneHotLatency.recordSince(startTime);
+                runBound(IDX_DECODER, oneHotLatentBuffer, logitsBuffer);
+                startTime = decoderLatency.recordSince(startTime);
+                if (isJavaStage(HelperStage.BUFFERIZE)) {
+                    HelperStages.bufferize(logitsBuffer, grayscaleBuffer);
+                } else {
+                    bindings[IDX_BUFFERIZE].run(interpreters[IDX_BUFFERIZE]);
+                }
+                startTime = bufferizeLatency.recordSince(startTime);
+
+                if (grayscalePixels != null) {
+                    for (int i = 0; i < grayscalePixels.length; i++) {
+                        grayscalePixels[i] = grayscaleBuffer.get(i);
+                    }
+                }
+                PixelConverter.grayscaleToArgb(grayscaleBuffer, outputPixels);
+                bitmap.setPixels(outputPixels, 0, outputImageWidth,
+                        0, 0, outputImageWidth, outputImageHeight);
+                bitmapLatency.recordSince(startTime);
+            } finally {
+                if (borrowed) {
+                    giveBackInterpreters(DECODER_MODELS);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decode a batch of latent codes in one decoder invocation. The one-hot encode and bufferize
+     * graphs are converted with a fixed batch size of 1, so only the decoder is resized to the
+     * batch size; the helpers still run once per row.
+     */
+    private byte[][][] decodeBatchToGrayscale(float[][] latentCodes, int[] labels) {
+        if (!isDecoderReady) {
+            throw new IllegalStateException("TF Lite Interpreters are not initialized yet.");
+        }
+        if (latentCodes.length != labels.length || latentCodes.length == 0) {
+            throw new IllegalArgumentException(
+                    "The number of latent codes is not matched with the number of labels");
+        }
+
+        int batchSize = latentCodes.length;
+        long startTime;
+
+        startTime = System.nanoTime();
+        float[][] encodedInputs = new float[batchSize][];
+        Map<Integer, Object> outputs = new HashMap<>();
+        for (int n = 0; n < batchSize; n++) {
+            float[][] encodedInput = new float[1][inputLatentDimension + 10];
+            if (isJavaStage(HelperStage.DECODE_ONE_HOT)) {
+                HelperStages.oneHotEncodeLatent(latentCodes[n], labels[n], encodedInput[0]);
+            } else {
+                Object[] inputs = {latentCodes[n], new int[]{labels[n]}};
+                outputs.put(0, encodedInput);
+                interpreters[IDX_DECONEHOT].runForMultipleInputsOutputs(inputs, outputs);
+            }
+            encodedInputs[n] = encodedInput[0];
+        }
+        batchOneHotLatency.recordSince(startTime);
+
+        startTime = System.nanoTime();
+        float[][][][] logits = new float[batchSize][outputImageHeight][outputImageWidth][1];
+        interpreters[IDX_DECODER].resizeInput(0, new int[]{batchSize, inputLatentDimension + 10});
+        try {
+            QuantizedTensor.run(interpreters[IDX_DECODER], encodedInputs, logits);
+        } finally {
+            // Restore the single vector shape used by decode() and the bound direct buffers
+            interpreters[IDX_DECODER].resizeInput(0, new int[]{1, inputLatentDimension + 10});
+        }
+        batchDecoderLatency.recordSince(startTime);
+
+        startTime = System.nanoTime();
+        byte[][][] grayscalePixels = new byte[batchSize][outputImageHeight][outputImageWidth];
+        float[][][][] rowLogits = new float[1][][][];
+        for (int n = 0; n < batchSize; n++) {
+            if (isJavaStage(HelperStage.BUFFERIZE)) {
+                HelperStages.bufferize(logits[n], grayscalePixels[n]);
+            } else {
+                rowLogits[0] = logits[n];
+                interpreters[IDX_BUFFERIZE].run(rowLogits, grayscalePixels[n]);
+            }
+        }
+        batchBufferizeLatency.recordSince(startTime);
+
+        return grayscalePixels;
+    }
+
+    private Bitmap[] decodeBatch(float[][] latentCodes, int[] labels) {
+        byte[][][] grayscalePixels = decodeBatchToGrayscale(latentCodes, labels);
+        Bitmap[] bitmaps = new Bitmap[grayscalePixels.length];
+        for (int n = 0; n < grayscalePixels.length; n++) {
+            bitmaps[n] = convertByteArrayToBitmap(grayscalePixels[n]);
+        }
+        return bitmaps;
+    }
+
+    Task<Bitmap[]> decodeBatchAsync(float[][] latentCodes, int[] labels) {
+        return decodeExecutor.call(batchTotalLatency.timed(new Callable<Bitmap[]>() {
             @Override
-            public Void call() {
-                if (isInitialized) {
-                    for (Interpreter interpreter : interpreters) {
-                        interpreter.close();
+            public Bitmap[] call() throws IOException {
+                ensureDecoder();
+                synchronized (decodeLock) {
+                    boolean borrowed = borrowInterpreters(DECODER_MODELS);
+                    try {
+                        return decodeBatch(latentCodes, labels);
+                    } finally {
+                        if (borrowed) {
+                            giveBackInterpreters(DECODER_MODELS);
+                        }
+                    }
+                }
+            }
+        }));
+    }
+
+    /**
+     * Decode a batch of latent codes into a single atlas bitmap, tiled row by row with the given
+     * number of columns.
+     */
+    private Bitmap decodeAtlas(float[][] latentCodes, int[] labels, int columns) {
+        if (columns <= 0) {
+            throw new IllegalArgumentException("The number of columns must be positive");
+        }
+
+        byte[][][] grayscalePixels = decodeBatchToGrayscale(latentCodes, labels);
+        int rows = (grayscalePixels.length + columns - 1) / columns;
+        int atlasWidth = columns * outputImageWidth;
+        int[] pixels = new int[atlasWidth * rows * outputImageHeight];
+        for (int n = 0; n < grayscalePixels.length; n++) {
+            int offset = (n / columns) * outputImageHeight * atlasWidth +
+                    (n % columns) * outputImageWidth;
+            PixelConverter.grayscaleToArgb(grayscalePixels[n], pixels, offset, atlasWidth);
+        }
+
+        return Bitmap.createBitmap(
+                pixels, atlasWidth, rows * outputImageHeight, Bitmap.Config.ARGB_8888);
+    }
+
+    Task<Bitmap> decodeAtlasAsync(float[][] latentCodes, int[] labels, int columns) {
+        return decodeExecutor.call(batchTotalLatency.timed(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() throws IOException {
+                ensureDecoder();
+                synchronized (decodeLock) {
+                    boolean borrowed = borrowInterpreters(DECODER_MODELS);
+                    try {
+                        return decodeAtlas(latentCodes, labels, columns);
+                    } finally {
+                        if (borrowed) {
+                            giveBackInterpreters(DECODER_MODELS);
+                        }
                     }
                 }
-                Log.d(TAG, "Closed TFLite interpreters");
+            }
+        }));
+    }
+
+    Task<Void> close() {
+        Task<Void> encodeClosed = encodeExecutor.call(new Callable<Void>() {
+            @Override
+            public Void call() {
+                releaseInterpreters(ENCODER_MODELS);
+                return null;
+            }
+        });
+        Task<Void> decodeClosed = decodeExecutor.call(new Callable<Void>() {
+            @Override
+            public Void call() {
+                releaseInterpreters(DECODER_MODELS);
                 return null;
             }
         });
+        encodeExecutor.shutdown();
+        decodeExecutor.shutdown();
+
+        return Tasks.whenAll(encodeClosed, decodeClosed).addOnSuccessListener(
+                new OnSuccessListener<Void>() {
+                    @Override
+                    public void onSuccess(Void aVoid) {
+                        Log.d(TAG, "Released TFLite interpreters");
+                    }
+                });
     }
 
     private float[][] convertBitmapToFloatArray(Bitmap bitmap) {
         float[][] normalizedPixels = new float[inputImageHeight][inputImageWidth];
         int[] pixels = new int[inputImageWidth * inputImageHeight];
-        bitmap.getPixels(pixels, 0, bitmap.getWidth(),
-                0, 0, bitmap.getWidth(), bitmap.getHeight());
-
-        for (int j = 0; j < inputImageHeight; j++) {
-            for (int i = 0; i < inputImageWidth; i++) {
-                int px = pixels[j * inputImageHeight + i];
-                int r = (px >> 16 & 0xFF), g = (px >> 8 & 0xFF), b = (px & 0xFF);
+        bitmap.getPixels(pixels, 0, inputImageWidth, 0, 0, inputImageWidth, inputImageHeight);
 
-                // Convert RGB to grayscale and normalize pixel value to [0..1]
-                normalizedPixels[j][i] = (r + g + b) / 3f / 255f;
-            }
-        }
+        // Convert RGB to grayscale and normalize pixel value to [0..1]
+        PixelConverter.normalize(pixels, inputImageWidth, normalizedPixels);
 
         return normalizedPixels;
     }
 
     private Bitmap convertByteArrayToBitmap(byte[][] grayscalePixels) {
-        if (grayscalePixels.length != inputImageHeight &&
-                grayscalePixels[0].length != inputImageWidth) {
+        if (grayscalePixels.length != outputImageHeight ||
+                grayscalePixels[0].length != outputImageWidth) {
             throw new IllegalStateException(
                     "The byteBuffer length is not matched with the image size");
         }
 
-        int[] pixels = new int[inputImageWidth * inputImageHeight];
-        for (int j = 0; j < inputImageHeight; j++) {
-            for (int i = 0; i < inputImageWidth; i++) {
-                int px = (int) grayscalePixels[j][i] & 0xFF;
+        int[] pixels = new int[outputImageWidth * outputImageHeight];
+        PixelConverter.grayscaleToArgb(grayscalePixels, pixels, 0, outputImageWidth);
 
-                pixels[j * inputImageHeight + i] = 0xFF000000 | (px << 16) | (px << 8) | px;
-            }
-        }
+        return Bitmap.createBitmap(
+                pixels, outputImageWidth, outputImageHeight, Bitmap.Config.ARGB_8888);
+    }
+
+    private Bitmap convertGrayscaleToBitmap(byte[] grayscalePixels) {
+        int[] pixels = new int[grayscalePixels.length];
+        PixelConverter.grayscaleToArgb(grayscalePixels, pixels);
 
         return Bitmap.createBitmap(
-                pixels, inputImageWidth, inputImageHeight, Bitmap.Config.ARGB_8888);
+                pixels, outputImageWidth, outputImageHeight, Bitmap.Config.ARGB_8888);
     }
 }
@@ -0,0 +1,22 @@
+package com.example.vaedemo;
+
+/**
+ * Whether and when a model warms its interpreters up with dummy inputs at initialization. The
+ * first invocation of an interpreter allocates its tensors, prepares its delegate and sets up
+ * its native kernels, and without a warm-up the first drawing of the user pays for it.
+ */
+enum WarmUpMode {
+    /**
+     * No warm-up, the first request is slower than the following ones
+     */
+    NONE,
+    /**
+     * The initialize() Task completes once the interpreters are warm
+     */
+    BEFORE_READY,
+    /**
+     * The initialize() Task completes once the interpreters are loaded, and the warm-up runs
+     * right after it on the stage thread, ahead of the requests queued later
+     */
+    AFTER_READY,
+}
@@ -0,0 +1,116 @@
+package com.example.vaedemo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of the interpreter auto-tuner, using a fake CPU-only benchmark.
+ */
+public class AutoTunerTest {
+    private static final String DEVICE = "host";
+
+    private File profileFile;
+    private final List<InterpreterConfig> measured = new ArrayList<>();
+
+    /**
+     * Pretends that 2 threads is the sweet spot and that NNAPI is not supported
+     */
+    private final AutoTuner.Benchmark benchmark = new AutoTuner.Benchmark() {
+        @Override
+        public long measureNanos(InterpreterConfig config) {
+            measured.add(config);
+            if (config.accelerator == InterpreterConfig.Accelerator.NNAPI) {
+                throw new IllegalArgumentException("NNAPI is not available");
+            }
+            long nanos = 1000 + Math.abs(config.numThreads - 2) * 100;
+            return config.accelerator == InterpreterConfig.Accelerator.XNNPACK ? nanos / 2 : nanos;
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        profileFile = File.createTempFile("tuner", ".properties");
+        assertTrue(profileFile.delete());
+    }
+
+    @After
+    public void tearDown() {
+        profileFile.delete();
+    }
+
+    @Test
+    public void tune_picksFastestWorkingCandidate() throws Exception {
+        AutoTuner tuner = new AutoTuner(profileFile, DEVICE);
+
+        InterpreterConfig config = tuner.tune("model", InterpreterConfig.candidates(4, true),
+                benchmark);
+
+        assertEquals(new InterpreterConfig(InterpreterConfig.Accelerator.XNNPACK, 2), config);
+        assertEquals(9, measured.size());
+        assertEquals(8, tuner.getLastResults().size());
+    }
+
+    @Test
+    public void tune_reusesPersistedProfile() throws Exception {
+        new AutoTuner(profileFile, DEVICE).tune("model",
+                InterpreterConfig.candidates(4, false), benchmark);
+        measured.clear();
+
+        AutoTuner tuner = new AutoTuner(profileFile, DEVICE);
+        InterpreterConfig config = tuner.tune("model", InterpreterConfig.candidates(4, false),
+                benchmark);
+
+        assertEquals(new InterpreterConfig(InterpreterConfig.Accelerator.XNNPACK, 2), config);
+        assertTrue(measured.isEmpty());
+        assertTrue(tuner.getLastResults().isEmpty());
+    }
+
+    @Test
+    public void tune_retunesForOtherModelOrDevice() throws Exception {
+        new AutoTuner(profileFile, DEVICE).tune("model",
+                InterpreterConfig.candidates(2, false), benchmark);
+        measured.clear();
+
+        new AutoTuner(profileFile, DEVICE).tune("other-model",
+                InterpreterConfig.candidates(2, false), benchmark);
+        assertEquals(4, measured.size());
+
+        new AutoTuner(profileFile, "other-device").tune("model",
+                InterpreterConfig.candidates(2, false), benchmark);
+        assertEquals(8, measured.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void tune_failsWhenNoCandidateWorks() throws Exception {
+        List<InterpreterConfig> candidates = new ArrayList<>();
+        candidates.add(new InterpreterConfig(InterpreterConfig.Accelerator.NNAPI, 1));
+
+        new AutoTuner(profileFile, DEVICE).tune("model", candidates, benchmark);
+    }
+
+    @Test
+    public void hash_dependsOnContentOnly() {
+        ByteBuffer model = ByteBuffer.wrap(new byte[]{1, 2, 3, 4});
+        model.position(2);
+
+        assertEquals(AutoTuner.hash(ByteBuffer.wrap(new byte[]{1, 2, 3, 4})),
+                AutoTuner.hash(model));
+        assertEquals(2, model.position());
+        assertNotEquals(AutoTuner.hash(model), AutoTuner.hash(ByteBuffer.wrap(new byte[]{1})));
+    }
+
+    @Test
+    public void config_roundTripsThroughString() {
+        InterpreterConfig config = new InterpreterConfig(InterpreterConfig.Accelerator.CPU, 3);
+
+        assertEquals(config, InterpreterConfig.parse(config.toString()));
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.vaedemo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of the decoded image LRU cache.
+ */
+public class DecodedImageCacheTest {
+    private static final float STEP = 0.1f;
+
+    @Test
+    public void get_hitsWithinQuantizationStep() {
+        DecodedImageCache cache = new DecodedImageCache(4, STEP);
+        byte[] pixels = new byte[28 * 28];
+
+        cache.put(new float[]{0.5f, -1.2f}, 3, pixels);
+
+        assertSame(pixels, cache.get(new float[]{0.52f, -1.18f}, 3));
+        assertNull(cache.get(new float[]{0.6f, -1.2f}, 3));
+        assertNull(cache.get(new float[]{0.5f, -1.2f}, 4));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsedEntry() {
+        DecodedImageCache cache = new DecodedImageCache(2, STEP);
+
+        cache.put(new float[]{0f}, 0, new byte[1]);
+        cache.put(new float[]{1f}, 0, new byte[1]);
+        assertNotNull(cache.get(new float[]{0f}, 0));
+        cache.put(new float[]{2f}, 0, new byte[1]);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertNotNull(cache.get(new float[]{0f}, 0));
+        assertNull(cache.get(new float[]{1f}, 0));
+        assertNotNull(cache.get(new float[]{2f}, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsEmptyCache() {
+        new DecodedImageCache(0, STEP);
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.vaedemo;
+
+import android.graphics.Bitmap;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of the classify -> encode -> decode pipeline.
+ */
+public class DrawingPipelineTest {
+    private final List<TaskCompletionSource<SpeculativeClassifier.Result>> classifying =
+            new ArrayList<>();
+    private final List<TaskCompletionSource<float[]>> encoding = new ArrayList<>();
+    private final List<TaskCompletionSource<Bitmap>> decoding = new ArrayList<>();
+    private final List<float[]> decodedLatentCodes = new ArrayList<>();
+
+    private final DrawingPipeline pipeline = new DrawingPipeline(new DrawingPipeline.Stages() {
+        @Override
+        public Task<SpeculativeClassifier.Result> classify(float[] pixels) {
+            TaskCompletionSource<SpeculativeClassifier.Result> source =
+                    new TaskCompletionSource<>();
+            classifying.add(source);
+            return source.getTask();
+        }
+
+        @Override
+        public Task<float[]> encode(float[] pixels, int label) {
+            TaskCompletionSource<float[]> source = new TaskCompletionSource<>();
+            encoding.add(source);
+            return source.getTask();
+        }
+
+        @Override
+        public Task<Bitmap> decode(float[] latentCodes, int label) {
+            TaskCompletionSource<Bitmap> source = new TaskCompletionSource<>();
+            decoding.add(source);
+            decodedLatentCodes.add(latentCodes);
+            return source.getTask();
+        }
+    });
+
+    private static float[] drawing(float value) {
+        return new float[]{value, 0f, 0f};
+    }
+
+    @Test
+    public void classifyEncodeDecode_encodesWhenTheClassificationDidNot() {
+        DrawingPipeline.Run run = pipeline.classifyEncodeDecode(drawing(1f));
+        classifying.get(0).setResult(new SpeculativeClassifier.Result(7, null));
+
+        assertEquals(1, encoding.size());
+        assertFalse(run.encoded.isComplete());
+        float[] latentCodes = {1f, 2f};
+        encoding.get(0).setResult(latentCodes);
+
+        assertTrue(run.encoded.isSuccessful());
+        assertSame(latentCodes, run.encoded.getResult().latentCodes);
+        assertEquals(1, decoding.size());
+        decoding.get(0).setResult(null);
+
+        assertTrue(run.decoded.isSuccessful());
+        assertEquals(7, run.decoded.getResult().label);
+        assertSame(latentCodes, run.decoded.getResult().latentCodes);
+        assertNull(run.decoded.getResult().bitmap);
+    }
+
+    @Test
+    public void classifyEncodeDecode_reusesTheSpeculativeEncoding() {
+        float[] latentCodes = {1f, 2f};
+        DrawingPipeline.Run run = pipeline.classifyEncodeDecode(drawing(1f));
+        classifying.get(0).setResult(new SpeculativeClassifier.Result(3, latentCodes));
+
+        assertEquals(0, encoding.size());
+        assertTrue(run.encoded.isSuccessful());
+        assertEquals(1, decoding.size());
+
+        // The decoder gets its own copy, which the caller of the pipeline cannot edit
+        assertNotSame(latentCodes, decodedLatentCodes.get(0));
+        assertArrayEquals(latentCodes, decodedLatentCodes.get(0), 0f);
+    }
+
+    @Test
+    public void classifyEncodeDecode_encodesTheNextDrawingWhileThisOneDecodes() {
+        DrawingPipeline.Run first = pipeline.classifyEncodeDecode(drawing(1f));
+        classifying.get(0).setResult(new SpeculativeClassifier.Result(1, new float[]{1f}));
+
+        DrawingPipeline.Run second = pipeline.classifyEncodeDecode(drawing(2f));
+        classifying.get(1).setResult(new SpeculativeClassifier.Result(2, new float[]{2f}));
+
+        assertTrue(first.encoded.isComplete());
+        assertTrue(second.encoded.isComplete());
+        assertEquals(2, decoding.size());
+        assertFalse(first.decoded.isComplete());
+
+        decoding.get(0).setResult(null);
+        decoding.get(1).setResult(null);
+        assertEquals(1, first.decoded.getResult().label);
+        assertEquals(2, second.decoded.getResult().label);
+    }
+
+    @Test
+    public void classifyEncodeDecode_failsBothTasksWhenAStageFails() {
+        DrawingPipeline.Run run = pipeline.classifyEncodeDecode(drawing(1f));
+        classifying.get(0).setResult(new SpeculativeClassifier.Result(7, null));
+        encoding.get(0).setException(new IllegalStateException("Encoder closed"));
+
+        assertFalse(run.encoded.isSuccessful());
+        assertTrue(run.encoded.getException() instanceof IllegalStateException);
+        assertFalse(run.decoded.isSuccessful());
+        assertTrue(run.decoded.getException() instanceof IllegalStateException);
+        assertEquals(0, decoding.size());
+    }
+}
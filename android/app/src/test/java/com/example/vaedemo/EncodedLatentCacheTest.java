@@ -0,0 +1,66 @@
+package com.example.vaedemo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of the encoder output LRU cache.
+ */
+public class EncodedLatentCacheTest {
+    private static float[] drawing(float value) {
+        float[] pixels = new float[28 * 28];
+        pixels[100] = value;
+        return pixels;
+    }
+
+    @Test
+    public void get_hitsOnlyTheSamePixelsAndLabel() {
+        EncodedLatentCache cache = new EncodedLatentCache(4);
+        float[] packedLatentCodes = {0.5f, -1.2f};
+
+        cache.put(drawing(1f), 3, packedLatentCodes, 2000000);
+
+        assertArrayEquals(packedLatentCodes, cache.get(drawing(1f), 3), 0f);
+        assertNull(cache.get(drawing(0.9f), 3));
+        assertNull(cache.get(drawing(1f), 4));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2000000, cache.getSavedNanos());
+    }
+
+    @Test
+    public void put_copiesThePixelsAndLatentCodes() {
+        EncodedLatentCache cache = new EncodedLatentCache(4);
+        float[] pixels = drawing(1f);
+        float[] packedLatentCodes = {0.5f, -1.2f};
+
+        cache.put(pixels, 3, packedLatentCodes, 0);
+        pixels[0] = 1f;
+        packedLatentCodes[0] = 7f;
+
+        assertNull(cache.get(pixels, 3));
+        assertEquals(0.5f, cache.get(drawing(1f), 3)[0], 0f);
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsedEntry() {
+        EncodedLatentCache cache = new EncodedLatentCache(2);
+
+        cache.put(drawing(0f), 0, new float[1], 0);
+        cache.put(drawing(1f), 0, new float[1], 0);
+        assertNotNull(cache.get(drawing(0f), 0));
+        cache.put(drawing(2f), 0, new float[1], 0);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertNotNull(cache.get(drawing(0f), 0));
+        assertNull(cache.get(drawing(1f), 0));
+        assertNotNull(cache.get(drawing(2f), 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsEmptyCache() {
+        new EncodedLatentCache(0);
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.vaedemo;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of the latency histograms and the metrics registry.
+ */
+public class LatencyHistogramTest {
+    private static final long MICROS = 1000;
+
+    @Test
+    public void bucketOf_isExactBelowSixteenMicrosAndWithinErrorAbove() {
+        for (long micros = 0; micros < 16; micros++) {
+            assertEquals(micros, LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(micros)));
+        }
+        for (long micros = 16; micros < 1 << 20; micros += 37) {
+            long upperBound = LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(micros));
+            assertTrue(upperBound >= micros);
+            assertTrue(upperBound - micros <= micros / 16);
+        }
+    }
+
+    @Test
+    public void snapshot_reportsPercentilesWithMicrosecondResolution() {
+        LatencyHistogram histogram = new LatencyHistogram("stage");
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * MICROS + 400);
+        }
+        histogram.recordFailure();
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(100, snapshot.count);
+        assertEquals(1, snapshot.failures);
+        assertEquals(50, snapshot.meanMicros);
+        assertEquals(51, snapshot.p50Micros);
+        assertEquals(91, snapshot.p90Micros);
+        assertEquals(99, snapshot.p99Micros);
+        assertEquals(100, snapshot.maxMicros);
+    }
+
+    @Test
+    public void timed_recordsSuccessesAndCountsFailures() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram("stage");
+
+        assertEquals("done", histogram.timed(new Callable<String>() {
+            @Override
+            public String call() {
+                return "done";
+            }
+        }).call());
+        try {
+            histogram.timed(new Callable<String>() {
+                @Override
+                public String call() {
+                    throw new IllegalStateException();
+                }
+            }).call();
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        assertEquals(1, histogram.snapshot().count);
+        assertEquals(1, histogram.snapshot().failures);
+    }
+
+    @Test
+    public void registry_sharesHistogramsByNameAndExportsSortedJson() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.histogram("b").record(2 * MICROS);
+        registry.histogram("a").record(MICROS);
+
+        assertSame(registry.histogram("a"), registry.histogram("a"));
+        List<LatencyHistogram.Snapshot> snapshots = registry.snapshot();
+        assertEquals("a", snapshots.get(0).name);
+        assertEquals("b", snapshots.get(1).name);
+        assertEquals("[{\"name\":\"a\",\"count\":1,\"failures\":0,\"meanUs\":1,\"p50Us\":1," +
+                "\"p90Us\":1,\"p99Us\":1,\"maxUs\":1},{\"name\":\"b\",\"count\":1," +
+                "\"failures\":0,\"meanUs\":2,\"p50Us\":2,\"p90Us\":2,\"p99Us\":2,\"maxUs\":2}]",
+                registry.toJson());
+
+        registry.reset();
+        assertEquals(0, registry.histogram("a").snapshot().count);
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.vaedemo;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of the latest-wins request scheduler.
+ */
+public class LatestRequestSchedulerTest {
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final List<Integer> started = new ArrayList<>();
+    private final List<TaskCompletionSource<Void>> running = new ArrayList<>();
+
+    private LatestRequestScheduler.Request request(final int input) {
+        return new LatestRequestScheduler.Request() {
+            @Override
+            public Task<?> start() {
+                TaskCompletionSource<Void> source = new TaskCompletionSource<>();
+                started.add(input);
+                running.add(source);
+                return source.getTask();
+            }
+        };
+    }
+
+    @Test
+    public void submit_runsImmediatelyWhenIdle() {
+        LatestRequestScheduler scheduler = new LatestRequestScheduler("Test", DIRECT_EXECUTOR);
+
+        scheduler.submit(request(1));
+
+        assertEquals(1, started.size());
+        assertEquals(1, scheduler.getExecutedCount());
+        assertEquals(0, scheduler.getCoalescedCount());
+    }
+
+    @Test
+    public void submit_keepsOnlyLatestPendingRequest() {
+        LatestRequestScheduler scheduler = new LatestRequestScheduler("Test", DIRECT_EXECUTOR);
+
+        scheduler.submit(request(1));
+        scheduler.submit(request(2));
+        scheduler.submit(request(3));
+        scheduler.submit(request(4));
+        assertEquals(1, started.size());
+
+        running.get(0).setResult(null);
+        assertEquals(2, started.size());
+        assertEquals(4, (int) started.get(1));
+
+        running.get(1).setResult(null);
+        assertEquals(2, started.size());
+        assertEquals(4, scheduler.getSubmittedCount());
+        assertEquals(2, scheduler.getExecutedCount());
+        assertEquals(2, scheduler.getCoalescedCount());
+    }
+
+    @Test
+    public void submit_startsPendingRequestAfterFailure() {
+        LatestRequestScheduler scheduler = new LatestRequestScheduler("Test", DIRECT_EXECUTOR);
+
+        scheduler.submit(request(1));
+        scheduler.submit(request(2));
+        running.get(0).setException(new RuntimeException("Inference failed"));
+
+        assertEquals(2, started.size());
+        assertEquals(2, (int) started.get(1));
+    }
+
+    @Test
+    public void submit_skipsRequestWithoutTask() {
+        LatestRequestScheduler scheduler = new LatestRequestScheduler("Test", DIRECT_EXECUTOR);
+
+        scheduler.submit(new LatestRequestScheduler.Request() {
+            @Override
+            public Task<?> start() {
+                return null;
+            }
+        });
+        scheduler.submit(request(1));
+
+        assertEquals(1, started.size());
+        assertEquals(2, scheduler.getExecutedCount());
+    }
+}
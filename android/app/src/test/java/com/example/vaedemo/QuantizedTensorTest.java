@@ -0,0 +1,86 @@
+package com.example.vaedemo;
+
+import org.junit.Test;
+import org.tensorflow.lite.DataType;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of the float view of quantized tensors.
+ */
+public class QuantizedTensorTest {
+    @Test
+    public void quantize_roundsAndClampsWithTheScaleAndZeroPoint() {
+        QuantizedTensor tensor = new QuantizedTensor(DataType.INT8, 1f / 255, -128);
+
+        assertTrue(tensor.isQuantized());
+        assertEquals(-128, tensor.quantize(0f));
+        assertEquals(127, tensor.quantize(1f));
+        assertEquals(0, tensor.quantize(128f / 255));
+        assertEquals(-128, tensor.quantize(-0.5f));
+        assertEquals(127, tensor.quantize(2f));
+        assertEquals(128f / 255, tensor.dequantize((byte) 0), 1e-6f);
+        assertEquals(1f, tensor.dequantize((byte) 127), 1e-6f);
+    }
+
+    @Test
+    public void dequantize_readsUint8AsUnsigned() {
+        QuantizedTensor tensor = new QuantizedTensor(DataType.UINT8, 0.5f, 10);
+
+        assertEquals((byte) 200, tensor.quantize(95f));
+        assertEquals(95f, tensor.dequantize((byte) 200), 0f);
+        assertEquals(0, tensor.quantize(-100f));
+    }
+
+    @Test
+    public void quantize_roundTripsArraysAndBuffersWithinHalfAStep() {
+        float scale = 0.05f;
+        QuantizedTensor tensor = new QuantizedTensor(DataType.INT8, scale, 3);
+        float[][][] values = new float[2][3][4];
+        int count = 0;
+        for (float[][] plane : values) {
+            for (float[] row : plane) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = (count++ - 12) * 0.37f;
+                }
+            }
+        }
+        assertEquals(24, QuantizedTensor.countElements(values));
+
+        ByteBuffer quantized = ByteBuffer.allocateDirect(count).order(ByteOrder.nativeOrder());
+        tensor.quantize(values, quantized);
+        quantized.rewind();
+        float[][][] restored = new float[2][3][4];
+        tensor.dequantize(quantized, restored);
+
+        FloatBuffer floats = FloatBuffer.allocate(count);
+        tensor.dequantize(quantized, floats);
+        ByteBuffer requantized = ByteBuffer.allocate(count);
+        tensor.quantize(floats, requantized);
+
+        for (int n = 0; n < 2; n++) {
+            for (int j = 0; j < 3; j++) {
+                assertArrayEquals(values[n][j], restored[n][j], scale / 2 + 1e-6f);
+                for (int i = 0; i < 4; i++) {
+                    int index = (n * 3 + j) * 4 + i;
+                    assertEquals(restored[n][j][i], floats.get(index), 0f);
+                    assertEquals(quantized.get(index), requantized.get(index));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void floatTensors_areNotQuantized() {
+        assertFalse(new QuantizedTensor(DataType.FLOAT32, 0f, 0).isQuantized());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void quantizedTensors_needAPositiveScale() {
+        new QuantizedTensor(DataType.INT8, 0f, 0);
+    }
+}
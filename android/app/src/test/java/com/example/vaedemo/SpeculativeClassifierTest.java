@@ -0,0 +1,138 @@
+package com.example.vaedemo;
+
+import com.google.android.gms.tasks.CancellationToken;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of the speculative classification while drawing.
+ */
+public class SpeculativeClassifierTest {
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final List<TaskCompletionSource<Integer>> classifying = new ArrayList<>();
+    private final List<CancellationToken> tokens = new ArrayList<>();
+
+    private final SpeculativeClassifier.Stages stages = new SpeculativeClassifier.Stages() {
+        @Override
+        public Task<Integer> classify(float[] pixels, CancellationToken token) {
+            TaskCompletionSource<Integer> source = new TaskCompletionSource<>(token);
+            classifying.add(source);
+            tokens.add(token);
+            return source.getTask();
+        }
+
+        @Override
+        public Task<float[]> encode(float[] pixels, int label, CancellationToken token) {
+            TaskCompletionSource<float[]> source = new TaskCompletionSource<>(token);
+            source.setResult(new float[]{pixels[0], label});
+            return source.getTask();
+        }
+    };
+
+    private static float[] drawing(float value) {
+        return new float[]{value, 0f, 0f};
+    }
+
+    @Test
+    public void speculate_cancelsTheSupersededSpeculation() {
+        SpeculativeClassifier classifier = new SpeculativeClassifier(stages, 0, false,
+                DIRECT_EXECUTOR);
+
+        classifier.speculate(drawing(1f));
+        classifier.speculate(drawing(2f));
+
+        assertEquals(2, classifying.size());
+        assertTrue(tokens.get(0).isCancellationRequested());
+        assertFalse(tokens.get(1).isCancellationRequested());
+        assertTrue(classifying.get(0).getTask().isCanceled());
+        assertEquals(2, classifier.getSpeculatedCount());
+        assertEquals(1, classifier.getDiscardedCount());
+    }
+
+    @Test
+    public void speculate_ignoresAnUnchangedDrawing() {
+        SpeculativeClassifier classifier = new SpeculativeClassifier(stages, 0, false,
+                DIRECT_EXECUTOR);
+
+        classifier.speculate(drawing(1f));
+        classifier.speculate(drawing(1f));
+
+        assertEquals(1, classifying.size());
+        assertEquals(0, classifier.getDiscardedCount());
+    }
+
+    @Test
+    public void commit_reusesTheSpeculationOnAnUnchangedDrawing() {
+        SpeculativeClassifier classifier = new SpeculativeClassifier(stages, 0, false,
+                DIRECT_EXECUTOR);
+
+        classifier.speculate(drawing(1f));
+        classifying.get(0).setResult(7);
+        Task<SpeculativeClassifier.Result> result = classifier.commit(drawing(1f));
+
+        assertEquals(1, classifying.size());
+        assertTrue(result.isSuccessful());
+        assertEquals(7, result.getResult().label);
+        assertNull(result.getResult().latentCodes);
+        assertEquals(1, classifier.getReusedCount());
+        assertEquals(0, classifier.getDiscardedCount());
+    }
+
+    @Test
+    public void commit_runsAgainOnAChangedDrawing() {
+        SpeculativeClassifier classifier = new SpeculativeClassifier(stages, 0, false,
+                DIRECT_EXECUTOR);
+
+        classifier.speculate(drawing(1f));
+        Task<SpeculativeClassifier.Result> result = classifier.commit(drawing(2f));
+
+        assertEquals(2, classifying.size());
+        assertTrue(tokens.get(0).isCancellationRequested());
+        assertFalse(result.isComplete());
+        classifying.get(1).setResult(3);
+        assertEquals(3, result.getResult().label);
+        assertEquals(0, classifier.getReusedCount());
+        assertEquals(1, classifier.getDiscardedCount());
+    }
+
+    @Test
+    public void commit_encodesWithTheClassifiedLabel() {
+        SpeculativeClassifier classifier = new SpeculativeClassifier(stages, 0, true,
+                DIRECT_EXECUTOR);
+
+        classifier.speculate(drawing(0.5f));
+        classifying.get(0).setResult(4);
+        Task<SpeculativeClassifier.Result> result = classifier.commit(drawing(0.5f));
+
+        assertTrue(result.isSuccessful());
+        assertEquals(4, result.getResult().label);
+        assertArrayEquals(new float[]{0.5f, 4f}, result.getResult().latentCodes, 0f);
+    }
+
+    @Test
+    public void isDue_throttlesSpeculations() {
+        SpeculativeClassifier classifier = new SpeculativeClassifier(stages, 60000, false,
+                DIRECT_EXECUTOR);
+
+        assertTrue(classifier.isDue());
+        classifier.speculate(drawing(1f));
+        assertFalse(classifier.isDue());
+        classifier.cancel();
+        assertTrue(classifier.isDue());
+        assertTrue(tokens.get(0).isCancellationRequested());
+    }
+}
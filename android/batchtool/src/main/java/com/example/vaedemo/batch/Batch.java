@@ -0,0 +1,33 @@
+package com.example.vaedemo.batch;
+
+/**
+ * Up to one model batch of records moving from the source through a worker to the sink. Sources
+ * fill in the pixels or the latent codes, workers compute the other, and the index keeps the
+ * output in the order of the input although the workers finish out of order.
+ */
+final class Batch {
+    /**
+     * Label of a record whose label is unknown until it is classified
+     */
+    static final int UNKNOWN_LABEL = -1;
+
+    /**
+     * Position of the batch in the input, set by the pipeline
+     */
+    long index;
+    final int size;
+    final int[] labels;
+
+    /**
+     * Flattened rows of normalized pixels, latent codes and grayscale output, or null where the
+     * job does not use them
+     */
+    float[] pixels;
+    float[] latentCodes;
+    byte[] grayscalePixels;
+
+    Batch(int size) {
+        this.size = size;
+        this.labels = new int[size];
+    }
+}
@@ -0,0 +1,205 @@
+package com.example.vaedemo.batch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams a whole dataset through a pool of workers: a reader thread reads batches from the
+ * source, every worker thread runs its own models on them, and a writer thread writes them to
+ * the sink in input order. At most a few batches per worker are in flight, so the memory stays
+ * flat however large the dataset is.
+ */
+final class BatchPipeline {
+    /**
+     * Batches in flight per worker, enough to keep the workers busy while the reader and the
+     * writer are blocked on I/O
+     */
+    private static final int BATCHES_IN_FLIGHT_PER_WORKER = 4;
+
+    /**
+     * Marks the end of the input for a worker, and the end of a worker for the writer
+     */
+    private static final Batch END = new Batch(0);
+
+    interface Source extends Closeable {
+        /**
+         * Read the next batch of at most maxSize records, or null at the end of the input
+         */
+        Batch read(int maxSize) throws IOException;
+    }
+
+    interface Sink extends Closeable {
+        void write(Batch batch) throws IOException;
+    }
+
+    interface Worker extends Closeable {
+        void process(Batch batch) throws Exception;
+    }
+
+    /**
+     * Creates the worker of one thread, on that thread, with the interpreters it owns
+     */
+    interface WorkerFactory {
+        Worker create(int workerIndex) throws Exception;
+    }
+
+    static final class Report {
+        final long recordCount;
+        final long batchCount;
+        final long elapsedNanos;
+
+        Report(long recordCount, long batchCount, long elapsedNanos) {
+            this.recordCount = recordCount;
+            this.batchCount = batchCount;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        double getRecordsPerSecond() {
+            return elapsedNanos > 0 ? recordCount * 1e9 / elapsedNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d images in %d batches in %.2f s: %.1f images/s",
+                    recordCount, batchCount, elapsedNanos / 1e9, getRecordsPerSecond());
+        }
+    }
+
+    private final int workerCount;
+    private final int batchSize;
+
+    BatchPipeline(int workerCount, int batchSize) {
+        if (workerCount <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("The worker count and batch size must be positive");
+        }
+        this.workerCount = workerCount;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Run the whole source through the workers into the sink. The first failure of any thread
+     * stops the others and is rethrown.
+     */
+    Report run(final Source source, final Sink sink, final WorkerFactory workerFactory)
+            throws Exception {
+        final Semaphore inFlight = new Semaphore(BATCHES_IN_FLIGHT_PER_WORKER * workerCount);
+        final BlockingQueue<Batch> pending = new LinkedBlockingQueue<>();
+        final BlockingQueue<Batch> processed = new LinkedBlockingQueue<>();
+        final AtomicLong recordCount = new AtomicLong();
+        final AtomicLong batchCount = new AtomicLong();
+        long startTime = System.nanoTime();
+
+        ExecutorService executor = Executors.newFixedThreadPool(workerCount + 2);
+        CompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+        try {
+            completion.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    read(source, inFlight, pending);
+                    return null;
+                }
+            });
+            for (int i = 0; i < workerCount; i++) {
+                final int workerIndex = i;
+                completion.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        process(workerFactory.create(workerIndex), pending, processed);
+                        return null;
+                    }
+                });
+            }
+            completion.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    write(sink, inFlight, processed, recordCount, batchCount);
+                    return null;
+                }
+            });
+
+            for (int i = 0; i < workerCount + 2; i++) {
+                try {
+                    completion.take().get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof Exception ? (Exception) cause : e;
+                }
+            }
+            return new Report(recordCount.get(), batchCount.get(), System.nanoTime() - startTime);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void read(Source source, Semaphore inFlight, BlockingQueue<Batch> pending)
+            throws IOException, InterruptedException {
+        long index = 0;
+        while (true) {
+            inFlight.acquire();
+            Batch batch = source.read(batchSize);
+            if (batch == null) {
+                break;
+            }
+            batch.index = index++;
+            pending.put(batch);
+        }
+        for (int i = 0; i < workerCount; i++) {
+            pending.put(END);
+        }
+    }
+
+    private static void process(Worker worker, BlockingQueue<Batch> pending,
+                                BlockingQueue<Batch> processed) throws Exception {
+        try {
+            Batch batch;
+            while ((batch = pending.take()) != END) {
+                worker.process(batch);
+                processed.put(batch);
+            }
+        } finally {
+            worker.close();
+            processed.put(END);
+        }
+    }
+
+    /**
+     * Write the batches in input order, holding back those that overtook an earlier one
+     */
+    private void write(Sink sink, Semaphore inFlight, BlockingQueue<Batch> processed,
+                       AtomicLong recordCount, AtomicLong batchCount)
+            throws IOException, InterruptedException {
+        Map<Long, Batch> overtaking = new HashMap<>();
+        long nextIndex = 0;
+        int endedWorkers = 0;
+        while (endedWorkers < workerCount) {
+            Batch batch = processed.take();
+            if (batch == END) {
+                endedWorkers++;
+                continue;
+            }
+            overtaking.put(batch.index, batch);
+            while ((batch = overtaking.remove(nextIndex)) != null) {
+                sink.write(batch);
+                recordCount.addAndGet(batch.size);
+                batchCount.incrementAndGet();
+                nextIndex++;
+                inFlight.release();
+            }
+        }
+        if (!overtaking.isEmpty()) {
+            throw new IllegalStateException("Batch " + nextIndex + " was never processed");
+        }
+    }
+}
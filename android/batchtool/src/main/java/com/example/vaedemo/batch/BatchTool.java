@@ -0,0 +1,327 @@
+package com.example.vaedemo.batch;
+
+import com.example.vaedemo.core.LatentIndex;
+import com.example.vaedemo.core.ModelVariant;
+import com.example.vaedemo.core.VaeCodec;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Encodes whole datasets into latent codes, or decodes latent codes into images, on the host
+ * JVM with the models of the app, and indexes latent codes for the similar digits of the app.
+ * Every worker thread runs its own interpreters on whole batches, and the input and output are
+ * streamed, so it scales with the cores of the machine and not with the size of the dataset.
+ */
+public final class BatchTool {
+    private static final String USAGE = "Usage:\n"
+            + "  encode (--idx IMAGES [--labels LABELS] | --png DIR) --out LATENTS [--mean]\n"
+            + "  decode --in LATENTS --out DIR\n"
+            + "  index --in LATENTS --out INDEX [--lists N]\n"
+            + "Options:\n"
+            + "  --models DIR        directory of the .tflite models (default ../../ml)\n"
+            + "  --variant NAME      float32, float16 or int8 (default float32)\n"
+            + "  --threads N         worker threads, one set of interpreters each"
+            + " (default: cores)\n"
+            + "  --interpreter-threads N  threads of every interpreter (default 1)\n"
+            + "  --batch N           images per invoke (default 32)\n"
+            + "  --seed N            seed of the posterior samples and clusters (default 0)\n"
+            + "  --lists N           k-means lists per label of the index (default 64)\n"
+            + "Images without labels are classified, and encode samples the posterior like the\n"
+            + "app unless --mean encodes its mean. index builds the similar digits index of the\n"
+            + "app from latent codes encoded with --mean.";
+
+    private final Map<String, String> options;
+    private final File modelDirectory;
+    private final ModelVariant variant;
+    private final int workerCount;
+    private final int interpreterThreadCount;
+    private final int batchSize;
+    private final long seed;
+
+    private BatchTool(Map<String, String> options) {
+        this.options = options;
+        modelDirectory = new File(option("--models", "../../ml"));
+        variant = ModelVariant.valueOf(option("--variant", "float32").toUpperCase(Locale.ROOT));
+        workerCount = Integer.parseInt(option("--threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        interpreterThreadCount = Integer.parseInt(option("--interpreter-threads", "1"));
+        batchSize = Integer.parseInt(option("--batch", "32"));
+        seed = Long.parseLong(option("--seed", "0"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        Object report;
+        try {
+            BatchTool tool = new BatchTool(parseOptions(args));
+            if (args[0].equals("encode")) {
+                report = tool.encode();
+            } else if (args[0].equals("decode")) {
+                report = tool.decode();
+            } else if (args[0].equals("index")) {
+                report = tool.index();
+            } else {
+                throw new IllegalArgumentException("Unknown command " + args[0]);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        System.out.println(report);
+    }
+
+    private BatchPipeline.Report encode() throws Exception {
+        final ByteBuffer encoderModel = map("encode.tflite");
+        final boolean isSampled = !options.containsKey("--mean");
+        final int latentDimension;
+        int width;
+        int height;
+        try (TfliteModelRunner encoder = new TfliteModelRunner(encoderModel, 1)) {
+            height = encoder.getInputShape()[1];
+            width = encoder.getInputShape()[2];
+            latentDimension = encoder.getOutputShape()[1] / 2;
+        }
+
+        BatchPipeline.Source source;
+        boolean isLabelled;
+        if (options.containsKey("--idx")) {
+            File labelFile = options.containsKey("--labels") ?
+                    new File(options.get("--labels")) : null;
+            IdxImageSource idxSource =
+                    new IdxImageSource(new File(options.get("--idx")), labelFile, batchSize);
+            if (idxSource.getWidth() != width || idxSource.getHeight() != height) {
+                idxSource.close();
+                throw new IllegalArgumentException(
+                        "The images are not " + width + "x" + height + " like the encoder input");
+            }
+            source = idxSource;
+            isLabelled = labelFile != null;
+        } else {
+            source = new PngDirectorySource(new File(requiredOption("--png")), width, height);
+            // Only some file names may carry a label
+            isLabelled = false;
+        }
+        final ByteBuffer classifierModel = isLabelled ? null : map("classify.tflite");
+
+        BatchPipeline.Sink sink = null;
+        try {
+            sink = new LatentFile.Writer(new File(requiredOption("--out")), latentDimension);
+            return new BatchPipeline(workerCount, batchSize).run(source, sink,
+                    new BatchPipeline.WorkerFactory() {
+                        @Override
+                        public BatchPipeline.Worker create(int workerIndex) {
+                            return new EncodeWorker(encoderModel, classifierModel, isSampled,
+                                    latentDimension);
+                        }
+                    });
+        } finally {
+            source.close();
+            if (sink != null) {
+                sink.close();
+            }
+        }
+    }
+
+    private BatchPipeline.Report decode() throws Exception {
+        final ByteBuffer decoderModel = map("decode.tflite");
+        int width;
+        int height;
+        try (TfliteModelRunner decoder = new TfliteModelRunner(decoderModel, 1)) {
+            height = decoder.getOutputShape()[1];
+            width = decoder.getOutputShape()[2];
+        }
+
+        final LatentFile.Reader source = new LatentFile.Reader(new File(requiredOption("--in")));
+        BatchPipeline.Sink sink = null;
+        try {
+            sink = new PngDirectorySink(new File(requiredOption("--out")), width, height);
+            final int pixelCount = width * height;
+            return new BatchPipeline(workerCount, batchSize).run(source, sink,
+                    new BatchPipeline.WorkerFactory() {
+                        @Override
+                        public BatchPipeline.Worker create(int workerIndex) {
+                            return new DecodeWorker(decoderModel, pixelCount);
+                        }
+                    });
+        } finally {
+            source.close();
+            if (sink != null) {
+                sink.close();
+            }
+        }
+    }
+
+    /**
+     * Build the latent index of the app from a whole latent file, which fits in memory like the
+     * index itself
+     */
+    private String index() throws IOException {
+        int listsPerLabel = Integer.parseInt(option("--lists", "64"));
+        File output = new File(requiredOption("--out"));
+
+        int dimension;
+        int count = 0;
+        float[] latentCodes;
+        int[] labels = new int[1024];
+        try (LatentFile.Reader reader = new LatentFile.Reader(new File(requiredOption("--in")))) {
+            dimension = reader.getLatentDimension();
+            latentCodes = new float[labels.length * dimension];
+            Batch batch;
+            while ((batch = reader.read(batchSize)) != null) {
+                if (count + batch.size > labels.length) {
+                    int capacity = Math.max(2 * labels.length, count + batch.size);
+                    labels = Arrays.copyOf(labels, capacity);
+                    latentCodes = Arrays.copyOf(latentCodes, capacity * dimension);
+                }
+                System.arraycopy(batch.labels, 0, labels, count, batch.size);
+                System.arraycopy(batch.latentCodes, 0,
+                        latentCodes, count * dimension, batch.size * dimension);
+                count += batch.size;
+            }
+        }
+
+        long startTime = System.nanoTime();
+        LatentIndex index = LatentIndex.build(latentCodes, labels, count, dimension,
+                listsPerLabel, new Random(seed));
+        long buildNanos = System.nanoTime() - startTime;
+        try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(output))) {
+            index.write(stream);
+        }
+        return String.format(Locale.ROOT, "%d latent codes in %d lists per label in %.2f s",
+                count, listsPerLabel, buildNanos / 1e9);
+    }
+
+    /**
+     * Encodes on the interpreters of its thread, classifying the images that come without a
+     * label first
+     */
+    private final class EncodeWorker implements BatchPipeline.Worker {
+        private final TfliteModelRunner encoder;
+        private final TfliteModelRunner classifier;
+        private final VaeCodec codec;
+        private final Random random = new Random();
+        private final boolean isSampled;
+        private final int latentDimension;
+        private final int[] classifiedLabels;
+
+        EncodeWorker(ByteBuffer encoderModel, ByteBuffer classifierModel, boolean isSampled,
+                     int latentDimension) {
+            encoder = new TfliteModelRunner(encoderModel, interpreterThreadCount);
+            classifier = classifierModel != null ?
+                    new TfliteModelRunner(classifierModel, interpreterThreadCount) : null;
+            codec = new VaeCodec(encoder, null, classifier, batchSize, random);
+            this.isSampled = isSampled;
+            this.latentDimension = latentDimension;
+            classifiedLabels = new int[batchSize];
+        }
+
+        @Override
+        public void process(Batch batch) {
+            if (classifier != null) {
+                codec.classify(batch.pixels, batch.size, classifiedLabels);
+                for (int n = 0; n < batch.size; n++) {
+                    if (batch.labels[n] == Batch.UNKNOWN_LABEL) {
+                        batch.labels[n] = classifiedLabels[n];
+                    }
+                }
+            }
+
+            // Sample with the seed of the batch, so the output does not depend on which worker
+            // happened to take it
+            random.setSeed(seed + batch.index);
+            batch.latentCodes = new float[batch.size * latentDimension];
+            codec.encode(batch.pixels, batch.labels, batch.size, isSampled, batch.latentCodes);
+            batch.pixels = null;
+        }
+
+        @Override
+        public void close() {
+            encoder.close();
+            if (classifier != null) {
+                classifier.close();
+            }
+        }
+    }
+
+    private final class DecodeWorker implements BatchPipeline.Worker {
+        private final TfliteModelRunner decoder;
+        private final VaeCodec codec;
+        private final int pixelCount;
+
+        DecodeWorker(ByteBuffer decoderModel, int pixelCount) {
+            decoder = new TfliteModelRunner(decoderModel, interpreterThreadCount);
+            codec = new VaeCodec(null, decoder, null, batchSize, new Random(seed));
+            this.pixelCount = pixelCount;
+        }
+
+        @Override
+        public void process(Batch batch) {
+            batch.grayscalePixels = new byte[batch.size * pixelCount];
+            codec.decode(batch.latentCodes, batch.labels, batch.size, batch.grayscalePixels);
+            batch.latentCodes = null;
+        }
+
+        @Override
+        public void close() {
+            decoder.close();
+        }
+    }
+
+    private ByteBuffer map(String modelFile) throws IOException {
+        File file = new File(modelDirectory, variant.getFileName(modelFile));
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("Model not found: " + file);
+        }
+        return TfliteModelRunner.map(file);
+    }
+
+    private String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    private String requiredOption(String name) {
+        String value = options.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing " + name);
+        }
+        return value;
+    }
+
+    /**
+     * Options after the command, as --name value pairs and --mean
+     */
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            String name = args[i];
+            if (!name.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected " + name);
+            }
+            if (name.equals("--mean")) {
+                options.put(name, "");
+            } else if (i + 1 < args.length) {
+                options.put(name, args[++i]);
+            } else {
+                throw new IllegalArgumentException("Missing the value of " + name);
+            }
+        }
+        return options;
+    }
+}
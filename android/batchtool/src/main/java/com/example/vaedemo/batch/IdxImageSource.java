@@ -0,0 +1,108 @@
+package com.example.vaedemo.batch;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streams the images of an MNIST IDX file, e.g. train-images-idx3-ubyte(.gz), with the labels
+ * of the matching IDX label file if there is one. Only one batch is held in memory at a time.
+ */
+final class IdxImageSource implements BatchPipeline.Source {
+    private static final int IMAGES_MAGIC = 0x00000803;
+    private static final int LABELS_MAGIC = 0x00000801;
+
+    private final DataInputStream images;
+    private final DataInputStream labels;
+    private final int imageCount;
+    private final int width;
+    private final int height;
+    private final byte[] imageBytes;
+    private final byte[] labelBytes;
+    private int readCount;
+
+    /**
+     * @param labelFile the label file, or null to classify the images
+     */
+    IdxImageSource(File imageFile, File labelFile, int maxBatchSize) throws IOException {
+        images = open(imageFile);
+        labels = labelFile != null ? open(labelFile) : null;
+        try {
+            if (images.readInt() != IMAGES_MAGIC) {
+                throw new IOException(imageFile + " is not an IDX image file");
+            }
+            imageCount = images.readInt();
+            height = images.readInt();
+            width = images.readInt();
+            if (labels != null) {
+                if (labels.readInt() != LABELS_MAGIC) {
+                    throw new IOException(labelFile + " is not an IDX label file");
+                }
+                if (labels.readInt() != imageCount) {
+                    throw new IOException(labelFile + " does not have a label per image");
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        imageBytes = new byte[maxBatchSize * width * height];
+        labelBytes = new byte[maxBatchSize];
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    @Override
+    public Batch read(int maxSize) throws IOException {
+        int size = Math.min(Math.min(maxSize, labelBytes.length), imageCount - readCount);
+        if (size <= 0) {
+            return null;
+        }
+
+        Batch batch = new Batch(size);
+        int pixelCount = size * width * height;
+        images.readFully(imageBytes, 0, pixelCount);
+        batch.pixels = new float[pixelCount];
+        for (int i = 0; i < pixelCount; i++) {
+            batch.pixels[i] = (imageBytes[i] & 0xFF) / 255f;
+        }
+        if (labels != null) {
+            labels.readFully(labelBytes, 0, size);
+            for (int n = 0; n < size; n++) {
+                batch.labels[n] = labelBytes[n];
+            }
+        } else {
+            for (int n = 0; n < size; n++) {
+                batch.labels[n] = Batch.UNKNOWN_LABEL;
+            }
+        }
+        readCount += size;
+        return batch;
+    }
+
+    @Override
+    public void close() throws IOException {
+        images.close();
+        if (labels != null) {
+            labels.close();
+        }
+    }
+
+    private static DataInputStream open(File file) throws IOException {
+        InputStream stream = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+        if (file.getName().endsWith(".gz")) {
+            stream = new GZIPInputStream(stream, 1 << 16);
+        }
+        return new DataInputStream(stream);
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.vaedemo.batch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The file of latent codes written by encode and read by decode: a big-endian "VAEL" magic and
+ * the latent dimension, then a record per image of its int label and latent code floats. Like
+ * IDX files, it streams in both directions and reads back with any DataInput, e.g.
+ * numpy.fromfile with dtype [('label', '>i4'), ('z', '>f4', dimension)] after the 8 byte header.
+ */
+final class LatentFile {
+    static final int MAGIC = 0x5641454C;
+
+    private LatentFile() {
+    }
+
+    static final class Writer implements BatchPipeline.Sink {
+        private final DataOutputStream output;
+        private final int latentDimension;
+
+        Writer(File file, int latentDimension) throws IOException {
+            this.output = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            this.latentDimension = latentDimension;
+            output.writeInt(MAGIC);
+            output.writeInt(latentDimension);
+        }
+
+        @Override
+        public void write(Batch batch) throws IOException {
+            for (int n = 0; n < batch.size; n++) {
+                output.writeInt(batch.labels[n]);
+                for (int k = 0; k < latentDimension; k++) {
+                    output.writeFloat(batch.latentCodes[n * latentDimension + k]);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            output.close();
+        }
+    }
+
+    static final class Reader implements BatchPipeline.Source {
+        private final DataInputStream input;
+        private final int latentDimension;
+
+        Reader(File file) throws IOException {
+            input = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            try {
+                if (input.readInt() != MAGIC) {
+                    throw new IOException(file + " is not a latent code file");
+                }
+                latentDimension = input.readInt();
+            } catch (IOException e) {
+                input.close();
+                throw e;
+            }
+        }
+
+        int getLatentDimension() {
+            return latentDimension;
+        }
+
+        @Override
+        public Batch read(int maxSize) throws IOException {
+            int[] labels = new int[maxSize];
+            float[] latentCodes = new float[maxSize * latentDimension];
+            int size = 0;
+            while (size < maxSize) {
+                try {
+                    labels[size] = input.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                for (int k = 0; k < latentDimension; k++) {
+                    latentCodes[size * latentDimension + k] = input.readFloat();
+                }
+                size++;
+            }
+            if (size == 0) {
+                return null;
+            }
+
+            Batch batch = new Batch(size);
+            System.arraycopy(labels, 0, batch.labels, 0, size);
+            batch.latentCodes = latentCodes;
+            return batch;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.vaedemo.batch;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Writes decoded images as grayscale PNGs named by their position in the input and their label,
+ * e.g. 000042_7.png, which PngDirectorySource reads back with the label
+ */
+final class PngDirectorySink implements BatchPipeline.Sink {
+    private final File directory;
+    private final int width;
+    private final int height;
+    private final BufferedImage image;
+    private final byte[] imagePixels;
+    private long writtenCount;
+
+    PngDirectorySink(File directory, int width, int height) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        this.directory = directory;
+        this.width = width;
+        this.height = height;
+        image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        imagePixels = new byte[width * height];
+    }
+
+    @Override
+    public void write(Batch batch) throws IOException {
+        int pixelCount = width * height;
+        for (int n = 0; n < batch.size; n++) {
+            System.arraycopy(batch.grayscalePixels, n * pixelCount, imagePixels, 0, pixelCount);
+            image.getRaster().setDataElements(0, 0, width, height, imagePixels);
+            String name = String.format(Locale.ROOT, "%06d_%d.png", writtenCount++,
+                    batch.labels[n]);
+            if (!ImageIO.write(image, "png", new File(directory, name))) {
+                throw new IOException("No PNG writer");
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.vaedemo.batch;
+
+import com.example.vaedemo.imageproc.PixelConverter;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Streams the PNG images of a directory in file name order, scaled to the model size and
+ * normalized like the drawings of the app. Images named like the output of PngDirectorySink,
+ * e.g. 000042_7.png, keep their label, and the others are classified.
+ */
+final class PngDirectorySource implements BatchPipeline.Source {
+    private static final Pattern LABELLED_NAME = Pattern.compile(".*_(\\d)\\.png");
+
+    private final File[] files;
+    private final int width;
+    private final int height;
+    private final BufferedImage scaledImage;
+    private final int[] argbPixels;
+    private int readCount;
+
+    PngDirectorySource(File directory, int width, int height) throws IOException {
+        files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.toLowerCase().endsWith(".png");
+            }
+        });
+        if (files == null) {
+            throw new IOException(directory + " is not a directory");
+        }
+        Arrays.sort(files);
+        this.width = width;
+        this.height = height;
+        scaledImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        argbPixels = new int[width * height];
+    }
+
+    @Override
+    public Batch read(int maxSize) throws IOException {
+        int size = Math.min(maxSize, files.length - readCount);
+        if (size <= 0) {
+            return null;
+        }
+
+        Batch batch = new Batch(size);
+        int pixelCount = width * height;
+        batch.pixels = new float[size * pixelCount];
+        float[] normalizedPixels = new float[pixelCount];
+        for (int n = 0; n < size; n++) {
+            File file = files[readCount + n];
+            BufferedImage image = ImageIO.read(file);
+            if (image == null) {
+                throw new IOException("Cannot decode " + file);
+            }
+            // Replace the previous image, transparent pixels included
+            Graphics2D graphics = scaledImage.createGraphics();
+            graphics.setComposite(AlphaComposite.Src);
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, width, height, null);
+            graphics.dispose();
+            scaledImage.getRGB(0, 0, width, height, argbPixels, 0, width);
+
+            PixelConverter.normalize(argbPixels, normalizedPixels);
+            System.arraycopy(normalizedPixels, 0, batch.pixels, n * pixelCount, pixelCount);
+
+            Matcher matcher = LABELLED_NAME.matcher(file.getName());
+            batch.labels[n] = matcher.matches() ?
+                    Integer.parseInt(matcher.group(1)) : Batch.UNKNOWN_LABEL;
+        }
+        readCount += size;
+        return batch;
+    }
+
+    @Override
+    public void close() {
+    }
+}
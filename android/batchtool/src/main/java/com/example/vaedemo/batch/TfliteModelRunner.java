@@ -0,0 +1,157 @@
+package com.example.vaedemo.batch;
+
+import com.example.vaedemo.core.ModelRunner;
+import com.example.vaedemo.core.Quantization;
+
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A ModelRunner on one desktop TF Lite interpreter. The input is resized to the batch size, so a
+ * whole batch runs in one invoke, and the rows are copied through direct buffers in the tensor
+ * type: floats as they are, int8 and uint8 through the Quantization of the tensor, the same one
+ * the app converts its tensors with.
+ */
+final class TfliteModelRunner implements ModelRunner, Closeable {
+    private final Interpreter interpreter;
+    private final int[] inputShape;
+    private final int[] outputShape;
+    private final int inputRowSize;
+    private final int outputRowSize;
+
+    /**
+     * The tensor types, and the quantization of int8 and uint8 ones, null for float32 ones
+     */
+    private final DataType inputType;
+    private final Quantization inputQuantization;
+    private final DataType outputType;
+    private final Quantization outputQuantization;
+
+    private int batchSize;
+    private ByteBuffer inputBuffer;
+    private ByteBuffer outputBuffer;
+
+    /**
+     * @param model the model, e.g. from map(), shared read-only by the runners of every worker
+     */
+    TfliteModelRunner(ByteBuffer model, int threadCount) {
+        interpreter = new Interpreter(model, new Interpreter.Options().setNumThreads(threadCount));
+
+        Tensor input = interpreter.getInputTensor(0);
+        inputShape = input.shape();
+        inputRowSize = rowSize(inputShape);
+        inputType = input.dataType();
+        inputQuantization = quantization(input);
+
+        Tensor output = interpreter.getOutputTensor(0);
+        outputShape = output.shape();
+        outputRowSize = rowSize(outputShape);
+        outputType = output.dataType();
+        outputQuantization = quantization(output);
+    }
+
+    /**
+     * Memory-map a model file, once for all the interpreters running it
+     */
+    static MappedByteBuffer map(File modelFile) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(modelFile, "r");
+             FileChannel channel = file.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    @Override
+    public int[] getInputShape() {
+        return inputShape.clone();
+    }
+
+    @Override
+    public int[] getOutputShape() {
+        return outputShape.clone();
+    }
+
+    @Override
+    public void run(float[] input, float[] output, int batchSize) {
+        if (batchSize != this.batchSize) {
+            resize(batchSize);
+        }
+
+        inputBuffer.clear();
+        int inputCount = batchSize * inputRowSize;
+        if (inputQuantization == null) {
+            inputBuffer.asFloatBuffer().put(input, 0, inputCount);
+        } else {
+            inputQuantization.quantize(input, inputCount, inputBuffer);
+        }
+
+        outputBuffer.clear();
+        interpreter.run(inputBuffer, outputBuffer);
+
+        int outputCount = batchSize * outputRowSize;
+        if (outputQuantization == null) {
+            outputBuffer.clear();
+            outputBuffer.asFloatBuffer().get(output, 0, outputCount);
+        } else {
+            outputQuantization.dequantize(outputBuffer, output, outputCount);
+        }
+    }
+
+    /**
+     * Resize the batch dimension of the input, which reallocates the tensors on the next run
+     */
+    private void resize(int batchSize) {
+        int[] shape = inputShape.clone();
+        shape[0] = batchSize;
+        interpreter.resizeInput(0, shape);
+        inputBuffer = allocate(batchSize * inputRowSize * byteSize(inputType));
+        outputBuffer = allocate(batchSize * outputRowSize * byteSize(outputType));
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void close() {
+        interpreter.close();
+    }
+
+    private static Quantization quantization(Tensor tensor) {
+        DataType dataType = tensor.dataType();
+        if (dataType != DataType.INT8 && dataType != DataType.UINT8) {
+            return null;
+        }
+        return new Quantization(dataType == DataType.INT8,
+                tensor.quantizationParams().getScale(),
+                tensor.quantizationParams().getZeroPoint());
+    }
+
+    private static int rowSize(int[] shape) {
+        int size = 1;
+        for (int i = 1; i < shape.length; i++) {
+            size *= shape[i];
+        }
+        return size;
+    }
+
+    private static int byteSize(DataType dataType) {
+        if (dataType == DataType.FLOAT32) {
+            return 4;
+        }
+        if (dataType == DataType.INT8 || dataType == DataType.UINT8) {
+            return 1;
+        }
+        throw new IllegalArgumentException("Unsupported tensor type " + dataType);
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.vaedemo.batch;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of streaming batches through the worker threads in input order.
+ */
+public class BatchPipelineTest {
+    /**
+     * Reads recordCount records whose label is their position in the input
+     */
+    private static final class CountingSource implements BatchPipeline.Source {
+        private final int recordCount;
+        private int readCount;
+        boolean isClosed;
+
+        CountingSource(int recordCount) {
+            this.recordCount = recordCount;
+        }
+
+        @Override
+        public Batch read(int maxSize) {
+            int size = Math.min(maxSize, recordCount - readCount);
+            if (size <= 0) {
+                return null;
+            }
+            Batch batch = new Batch(size);
+            for (int n = 0; n < size; n++) {
+                batch.labels[n] = readCount++;
+            }
+            return batch;
+        }
+
+        @Override
+        public void close() {
+            isClosed = true;
+        }
+    }
+
+    private static final class ListSink implements BatchPipeline.Sink {
+        final List<Integer> labels = Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Override
+        public void write(Batch batch) {
+            for (int n = 0; n < batch.size; n++) {
+                labels.add(batch.labels[n]);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Workers that take a random time per batch, so that batches overtake each other
+     */
+    private static BatchPipeline.WorkerFactory sleepingWorkers(final List<Integer> closedWorkers) {
+        return new BatchPipeline.WorkerFactory() {
+            @Override
+            public BatchPipeline.Worker create(final int workerIndex) {
+                final Random random = new Random(workerIndex);
+                return new BatchPipeline.Worker() {
+                    @Override
+                    public void process(Batch batch) throws InterruptedException {
+                        Thread.sleep(random.nextInt(3));
+                    }
+
+                    @Override
+                    public void close() {
+                        closedWorkers.add(workerIndex);
+                    }
+                };
+            }
+        };
+    }
+
+    @Test
+    public void run_writesEveryRecordInInputOrder() throws Exception {
+        List<Integer> closedWorkers = Collections.synchronizedList(new ArrayList<Integer>());
+        ListSink sink = new ListSink();
+
+        BatchPipeline.Report report = new BatchPipeline(4, 7)
+                .run(new CountingSource(500), sink, sleepingWorkers(closedWorkers));
+
+        assertEquals(500, sink.labels.size());
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, (int) sink.labels.get(i));
+        }
+        assertEquals(500, report.recordCount);
+        assertEquals(72, report.batchCount);
+        assertTrue(report.getRecordsPerSecond() > 0);
+        assertEquals(4, closedWorkers.size());
+    }
+
+    @Test
+    public void run_handlesAnEmptyInput() throws Exception {
+        ListSink sink = new ListSink();
+
+        BatchPipeline.Report report = new BatchPipeline(2, 8).run(new CountingSource(0), sink,
+                sleepingWorkers(new ArrayList<Integer>()));
+
+        assertTrue(sink.labels.isEmpty());
+        assertEquals(0, report.recordCount);
+    }
+
+    @Test
+    public void run_rethrowsTheFirstFailure() throws Exception {
+        BatchPipeline.WorkerFactory failingWorkers = new BatchPipeline.WorkerFactory() {
+            @Override
+            public BatchPipeline.Worker create(int workerIndex) {
+                return new BatchPipeline.Worker() {
+                    @Override
+                    public void process(Batch batch) throws IOException {
+                        if (batch.index == 3) {
+                            throw new IOException("Batch 3 failed");
+                        }
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                };
+            }
+        };
+
+        try {
+            new BatchPipeline(3, 4).run(new CountingSource(1000), new ListSink(), failingWorkers);
+            fail("The failure of the worker was swallowed");
+        } catch (IOException e) {
+            assertEquals("Batch 3 failed", e.getMessage());
+        }
+    }
+}
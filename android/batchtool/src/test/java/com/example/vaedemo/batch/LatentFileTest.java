@@ -0,0 +1,98 @@
+package com.example.vaedemo.batch;
+
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of the latent code file and the IDX image reader.
+ */
+public class LatentFileTest {
+    private static File newFile(String prefix) throws IOException {
+        File file = File.createTempFile(prefix, ".bin");
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void reader_readsBackWhatTheWriterWrote() throws IOException {
+        File file = newFile("latents");
+        Batch batch = new Batch(3);
+        batch.labels[0] = 4;
+        batch.labels[1] = 0;
+        batch.labels[2] = 9;
+        batch.latentCodes = new float[]{1f, -2f, 0.5f, 3f, -0.25f, 7f};
+        try (LatentFile.Writer writer = new LatentFile.Writer(file, 2)) {
+            writer.write(batch);
+        }
+        assertEquals(8 + 3 * (4 + 2 * 4), file.length());
+
+        try (LatentFile.Reader reader = new LatentFile.Reader(file)) {
+            assertEquals(2, reader.getLatentDimension());
+            Batch first = reader.read(2);
+            assertEquals(2, first.size);
+            assertArrayEquals(new int[]{4, 0}, first.labels);
+            assertEquals(-2f, first.latentCodes[1], 0f);
+            assertEquals(3f, first.latentCodes[3], 0f);
+
+            Batch second = reader.read(2);
+            assertEquals(1, second.size);
+            assertEquals(9, second.labels[0]);
+            assertEquals(7f, second.latentCodes[1], 0f);
+            assertNull(reader.read(2));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void reader_rejectsOtherFiles() throws IOException {
+        File file = newFile("other");
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(file))) {
+            output.writeInt(0x00000803);
+            output.writeInt(2);
+        }
+        new LatentFile.Reader(file).close();
+    }
+
+    @Test
+    public void idxImageSource_normalizesThePixelsAndReadsTheLabels() throws IOException {
+        File images = newFile("images-idx3-ubyte");
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(images))) {
+            output.writeInt(0x00000803);
+            output.writeInt(3);
+            output.writeInt(1);
+            output.writeInt(2);
+            output.write(new byte[]{0, (byte) 255, 51, 102, (byte) 204, 0});
+        }
+        File labels = newFile("labels-idx1-ubyte");
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(labels))) {
+            output.writeInt(0x00000801);
+            output.writeInt(3);
+            output.write(new byte[]{7, 1, 3});
+        }
+
+        try (IdxImageSource source = new IdxImageSource(images, labels, 2)) {
+            assertEquals(2, source.getWidth());
+            assertEquals(1, source.getHeight());
+            Batch first = source.read(5);
+            assertEquals(2, first.size);
+            assertArrayEquals(new float[]{0f, 1f, 0.2f, 0.4f}, first.pixels, 1e-6f);
+            assertArrayEquals(new int[]{7, 1}, first.labels);
+
+            Batch second = source.read(5);
+            assertEquals(1, second.size);
+            assertEquals(3, second.labels[0]);
+            assertNull(source.read(5));
+        }
+
+        try (IdxImageSource source = new IdxImageSource(images, null, 4)) {
+            Batch batch = source.read(4);
+            assertEquals(3, batch.size);
+            assertEquals(Batch.UNKNOWN_LABEL, batch.labels[2]);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.vaedemo.imageproc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Host benchmarks of the pixel converters, at the model input size and at a non-square size
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PixelConverterBenchmark {
+    @Param({"28x28", "32x24"})
+    public String size;
+
+    private int width;
+    private int[] argbPixels;
+    private float[] normalizedPixels;
+    private float[][] normalizedRows;
+    private FloatBuffer normalizedBuffer;
+    private byte[] grayscalePixels;
+    private byte[][] grayscaleRows;
+    private ByteBuffer grayscaleBuffer;
+    private int[] outputPixels;
+
+    @Setup
+    public void setUp() {
+        String[] dimensions = size.split("x");
+        width = Integer.parseInt(dimensions[0]);
+        int height = Integer.parseInt(dimensions[1]);
+        int length = width * height;
+
+        Random random = new Random(42);
+        argbPixels = new int[length];
+        grayscalePixels = new byte[length];
+        for (int i = 0; i < length; i++) {
+            argbPixels[i] = random.nextInt();
+            grayscalePixels[i] = (byte) random.nextInt();
+        }
+        grayscaleRows = new byte[height][width];
+        for (int j = 0; j < height; j++) {
+            System.arraycopy(grayscalePixels, j * width, grayscaleRows[j], 0, width);
+        }
+
+        normalizedPixels = new float[length];
+        normalizedRows = new float[height][width];
+        normalizedBuffer = ByteBuffer.allocateDirect(length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        grayscaleBuffer = ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+        grayscaleBuffer.put(grayscalePixels);
+        grayscaleBuffer.rewind();
+        outputPixels = new int[length];
+    }
+
+    @Benchmark
+    public float[] normalizeScalar() {
+        PixelConverter.normalizeScalar(argbPixels, normalizedPixels);
+        return normalizedPixels;
+    }
+
+    @Benchmark
+    public float[] normalizeLookup() {
+        PixelConverter.normalize(argbPixels, normalizedPixels);
+        return normalizedPixels;
+    }
+
+    @Benchmark
+    public float[] normalizeUnrolled() {
+        PixelConverter.normalizeUnrolled(argbPixels, normalizedPixels);
+        return normalizedPixels;
+    }
+
+    @Benchmark
+    public float[][] normalizeRows() {
+        PixelConverter.normalize(argbPixels, width, normalizedRows);
+        return normalizedRows;
+    }
+
+    @Benchmark
+    public FloatBuffer normalizeDirectBuffer() {
+        PixelConverter.normalize(argbPixels, normalizedBuffer);
+        return normalizedBuffer;
+    }
+
+    @Benchmark
+    public int[] grayscaleToArgb() {
+        PixelConverter.grayscaleToArgb(grayscalePixels, outputPixels);
+        return outputPixels;
+    }
+
+    @Benchmark
+    public int[] grayscaleRowsToArgb() {
+        PixelConverter.grayscaleToArgb(grayscaleRows, outputPixels, 0, width);
+        return outputPixels;
+    }
+
+    @Benchmark
+    public int[] grayscaleDirectBufferToArgb() {
+        PixelConverter.grayscaleToArgb(grayscaleBuffer, outputPixels);
+        return outputPixels;
+    }
+}
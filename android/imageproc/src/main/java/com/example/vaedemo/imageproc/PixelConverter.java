@@ -0,0 +1,159 @@
+package com.example.vaedemo.imageproc;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Conversions between ARGB pixels, normalized grayscale model inputs and the grayscale bytes
+ * produced by the models. Images are row-major, so pixel (x, y) of a width-wide image is at
+ * y * width + x.
+ */
+public final class PixelConverter {
+    /**
+     * Normalized grayscale value of every possible r + g + b sum, computed exactly like the
+     * original (r + g + b) / 3f / 255f so the table lookup is bit-for-bit identical
+     */
+    private static final float[] NORMALIZED_SUMS = new float[3 * 255 + 1];
+
+    static {
+        for (int sum = 0; sum < NORMALIZED_SUMS.length; sum++) {
+            NORMALIZED_SUMS[sum] = sum / 3f / 255f;
+        }
+    }
+
+    private PixelConverter() {
+    }
+
+    /**
+     * Reference implementation of the normalization: convert RGB to grayscale and normalize the
+     * pixel value to [0..1]
+     */
+    public static void normalizeScalar(int[] argbPixels, float[] normalizedPixels) {
+        checkLength(argbPixels.length, normalizedPixels.length);
+        for (int i = 0; i < argbPixels.length; i++) {
+            int px = argbPixels[i];
+            int r = (px >> 16 & 0xFF), g = (px >> 8 & 0xFF), b = (px & 0xFF);
+
+            normalizedPixels[i] = (r + g + b) / 3f / 255f;
+        }
+    }
+
+    /**
+     * Same as normalizeScalar, with the divisions replaced by a table lookup
+     */
+    public static void normalize(int[] argbPixels, float[] normalizedPixels) {
+        checkLength(argbPixels.length, normalizedPixels.length);
+        for (int i = 0; i < argbPixels.length; i++) {
+            normalizedPixels[i] = normalizePixel(argbPixels[i]);
+        }
+    }
+
+    /**
+     * Same as normalize, four pixels per iteration
+     */
+    public static void normalizeUnrolled(int[] argbPixels, float[] normalizedPixels) {
+        checkLength(argbPixels.length, normalizedPixels.length);
+        int length = argbPixels.length;
+        int i = 0;
+        for (; i + 3 < length; i += 4) {
+            normalizedPixels[i] = normalizePixel(argbPixels[i]);
+            normalizedPixels[i + 1] = normalizePixel(argbPixels[i + 1]);
+            normalizedPixels[i + 2] = normalizePixel(argbPixels[i + 2]);
+            normalizedPixels[i + 3] = normalizePixel(argbPixels[i + 3]);
+        }
+        for (; i < length; i++) {
+            normalizedPixels[i] = normalizePixel(argbPixels[i]);
+        }
+    }
+
+    /**
+     * Normalize into the rows of a [height][width] array, e.g. the input of Interpreter.run
+     */
+    public static void normalize(int[] argbPixels, int width, float[][] normalizedPixels) {
+        checkLength(argbPixels.length, width * normalizedPixels.length);
+        for (int j = 0; j < normalizedPixels.length; j++) {
+            float[] row = normalizedPixels[j];
+            int offset = j * width;
+            for (int i = 0; i < width; i++) {
+                row[i] = normalizePixel(argbPixels[offset + i]);
+            }
+        }
+    }
+
+    /**
+     * Normalize into a buffer with absolute puts, e.g. a direct buffer bound to an interpreter.
+     * The buffer position is left untouched.
+     */
+    public static void normalize(int[] argbPixels, FloatBuffer normalizedPixels) {
+        checkLength(argbPixels.length, normalizedPixels.limit());
+        for (int i = 0; i < argbPixels.length; i++) {
+            normalizedPixels.put(i, normalizePixel(argbPixels[i]));
+        }
+    }
+
+    /**
+     * Expand grayscale bytes into opaque ARGB pixels
+     */
+    public static void grayscaleToArgb(byte[] grayscalePixels, int[] argbPixels) {
+        checkLength(grayscalePixels.length, argbPixels.length);
+        for (int i = 0; i < grayscalePixels.length; i++) {
+            argbPixels[i] = grayscaleToArgb(grayscalePixels[i]);
+        }
+    }
+
+    /**
+     * Same as grayscaleToArgb, reading the bytes with absolute gets. The buffer position is left
+     * untouched.
+     */
+    public static void grayscaleToArgb(ByteBuffer grayscalePixels, int[] argbPixels) {
+        checkLength(grayscalePixels.limit(), argbPixels.length);
+        for (int i = 0; i < argbPixels.length; i++) {
+            argbPixels[i] = grayscaleToArgb(grayscalePixels.get(i));
+        }
+    }
+
+    /**
+     * Expand the rows of a [height][width] grayscale image into a region of a larger ARGB image,
+     * e.g. one tile of an atlas. The region starts at offset and its rows are stride apart.
+     */
+    public static void grayscaleToArgb(byte[][] grayscalePixels, int[] argbPixels,
+                                       int offset, int stride) {
+        for (int j = 0; j < grayscalePixels.length; j++) {
+            byte[] row = grayscalePixels[j];
+            int rowOffset = offset + j * stride;
+            if (rowOffset < 0 || rowOffset + row.length > argbPixels.length) {
+                throw new IllegalArgumentException(
+                        "Row " + j + " does not fit into the ARGB pixels");
+            }
+            for (int i = 0; i < row.length; i++) {
+                argbPixels[rowOffset + i] = grayscaleToArgb(row[i]);
+            }
+        }
+    }
+
+    /**
+     * Take the blue channel of ARGB pixels that are known to be gray
+     */
+    public static void argbToGrayscale(int[] argbPixels, byte[] grayscalePixels) {
+        checkLength(argbPixels.length, grayscalePixels.length);
+        for (int i = 0; i < argbPixels.length; i++) {
+            grayscalePixels[i] = (byte) argbPixels[i];
+        }
+    }
+
+    private static float normalizePixel(int px) {
+        return NORMALIZED_SUMS[(px >> 16 & 0xFF) + (px >> 8 & 0xFF) + (px & 0xFF)];
+    }
+
+    private static int grayscaleToArgb(byte grayscale) {
+        int px = grayscale & 0xFF;
+        return 0xFF000000 | (px << 16) | (px << 8) | px;
+    }
+
+    private static void checkLength(int sourceLength, int destinationLength) {
+        if (sourceLength != destinationLength) {
+            throw new IllegalArgumentException("The source has " + sourceLength +
+                    " pixels but the destination has " + destinationLength);
+        }
+    }
+}
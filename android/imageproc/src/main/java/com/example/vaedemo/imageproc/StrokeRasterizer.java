@@ -0,0 +1,157 @@
+package com.example.vaedemo.imageproc;
+
+/**
+ * Rasterizes touch strokes straight into a small normalized grayscale image, e.g. the 28x28
+ * model input, instead of drawing them full-screen and scaling the bitmap down. Strokes are
+ * round-capped polylines given in view coordinates, white on black. Every pixel takes the
+ * coverage of its center by the stroke, with an anti-aliased edge one pixel wide, and strokes
+ * are merged with max() like opaque paint. Adding a segment only touches the pixels around it,
+ * so the image is kept up to date incrementally while drawing.
+ *
+ * Not thread-safe: draw and read on one thread, e.g. the UI thread, and hand the copies returned
+ * by getPixels() to other threads.
+ */
+public final class StrokeRasterizer {
+    private final int width;
+    private final int height;
+    private final float[] pixels;
+    private int viewWidth = 0;
+    private int viewHeight = 0;
+    private float scaleX = 1f;
+    private float scaleY = 1f;
+    private float strokeRadius = 0.5f;
+    private float lastX = 0f;
+    private float lastY = 0f;
+    private boolean hasStroke = false;
+    private boolean isEmpty = true;
+
+    public StrokeRasterizer(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("The image size must be positive");
+        }
+        this.width = width;
+        this.height = height;
+        this.pixels = new float[width * height];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Map the view the strokes are drawn on onto the whole image. Changing the size clears the
+     * image, as the strokes drawn so far were scaled for the previous size.
+     */
+    public void setViewSize(int viewWidth, int viewHeight) {
+        if (viewWidth <= 0 || viewHeight <= 0) {
+            throw new IllegalArgumentException("The view size must be positive");
+        }
+        if (viewWidth == this.viewWidth && viewHeight == this.viewHeight) {
+            return;
+        }
+        this.viewWidth = viewWidth;
+        this.viewHeight = viewHeight;
+        scaleX = (float) width / viewWidth;
+        scaleY = (float) height / viewHeight;
+        clear();
+    }
+
+    /**
+     * The stroke width in view pixels, like Paint.setStrokeWidth on the full-screen canvas
+     */
+    public void setStrokeWidth(float strokeWidth) {
+        strokeRadius = strokeWidth / 2;
+    }
+
+    /**
+     * Start a new stroke at the given view coordinates
+     */
+    public void moveTo(float x, float y) {
+        lastX = x;
+        lastY = y;
+        hasStroke = true;
+    }
+
+    /**
+     * Extend the current stroke to the given view coordinates. A segment of zero length draws a
+     * dot, like a tap.
+     */
+    public void lineTo(float x, float y) {
+        if (!hasStroke) {
+            moveTo(x, y);
+        }
+        drawSegment(lastX, lastY, x, y);
+        lastX = x;
+        lastY = y;
+    }
+
+    public void clear() {
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0f;
+        }
+        hasStroke = false;
+        isEmpty = true;
+    }
+
+    public boolean isEmpty() {
+        return isEmpty;
+    }
+
+    /**
+     * A copy of the row-major image, normalized to [0..1] like PixelConverter.normalize
+     */
+    public float[] getPixels() {
+        return pixels.clone();
+    }
+
+    /**
+     * Copy the row-major image into the given array without allocating
+     */
+    public void getPixels(float[] target) {
+        if (target.length != pixels.length) {
+            throw new IllegalArgumentException(
+                    "The pixel array length is not matched with the image size");
+        }
+        System.arraycopy(pixels, 0, target, 0, pixels.length);
+    }
+
+    private void drawSegment(float x0, float y0, float x1, float y1) {
+        // The anti-aliased edge is one image pixel wide, measured in view pixels
+        float edgeScale = (scaleX + scaleY) / 2;
+        float reach = strokeRadius + 0.5f / edgeScale;
+
+        int minI = Math.max((int) Math.floor((Math.min(x0, x1) - reach) * scaleX), 0);
+        int maxI = Math.min((int) Math.ceil((Math.max(x0, x1) + reach) * scaleX), width - 1);
+        int minJ = Math.max((int) Math.floor((Math.min(y0, y1) - reach) * scaleY), 0);
+        int maxJ = Math.min((int) Math.ceil((Math.max(y0, y1) + reach) * scaleY), height - 1);
+
+        float dx = x1 - x0;
+        float dy = y1 - y0;
+        float lengthSquared = dx * dx + dy * dy;
+        for (int j = minJ; j <= maxJ; j++) {
+            float py = (j + 0.5f) / scaleY;
+            for (int i = minI; i <= maxI; i++) {
+                float px = (i + 0.5f) / scaleX;
+
+                // Distance from the pixel center to the closest point of the segment
+                float t = lengthSquared > 0 ?
+                        ((px - x0) * dx + (py - y0) * dy) / lengthSquared : 0f;
+                t = Math.min(Math.max(t, 0f), 1f);
+                float ex = px - (x0 + t * dx);
+                float ey = py - (y0 + t * dy);
+                float distance = (float) Math.sqrt(ex * ex + ey * ey);
+
+                float coverage = (strokeRadius - distance) * edgeScale + 0.5f;
+                if (coverage > 0f) {
+                    int index = j * width + i;
+                    pixels[index] = Math.max(pixels[index], Math.min(coverage, 1f));
+                    isEmpty = false;
+                }
+            }
+        }
+    }
+}
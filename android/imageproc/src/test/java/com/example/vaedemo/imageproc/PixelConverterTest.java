@@ -0,0 +1,97 @@
+package com.example.vaedemo.imageproc;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of the pixel converters, on a non-square image.
+ */
+public class PixelConverterTest {
+    private static final int WIDTH = 5;
+    private static final int HEIGHT = 3;
+
+    @Test
+    public void normalize_variantsMatchScalarReference() {
+        int[] argbPixels = randomPixels(WIDTH * HEIGHT);
+        float[] expected = new float[argbPixels.length];
+        PixelConverter.normalizeScalar(argbPixels, expected);
+
+        float[] lookup = new float[argbPixels.length];
+        PixelConverter.normalize(argbPixels, lookup);
+        assertArrayEquals(expected, lookup, 0f);
+
+        float[] unrolled = new float[argbPixels.length];
+        PixelConverter.normalizeUnrolled(argbPixels, unrolled);
+        assertArrayEquals(expected, unrolled, 0f);
+
+        FloatBuffer buffer = FloatBuffer.allocate(argbPixels.length);
+        PixelConverter.normalize(argbPixels, buffer);
+        assertEquals(0, buffer.position());
+        assertArrayEquals(expected, buffer.array(), 0f);
+    }
+
+    @Test
+    public void normalize_rowsAreWidthApart() {
+        int[] argbPixels = new int[WIDTH * HEIGHT];
+        argbPixels[2 * WIDTH + 1] = 0xFFFFFFFF;
+        float[][] rows = new float[HEIGHT][WIDTH];
+
+        PixelConverter.normalize(argbPixels, WIDTH, rows);
+
+        assertEquals(1f, rows[2][1], 0f);
+        assertEquals(0f, rows[1][4], 0f);
+    }
+
+    @Test
+    public void grayscale_roundTripsThroughArgb() {
+        byte[] grayscalePixels = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < grayscalePixels.length; i++) {
+            grayscalePixels[i] = (byte) (i * 17);
+        }
+
+        int[] argbPixels = new int[grayscalePixels.length];
+        PixelConverter.grayscaleToArgb(grayscalePixels, argbPixels);
+        assertEquals(0xFF111111, argbPixels[1]);
+
+        int[] fromBuffer = new int[grayscalePixels.length];
+        PixelConverter.grayscaleToArgb(ByteBuffer.wrap(grayscalePixels), fromBuffer);
+        assertArrayEquals(argbPixels, fromBuffer);
+
+        byte[] roundTrip = new byte[grayscalePixels.length];
+        PixelConverter.argbToGrayscale(argbPixels, roundTrip);
+        assertArrayEquals(grayscalePixels, roundTrip);
+    }
+
+    @Test
+    public void grayscaleRows_fillTileOfLargerImage() {
+        byte[][] rows = new byte[HEIGHT][WIDTH];
+        rows[HEIGHT - 1][WIDTH - 1] = (byte) 0x80;
+        int stride = 2 * WIDTH;
+        int[] atlas = new int[stride * HEIGHT];
+
+        PixelConverter.grayscaleToArgb(rows, atlas, WIDTH, stride);
+
+        assertEquals(0, atlas[0]);
+        assertEquals(0xFF000000, atlas[WIDTH]);
+        assertEquals(0xFF808080, atlas[(HEIGHT - 1) * stride + 2 * WIDTH - 1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void normalize_rejectsMismatchedSizes() {
+        PixelConverter.normalize(new int[WIDTH * HEIGHT], new float[WIDTH * WIDTH]);
+    }
+
+    private static int[] randomPixels(int length) {
+        Random random = new Random(42);
+        int[] pixels = new int[length];
+        for (int i = 0; i < length; i++) {
+            pixels[i] = random.nextInt();
+        }
+        return pixels;
+    }
+}
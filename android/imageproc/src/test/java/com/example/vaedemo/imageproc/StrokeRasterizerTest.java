@@ -0,0 +1,90 @@
+package com.example.vaedemo.imageproc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of the stroke rasterizer. The parity with the full-screen drawing path is
+ * checked by the instrumented StrokeRasterizerParityTest.
+ */
+public class StrokeRasterizerTest {
+    private static final int SIZE = 28;
+
+    @Test
+    public void lineTo_coversTheStrokeWithAnAntiAliasedEdge() {
+        StrokeRasterizer rasterizer = new StrokeRasterizer(SIZE, SIZE);
+        rasterizer.setViewSize(560, 560);
+        rasterizer.setStrokeWidth(40f);
+
+        // A vertical stroke 2 image pixels wide, centered on column 14
+        rasterizer.moveTo(290f, 100f);
+        rasterizer.lineTo(290f, 460f);
+        float[] pixels = rasterizer.getPixels();
+
+        assertFalse(rasterizer.isEmpty());
+        assertEquals(1f, pixels[14 * SIZE + 14], 0f);
+        assertEquals(0.5f, pixels[14 * SIZE + 13], 1e-5f);
+        assertEquals(0.5f, pixels[14 * SIZE + 15], 1e-5f);
+        assertEquals(0f, pixels[14 * SIZE + 12], 0f);
+        assertEquals(0f, pixels[SIZE + 14], 0f);
+    }
+
+    @Test
+    public void lineTo_updatesIncrementallyAndMergesStrokesWithMax() {
+        StrokeRasterizer whole = new StrokeRasterizer(SIZE, SIZE);
+        StrokeRasterizer incremental = new StrokeRasterizer(SIZE, SIZE);
+        for (StrokeRasterizer rasterizer : new StrokeRasterizer[]{whole, incremental}) {
+            rasterizer.setViewSize(1080, 1200);
+            rasterizer.setStrokeWidth(35f);
+        }
+
+        whole.moveTo(100f, 100f);
+        whole.lineTo(900f, 1000f);
+        whole.moveTo(900f, 100f);
+        whole.lineTo(100f, 1000f);
+
+        incremental.moveTo(100f, 100f);
+        for (int step = 1; step <= 8; step++) {
+            incremental.lineTo(100f + 100f * step, 100f + 112.5f * step);
+        }
+        incremental.moveTo(900f, 100f);
+        incremental.lineTo(100f, 1000f);
+
+        assertArrayEquals(whole.getPixels(), incremental.getPixels(), 1e-4f);
+    }
+
+    @Test
+    public void lineTo_drawsADotForATap() {
+        StrokeRasterizer rasterizer = new StrokeRasterizer(SIZE, SIZE);
+        rasterizer.setViewSize(SIZE, SIZE);
+        rasterizer.setStrokeWidth(2f);
+
+        rasterizer.moveTo(10.5f, 20.5f);
+        rasterizer.lineTo(10.5f, 20.5f);
+
+        float[] pixels = new float[SIZE * SIZE];
+        rasterizer.getPixels(pixels);
+        assertEquals(1f, pixels[20 * SIZE + 10], 0f);
+        assertEquals(0.5f, pixels[20 * SIZE + 11], 1e-5f);
+    }
+
+    @Test
+    public void clearAndResize_emptyTheImage() {
+        StrokeRasterizer rasterizer = new StrokeRasterizer(SIZE, SIZE);
+        rasterizer.setViewSize(560, 560);
+        rasterizer.setStrokeWidth(35f);
+        rasterizer.moveTo(0f, 0f);
+        rasterizer.lineTo(560f, 560f);
+
+        rasterizer.setViewSize(560, 560);
+        assertFalse(rasterizer.isEmpty());
+        rasterizer.clear();
+        assertTrue(rasterizer.isEmpty());
+        assertArrayEquals(new float[SIZE * SIZE], rasterizer.getPixels(), 0f);
+
+        rasterizer.lineTo(280f, 280f);
+        rasterizer.setViewSize(1080, 1080);
+        assertTrue(rasterizer.isEmpty());
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.vaedemo.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Host benchmarks of the recall vs. latency of the latent index modes, at the size of the MNIST
+ * training set: 60000 codes of 50 dimensions, clustered in a few styles per label like the
+ * encoded digits. The latency is measured per query, and the recall@10 of each mode against the
+ * exact search is printed once at setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LatentIndexBenchmark {
+    private static final int COUNT = 60000;
+    private static final int DIMENSION = 50;
+    private static final int STYLES_PER_LABEL = 20;
+    private static final int K = 10;
+    private static final int QUERY_COUNT = 256;
+
+    /**
+     * exact, or ivf-LISTS-PROBES: LISTS k-means lists per label, PROBES of them scanned
+     */
+    @Param({"exact", "ivf-64-1", "ivf-64-4", "ivf-64-16", "ivf-256-8", "ivf-256-32"})
+    public String mode;
+
+    /**
+     * A label filter like the app uses, or every label
+     */
+    @Param({"label", "any"})
+    public String filter;
+
+    private LatentIndex index;
+    private int probeCount;
+    private float[][] queries;
+    private int[] queryLabels;
+    private int[] ids;
+    private float[] distances;
+    private int nextQuery;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        float[] styles = new float[HelperStages.LABEL_COUNT * STYLES_PER_LABEL * DIMENSION];
+        for (int i = 0; i < styles.length; i++) {
+            styles[i] = (float) random.nextGaussian();
+        }
+        float[] latentCodes = new float[COUNT * DIMENSION];
+        int[] labels = new int[COUNT];
+        for (int id = 0; id < COUNT; id++) {
+            int style = random.nextInt(HelperStages.LABEL_COUNT * STYLES_PER_LABEL);
+            labels[id] = style / STYLES_PER_LABEL;
+            for (int k = 0; k < DIMENSION; k++) {
+                latentCodes[id * DIMENSION + k] =
+                        styles[style * DIMENSION + k] + (float) random.nextGaussian() * 0.6f;
+            }
+        }
+
+        LatentIndex exactIndex = LatentIndex.build(latentCodes, labels, COUNT, DIMENSION, 1,
+                new Random(1));
+        if (mode.equals("exact")) {
+            index = exactIndex;
+            probeCount = LatentIndex.ALL_LISTS;
+        } else {
+            String[] parts = mode.split("-");
+            index = LatentIndex.build(latentCodes, labels, COUNT, DIMENSION,
+                    Integer.parseInt(parts[1]), new Random(1));
+            probeCount = Integer.parseInt(parts[2]);
+        }
+
+        // Queries near random codes, like drawings near the training digits
+        queries = new float[QUERY_COUNT][DIMENSION];
+        queryLabels = new int[QUERY_COUNT];
+        for (int q = 0; q < QUERY_COUNT; q++) {
+            int id = random.nextInt(COUNT);
+            for (int k = 0; k < DIMENSION; k++) {
+                queries[q][k] = latentCodes[id * DIMENSION + k] + (float) random.nextGaussian();
+            }
+            queryLabels[q] = filter.equals("label") ? labels[id] : LatentIndex.ANY_LABEL;
+        }
+        ids = new int[K];
+        distances = new float[K];
+
+        int hits = 0;
+        int[] expectedIds = new int[K];
+        for (int q = 0; q < QUERY_COUNT; q++) {
+            exactIndex.search(queries[q], queryLabels[q], K, LatentIndex.ALL_LISTS,
+                    expectedIds, distances);
+            int found = index.search(queries[q], queryLabels[q], K, probeCount, ids, distances);
+            for (int i = 0; i < found; i++) {
+                for (int expectedId : expectedIds) {
+                    hits += ids[i] == expectedId ? 1 : 0;
+                }
+            }
+        }
+        System.out.printf("%n%s %s: recall@%d = %.3f%n",
+                mode, filter, K, hits / (float) (QUERY_COUNT * K));
+    }
+
+    @Benchmark
+    public int[] search() {
+        int q = nextQuery++ & (QUERY_COUNT - 1);
+        index.search(queries[q], queryLabels[q], K, probeCount, ids, distances);
+        return ids;
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.vaedemo.core;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+/**
+ * Pure Java versions of the small helper graphs around the encoder and decoder, computing what
+ * ml/cvae-tflite-converter.ipynb converts into enc_onehotencode, dec_onehotencode,
+ * reparameterize and bufferize. Each one saves an interpreter invocation and its copies, and
+ * writes straight into the input or output of the neighbouring model. Buffers are accessed with
+ * absolute gets and puts, so their positions are left untouched.
+ */
+public final class HelperStages {
+    public static final int LABEL_COUNT = 10;
+
+    private HelperStages() {
+    }
+
+    /**
+     * Append the one-hot label to every pixel like enc_onehotencode, [h][w] to [h][w][1 + 10]. A
+     * label outside 0..9 is encoded as all zeros, like tf.one_hot.
+     */
+    public static void oneHotEncodePixels(float[][] pixels, int label,
+                                          float[][][] encodedPixels) {
+        checkLength(pixels.length, encodedPixels.length);
+        for (int j = 0; j < pixels.length; j++) {
+            float[] row = pixels[j];
+            float[][] encodedRow = encodedPixels[j];
+            checkLength(row.length, encodedRow.length);
+            for (int i = 0; i < row.length; i++) {
+                float[] channels = encodedRow[i];
+                checkLength(1 + LABEL_COUNT, channels.length);
+                channels[0] = row[i];
+                for (int k = 0; k < LABEL_COUNT; k++) {
+                    channels[1 + k] = k == label ? 1f : 0f;
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as oneHotEncodePixels, from the flattened pixels into the flattened encoder input
+     */
+    public static void oneHotEncodePixels(FloatBuffer pixels, int label,
+                                          FloatBuffer encodedPixels) {
+        int count = pixels.limit();
+        checkLength(count * (1 + LABEL_COUNT), encodedPixels.limit());
+        for (int i = 0, offset = 0; i < count; i++, offset += 1 + LABEL_COUNT) {
+            encodedPixels.put(offset, pixels.get(i));
+            for (int k = 0; k < LABEL_COUNT; k++) {
+                encodedPixels.put(offset + 1 + k, k == label ? 1f : 0f);
+            }
+        }
+    }
+
+    /**
+     * Append the one-hot label to the latent codes like dec_onehotencode, [L] to [L + 10]
+     */
+    public static void oneHotEncodeLatent(float[] latentCodes, int label,
+                                          float[] encodedLatentCodes) {
+        checkLength(latentCodes.length + LABEL_COUNT, encodedLatentCodes.length);
+        System.arraycopy(latentCodes, 0, encodedLatentCodes, 0, latentCodes.length);
+        for (int k = 0; k < LABEL_COUNT; k++) {
+            encodedLatentCodes[latentCodes.length + k] = k == label ? 1f : 0f;
+        }
+    }
+
+    /**
+     * Same as oneHotEncodeLatent, straight into the decoder input buffer
+     */
+    public static void oneHotEncodeLatent(float[] latentCodes, int label,
+                                          FloatBuffer encodedLatentCodes) {
+        checkLength(latentCodes.length + LABEL_COUNT, encodedLatentCodes.limit());
+        for (int i = 0; i < latentCodes.length; i++) {
+            encodedLatentCodes.put(i, latentCodes[i]);
+        }
+        for (int k = 0; k < LABEL_COUNT; k++) {
+            encodedLatentCodes.put(latentCodes.length + k, k == label ? 1f : 0f);
+        }
+    }
+
+    /**
+     * Sample the latent codes from the packed [mean, logvar] encoder output like reparameterize,
+     * z = eps * exp(logvar / 2) + mean with eps drawn from N(0, 1)
+     */
+    public static void reparameterize(float[] packedLatentCodes, Random random,
+                                      float[] latentCodes) {
+        int dimension = latentCodes.length;
+        checkLength(2 * dimension, packedLatentCodes.length);
+        for (int i = 0; i < dimension; i++) {
+            latentCodes[i] = sample(packedLatentCodes[i], packedLatentCodes[dimension + i],
+                    random);
+        }
+    }
+
+    /**
+     * Same as reparameterize, reading the encoder output buffer
+     */
+    public static void reparameterize(FloatBuffer packedLatentCodes, Random random,
+                                      float[] latentCodes) {
+        int dimension = latentCodes.length;
+        checkLength(2 * dimension, packedLatentCodes.limit());
+        for (int i = 0; i < dimension; i++) {
+            latentCodes[i] = sample(packedLatentCodes.get(i), packedLatentCodes.get(dimension + i),
+                    random);
+        }
+    }
+
+    /**
+     * Draw count samples from the packed [mean, logvar] encoder output in one pass, into the
+     * consecutive rows of samples, sample n at n * dimension. The standard deviations are
+     * computed once for all the samples, which otherwise equal count reparameterize calls with
+     * the same random.
+     */
+    public static void reparameterizeSamples(float[] packedLatentCodes, Random random, int count,
+                                             float[] samples) {
+        if (count <= 0 || packedLatentCodes.length % 2 != 0) {
+            throw new IllegalArgumentException("Invalid sample count or encoder output");
+        }
+        int dimension = packedLatentCodes.length / 2;
+        checkLength(count * dimension, samples.length);
+
+        float[] deviations = new float[dimension];
+        for (int i = 0; i < dimension; i++) {
+            deviations[i] = (float) Math.exp(packedLatentCodes[dimension + i] * .5f);
+        }
+        for (int n = 0, offset = 0; n < count; n++, offset += dimension) {
+            for (int i = 0; i < dimension; i++) {
+                samples[offset + i] = (float) random.nextGaussian() * deviations[i] +
+                        packedLatentCodes[i];
+            }
+        }
+    }
+
+    /**
+     * Convert the decoder logits to grayscale bytes like bufferize, uint8(sigmoid(x) * 255),
+     * [h][w][1] to [h][w]
+     */
+    public static void bufferize(float[][][] logits, byte[][] grayscalePixels) {
+        checkLength(logits.length, grayscalePixels.length);
+        for (int j = 0; j < logits.length; j++) {
+            float[][] row = logits[j];
+            byte[] grayscaleRow = grayscalePixels[j];
+            checkLength(row.length, grayscaleRow.length);
+            for (int i = 0; i < row.length; i++) {
+                grayscaleRow[i] = toGrayscale(row[i][0]);
+            }
+        }
+    }
+
+    /**
+     * Same as bufferize, from the decoder output buffer into the grayscale buffer
+     */
+    public static void bufferize(FloatBuffer logits, ByteBuffer grayscalePixels) {
+        int count = logits.limit();
+        checkLength(count, grayscalePixels.limit());
+        for (int i = 0; i < count; i++) {
+            grayscalePixels.put(i, toGrayscale(logits.get(i)));
+        }
+    }
+
+    private static float sample(float mean, float logvar, Random random) {
+        return (float) random.nextGaussian() * (float) Math.exp(logvar * .5f) + mean;
+    }
+
+    private static byte toGrayscale(float logit) {
+        // The cast truncates like tf.cast to uint8
+        float sigmoid = (float) (1 / (1 + Math.exp(-logit)));
+        return (byte) (int) (sigmoid * 255);
+    }
+
+    private static void checkLength(int expected, int actual) {
+        if (expected != actual) {
+            throw new IllegalArgumentException(
+                    "The buffer size " + actual + " is not matched with " + expected);
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package com.example.vaedemo.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of encoded drawings: latent codes, label, timestamp and an optional grayscale
+ * thumbnail per record, at a fixed stride so record i is at HEADER_SIZE + i * stride. The file is
+ * memory-mapped, so reopening it costs a map and a checksum, not a read of every record, and the
+ * latent codes and thumbnails are read through views of the mapping without copies.
+ *
+ * Appends write the record with its CRC32 first and bump the record count in the header last.
+ * Nothing is forced to the disk until sync(), so a crash may lose any of the records appended or
+ * deleted since. Whatever the order their pages reached the disk, a record missing its count is
+ * invisible, and open() checks every counted record: torn ones at the end are dropped and torn
+ * ones before a valid record are marked deleted, keeping the indices of the others. Deleted
+ * records keep their slot until compact() rewrites the file.
+ *
+ * Little-endian. Not thread-safe, e.g. it is confined to one stage thread.
+ */
+public final class LatentHistoryStore implements Closeable {
+    private static final int MAGIC = 0x56414548;
+    private static final int VERSION = 1;
+
+    /**
+     * magic, version, latent dimension, thumbnail size, stride, count, reserved
+     */
+    static final int HEADER_SIZE = 32;
+    private static final int COUNT_OFFSET = 20;
+
+    /**
+     * Record fields: CRC32 of the rest of the record, label, flags, timestamp, latent codes,
+     * thumbnail, then padding to 8 bytes
+     */
+    private static final int CRC_OFFSET = 0;
+    private static final int LABEL_OFFSET = 4;
+    private static final int FLAGS_OFFSET = 8;
+    private static final int TIMESTAMP_OFFSET = 12;
+    private static final int LATENT_OFFSET = 20;
+
+    private static final int FLAG_DELETED = 1;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final File file;
+    private final int latentDimension;
+    private final int thumbnailSize;
+    private final int stride;
+
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private MappedByteBuffer mapping;
+    private int capacity;
+    private int count;
+    private int deletedCount;
+    private int tornCount;
+    private final CRC32 crc = new CRC32();
+
+    private LatentHistoryStore(File file, int latentDimension, int thumbnailSize) {
+        this.file = file;
+        this.latentDimension = latentDimension;
+        this.thumbnailSize = thumbnailSize;
+        this.stride = (LATENT_OFFSET + 4 * latentDimension + thumbnailSize + 7) & ~7;
+    }
+
+    /**
+     * Open the store, creating it if the file does not exist
+     *
+     * @param thumbnailSize the bytes of a thumbnail, e.g. 28 * 28, or 0 for none
+     * @throws IOException if the file is not a store of the same latent dimension and thumbnail
+     *                     size
+     */
+    public static LatentHistoryStore open(File file, int latentDimension, int thumbnailSize)
+            throws IOException {
+        if (latentDimension <= 0 || thumbnailSize < 0) {
+            throw new IllegalArgumentException("Invalid latent dimension or thumbnail size");
+        }
+        LatentHistoryStore store = new LatentHistoryStore(file, latentDimension, thumbnailSize);
+        try {
+            store.load();
+        } catch (IOException | RuntimeException e) {
+            store.close();
+            throw e;
+        }
+        return store;
+    }
+
+    private void load() throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        if (channel.size() < HEADER_SIZE) {
+            // New, or crashed before its header was complete
+            map(INITIAL_CAPACITY);
+            mapping.putInt(0, MAGIC);
+            mapping.putInt(4, VERSION);
+            mapping.putInt(8, latentDimension);
+            mapping.putInt(12, thumbnailSize);
+            mapping.putInt(16, stride);
+            mapping.putInt(COUNT_OFFSET, 0);
+            return;
+        }
+
+        map((int) ((channel.size() - HEADER_SIZE) / stride));
+        if (mapping.getInt(0) != MAGIC || mapping.getInt(4) != VERSION) {
+            throw new IOException(file + " is not a latent history store");
+        }
+        if (mapping.getInt(8) != latentDimension || mapping.getInt(12) != thumbnailSize
+                || mapping.getInt(16) != stride) {
+            throw new IOException(file + " stores records of another shape");
+        }
+
+        // Drop the tail records a crash left torn, and delete the ones before valid records
+        count = Math.min(Math.max(mapping.getInt(COUNT_OFFSET), 0), capacity);
+        while (count > 0 && !isValid(count - 1)) {
+            count--;
+        }
+        mapping.putInt(COUNT_OFFSET, count);
+        for (int index = 0; index < count; index++) {
+            if (!isValid(index)) {
+                tornCount++;
+                markDeleted(index);
+            }
+            if (isDeleted(index)) {
+                deletedCount++;
+            }
+        }
+    }
+
+    /**
+     * Map the header and capacity records, growing the file if needed
+     */
+    private void map(int capacity) throws IOException {
+        long size = HEADER_SIZE + (long) capacity * stride;
+        if (channel.size() < size) {
+            randomAccessFile.setLength(size);
+        }
+        mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        mapping.order(ByteOrder.LITTLE_ENDIAN);
+        this.capacity = capacity;
+    }
+
+    public int getLatentDimension() {
+        return latentDimension;
+    }
+
+    public int getThumbnailSize() {
+        return thumbnailSize;
+    }
+
+    /**
+     * Number of records, deleted ones included, which keep their index until compact()
+     */
+    public int size() {
+        return count;
+    }
+
+    public int getDeletedCount() {
+        return deletedCount;
+    }
+
+    /**
+     * Number of torn records open() found before valid ones and marked deleted
+     */
+    public int getTornCount() {
+        return tornCount;
+    }
+
+    /**
+     * Append a record and return its index
+     *
+     * @param thumbnail thumbnailSize bytes, or null to leave the thumbnail blank
+     */
+    public int append(float[] latentCodes, int label, long timestampMillis, byte[] thumbnail)
+            throws IOException {
+        if (latentCodes.length < latentDimension
+                || (thumbnail != null && thumbnail.length < thumbnailSize)) {
+            throw new IllegalArgumentException("The latent codes or thumbnail are too short");
+        }
+        if (count == capacity) {
+            map(Math.max(INITIAL_CAPACITY, 2 * capacity));
+        }
+
+        int offset = recordOffset(count);
+        mapping.putInt(offset + LABEL_OFFSET, label);
+        mapping.putInt(offset + FLAGS_OFFSET, 0);
+        mapping.putLong(offset + TIMESTAMP_OFFSET, timestampMillis);
+        ByteBuffer record = record(count);
+        record.position(LATENT_OFFSET);
+        record.asFloatBuffer().put(latentCodes, 0, latentDimension);
+        record.position(LATENT_OFFSET + 4 * latentDimension);
+        if (thumbnail != null) {
+            record.put(thumbnail, 0, thumbnailSize);
+        } else {
+            for (int i = 0; i < thumbnailSize; i++) {
+                record.put((byte) 0);
+            }
+        }
+        mapping.putInt(offset + CRC_OFFSET, checksum(count));
+
+        // Only now is the record part of the store
+        mapping.putInt(COUNT_OFFSET, ++count);
+        return count - 1;
+    }
+
+    /**
+     * Mark the record deleted. Its slot is reclaimed by compact().
+     */
+    public void delete(int index) {
+        checkIndex(index);
+        if (isDeleted(index)) {
+            return;
+        }
+        markDeleted(index);
+        deletedCount++;
+    }
+
+    public boolean isDeleted(int index) {
+        checkIndex(index);
+        return (mapping.getInt(recordOffset(index) + FLAGS_OFFSET) & FLAG_DELETED) != 0;
+    }
+
+    public int getLabel(int index) {
+        checkIndex(index);
+        return mapping.getInt(recordOffset(index) + LABEL_OFFSET);
+    }
+
+    public long getTimestampMillis(int index) {
+        checkIndex(index);
+        return mapping.getLong(recordOffset(index) + TIMESTAMP_OFFSET);
+    }
+
+    /**
+     * Read-only view of the latent codes of the record in the mapping, without a copy. It stays
+     * valid, though stale, after the store is compacted or closed.
+     */
+    public FloatBuffer getLatentCodes(int index) {
+        checkIndex(index);
+        ByteBuffer record = record(index);
+        record.position(LATENT_OFFSET);
+        record.limit(LATENT_OFFSET + 4 * latentDimension);
+        return record.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().asReadOnlyBuffer();
+    }
+
+    public void getLatentCodes(int index, float[] latentCodes) {
+        getLatentCodes(index).get(latentCodes, 0, latentDimension);
+    }
+
+    /**
+     * Read-only view of the thumbnail of the record in the mapping, like getLatentCodes()
+     */
+    public ByteBuffer getThumbnail(int index) {
+        checkIndex(index);
+        ByteBuffer record = record(index);
+        int offset = LATENT_OFFSET + 4 * latentDimension;
+        record.position(offset);
+        record.limit(offset + thumbnailSize);
+        return record.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Force the records and the count to the disk
+     */
+    public void sync() {
+        mapping.force();
+    }
+
+    /**
+     * Rewrite the store without its deleted records, and without all but the last maxRecords
+     * live ones. The new file replaces the old one by rename, so a crash leaves either of them.
+     * The indices of the remaining records change.
+     */
+    public void compact(int maxRecords) throws IOException {
+        int liveCount = count - deletedCount;
+        int skipCount = Math.max(0, liveCount - maxRecords);
+        File compactFile = new File(file.getPath() + ".compact");
+        if (compactFile.exists() && !compactFile.delete()) {
+            throw new IOException("Cannot delete " + compactFile);
+        }
+
+        LatentHistoryStore compacted =
+                new LatentHistoryStore(compactFile, latentDimension, thumbnailSize);
+        try {
+            compacted.load();
+            compacted.map(Math.max(INITIAL_CAPACITY, liveCount - skipCount));
+            for (int index = 0; index < count; index++) {
+                if (isDeleted(index) || skipCount-- > 0) {
+                    continue;
+                }
+                // Copy the whole record, its checksum included
+                ByteBuffer source = record(index);
+                ByteBuffer target = compacted.record(compacted.count);
+                target.put(source);
+                compacted.count++;
+            }
+            compacted.mapping.putInt(COUNT_OFFSET, compacted.count);
+            compacted.sync();
+        } finally {
+            compacted.close();
+        }
+
+        close();
+        if (!compactFile.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+        count = 0;
+        deletedCount = 0;
+        load();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mapping = null;
+        if (randomAccessFile != null) {
+            randomAccessFile.close();
+            randomAccessFile = null;
+            channel = null;
+        }
+    }
+
+    private void markDeleted(int index) {
+        int offset = recordOffset(index);
+        mapping.putInt(offset + FLAGS_OFFSET, mapping.getInt(offset + FLAGS_OFFSET)
+                | FLAG_DELETED);
+        mapping.putInt(offset + CRC_OFFSET, checksum(index));
+    }
+
+    private boolean isValid(int index) {
+        return mapping.getInt(recordOffset(index) + CRC_OFFSET) == checksum(index);
+    }
+
+    private int checksum(int index) {
+        ByteBuffer record = record(index);
+        record.position(CRC_OFFSET + 4);
+        crc.reset();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * A view of the whole record, positioned at its start
+     */
+    private ByteBuffer record(int index) {
+        ByteBuffer record = mapping.duplicate();
+        int offset = recordOffset(index);
+        record.position(offset);
+        record.limit(offset + stride);
+        return record.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private int recordOffset(int index) {
+        return HEADER_SIZE + index * stride;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("No record " + index + " of " + count);
+        }
+    }
+}
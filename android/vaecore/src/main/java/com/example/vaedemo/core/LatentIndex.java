@@ -0,0 +1,528 @@
+package com.example.vaedemo.core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * In-memory nearest neighbour index over the latent codes of a dataset, e.g. the MNIST training
+ * set encoded by the batch tool, for "find similar digits" queries by squared L2 distance.
+ *
+ * The codes are partitioned by label, so a label filter only scans that label, and every label
+ * into inverted lists clustered around k-means centroids. A query either scans every list of its
+ * labels, which is exact, or only the lists of its probeCount nearest centroids, which is an
+ * approximate IVF search. Within a list the codes are stored in blocks of BLOCK_SIZE codes,
+ * dimension-major, so the distances of a whole block accumulate side by side over consecutive
+ * floats of one flat float[], which the JIT can map onto SIMD lanes. With a single list per
+ * label every search is exact.
+ *
+ * Immutable once built or read, so it can be searched from any thread.
+ */
+public final class LatentIndex {
+    /**
+     * Codes per block, the float lanes of a 256-bit vector, unrolled in scan()
+     */
+    static final int BLOCK_SIZE = 8;
+
+    /**
+     * Label filter of a search over every label
+     */
+    public static final int ANY_LABEL = -1;
+
+    /**
+     * Searches with this probe count scan every list, which is exact
+     */
+    public static final int ALL_LISTS = 0;
+
+    private static final int MAGIC = 0x56414549;
+    private static final int KMEANS_ITERATIONS = 10;
+    private static final int IO_CHUNK_SIZE = 1 << 16;
+
+    private final int dimension;
+    private final int count;
+
+    /**
+     * The lists of label l are [labelListStarts[l], labelListStarts[l + 1]), and the blocks of
+     * list i are [listBlockStarts[i], listBlockStarts[i + 1])
+     */
+    private final int[] labelListStarts;
+    private final int[] listBlockStarts;
+    private final float[] centroids;
+
+    /**
+     * blocks[(block * dimension + k) * BLOCK_SIZE + lane] is code k of the slot
+     * block * BLOCK_SIZE + lane, whose dataset position is slotIds[slot], or -1 for the padding
+     * at the end of a list
+     */
+    private final float[] blocks;
+    private final int[] slotIds;
+
+    /**
+     * The slot and label of every dataset position, derived from the above
+     */
+    private final int[] idSlots;
+    private final int[] idLabels;
+
+    private LatentIndex(int dimension, int count, int[] labelListStarts, int[] listBlockStarts,
+                        float[] centroids, float[] blocks, int[] slotIds) {
+        this.dimension = dimension;
+        this.count = count;
+        this.labelListStarts = labelListStarts;
+        this.listBlockStarts = listBlockStarts;
+        this.centroids = centroids;
+        this.blocks = blocks;
+        this.slotIds = slotIds;
+
+        idSlots = new int[count];
+        idLabels = new int[count];
+        for (int label = 0; label < labelListStarts.length - 1; label++) {
+            int firstSlot = listBlockStarts[labelListStarts[label]] * BLOCK_SIZE;
+            int lastSlot = listBlockStarts[labelListStarts[label + 1]] * BLOCK_SIZE;
+            for (int slot = firstSlot; slot < lastSlot; slot++) {
+                int id = slotIds[slot];
+                if (id >= 0) {
+                    idSlots[id] = slot;
+                    idLabels[id] = label;
+                }
+            }
+        }
+    }
+
+    /**
+     * Build the index over count latent codes, flattened row by row, with their labels in
+     * [0, LABEL_COUNT). The position of a code in the array is its id in the search results.
+     *
+     * @param listsPerLabel the k-means lists of every label, or 1 for an exact-only index
+     */
+    public static LatentIndex build(float[] latentCodes, int[] labels, int count, int dimension,
+                                    int listsPerLabel, Random random) {
+        if (count < 0 || latentCodes.length < count * dimension || labels.length < count) {
+            throw new IllegalArgumentException("Fewer codes or labels than the count");
+        }
+        if (dimension <= 0 || listsPerLabel <= 0) {
+            throw new IllegalArgumentException(
+                    "The dimension and lists per label must be positive");
+        }
+
+        // Partition the ids by label
+        int labelCount = HelperStages.LABEL_COUNT;
+        int[][] labelIds = new int[labelCount][];
+        int[] labelSizes = new int[labelCount];
+        for (int id = 0; id < count; id++) {
+            checkLabel(labels[id]);
+            labelSizes[labels[id]]++;
+        }
+        for (int label = 0; label < labelCount; label++) {
+            labelIds[label] = new int[labelSizes[label]];
+            labelSizes[label] = 0;
+        }
+        for (int id = 0; id < count; id++) {
+            labelIds[labels[id]][labelSizes[labels[id]]++] = id;
+        }
+
+        // Cluster every label into its lists
+        int[] labelListStarts = new int[labelCount + 1];
+        int[][] listIds = new int[labelCount * listsPerLabel][];
+        float[] centroids = new float[labelCount * listsPerLabel * dimension];
+        int listCount = 0;
+        for (int label = 0; label < labelCount; label++) {
+            labelListStarts[label] = listCount;
+            int[] ids = labelIds[label];
+            int clusterCount = Math.max(1, Math.min(listsPerLabel, ids.length));
+            int[] assignments = new int[ids.length];
+            float[] labelCentroids = new float[clusterCount * dimension];
+            cluster(latentCodes, ids, dimension, clusterCount, random, labelCentroids,
+                    assignments);
+
+            int[] clusterSizes = new int[clusterCount];
+            for (int assignment : assignments) {
+                clusterSizes[assignment]++;
+            }
+            for (int cluster = 0; cluster < clusterCount; cluster++) {
+                listIds[listCount + cluster] = new int[clusterSizes[cluster]];
+                clusterSizes[cluster] = 0;
+            }
+            for (int i = 0; i < ids.length; i++) {
+                listIds[listCount + assignments[i]][clusterSizes[assignments[i]]++] = ids[i];
+            }
+            System.arraycopy(labelCentroids, 0,
+                    centroids, listCount * dimension, labelCentroids.length);
+            listCount += clusterCount;
+        }
+        labelListStarts[labelCount] = listCount;
+
+        // Lay the lists out block by block, padding every list to whole blocks
+        int[] listBlockStarts = new int[listCount + 1];
+        int blockCount = 0;
+        for (int list = 0; list < listCount; list++) {
+            listBlockStarts[list] = blockCount;
+            blockCount += (listIds[list].length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        }
+        listBlockStarts[listCount] = blockCount;
+
+        float[] blocks = new float[blockCount * dimension * BLOCK_SIZE];
+        int[] slotIds = new int[blockCount * BLOCK_SIZE];
+        Arrays.fill(slotIds, -1);
+        for (int list = 0; list < listCount; list++) {
+            int firstSlot = listBlockStarts[list] * BLOCK_SIZE;
+            for (int i = 0; i < listIds[list].length; i++) {
+                int slot = firstSlot + i;
+                int id = listIds[list][i];
+                slotIds[slot] = id;
+                int base = (slot / BLOCK_SIZE) * dimension * BLOCK_SIZE + slot % BLOCK_SIZE;
+                for (int k = 0; k < dimension; k++) {
+                    blocks[base + k * BLOCK_SIZE] = latentCodes[id * dimension + k];
+                }
+            }
+        }
+
+        return new LatentIndex(dimension, count, labelListStarts, listBlockStarts,
+                Arrays.copyOf(centroids, listCount * dimension), blocks, slotIds);
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Number of inverted lists of the label
+     */
+    public int getListCount(int label) {
+        checkLabel(label);
+        return labelListStarts[label + 1] - labelListStarts[label];
+    }
+
+    public int getLabel(int id) {
+        return idLabels[id];
+    }
+
+    /**
+     * Copy the latent code of the dataset position into the array
+     */
+    public void getLatentCode(int id, float[] latentCode) {
+        int slot = idSlots[id];
+        int base = (slot / BLOCK_SIZE) * dimension * BLOCK_SIZE + slot % BLOCK_SIZE;
+        for (int k = 0; k < dimension; k++) {
+            latentCode[k] = blocks[base + k * BLOCK_SIZE];
+        }
+    }
+
+    /**
+     * Find the k codes nearest to the query, nearest first, into ids and their squared
+     * distances into distances
+     *
+     * @param label      the label the results must have, or ANY_LABEL
+     * @param probeCount the lists to scan per label, nearest centroid first, or ALL_LISTS for
+     *                   an exact search
+     * @return the number of results, less than k only if the scanned lists hold fewer codes
+     */
+    public int search(float[] query, int label, int k, int probeCount, int[] ids,
+                      float[] distances) {
+        if (query.length < dimension || ids.length < k || distances.length < k) {
+            throw new IllegalArgumentException("The query or result arrays are too short");
+        }
+        if (label != ANY_LABEL) {
+            checkLabel(label);
+        }
+
+        int firstLabel = label == ANY_LABEL ? 0 : label;
+        int lastLabel = label == ANY_LABEL ? labelListStarts.length - 2 : label;
+        float[] laneDistances = new float[BLOCK_SIZE];
+        int found = 0;
+        for (int l = firstLabel; l <= lastLabel; l++) {
+            int firstList = labelListStarts[l];
+            int listCount = labelListStarts[l + 1] - firstList;
+            if (probeCount <= ALL_LISTS || probeCount >= listCount) {
+                found = scan(query, listBlockStarts[firstList],
+                        listBlockStarts[firstList + listCount], k, ids, distances, found,
+                        laneDistances);
+                continue;
+            }
+
+            int[] probes = new int[probeCount];
+            float[] probeDistances = new float[probeCount];
+            int probeFound = 0;
+            for (int list = firstList; list < firstList + listCount; list++) {
+                float distance = 0;
+                for (int j = 0; j < dimension; j++) {
+                    float difference = centroids[list * dimension + j] - query[j];
+                    distance += difference * difference;
+                }
+                probeFound = insert(list, distance, probeCount, probes, probeDistances,
+                        probeFound);
+            }
+            for (int i = 0; i < probeFound; i++) {
+                found = scan(query, listBlockStarts[probes[i]], listBlockStarts[probes[i] + 1],
+                        k, ids, distances, found, laneDistances);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Scan the blocks [fromBlock, toBlock) into the k nearest found so far. The eight lanes of a
+     * block accumulate in locals, which stay in registers
+     */
+    private int scan(float[] query, int fromBlock, int toBlock, int k, int[] ids,
+                     float[] distances, int found, float[] laneDistances) {
+        for (int block = fromBlock; block < toBlock; block++) {
+            float d0 = 0, d1 = 0, d2 = 0, d3 = 0, d4 = 0, d5 = 0, d6 = 0, d7 = 0;
+            int offset = block * dimension * BLOCK_SIZE;
+            for (int j = 0; j < dimension; j++, offset += BLOCK_SIZE) {
+                float value = query[j];
+                float e0 = blocks[offset] - value;
+                float e1 = blocks[offset + 1] - value;
+                float e2 = blocks[offset + 2] - value;
+                float e3 = blocks[offset + 3] - value;
+                float e4 = blocks[offset + 4] - value;
+                float e5 = blocks[offset + 5] - value;
+                float e6 = blocks[offset + 6] - value;
+                float e7 = blocks[offset + 7] - value;
+                d0 += e0 * e0;
+                d1 += e1 * e1;
+                d2 += e2 * e2;
+                d3 += e3 * e3;
+                d4 += e4 * e4;
+                d5 += e5 * e5;
+                d6 += e6 * e6;
+                d7 += e7 * e7;
+            }
+            laneDistances[0] = d0;
+            laneDistances[1] = d1;
+            laneDistances[2] = d2;
+            laneDistances[3] = d3;
+            laneDistances[4] = d4;
+            laneDistances[5] = d5;
+            laneDistances[6] = d6;
+            laneDistances[7] = d7;
+
+            for (int lane = 0; lane < BLOCK_SIZE; lane++) {
+                int id = slotIds[block * BLOCK_SIZE + lane];
+                if (id >= 0) {
+                    found = insert(id, laneDistances[lane], k, ids, distances, found);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Insert into the k nearest found so far, sorted nearest first
+     */
+    private static int insert(int id, float distance, int k, int[] ids, float[] distances,
+                              int found) {
+        if (k == 0 || found == k && distance >= distances[k - 1]) {
+            return found;
+        }
+        int i = found < k ? found++ : k - 1;
+        while (i > 0 && distances[i - 1] > distance) {
+            ids[i] = ids[i - 1];
+            distances[i] = distances[i - 1];
+            i--;
+        }
+        ids[i] = id;
+        distances[i] = distance;
+        return found;
+    }
+
+    /**
+     * Lloyd's k-means of the codes of ids, starting from distinct random codes
+     */
+    private static void cluster(float[] latentCodes, int[] ids, int dimension, int clusterCount,
+                                Random random, float[] centroids, int[] assignments) {
+        if (ids.length == 0) {
+            return;
+        }
+        int[] shuffled = ids.clone();
+        for (int i = 0; i < clusterCount; i++) {
+            int j = i + random.nextInt(shuffled.length - i);
+            int id = shuffled[j];
+            shuffled[j] = shuffled[i];
+            shuffled[i] = id;
+            System.arraycopy(latentCodes, id * dimension, centroids, i * dimension, dimension);
+        }
+        if (clusterCount == 1) {
+            // A single list has nothing to assign, only its mean to probe by
+            Arrays.fill(assignments, 0);
+            updateCentroids(latentCodes, ids, dimension, 1, assignments, centroids);
+            return;
+        }
+
+        for (int iteration = 0; iteration < KMEANS_ITERATIONS; iteration++) {
+            boolean isChanged =
+                    assign(latentCodes, ids, dimension, clusterCount, centroids, assignments);
+            updateCentroids(latentCodes, ids, dimension, clusterCount, assignments, centroids);
+            if (!isChanged && iteration > 0) {
+                break;
+            }
+        }
+        assign(latentCodes, ids, dimension, clusterCount, centroids, assignments);
+    }
+
+    /**
+     * Assign every code to its nearest centroid
+     *
+     * @return whether any assignment changed
+     */
+    private static boolean assign(float[] latentCodes, int[] ids, int dimension,
+                                  int clusterCount, float[] centroids, int[] assignments) {
+        boolean isChanged = false;
+        for (int i = 0; i < ids.length; i++) {
+            int offset = ids[i] * dimension;
+            int nearest = 0;
+            float nearestDistance = Float.POSITIVE_INFINITY;
+            for (int cluster = 0; cluster < clusterCount; cluster++) {
+                int centroidOffset = cluster * dimension;
+                float distance = 0;
+                for (int j = 0; j < dimension; j++) {
+                    float difference = centroids[centroidOffset + j] - latentCodes[offset + j];
+                    distance += difference * difference;
+                }
+                if (distance < nearestDistance) {
+                    nearest = cluster;
+                    nearestDistance = distance;
+                }
+            }
+            isChanged |= assignments[i] != nearest;
+            assignments[i] = nearest;
+        }
+        return isChanged;
+    }
+
+    /**
+     * Move every centroid to the mean of its codes, leaving the centroids of empty clusters
+     */
+    private static void updateCentroids(float[] latentCodes, int[] ids, int dimension,
+                                        int clusterCount, int[] assignments, float[] centroids) {
+        float[] sums = new float[clusterCount * dimension];
+        int[] sizes = new int[clusterCount];
+        for (int i = 0; i < ids.length; i++) {
+            int cluster = assignments[i];
+            sizes[cluster]++;
+            for (int j = 0; j < dimension; j++) {
+                sums[cluster * dimension + j] += latentCodes[ids[i] * dimension + j];
+            }
+        }
+        for (int cluster = 0; cluster < clusterCount; cluster++) {
+            if (sizes[cluster] > 0) {
+                for (int j = 0; j < dimension; j++) {
+                    centroids[cluster * dimension + j] =
+                            sums[cluster * dimension + j] / sizes[cluster];
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the index, big-endian, for read() to load it without clustering again
+     */
+    public void write(OutputStream stream) throws IOException {
+        DataOutputStream output = new DataOutputStream(stream);
+        output.writeInt(MAGIC);
+        output.writeInt(dimension);
+        output.writeInt(count);
+        output.writeInt(labelListStarts.length - 1);
+        output.writeInt(listBlockStarts.length - 1);
+        output.writeInt(blocks.length / (dimension * BLOCK_SIZE));
+        byte[] chunk = new byte[IO_CHUNK_SIZE];
+        writeInts(output, labelListStarts, chunk);
+        writeInts(output, listBlockStarts, chunk);
+        writeFloats(output, centroids, chunk);
+        writeFloats(output, blocks, chunk);
+        writeInts(output, slotIds, chunk);
+        output.flush();
+    }
+
+    /**
+     * Read an index written by write(), e.g. from an asset
+     */
+    public static LatentIndex read(InputStream stream) throws IOException {
+        DataInputStream input = new DataInputStream(stream);
+        if (input.readInt() != MAGIC) {
+            throw new IOException("Not a latent index");
+        }
+        int dimension = input.readInt();
+        int count = input.readInt();
+        int labelCount = input.readInt();
+        int listCount = input.readInt();
+        int blockCount = input.readInt();
+        if (dimension <= 0 || count < 0 || labelCount != HelperStages.LABEL_COUNT
+                || listCount < labelCount || blockCount < 0) {
+            throw new IOException("Corrupted latent index header");
+        }
+
+        byte[] chunk = new byte[IO_CHUNK_SIZE];
+        int[] labelListStarts = readInts(input, labelCount + 1, chunk);
+        int[] listBlockStarts = readInts(input, listCount + 1, chunk);
+        float[] centroids = readFloats(input, listCount * dimension, chunk);
+        float[] blocks = readFloats(input, blockCount * dimension * BLOCK_SIZE, chunk);
+        int[] slotIds = readInts(input, blockCount * BLOCK_SIZE, chunk);
+        return new LatentIndex(dimension, count, labelListStarts, listBlockStarts, centroids,
+                blocks, slotIds);
+    }
+
+    // The arrays go through byte chunks in bulk, as a DataStream call per value is slow
+
+    private static void writeInts(DataOutputStream output, int[] values, byte[] chunk)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        for (int offset = 0; offset < values.length; offset += chunk.length / 4) {
+            int length = Math.min(chunk.length / 4, values.length - offset);
+            buffer.clear();
+            buffer.asIntBuffer().put(values, offset, length);
+            output.write(chunk, 0, length * 4);
+        }
+    }
+
+    private static void writeFloats(DataOutputStream output, float[] values, byte[] chunk)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        for (int offset = 0; offset < values.length; offset += chunk.length / 4) {
+            int length = Math.min(chunk.length / 4, values.length - offset);
+            buffer.clear();
+            buffer.asFloatBuffer().put(values, offset, length);
+            output.write(chunk, 0, length * 4);
+        }
+    }
+
+    private static int[] readInts(DataInputStream input, int size, byte[] chunk)
+            throws IOException {
+        int[] values = new int[size];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        for (int offset = 0; offset < size; offset += chunk.length / 4) {
+            int length = Math.min(chunk.length / 4, size - offset);
+            input.readFully(chunk, 0, length * 4);
+            buffer.clear();
+            buffer.asIntBuffer().get(values, offset, length);
+        }
+        return values;
+    }
+
+    private static float[] readFloats(DataInputStream input, int size, byte[] chunk)
+            throws IOException {
+        float[] values = new float[size];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        for (int offset = 0; offset < size; offset += chunk.length / 4) {
+            int length = Math.min(chunk.length / 4, size - offset);
+            input.readFully(chunk, 0, length * 4);
+            buffer.clear();
+            buffer.asFloatBuffer().get(values, offset, length);
+        }
+        return values;
+    }
+
+    private static void checkLabel(int label) {
+        if (label < 0 || label >= HelperStages.LABEL_COUNT) {
+            throw new IllegalArgumentException("Label out of range: " + label);
+        }
+    }
+}
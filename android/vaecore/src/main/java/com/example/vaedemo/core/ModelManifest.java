@@ -0,0 +1,236 @@
+package com.example.vaedemo.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The manifest of a versioned model bundle, a directory holding retrained models next to a
+ * manifest.properties that lists them:
+ *
+ * <pre>
+ * version=3
+ * files=encode.tflite
+ * encode.tflite.sha256=9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08
+ * encode.tflite.inputs=1,28,28,11
+ * </pre>
+ *
+ * The inputs are the input tensor shapes, separated by semicolons, and must match the model
+ * exactly. Files the bundle does not list are loaded from the assets. The version is positive;
+ * version 0 are the models bundled with the app. ml/make_model_bundle.py writes the manifest,
+ * and a bundle is copied with its manifest last, so a directory without one is skipped.
+ */
+public final class ModelManifest {
+    public static final String FILE_NAME = "manifest.properties";
+
+    private final File directory;
+    private final int version;
+    private final Map<String, String> checksums = new LinkedHashMap<>();
+    private final Map<String, int[][]> inputShapes = new LinkedHashMap<>();
+
+    private ModelManifest(File directory, int version) {
+        this.directory = directory;
+        this.version = version;
+    }
+
+    /**
+     * Read the manifest of the bundle in the directory. The files are not verified yet.
+     *
+     * @throws IOException if the manifest is missing or malformed
+     */
+    public static ModelManifest read(File directory) throws IOException {
+        Properties properties = new Properties();
+        InputStream inputStream = new FileInputStream(new File(directory, FILE_NAME));
+        try {
+            properties.load(inputStream);
+        } finally {
+            inputStream.close();
+        }
+
+        try {
+            return parse(directory, properties);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(directory + ": invalid " + FILE_NAME + ", " + e.getMessage(), e);
+        }
+    }
+
+    private static ModelManifest parse(File directory, Properties properties) {
+        ModelManifest manifest = new ModelManifest(directory,
+                Integer.parseInt(require(properties, "version").trim()));
+        if (manifest.version <= 0) {
+            throw new IllegalArgumentException("the version must be positive");
+        }
+
+        for (String file : require(properties, "files").split(",")) {
+            file = file.trim();
+            if (file.isEmpty() || file.contains("/") || file.equals(FILE_NAME)) {
+                throw new IllegalArgumentException("bad file name '" + file + "'");
+            }
+            String checksum = require(properties, file + ".sha256").trim().toLowerCase();
+            if (!checksum.matches("[0-9a-f]{64}")) {
+                throw new IllegalArgumentException(file + " has no SHA-256 checksum");
+            }
+            manifest.checksums.put(file, checksum);
+            manifest.inputShapes.put(file, parseShapes(require(properties, file + ".inputs")));
+        }
+        return manifest;
+    }
+
+    private static String require(Properties properties, String key) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            throw new IllegalArgumentException("missing " + key);
+        }
+        return value;
+    }
+
+    private static int[][] parseShapes(String value) {
+        String[] tensors = value.split(";");
+        int[][] shapes = new int[tensors.length][];
+        for (int i = 0; i < tensors.length; i++) {
+            String[] dimensions = tensors[i].split(",");
+            shapes[i] = new int[dimensions.length];
+            for (int j = 0; j < dimensions.length; j++) {
+                shapes[i][j] = Integer.parseInt(dimensions[j].trim());
+                if (shapes[i][j] <= 0) {
+                    throw new IllegalArgumentException("bad input shape '" + value + "'");
+                }
+            }
+        }
+        return shapes;
+    }
+
+    /**
+     * The newest bundle among the subdirectories of root, or null if there is none. Directories
+     * without a readable manifest, e.g. one still being copied, are skipped.
+     */
+    public static ModelManifest findLatest(File root) {
+        File[] directories = root.listFiles();
+        if (directories == null) {
+            return null;
+        }
+
+        ModelManifest latest = null;
+        for (File directory : directories) {
+            if (!new File(directory, FILE_NAME).isFile()) {
+                continue;
+            }
+            try {
+                ModelManifest manifest = read(directory);
+                if (latest == null || manifest.version > latest.version) {
+                    latest = manifest;
+                }
+            } catch (IOException e) {
+                // Not a bundle, or not a complete one yet
+            }
+        }
+        return latest;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * The model files of the bundle, in manifest order
+     */
+    public List<String> getFiles() {
+        return Collections.unmodifiableList(new ArrayList<>(checksums.keySet()));
+    }
+
+    public boolean contains(String file) {
+        return checksums.containsKey(file);
+    }
+
+    public File getFile(String file) {
+        checkListed(file);
+        return new File(directory, file);
+    }
+
+    /**
+     * The lowercase hex SHA-256 of the file, the same hash the AutoTuner keys its profile by
+     */
+    public String getChecksum(String file) {
+        checkListed(file);
+        return checksums.get(file);
+    }
+
+    public int[][] getInputShapes(String file) {
+        checkListed(file);
+        int[][] shapes = inputShapes.get(file);
+        int[][] copy = new int[shapes.length][];
+        for (int i = 0; i < shapes.length; i++) {
+            copy[i] = shapes[i].clone();
+        }
+        return copy;
+    }
+
+    /**
+     * Check the content of the file, e.g. its memory mapping, against the manifest checksum.
+     * The buffer position is not moved.
+     *
+     * @throws IOException if the file is corrupt or was replaced
+     */
+    public void verifyChecksum(String file, ByteBuffer content) throws IOException {
+        String checksum = sha256(content);
+        if (!checksum.equals(getChecksum(file))) {
+            throw new IOException(file + " of model version " + version +
+                    " does not match its checksum, found " + checksum);
+        }
+    }
+
+    /**
+     * Check the input tensor shapes of the loaded model against the manifest
+     *
+     * @throws IOException if the model is not the one the manifest describes
+     */
+    public void verifyInputShapes(String file, int[][] shapes) throws IOException {
+        if (!Arrays.deepEquals(inputShapes.get(file), shapes)) {
+            throw new IOException(file + " of model version " + version +
+                    " has input shapes " + Arrays.deepToString(shapes) + ", the manifest lists " +
+                    Arrays.deepToString(inputShapes.get(file)));
+        }
+    }
+
+    private void checkListed(String file) {
+        if (!checksums.containsKey(file)) {
+            throw new IllegalArgumentException(file + " is not in model version " + version);
+        }
+    }
+
+    /**
+     * Lowercase hex SHA-256 of the content, read without moving the buffer position
+     */
+    public static String sha256(ByteBuffer content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        ByteBuffer duplicate = content.duplicate();
+        duplicate.rewind();
+        digest.update(duplicate);
+
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest.digest()) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+}
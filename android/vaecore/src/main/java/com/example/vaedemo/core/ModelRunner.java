@@ -0,0 +1,25 @@
+package com.example.vaedemo.core;
+
+/**
+ * A single input, single output model on flattened row-major floats, batched along the first
+ * dimension. Implementations wrap one TF Lite interpreter, so that the core logic runs without
+ * Android, and convert the floats around the tensors of quantized variants. Not thread-safe:
+ * every worker thread runs its own.
+ */
+public interface ModelRunner {
+    /**
+     * The input shape with a batch size of 1
+     */
+    int[] getInputShape();
+
+    /**
+     * The output shape with a batch size of 1
+     */
+    int[] getOutputShape();
+
+    /**
+     * Run a batch of batchSize rows, read from the start of the input array and written to the
+     * start of the output array
+     */
+    void run(float[] input, float[] output, int batchSize);
+}
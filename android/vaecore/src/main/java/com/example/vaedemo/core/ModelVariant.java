@@ -0,0 +1,40 @@
+package com.example.vaedemo.core;
+
+/**
+ * Precision of the encoder, decoder and classifier models, picked when they are initialized.
+ * Every variant is converted from the same weights by the notebooks in ml/ and bundled next to
+ * the float32 model under a suffixed name, e.g. encode_int8.tflite. The small helper graphs
+ * only exist in float32. ml/variant_benchmark.py compares the accuracy and latency of the
+ * variants.
+ */
+public enum ModelVariant {
+    /**
+     * The original float32 conversion
+     */
+    FLOAT32(""),
+    /**
+     * float16 weights with float32 inputs and outputs, about half the size of float32
+     */
+    FLOAT16("_fp16"),
+    /**
+     * int8 weights and activations with int8 inputs and outputs, quantized by the runner
+     */
+    INT8("_int8");
+
+    private final String suffix;
+
+    ModelVariant(String suffix) {
+        this.suffix = suffix;
+    }
+
+    /**
+     * The asset of the model in this precision, e.g. encode.tflite becomes encode_int8.tflite
+     */
+    public String getFileName(String modelFile) {
+        int extension = modelFile.lastIndexOf('.');
+        if (extension < 0) {
+            return modelFile + suffix;
+        }
+        return modelFile.substring(0, extension) + suffix + modelFile.substring(extension);
+    }
+}
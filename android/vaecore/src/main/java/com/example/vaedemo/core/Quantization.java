@@ -0,0 +1,80 @@
+package com.example.vaedemo.core;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * The quantization of the int8 and uint8 tensors of the quantized model variants, which store
+ * real = scale * (quantized - zeroPoint). Floats are rounded and clamped into the range of the
+ * type and read back through the same scale and zero point. Free of the TF Lite API, so that the
+ * app and the batch tool convert their tensors alike.
+ */
+public final class Quantization {
+    private final boolean isSigned;
+    private final float scale;
+    private final int zeroPoint;
+    private final int min;
+    private final int max;
+
+    /**
+     * @param isSigned true for int8 tensors, false for uint8 ones
+     */
+    public Quantization(boolean isSigned, float scale, int zeroPoint) {
+        if (!(scale > 0)) {
+            throw new IllegalArgumentException("A quantized tensor needs a positive scale");
+        }
+        this.isSigned = isSigned;
+        this.scale = scale;
+        this.zeroPoint = zeroPoint;
+        min = isSigned ? Byte.MIN_VALUE : 0;
+        max = isSigned ? Byte.MAX_VALUE : 0xFF;
+    }
+
+    public byte quantize(float value) {
+        int quantized = Math.round(value / scale) + zeroPoint;
+        return (byte) Math.min(Math.max(quantized, min), max);
+    }
+
+    public float dequantize(byte value) {
+        int quantized = isSigned ? value : value & 0xFF;
+        return (quantized - zeroPoint) * scale;
+    }
+
+    /**
+     * Quantize the first count floats of the array into the buffer, by absolute index
+     */
+    public void quantize(float[] source, int count, ByteBuffer target) {
+        for (int i = 0; i < count; i++) {
+            target.put(i, quantize(source[i]));
+        }
+    }
+
+    /**
+     * Dequantize the buffer into the first count floats of the array, by absolute index
+     */
+    public void dequantize(ByteBuffer source, float[] target, int count) {
+        for (int i = 0; i < count; i++) {
+            target[i] = dequantize(source.get(i));
+        }
+    }
+
+    /**
+     * Quantize the whole float buffer into the tensor buffer, by absolute index
+     */
+    public void quantize(FloatBuffer source, ByteBuffer target) {
+        int count = source.capacity();
+        for (int i = 0; i < count; i++) {
+            target.put(i, quantize(source.get(i)));
+        }
+    }
+
+    /**
+     * Dequantize the tensor buffer into the whole float buffer, by absolute index
+     */
+    public void dequantize(ByteBuffer source, FloatBuffer target) {
+        int count = target.capacity();
+        for (int i = 0; i < count; i++) {
+            target.put(i, dequantize(source.get(i)));
+        }
+    }
+}
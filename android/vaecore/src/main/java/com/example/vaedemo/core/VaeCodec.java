@@ -0,0 +1,189 @@
+package com.example.vaedemo.core;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+/**
+ * The classify, encode and decode chains of the app without Context, AssetManager or Bitmap:
+ * the encoder, decoder and classifier run on ModelRunners and the helper graphs in Java, a whole
+ * batch per invocation. Images are flattened row-major pixels normalized to [0..1], and latent
+ * codes are flattened rows of the latent dimension.
+ *
+ * Not thread-safe: the working buffers are sized for maxBatchSize once and reused, so every
+ * worker thread owns its codec and runners.
+ */
+public final class VaeCodec {
+    private final ModelRunner encoder;
+    private final ModelRunner decoder;
+    private final ModelRunner classifier;
+    private final int maxBatchSize;
+    private final Random random;
+
+    private final int imageWidth;
+    private final int imageHeight;
+    private final int latentDimension;
+    private final int labelCount;
+
+    /**
+     * Working buffers sized for a whole batch, and one row of latent codes for the helpers
+     */
+    private final float[] encoderInput;
+    private final float[] packedLatentCodes;
+    private final float[] latentRow;
+    private final float[] decoderInput;
+    private final float[] logits;
+    private final float[] scores;
+
+    /**
+     * Any of the models may be null for a codec that only encodes, decodes or classifies, e.g.
+     * the classifier of the app
+     *
+     * @param classifier the classifier, or null if every image comes with its label
+     */
+    public VaeCodec(ModelRunner encoder, ModelRunner decoder, ModelRunner classifier,
+                    int maxBatchSize, Random random) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("The batch size must be positive");
+        }
+        if (encoder == null && decoder == null && classifier == null) {
+            throw new IllegalArgumentException("An encoder, a decoder or a classifier is needed");
+        }
+        this.encoder = encoder;
+        this.decoder = decoder;
+        this.classifier = classifier;
+        this.maxBatchSize = maxBatchSize;
+        this.random = random;
+
+        // [1][h][w][1 + 10] to [1][2L], [1][L + 10] to [1][h][w][1], and [1][h][w] to [1][10]
+        int[] imageShape = encoder != null ? encoder.getInputShape() :
+                decoder != null ? decoder.getOutputShape() : classifier.getInputShape();
+        imageHeight = imageShape[1];
+        imageWidth = imageShape[2];
+        latentDimension = encoder != null ? encoder.getOutputShape()[1] / 2 :
+                decoder != null ? decoder.getInputShape()[1] - HelperStages.LABEL_COUNT : 0;
+        if (decoder != null
+                && decoder.getInputShape()[1] != latentDimension + HelperStages.LABEL_COUNT) {
+            throw new IllegalArgumentException(
+                    "The decoder input is not matched with the encoder output");
+        }
+        labelCount = classifier != null ?
+                classifier.getOutputShape()[1] : HelperStages.LABEL_COUNT;
+
+        int pixelCount = imageWidth * imageHeight;
+        int encoderBatchSize = encoder != null ? maxBatchSize : 0;
+        int decoderBatchSize = decoder != null ? maxBatchSize : 0;
+        encoderInput = new float[encoderBatchSize * pixelCount * (1 + HelperStages.LABEL_COUNT)];
+        packedLatentCodes = new float[encoderBatchSize * 2 * latentDimension];
+        latentRow = new float[latentDimension];
+        decoderInput = new float[decoderBatchSize * (latentDimension + HelperStages.LABEL_COUNT)];
+        logits = new float[decoderBatchSize * pixelCount];
+        scores = new float[classifier != null ? maxBatchSize * labelCount : 0];
+    }
+
+    public int getImageWidth() {
+        return imageWidth;
+    }
+
+    public int getImageHeight() {
+        return imageHeight;
+    }
+
+    public int getLatentDimension() {
+        return latentDimension;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Classify a batch of images into their labels
+     */
+    public void classify(float[] pixels, int batchSize, int[] labels) {
+        if (classifier == null) {
+            throw new IllegalStateException("No classifier to label the images with");
+        }
+        checkBatchSize(batchSize);
+
+        classifier.run(pixels, scores, batchSize);
+        for (int n = 0; n < batchSize; n++) {
+            int maxIndex = 0;
+            for (int k = 1; k < labelCount; k++) {
+                if (scores[n * labelCount + k] > scores[n * labelCount + maxIndex]) {
+                    maxIndex = k;
+                }
+            }
+            labels[n] = maxIndex;
+        }
+    }
+
+    /**
+     * Encode a batch of labelled images into latent codes, sampled from the posterior like the
+     * app, or its mean for a deterministic result
+     */
+    public void encode(float[] pixels, int[] labels, int batchSize, boolean isSampled,
+                       float[] latentCodes) {
+        if (encoder == null) {
+            throw new IllegalStateException("No encoder to encode the images with");
+        }
+        checkBatchSize(batchSize);
+
+        int pixelCount = imageWidth * imageHeight;
+        int encodedCount = pixelCount * (1 + HelperStages.LABEL_COUNT);
+        for (int n = 0; n < batchSize; n++) {
+            HelperStages.oneHotEncodePixels(slice(pixels, n * pixelCount, pixelCount),
+                    labels[n], slice(encoderInput, n * encodedCount, encodedCount));
+        }
+
+        encoder.run(encoderInput, packedLatentCodes, batchSize);
+
+        for (int n = 0; n < batchSize; n++) {
+            int packedOffset = n * 2 * latentDimension;
+            if (isSampled) {
+                HelperStages.reparameterize(
+                        slice(packedLatentCodes, packedOffset, 2 * latentDimension),
+                        random, latentRow);
+                System.arraycopy(latentRow, 0,
+                        latentCodes, n * latentDimension, latentDimension);
+            } else {
+                System.arraycopy(packedLatentCodes, packedOffset,
+                        latentCodes, n * latentDimension, latentDimension);
+            }
+        }
+    }
+
+    /**
+     * Decode a batch of latent codes with their labels into grayscale images, one byte per pixel
+     */
+    public void decode(float[] latentCodes, int[] labels, int batchSize, byte[] grayscalePixels) {
+        if (decoder == null) {
+            throw new IllegalStateException("No decoder to decode the latent codes with");
+        }
+        checkBatchSize(batchSize);
+
+        int encodedCount = latentDimension + HelperStages.LABEL_COUNT;
+        for (int n = 0; n < batchSize; n++) {
+            System.arraycopy(latentCodes, n * latentDimension, latentRow, 0, latentDimension);
+            HelperStages.oneHotEncodeLatent(latentRow, labels[n],
+                    slice(decoderInput, n * encodedCount, encodedCount));
+        }
+
+        decoder.run(decoderInput, logits, batchSize);
+
+        int pixelCount = imageWidth * imageHeight;
+        HelperStages.bufferize(slice(logits, 0, batchSize * pixelCount),
+                ByteBuffer.wrap(grayscalePixels, 0, batchSize * pixelCount).slice());
+    }
+
+    private void checkBatchSize(int batchSize) {
+        if (batchSize <= 0 || batchSize > maxBatchSize) {
+            throw new IllegalArgumentException(
+                    "The batch size must be between 1 and " + maxBatchSize);
+        }
+    }
+
+    private static FloatBuffer slice(float[] array, int offset, int length) {
+        return FloatBuffer.wrap(array, offset, length).slice();
+    }
+}
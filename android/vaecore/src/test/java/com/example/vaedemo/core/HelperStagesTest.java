@@ -0,0 +1,117 @@
+package com.example.vaedemo.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of the pure Java helper stages. The parity with the TF Lite graphs is checked
+ * by the instrumented VaeModelTest.
+ */
+public class HelperStagesTest {
+    private static final long SEED = 42;
+
+    @Test
+    public void oneHotEncodePixels_appendsTheLabelToEveryPixel() {
+        float[][] pixels = {{0.25f, 0.5f}, {0.75f, 1f}};
+        float[][][] encodedPixels = new float[2][2][11];
+
+        HelperStages.oneHotEncodePixels(pixels, 3, encodedPixels);
+
+        for (int j = 0; j < 2; j++) {
+            for (int i = 0; i < 2; i++) {
+                assertEquals(pixels[j][i], encodedPixels[j][i][0], 0f);
+                for (int k = 0; k < 10; k++) {
+                    assertEquals(k == 3 ? 1f : 0f, encodedPixels[j][i][1 + k], 0f);
+                }
+            }
+        }
+
+        FloatBuffer encodedBuffer = FloatBuffer.allocate(4 * 11);
+        HelperStages.oneHotEncodePixels(
+                FloatBuffer.wrap(new float[]{0.25f, 0.5f, 0.75f, 1f}), 3, encodedBuffer);
+        for (int n = 0; n < 4; n++) {
+            for (int c = 0; c < 11; c++) {
+                assertEquals(encodedPixels[n / 2][n % 2][c], encodedBuffer.get(n * 11 + c), 0f);
+            }
+        }
+        assertEquals(0, encodedBuffer.position());
+    }
+
+    @Test
+    public void oneHotEncodeLatent_appendsTheLabelAndIgnoresLabelsOutOfRange() {
+        float[] encoded = new float[12];
+        HelperStages.oneHotEncodeLatent(new float[]{-1f, 2f}, 9, encoded);
+        assertArrayEquals(new float[]{-1f, 2f, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1f}, encoded, 0f);
+
+        FloatBuffer encodedBuffer = FloatBuffer.allocate(12);
+        HelperStages.oneHotEncodeLatent(new float[]{-1f, 2f}, 10, encodedBuffer);
+        assertArrayEquals(new float[]{-1f, 2f, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+                encodedBuffer.array(), 0f);
+    }
+
+    @Test
+    public void reparameterize_scalesTheNoiseByTheStandardDeviation() {
+        float[] packed = {1f, -2f, 0f, (float) Math.log(4)};
+        float[] latentCodes = new float[2];
+        HelperStages.reparameterize(packed, new Random(SEED), latentCodes);
+
+        Random random = new Random(SEED);
+        assertEquals(random.nextGaussian() + 1, latentCodes[0], 1e-5);
+        assertEquals(random.nextGaussian() * 2 - 2, latentCodes[1], 1e-5);
+
+        float[] bufferLatentCodes = new float[2];
+        HelperStages.reparameterize(FloatBuffer.wrap(packed), new Random(SEED), bufferLatentCodes);
+        assertArrayEquals(latentCodes, bufferLatentCodes, 0f);
+    }
+
+    @Test
+    public void reparameterizeSamples_drawsLikeRepeatedReparameterizeCalls() {
+        float[] packed = {1f, -2f, 0.5f, 0f, (float) Math.log(4), -1f};
+        float[] samples = new float[4 * 3];
+        HelperStages.reparameterizeSamples(packed, new Random(SEED), 4, samples);
+
+        Random random = new Random(SEED);
+        float[] latentCodes = new float[3];
+        for (int n = 0; n < 4; n++) {
+            HelperStages.reparameterize(packed, random, latentCodes);
+            for (int i = 0; i < 3; i++) {
+                assertEquals(latentCodes[i], samples[n * 3 + i], 1e-6);
+            }
+        }
+
+        // The same seed draws the same samples
+        float[] again = new float[4 * 3];
+        HelperStages.reparameterizeSamples(packed, new Random(SEED), 4, again);
+        assertArrayEquals(samples, again, 0f);
+    }
+
+    @Test
+    public void bufferize_truncatesTheSigmoidToUnsignedBytes() {
+        float[][][] logits = {{{-100f}, {0f}}, {{100f}, {(float) Math.log(3)}}};
+        byte[][] grayscalePixels = new byte[2][2];
+
+        HelperStages.bufferize(logits, grayscalePixels);
+
+        assertEquals(0, grayscalePixels[0][0] & 0xFF);
+        assertEquals(127, grayscalePixels[0][1] & 0xFF);
+        assertEquals(255, grayscalePixels[1][0] & 0xFF);
+        assertEquals(191, grayscalePixels[1][1] & 0xFF);
+
+        ByteBuffer grayscaleBuffer = ByteBuffer.allocate(4);
+        HelperStages.bufferize(
+                FloatBuffer.wrap(new float[]{-100f, 0f, 100f, (float) Math.log(3)}),
+                grayscaleBuffer);
+        assertArrayEquals(new byte[]{grayscalePixels[0][0], grayscalePixels[0][1],
+                grayscalePixels[1][0], grayscalePixels[1][1]}, grayscaleBuffer.array());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void reparameterize_rejectsMismatchedSizes() {
+        HelperStages.reparameterize(new float[3], new Random(SEED), new float[2]);
+    }
+}
@@ -0,0 +1,199 @@
+package com.example.vaedemo.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of the memory-mapped latent history store.
+ */
+public class LatentHistoryStoreTest {
+    private static final int LATENT = 3;
+    private static final int THUMBNAIL = 4;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("history", ".bin");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".compact").delete();
+    }
+
+    private static float[] codes(int index) {
+        return new float[]{index, -index, index / 2f};
+    }
+
+    private static byte[] thumbnail(int index) {
+        return new byte[]{(byte) index, 1, 2, (byte) 255};
+    }
+
+    private static void appendRecords(LatentHistoryStore store, int from, int to)
+            throws IOException {
+        for (int index = from; index < to; index++) {
+            assertEquals(index, store.append(codes(index), index % 10, 1000L + index,
+                    thumbnail(index)));
+        }
+    }
+
+    private static void assertRecord(LatentHistoryStore store, int index, int value) {
+        float[] latentCodes = new float[LATENT];
+        store.getLatentCodes(index, latentCodes);
+        assertArrayEquals(codes(value), latentCodes, 0f);
+        assertEquals(value % 10, store.getLabel(index));
+        assertEquals(1000L + value, store.getTimestampMillis(index));
+        ByteBuffer thumbnail = store.getThumbnail(index);
+        assertEquals(THUMBNAIL, thumbnail.remaining());
+        assertEquals((byte) value, thumbnail.get(0));
+        assertEquals((byte) 255, thumbnail.get(3));
+    }
+
+    @Test
+    public void open_readsBackTheRecordsOfThePreviousSession() throws IOException {
+        try (LatentHistoryStore store = LatentHistoryStore.open(file, LATENT, THUMBNAIL)) {
+            // Past the initial capacity, so the file grows and is mapped again
+            appendRecords(store, 0, 150);
+            store.sync();
+        }
+
+        try (LatentHistoryStore store = LatentHistoryStore.open(file, LATENT, THUMBNAIL)) {
+            assertEquals(150, store.size());
+            for (int index = 0; index < 150; index++) {
+                assertRecord(store, index, index);
+            }
+            appendRecords(store, 150, 160);
+            assertRecord(store, 159, 159);
+        }
+    }
+
+    @Test
+    public void getLatentCodes_isAReadOnlyViewOfTheMapping() throws IOException {
+        try (LatentHistoryStore store = LatentHistoryStore.open(file, LATENT, THUMBNAIL)) {
+            appendRecords(store, 0, 2);
+            FloatBuffer view = store.getLatentCodes(1);
+
+            assertTrue(view.isReadOnly());
+            assertEquals(LATENT, view.remaining());
+            assertEquals(-1f, view.get(1), 0f);
+        }
+    }
+
+    @Test
+    public void open_dropsATornTailRecord() throws IOException {
+        try (LatentHistoryStore store = LatentHistoryStore.open(file, LATENT, THUMBNAIL)) {
+            appendRecords(store, 0, 3);
+        }
+        int stride = (20 + 4 * LATENT + THUMBNAIL + 7) & ~7;
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            // The last record was counted, but half of it never reached the disk
+            raw.seek(LatentHistoryStore.HEADER_SIZE + 2 * stride + 24);
+            raw.write(new byte[8]);
+        }
+
+        try (LatentHistoryStore store = LatentHistoryStore.open(file, LATENT, THUMBNAIL)) {
+            assertEquals(2, store.size());
+            assertRecord(store, 1, 1);
+            assertEquals(2, store.append(codes(7), 7, 1007L, thumbnail(7)));
+            assertRecord(store, 2, 7);
+        }
+    }
+
+    @Test
+    public void open_deletesATornRecordBeforeValidOnes() throws IOException {
+        try (LatentHistoryStore store = LatentHistoryStore.open(file, LATENT, THUMBNAIL)) {
+            appendRecords(store, 0, 4);
+        }
+        int stride = (20 + 4 * LATENT + THUMBNAIL + 7) & ~7;
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            // The pages of the second record never reached the disk, the later ones did
+            raw.seek(LatentHistoryStore.HEADER_SIZE + stride + 24);
+            raw.write(new byte[8]);
+        }
+
+        try (LatentHistoryStore store = LatentHistoryStore.open(file, LATENT, THUMBNAIL)) {
+            assertEquals(4, store.size());
+            assertEquals(1, store.getTornCount());
+            assertEquals(1, store.getDeletedCount());
+            assertTrue(store.isDeleted(1));
+            assertFalse(store.isDeleted(2));
+            assertRecord(store, 0, 0);
+            assertRecord(store, 3, 3);
+        }
+        // Marked deleted with a valid checksum, so the next open finds nothing torn
+        try (LatentHistoryStore store = LatentHistoryStore.open(file, LATENT, THUMBNAIL)) {
+            assertEquals(0, store.getTornCount());
+            assertTrue(store.isDeleted(1));
+        }
+    }
+
+    @Test
+    public void open_ignoresACountAheadOfTheRecords() throws IOException {
+        try (LatentHistoryStore store = LatentHistoryStore.open(file, LATENT, THUMBNAIL)) {
+            appendRecords(store, 0, 3);
+        }
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.seek(20);
+            raw.write(new byte[]{5, 0, 0, 0});
+        }
+
+        try (LatentHistoryStore store = LatentHistoryStore.open(file, LATENT, THUMBNAIL)) {
+            assertEquals(3, store.size());
+        }
+    }
+
+    @Test
+    public void compact_dropsDeletedAndOldRecords() throws IOException {
+        try (LatentHistoryStore store = LatentHistoryStore.open(file, LATENT, THUMBNAIL)) {
+            appendRecords(store, 0, 10);
+            store.delete(8);
+            store.delete(2);
+            store.delete(2);
+            assertTrue(store.isDeleted(8));
+            assertEquals(2, store.getDeletedCount());
+
+            store.compact(5);
+
+            assertEquals(5, store.size());
+            assertEquals(0, store.getDeletedCount());
+            int[] expected = {4, 5, 6, 7, 9};
+            for (int index = 0; index < expected.length; index++) {
+                assertFalse(store.isDeleted(index));
+                assertRecord(store, index, expected[index]);
+            }
+            appendRecords(store, 5, 6);
+        }
+
+        try (LatentHistoryStore store = LatentHistoryStore.open(file, LATENT, THUMBNAIL)) {
+            assertEquals(6, store.size());
+            assertRecord(store, 4, 9);
+            assertRecord(store, 5, 5);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void open_rejectsAStoreOfAnotherShape() throws IOException {
+        LatentHistoryStore.open(file, LATENT, THUMBNAIL).close();
+        LatentHistoryStore.open(file, LATENT + 1, THUMBNAIL).close();
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getLabel_rejectsIndicesPastTheEnd() throws IOException {
+        try (LatentHistoryStore store = LatentHistoryStore.open(file, LATENT, THUMBNAIL)) {
+            appendRecords(store, 0, 1);
+            store.getLabel(1);
+        }
+    }
+}
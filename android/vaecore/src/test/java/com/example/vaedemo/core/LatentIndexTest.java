@@ -0,0 +1,193 @@
+package com.example.vaedemo.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of the exact and IVF searches of the latent index.
+ */
+public class LatentIndexTest {
+    private static final int DIMENSION = 5;
+    private static final int COUNT = 1003;
+
+    private final float[] latentCodes = new float[COUNT * DIMENSION];
+    private final int[] labels = new int[COUNT];
+
+    public LatentIndexTest() {
+        // Clusters around a few centres per label, like digits written in a few styles
+        Random random = new Random(7);
+        float[] centres = new float[30 * DIMENSION];
+        for (int i = 0; i < centres.length; i++) {
+            centres[i] = (float) random.nextGaussian() * 3;
+        }
+        for (int id = 0; id < COUNT; id++) {
+            int centre = random.nextInt(30);
+            labels[id] = centre % 10;
+            for (int k = 0; k < DIMENSION; k++) {
+                latentCodes[id * DIMENSION + k] =
+                        centres[centre * DIMENSION + k] + (float) random.nextGaussian() * 0.5f;
+            }
+        }
+    }
+
+    /**
+     * The k nearest ids by a plain scan, nearest first
+     */
+    private int[] bruteForce(float[] query, int label, int k) {
+        int[] ids = new int[k];
+        float[] distances = new float[k];
+        Arrays.fill(distances, Float.POSITIVE_INFINITY);
+        for (int id = 0; id < COUNT; id++) {
+            if (label != LatentIndex.ANY_LABEL && labels[id] != label) {
+                continue;
+            }
+            float distance = 0;
+            for (int j = 0; j < DIMENSION; j++) {
+                float difference = latentCodes[id * DIMENSION + j] - query[j];
+                distance += difference * difference;
+            }
+            int i = k - 1;
+            if (distance >= distances[i]) {
+                continue;
+            }
+            while (i > 0 && distances[i - 1] > distance) {
+                ids[i] = ids[i - 1];
+                distances[i] = distances[i - 1];
+                i--;
+            }
+            ids[i] = id;
+            distances[i] = distance;
+        }
+        return ids;
+    }
+
+    private float[] query(Random random) {
+        float[] query = new float[DIMENSION];
+        int id = random.nextInt(COUNT);
+        for (int j = 0; j < DIMENSION; j++) {
+            query[j] = latentCodes[id * DIMENSION + j] + (float) random.nextGaussian() * 0.3f;
+        }
+        return query;
+    }
+
+    @Test
+    public void exactSearch_matchesABruteForceScan() {
+        LatentIndex index = LatentIndex.build(latentCodes, labels, COUNT, DIMENSION, 4,
+                new Random(1));
+        Random random = new Random(2);
+        int[] ids = new int[10];
+        float[] distances = new float[10];
+        for (int q = 0; q < 20; q++) {
+            float[] query = query(random);
+            int label = q % 2 == 0 ? LatentIndex.ANY_LABEL : q % 10;
+
+            assertEquals(10, index.search(query, label, 10, LatentIndex.ALL_LISTS, ids,
+                    distances));
+            assertArrayEquals(bruteForce(query, label, 10), ids);
+            for (int i = 1; i < 10; i++) {
+                assertTrue(distances[i - 1] <= distances[i]);
+            }
+            if (label != LatentIndex.ANY_LABEL) {
+                for (int id : ids) {
+                    assertEquals(label, index.getLabel(id));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void ivfSearch_findsMostNeighboursAndMoreWithMoreProbes() {
+        LatentIndex index = LatentIndex.build(latentCodes, labels, COUNT, DIMENSION, 8,
+                new Random(1));
+        assertEquals(8, index.getListCount(3));
+
+        Random random = new Random(3);
+        int[] ids = new int[10];
+        float[] distances = new float[10];
+        int[] hits = new int[9];
+        for (int q = 0; q < 50; q++) {
+            float[] query = query(random);
+            int[] expected = bruteForce(query, q % 10, 10);
+            for (int probes = 1; probes <= 8; probes++) {
+                int found = index.search(query, q % 10, 10, probes, ids, distances);
+                for (int i = 0; i < found; i++) {
+                    for (int id : expected) {
+                        hits[probes] += ids[i] == id ? 1 : 0;
+                    }
+                }
+            }
+        }
+
+        assertTrue("Recall with one probe " + hits[1] / 500f, hits[1] > 500 / 2);
+        for (int probes = 2; probes <= 8; probes++) {
+            assertTrue(hits[probes] >= hits[probes - 1]);
+        }
+        assertEquals(500, hits[8]);
+    }
+
+    @Test
+    public void search_returnsFewerResultsThanKOnlyWhenTheListsRunOut() {
+        float[] codes = {0f, 0f, 1f, 1f, 2f, 2f};
+        int[] codeLabels = {4, 4, 5};
+        LatentIndex index = LatentIndex.build(codes, codeLabels, 3, 2, 1, new Random());
+        int[] ids = new int[5];
+        float[] distances = new float[5];
+
+        assertEquals(2, index.search(new float[]{2f, 2f}, 4, 5, LatentIndex.ALL_LISTS, ids,
+                distances));
+        assertArrayEquals(new int[]{1, 0}, Arrays.copyOf(ids, 2));
+        assertEquals(2f, distances[0], 0f);
+        assertEquals(0, index.search(new float[2], 7, 5, LatentIndex.ALL_LISTS, ids,
+                distances));
+        assertEquals(3, index.search(new float[2], LatentIndex.ANY_LABEL, 5, 1, ids,
+                distances));
+    }
+
+    @Test
+    public void getLatentCode_readsTheCodeBackFromItsBlock() {
+        LatentIndex index = LatentIndex.build(latentCodes, labels, COUNT, DIMENSION, 3,
+                new Random(1));
+        float[] latentCode = new float[DIMENSION];
+        for (int id = 0; id < COUNT; id += 97) {
+            index.getLatentCode(id, latentCode);
+            for (int k = 0; k < DIMENSION; k++) {
+                assertEquals(latentCodes[id * DIMENSION + k], latentCode[k], 0f);
+            }
+            assertEquals(labels[id], index.getLabel(id));
+        }
+    }
+
+    @Test
+    public void read_loadsWhatWriteWrote() throws IOException {
+        LatentIndex index = LatentIndex.build(latentCodes, labels, COUNT, DIMENSION, 6,
+                new Random(1));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        index.write(output);
+        LatentIndex loaded = LatentIndex.read(new ByteArrayInputStream(output.toByteArray()));
+
+        assertEquals(COUNT, loaded.size());
+        assertEquals(DIMENSION, loaded.getDimension());
+        Random random = new Random(4);
+        int[] ids = new int[7];
+        int[] loadedIds = new int[7];
+        float[] distances = new float[7];
+        for (int q = 0; q < 10; q++) {
+            float[] query = query(random);
+            index.search(query, LatentIndex.ANY_LABEL, 7, 2, ids, distances);
+            loaded.search(query, LatentIndex.ANY_LABEL, 7, 2, loadedIds, distances);
+            assertArrayEquals(ids, loadedIds);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void build_rejectsLabelsOutOfRange() {
+        LatentIndex.build(new float[2], new int[]{10}, 1, 2, 1, new Random());
+    }
+}
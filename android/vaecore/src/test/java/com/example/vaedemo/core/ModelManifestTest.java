@@ -0,0 +1,141 @@
+package com.example.vaedemo.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of the model bundle manifest.
+ */
+public class ModelManifestTest {
+    private static final byte[] MODEL = "not really a flatbuffer".getBytes(StandardCharsets.UTF_8);
+
+    private File root;
+
+    @Before
+    public void setUp() throws IOException {
+        root = File.createTempFile("models", "");
+        assertTrue(root.delete());
+        assertTrue(root.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        delete(root);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void write(File file, String text) throws IOException {
+        write(file, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        OutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(content);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private File bundle(String name, int version) throws IOException {
+        File directory = new File(root, name);
+        assertTrue(directory.mkdir());
+        write(new File(directory, "encode.tflite"), MODEL);
+        write(new File(directory, ModelManifest.FILE_NAME),
+                "version=" + version + "\n" +
+                        "files=encode.tflite\n" +
+                        "encode.tflite.sha256=" + ModelManifest.sha256(ByteBuffer.wrap(MODEL)) +
+                        "\n" +
+                        "encode.tflite.inputs=1,28,28;1\n");
+        return directory;
+    }
+
+    @Test
+    public void read_parsesTheFilesChecksumsAndShapes() throws IOException {
+        File directory = bundle("v3", 3);
+        ModelManifest manifest = ModelManifest.read(directory);
+
+        assertEquals(3, manifest.getVersion());
+        assertEquals(directory, manifest.getDirectory());
+        assertEquals(1, manifest.getFiles().size());
+        assertTrue(manifest.contains("encode.tflite"));
+        assertFalse(manifest.contains("decode.tflite"));
+        assertEquals(new File(directory, "encode.tflite"), manifest.getFile("encode.tflite"));
+        assertArrayEquals(new int[][]{{1, 28, 28}, {1}},
+                manifest.getInputShapes("encode.tflite"));
+    }
+
+    @Test
+    public void read_rejectsAManifestWithoutChecksum() throws IOException {
+        File directory = new File(root, "broken");
+        assertTrue(directory.mkdir());
+        write(new File(directory, ModelManifest.FILE_NAME),
+                "version=1\nfiles=encode.tflite\nencode.tflite.inputs=1,794\n");
+
+        try {
+            ModelManifest.read(directory);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("encode.tflite"));
+        }
+    }
+
+    @Test
+    public void verifyChecksum_rejectsAModifiedFile() throws IOException {
+        ModelManifest manifest = ModelManifest.read(bundle("v1", 1));
+        manifest.verifyChecksum("encode.tflite", ByteBuffer.wrap(MODEL));
+
+        byte[] modified = MODEL.clone();
+        modified[0] ^= 1;
+        try {
+            manifest.verifyChecksum("encode.tflite", ByteBuffer.wrap(modified));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void verifyInputShapes_rejectsAnotherModel() throws IOException {
+        ModelManifest manifest = ModelManifest.read(bundle("v1", 1));
+        manifest.verifyInputShapes("encode.tflite", new int[][]{{1, 28, 28}, {1}});
+
+        try {
+            manifest.verifyInputShapes("encode.tflite", new int[][]{{1, 28, 28}});
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void findLatest_picksTheHighestCompleteVersion() throws IOException {
+        assertNull(ModelManifest.findLatest(root));
+
+        bundle("a", 2);
+        bundle("b", 5);
+        bundle("c", 4);
+        // Still being copied, its manifest is not there yet
+        assertTrue(new File(root, "d").mkdir());
+        write(new File(new File(root, "d"), "encode.tflite"), MODEL);
+
+        assertEquals(5, ModelManifest.findLatest(root).getVersion());
+    }
+}
@@ -0,0 +1,18 @@
+package com.example.vaedemo.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of the model variant assets.
+ */
+public class ModelVariantTest {
+    @Test
+    public void getFileName_suffixesTheAsset() {
+        assertEquals("encode.tflite", ModelVariant.FLOAT32.getFileName("encode.tflite"));
+        assertEquals("decode_fp16.tflite", ModelVariant.FLOAT16.getFileName("decode.tflite"));
+        assertEquals("classify_int8.tflite", ModelVariant.INT8.getFileName("classify.tflite"));
+        assertEquals("classify_int8", ModelVariant.INT8.getFileName("classify"));
+    }
+}
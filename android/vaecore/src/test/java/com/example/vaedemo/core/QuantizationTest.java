@@ -0,0 +1,73 @@
+package com.example.vaedemo.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of the int8 and uint8 tensor quantization.
+ */
+public class QuantizationTest {
+    @Test
+    public void quantize_roundsAndClampsWithTheScaleAndZeroPoint() {
+        Quantization quantization = new Quantization(true, 1f / 255, -128);
+
+        assertEquals(-128, quantization.quantize(0f));
+        assertEquals(127, quantization.quantize(1f));
+        assertEquals(0, quantization.quantize(128f / 255));
+        assertEquals(-128, quantization.quantize(-0.5f));
+        assertEquals(127, quantization.quantize(2f));
+        assertEquals(128f / 255, quantization.dequantize((byte) 0), 1e-6f);
+        assertEquals(1f, quantization.dequantize((byte) 127), 1e-6f);
+    }
+
+    @Test
+    public void dequantize_readsUint8AsUnsigned() {
+        Quantization quantization = new Quantization(false, 0.5f, 10);
+
+        assertEquals((byte) 200, quantization.quantize(95f));
+        assertEquals(95f, quantization.dequantize((byte) 200), 0f);
+        assertEquals(0, quantization.quantize(-100f));
+    }
+
+    @Test
+    public void quantize_convertsArraysAndBuffersAlike() {
+        float scale = 0.05f;
+        Quantization quantization = new Quantization(true, scale, 3);
+        float[] values = new float[8];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (i - 4) * 0.37f;
+        }
+
+        ByteBuffer fromArray = ByteBuffer.allocate(values.length);
+        quantization.quantize(values, values.length, fromArray);
+        ByteBuffer fromBuffer = ByteBuffer.allocate(values.length);
+        quantization.quantize(FloatBuffer.wrap(values), fromBuffer);
+        float[] restored = new float[values.length];
+        quantization.dequantize(fromArray, restored, values.length);
+        FloatBuffer restoredBuffer = FloatBuffer.allocate(values.length);
+        quantization.dequantize(fromBuffer, restoredBuffer);
+
+        assertEquals(fromArray, fromBuffer);
+        assertArrayEquals(values, restored, scale / 2 + 1e-6f);
+        assertArrayEquals(restored, restoredBuffer.array(), 0f);
+    }
+
+    @Test
+    public void quantize_stopsAtTheCount() {
+        Quantization quantization = new Quantization(false, 1f, 0);
+        ByteBuffer target = ByteBuffer.allocate(3);
+
+        quantization.quantize(new float[]{1f, 2f, 3f}, 2, target);
+
+        assertEquals(0, target.get(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void quantization_needsAPositiveScale() {
+        new Quantization(true, 0f, 0);
+    }
+}
@@ -0,0 +1,219 @@
+package com.example.vaedemo.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of the batched classify, encode and decode chains on fake models.
+ */
+public class VaeCodecTest {
+    private static final int SIZE = 2;
+    private static final int PIXELS = SIZE * SIZE;
+    private static final int LATENT = 3;
+
+    private final List<Integer> batchSizes = new ArrayList<>();
+
+    /**
+     * Packs mean[k] = (k + 1) * sum(pixels) + label and a tiny logvar per image
+     */
+    private final ModelRunner encoder = new FakeRunner(
+            new int[]{1, SIZE, SIZE, 11}, new int[]{1, 2 * LATENT}) {
+        @Override
+        void runRow(float[] input, int inputOffset, float[] output, int outputOffset) {
+            float sum = 0;
+            int label = -1;
+            for (int i = 0; i < PIXELS; i++) {
+                sum += input[inputOffset + i * 11];
+            }
+            for (int k = 0; k < 10; k++) {
+                if (input[inputOffset + 1 + k] == 1f) {
+                    label = k;
+                }
+            }
+            for (int k = 0; k < LATENT; k++) {
+                output[outputOffset + k] = (k + 1) * sum + label;
+                output[outputOffset + LATENT + k] = -40f;
+            }
+        }
+    };
+
+    /**
+     * Every logit is the first latent code plus the label
+     */
+    private final ModelRunner decoder = new FakeRunner(
+            new int[]{1, LATENT + 10}, new int[]{1, SIZE, SIZE, 1}) {
+        @Override
+        void runRow(float[] input, int inputOffset, float[] output, int outputOffset) {
+            int label = 0;
+            for (int k = 0; k < 10; k++) {
+                if (input[inputOffset + LATENT + k] == 1f) {
+                    label = k;
+                }
+            }
+            for (int i = 0; i < PIXELS; i++) {
+                output[outputOffset + i] = input[inputOffset] + label;
+            }
+        }
+    };
+
+    /**
+     * Scores the label round(9 * first pixel) highest
+     */
+    private final ModelRunner classifier = new FakeRunner(
+            new int[]{1, SIZE, SIZE}, new int[]{1, 10}) {
+        @Override
+        void runRow(float[] input, int inputOffset, float[] output, int outputOffset) {
+            int label = Math.round(9 * input[inputOffset]);
+            for (int k = 0; k < 10; k++) {
+                output[outputOffset + k] = k == label ? 1f : -1f;
+            }
+        }
+    };
+
+    private abstract class FakeRunner implements ModelRunner {
+        private final int[] inputShape;
+        private final int[] outputShape;
+
+        FakeRunner(int[] inputShape, int[] outputShape) {
+            this.inputShape = inputShape;
+            this.outputShape = outputShape;
+        }
+
+        abstract void runRow(float[] input, int inputOffset, float[] output, int outputOffset);
+
+        @Override
+        public int[] getInputShape() {
+            return inputShape;
+        }
+
+        @Override
+        public int[] getOutputShape() {
+            return outputShape;
+        }
+
+        @Override
+        public void run(float[] input, float[] output, int batchSize) {
+            batchSizes.add(batchSize);
+            int inputCount = count(inputShape);
+            int outputCount = count(outputShape);
+            for (int n = 0; n < batchSize; n++) {
+                runRow(input, n * inputCount, output, n * outputCount);
+            }
+        }
+
+        private int count(int[] shape) {
+            int count = 1;
+            for (int dimension : shape) {
+                count *= dimension;
+            }
+            return count;
+        }
+    }
+
+    private VaeCodec codec(int maxBatchSize) {
+        return new VaeCodec(encoder, decoder, classifier, maxBatchSize, new Random(42));
+    }
+
+    @Test
+    public void codec_readsTheShapesFromTheModels() {
+        VaeCodec codec = codec(4);
+
+        assertEquals(SIZE, codec.getImageWidth());
+        assertEquals(SIZE, codec.getImageHeight());
+        assertEquals(LATENT, codec.getLatentDimension());
+    }
+
+    @Test
+    public void encode_runsTheOneHotImagesAsOneBatch() {
+        VaeCodec codec = codec(4);
+        float[] pixels = {0.25f, 0.25f, 0.25f, 0.25f, 1f, 0f, 0f, 0f};
+        float[] latentCodes = new float[2 * LATENT];
+
+        codec.encode(pixels, new int[]{3, 7}, 2, false, latentCodes);
+
+        assertEquals(1, batchSizes.size());
+        assertEquals(2, (int) batchSizes.get(0));
+        assertArrayEquals(new float[]{4f, 5f, 6f, 8f, 9f, 10f}, latentCodes, 1e-6f);
+
+        // The posterior is narrow enough for the samples to stay at its mean
+        float[] sampledCodes = new float[2 * LATENT];
+        codec.encode(pixels, new int[]{3, 7}, 2, true, sampledCodes);
+        assertArrayEquals(latentCodes, sampledCodes, 1e-4f);
+    }
+
+    @Test
+    public void decode_bufferizesTheBatchLikeTheApp() {
+        VaeCodec codec = codec(4);
+        float[] latentCodes = {0f, 9f, 9f, -100f, 9f, 9f, 0f, 9f, 9f};
+        byte[] grayscalePixels = new byte[3 * PIXELS];
+
+        codec.decode(latentCodes, new int[]{0, 0, 2}, 3, grayscalePixels);
+
+        assertEquals(1, batchSizes.size());
+        for (int i = 0; i < PIXELS; i++) {
+            assertEquals(127, grayscalePixels[i] & 0xFF);
+            assertEquals(0, grayscalePixels[PIXELS + i] & 0xFF);
+            assertEquals((int) (255 / (1 + Math.exp(-2))), grayscalePixels[2 * PIXELS + i] & 0xFF);
+        }
+    }
+
+    @Test
+    public void classify_picksTheHighestScore() {
+        VaeCodec codec = codec(4);
+        float[] pixels = {1f, 0f, 0f, 0f, 0.33f, 0f, 0f, 0f};
+        int[] labels = new int[2];
+
+        codec.classify(pixels, 2, labels);
+
+        assertArrayEquals(new int[]{9, 3}, labels);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void encode_rejectsBatchesOverTheMaximum() {
+        codec(2).encode(new float[3 * PIXELS], new int[3], 3, false, new float[3 * LATENT]);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void classify_needsAClassifier() {
+        new VaeCodec(encoder, decoder, null, 1, new Random())
+                .classify(new float[PIXELS], 1, new int[1]);
+    }
+
+    @Test
+    public void decodeOnlyCodecs_readTheShapesFromTheDecoder() {
+        VaeCodec codec = new VaeCodec(null, decoder, null, 2, new Random());
+        assertEquals(SIZE, codec.getImageWidth());
+        assertEquals(LATENT, codec.getLatentDimension());
+
+        byte[] grayscalePixels = new byte[PIXELS];
+        codec.decode(new float[]{0f, 0f, 0f}, new int[]{0}, 1, grayscalePixels);
+        assertEquals(127, grayscalePixels[0]);
+    }
+
+    @Test
+    public void classifyOnlyCodecs_readTheShapesFromTheClassifier() {
+        VaeCodec codec = new VaeCodec(null, null, classifier, 1, null);
+        assertEquals(SIZE, codec.getImageHeight());
+        assertEquals(0, codec.getLatentDimension());
+
+        int[] labels = new int[1];
+        codec.classify(new float[]{1f, 0f, 0f, 0f}, 1, labels);
+        assertEquals(9, labels[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void codec_needsAModel() {
+        new VaeCodec(null, null, null, 1, new Random());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void encode_needsAnEncoder() {
+        new VaeCodec(null, decoder, null, 1, new Random())
+                .encode(new float[PIXELS], new int[1], 1, false, new float[LATENT]);
+    }
+}
@@ -0,0 +1,68 @@
+"""Packs retrained TF Lite models into a versioned bundle the app loads without a new APK.
+
+Copies the models into OUT/v<VERSION>/ and writes the manifest.properties that ModelManifest.java
+reads: the version, the files, and the SHA-256 and input tensor shapes of each one. The
+manifest is written last, as the app skips a directory without one. A model must keep the
+tensor shapes of the one it replaces to be swapped in while the app runs. Usage:
+
+    python make_model_bundle.py --version 3 encode.tflite decode.tflite [--out bundles]
+    adb push bundles/v3 /data/local/tmp/v3
+    adb shell run-as com.example.vaedemo sh -c 'mkdir -p files/models && rm -rf files/v3.tmp && cp -r /data/local/tmp/v3 files/v3.tmp && mv files/v3.tmp files/models/v3'
+
+The bundle is copied next to files/models and then moved in with one rename, so the app never
+finds it half copied.
+"""
+
+import argparse
+import hashlib
+import os
+import shutil
+
+try:
+    import tflite_runtime.interpreter as tflite
+except ImportError:
+    from tensorflow import lite as tflite
+
+MANIFEST = 'manifest.properties'
+
+
+def sha256(path):
+    digest = hashlib.sha256()
+    with open(path, 'rb') as f:
+        for block in iter(lambda: f.read(1 << 20), b''):
+            digest.update(block)
+    return digest.hexdigest()
+
+
+def input_shapes(path):
+    interpreter = tflite.Interpreter(model_path=path)
+    return ';'.join(','.join(str(d) for d in details['shape'])
+                    for details in interpreter.get_input_details())
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__.split('\n')[0])
+    parser.add_argument('models', nargs='+', help='.tflite files, named like the app assets')
+    parser.add_argument('--version', type=int, required=True, help='positive bundle version')
+    parser.add_argument('--out', default='bundles', help='directory of the bundles')
+    args = parser.parse_args()
+    if args.version <= 0:
+        parser.error('the version must be positive, 0 are the models in the APK')
+
+    bundle = os.path.join(args.out, 'v%d' % args.version)
+    os.makedirs(bundle)
+    lines = ['version=%d' % args.version,
+             'files=' + ','.join(os.path.basename(path) for path in args.models)]
+    for path in args.models:
+        name = os.path.basename(path)
+        shutil.copyfile(path, os.path.join(bundle, name))
+        lines.append('%s.sha256=%s' % (name, sha256(path)))
+        lines.append('%s.inputs=%s' % (name, input_shapes(path)))
+
+    with open(os.path.join(bundle, MANIFEST), 'w') as f:
+        f.write('\n'.join(lines) + '\n')
+    print('Wrote %s with %d model(s)' % (bundle, len(args.models)))
+
+
+if __name__ == '__main__':
+    main()
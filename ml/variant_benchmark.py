@@ -0,0 +1,161 @@
+"""Accuracy vs. latency harness of the model variants.
+
+Runs every precision of the classifier, encoder and decoder found next to the float32 models
+(classify.tflite, classify_fp16.tflite, classify_int8.tflite, ...) on the MNIST sample saved
+by cvae-tflite-converter.ipynb, and reports for each variant:
+
+  * the model size
+  * the mean and median latency of one invoke
+  * the classification accuracy of the classifier
+  * the reconstruction error of encode -> decode, as the binary cross entropy against the
+    binarized input like in training, and as the mean absolute difference from the float32
+    reconstruction, which isolates the quantization error
+
+Quantized int8 tensors are fed and read through their scale and zero point, like the app does
+in QuantizedTensor.java. Usage:
+
+    python variant_benchmark.py [--models DIR] [--sample mnist_sample.npz] [--threads 1]
+"""
+
+import argparse
+import os
+import time
+
+import numpy as np
+
+try:
+    import tflite_runtime.interpreter as tflite
+except ImportError:
+    from tensorflow import lite as tflite
+
+# The suffixes of ModelVariant.java
+VARIANTS = [('float32', ''), ('float16', '_fp16'), ('int8', '_int8')]
+LATENT_DIM = 50
+NUM_CLASSES = 10
+
+
+def quantize(values, details):
+    if details['dtype'] == np.float32:
+        return values.astype(np.float32)
+    scale, zero_point = details['quantization']
+    info = np.iinfo(details['dtype'])
+    quantized = np.round(values / scale) + zero_point
+    return np.clip(quantized, info.min, info.max).astype(details['dtype'])
+
+
+def dequantize(values, details):
+    if details['dtype'] == np.float32:
+        return values
+    scale, zero_point = details['quantization']
+    return (values.astype(np.float32) - zero_point) * scale
+
+
+class Model(object):
+    """A single input, single output model with float inputs and outputs for every variant"""
+
+    def __init__(self, path, num_threads):
+        self.size = os.path.getsize(path)
+        self.interpreter = tflite.Interpreter(model_path=path, num_threads=num_threads)
+        self.interpreter.allocate_tensors()
+        self.input = self.interpreter.get_input_details()[0]
+        self.output = self.interpreter.get_output_details()[0]
+        self.invoke_times = []
+
+    def run(self, values):
+        values = np.reshape(values, self.input['shape'])
+        self.interpreter.set_tensor(self.input['index'], quantize(values, self.input))
+        start_time = time.perf_counter()
+        self.interpreter.invoke()
+        self.invoke_times.append(time.perf_counter() - start_time)
+        return dequantize(self.interpreter.get_tensor(self.output['index']), self.output)
+
+    def latency_us(self):
+        # The first invoke allocates and warms up, so it is left out
+        times = np.array(self.invoke_times[1:] or self.invoke_times) * 1e6
+        return np.mean(times), np.median(times)
+
+
+def one_hot(label):
+    return np.eye(NUM_CLASSES, dtype=np.float32)[label]
+
+
+def sigmoid(logits):
+    return 1. / (1. + np.exp(-logits))
+
+
+def binary_cross_entropy(logits, target):
+    # Numerically stable form of sigmoid_cross_entropy_with_logits, summed per image
+    return np.sum(np.maximum(logits, 0) - logits * target + np.log1p(np.exp(-np.abs(logits))))
+
+
+def evaluate_classifier(model, images, labels):
+    correct = 0
+    for image, label in zip(images, labels):
+        correct += int(np.argmax(model.run(image)) == label)
+    return correct / float(len(images))
+
+
+def reconstruct(encoder, decoder, images, labels):
+    """Decode the posterior mean of every image, so the reconstruction is deterministic"""
+    logits = []
+    for image, label in zip(images, labels):
+        encoder_input = np.concatenate(
+            [image[:, :, np.newaxis], np.tile(one_hot(label), (28, 28, 1))], axis=2)
+        mean = encoder.run(encoder_input).reshape(-1)[:LATENT_DIM]
+        logits.append(decoder.run(np.concatenate([mean, one_hot(label)])).reshape(28, 28))
+    return np.array(logits)
+
+
+def load_sample(path):
+    if not os.path.exists(path):
+        raise SystemExit('MNIST sample not found: run cvae-tflite-converter.ipynb to save ' + path)
+    with np.load(path) as sample:
+        return sample['images'].astype(np.float32) / 255., sample['labels']
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__.split('\n')[0])
+    parser.add_argument('--models', default=os.path.dirname(os.path.abspath(__file__)),
+                        help='directory of the .tflite models')
+    parser.add_argument('--sample', default=None, help='MNIST sample .npz')
+    parser.add_argument('--threads', type=int, default=1, help='interpreter threads')
+    args = parser.parse_args()
+
+    images, labels = load_sample(args.sample or os.path.join(args.models, 'mnist_sample.npz'))
+    # The VAE was trained on binarized images
+    binarized = (images >= .5).astype(np.float32)
+
+    rows = []
+    reference = None
+    for variant, suffix in VARIANTS:
+        paths = [os.path.join(args.models, name + suffix + '.tflite')
+                 for name in ('classify', 'encode', 'decode')]
+        classifier, encoder, decoder = [
+            Model(path, args.threads) if os.path.exists(path) else None for path in paths]
+
+        if classifier is not None:
+            accuracy = evaluate_classifier(classifier, images, labels)
+            rows.append(('classify', variant, classifier, '%.2f%%' % (accuracy * 100), '', ''))
+
+        if encoder is not None and decoder is not None:
+            logits = reconstruct(encoder, decoder, binarized, labels)
+            error = np.mean([binary_cross_entropy(l, x) for l, x in zip(logits, binarized)])
+            if reference is None and variant == 'float32':
+                reference = sigmoid(logits)
+            drift = '' if reference is None else \
+                '%.4f' % np.mean(np.abs(sigmoid(logits) - reference))
+            rows.append(('encode', variant, encoder, '', '%.2f' % error, drift))
+            rows.append(('decode', variant, decoder, '', '', ''))
+
+    header = ('model', 'variant', 'size KB', 'mean us', 'p50 us', 'accuracy', 'recon BCE',
+              'vs float32')
+    print('Sample of %d images, %d interpreter thread(s)' % (len(images), args.threads))
+    print('%-9s %-8s %8s %8s %8s %9s %9s %10s' % header)
+    for name, variant, model, accuracy, error, drift in rows:
+        mean, median = model.latency_us()
+        print('%-9s %-8s %8.1f %8.1f %8.1f %9s %9s %10s' % (
+            name, variant, model.size / 1024., mean, median, accuracy, error, drift))
+
+
+if __name__ == '__main__':
+    main()